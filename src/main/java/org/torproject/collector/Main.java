@@ -18,7 +18,9 @@ import org.torproject.collector.torperf.TorperfDownloader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -32,6 +34,13 @@ import java.util.Map;
  * Run without arguments in order to read the usage information, i.e.
  * <br>
  * <code>java -jar collector.jar</code>
+ * <br>
+ * Run with arguments <code>export bridgedescs path/to/configFile
+ * path/to/targetDirectory</code> in order to export descriptors stored in
+ * segment files to the classic one-file-per-descriptor layout, or with
+ * <code>export exitlists path/to/configFile path/to/targetDirectory</code>
+ * in order to export exit lists stored as snapshots and deltas to the
+ * classic one-file-per-exit-list layout.
  */
 public class Main {
 
@@ -66,6 +75,9 @@ public class Main {
         confPath = Paths.get(CONF_FILE);
       } else if (args.length == 1) {
         confPath = Paths.get(args[0]);
+      } else if (args.length == 4 && args[0].equals("export")) {
+        export(args[1], Paths.get(args[2]), new File(args[3]));
+        return;
       } else {
         printUsage("CollecTor takes at most one argument.");
         return;
@@ -86,10 +98,39 @@ public class Main {
 
   private static void printUsage(String msg) {
     final String usage = "Usage:\njava -jar collector.jar "
-        + "[path/to/configFile]";
+        + "[path/to/configFile]\njava -jar collector.jar export "
+        + "bridgedescs|exitlists path/to/configFile "
+        + "path/to/targetDirectory";
     System.out.println(msg + "\n" + usage);
   }
 
+  /* Exports files stored by the given module in the output directory
+   * configured in the given configuration file to the classic layout in
+   * the given target directory. */
+  private static void export(String module, Path confPath,
+      File targetDirectory) throws ConfigurationException, IOException {
+    Configuration exportConf = new Configuration();
+    try (InputStream is = Files.newInputStream(confPath)) {
+      exportConf.load(is);
+    }
+    int exported;
+    switch (module) {
+      case "bridgedescs":
+        exported = SanitizedBridgesWriter.exportSegments(exportConf,
+            targetDirectory);
+        break;
+      case "exitlists":
+        exported = ExitListDownloader.exportDeltas(exportConf,
+            targetDirectory);
+        break;
+      default:
+        printUsage("Cannot export files of module " + module + ".");
+        return;
+    }
+    System.out.println("Exported " + exported + " files to "
+        + targetDirectory + ".");
+  }
+
   private static void writeDefaultConfig(Path confPath) {
     try {
       Files.copy(Main.class.getClassLoader().getResource(CONF_FILE)
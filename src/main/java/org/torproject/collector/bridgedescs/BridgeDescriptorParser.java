@@ -33,25 +33,39 @@ public class BridgeDescriptorParser {
    * descriptor type and passes it to the sanitized bridges writer. */
   public void parse(byte[] allData, String dateTime,
       String authorityFingerprint) throws ConfigurationException {
+    this.store(this.sanitize(allData, dateTime, authorityFingerprint));
+  }
+
+  /** Has the sanitized bridges writer write the given sanitized
+   * descriptor to disk. */
+  void store(SanitizedBridgeDescriptor sanitizedDescriptor) {
+    this.sbw.store(sanitizedDescriptor);
+  }
+
+  /** Parses the first line of the given descriptor data to determine the
+   * descriptor type and has the sanitized bridges writer sanitize it
+   * without writing it to disk, which is safe to do from multiple threads
+   * at once. */
+  SanitizedBridgeDescriptor sanitize(byte[] allData, String dateTime,
+      String authorityFingerprint) {
     try {
       BufferedReader br = new BufferedReader(new StringReader(
           new String(allData, "US-ASCII")));
       String line = br.readLine();
       if (line == null) {
-        return;
+        return null;
       }
       if (line.startsWith("router ")) {
-        this.sbw.sanitizeAndStoreServerDescriptor(allData);
+        return this.sbw.sanitizeServerDescriptor(allData);
       } else if (line.startsWith("extra-info ")) {
-        this.sbw.sanitizeAndStoreExtraInfoDescriptor(allData);
+        return this.sbw.sanitizeExtraInfoDescriptor(allData);
       } else {
-        this.sbw.sanitizeAndStoreNetworkStatus(allData, dateTime,
+        return this.sbw.sanitizeNetworkStatus(allData, dateTime,
             authorityFingerprint);
       }
     } catch (IOException e) {
       logger.warn("Could not parse or write bridge descriptor.", e);
-      return;
+      return null;
     }
   }
 }
-
@@ -0,0 +1,247 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.torproject.collector.persist.DigestSet;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Storage of sanitized bridge server descriptors and extra-info
+ * descriptors in monthly segment files, rather than in one file per
+ * descriptor.
+ *
+ * <p>Descriptors that would be written to
+ * <code>yyyy/MM/server-descriptors/d/d/digest</code> are appended to
+ * <code>yyyy/MM/server-descriptors.segment</code> instead, and likewise
+ * for extra-info descriptors.  An index file next to each segment file
+ * contains one record per descriptor with its 20-byte digest, its 8-byte
+ * offset, and its 4-byte length.  Descriptors are stored only once, which
+ * is decided by looking up their digest in the index, not by checking
+ * whether a file exists.  Descriptors stored in the classic layout before
+ * switching to segments are not taken into account.  The classic layout
+ * can be exported from segment files at any time.</p>
+ */
+class BridgeDescriptorSegments {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      BridgeDescriptorSegments.class);
+
+  static final String SEGMENT_SUFFIX = ".segment";
+
+  static final String INDEX_SUFFIX = ".index";
+
+  private static final int DIGEST_LENGTH = DigestSet.DIGEST_LENGTH;
+
+  private static final int INDEX_RECORD_LENGTH = DIGEST_LENGTH + 8 + 4;
+
+  /** Segment file of a single month and descriptor type, together with
+   * its index. */
+  private static class Segment {
+
+    final DigestSet digests;
+
+    final FileChannel data;
+
+    final FileChannel index;
+
+    Segment(DigestSet digests, FileChannel data, FileChannel index) {
+      this.digests = digests;
+      this.data = data;
+      this.index = index;
+    }
+  }
+
+  private final File outputDirectory;
+
+  private final Map<String, Segment> segments = new HashMap<>();
+
+  /** Prepares storing descriptors in segment files in the given output
+   * directory. */
+  BridgeDescriptorSegments(File outputDirectory) {
+    this.outputDirectory = outputDirectory;
+  }
+
+  /** Appends the given descriptor, which would otherwise be written to
+   * the given file in the classic layout, to its segment file, unless it
+   * is contained in that segment file already, and returns whether it
+   * was appended. */
+  synchronized boolean append(File outputFile, byte[] content)
+      throws IOException {
+    Path relativePath = this.outputDirectory.toPath().relativize(
+        outputFile.toPath());
+    if (relativePath.getNameCount() != 6) {
+      throw new IllegalArgumentException("Cannot store " + outputFile
+          + " in a segment file.");
+    }
+    String segmentName = relativePath.subpath(0, 3).toString();
+    byte[] digest;
+    try {
+      digest = Hex.decodeHex(relativePath.getFileName().toString()
+          .toCharArray());
+    } catch (DecoderException e) {
+      throw new IllegalArgumentException("Cannot store " + outputFile
+          + " in a segment file.", e);
+    }
+    Segment segment = this.segments.get(segmentName);
+    if (segment == null) {
+      segment = this.open(new File(this.outputDirectory, segmentName));
+      this.segments.put(segmentName, segment);
+    }
+    if (segment.digests.contains(digest)) {
+      return false;
+    }
+    long offset = segment.data.size();
+    writeFully(segment.data, ByteBuffer.wrap(content), offset);
+    ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_LENGTH);
+    record.put(digest).putLong(offset).putInt(content.length).flip();
+    writeFully(segment.index, record, segment.index.size());
+    segment.digests.add(digest);
+    return true;
+  }
+
+  /* Opens the segment and index files with the given path without
+   * suffix, reads the digests of all descriptors contained in the segment
+   * file, and removes any data that is not referenced by the index. */
+  private Segment open(File segmentPath) throws IOException {
+    segmentPath.getParentFile().mkdirs();
+    FileChannel data = FileChannel.open(new File(segmentPath.getPath()
+        + SEGMENT_SUFFIX).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    FileChannel index = FileChannel.open(new File(segmentPath.getPath()
+        + INDEX_SUFFIX).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    DigestSet digests = new DigestSet();
+    long validIndexLength = 0L;
+    long validDataLength = 0L;
+    ByteBuffer records = ByteBuffer.allocate((int) index.size());
+    index.read(records, 0L);
+    records.flip();
+    byte[] digest = new byte[DIGEST_LENGTH];
+    while (records.remaining() >= INDEX_RECORD_LENGTH) {
+      records.get(digest);
+      long offset = records.getLong();
+      int length = records.getInt();
+      if (offset + length > data.size()) {
+        break;
+      }
+      digests.add(digest);
+      validIndexLength += INDEX_RECORD_LENGTH;
+      validDataLength = Math.max(validDataLength, offset + length);
+    }
+    if (validIndexLength < index.size()) {
+      /* Drop index records that were written incompletely, or that refer
+       * to descriptors that were not completely written. */
+      logger.warn("Truncating incomplete index of " + segmentPath
+          + SEGMENT_SUFFIX + ".");
+      index.truncate(validIndexLength);
+    }
+    if (validDataLength < data.size()) {
+      /* Drop descriptors that were written without writing their index
+       * records, so that they are not contained twice after appending
+       * them again. */
+      logger.warn("Truncating unindexed data of " + segmentPath
+          + SEGMENT_SUFFIX + ".");
+      data.truncate(validDataLength);
+    }
+    return new Segment(digests, data, index);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  /** Closes all segment and index files, which are opened again when
+   * appending the next descriptor. */
+  synchronized void close() {
+    for (Map.Entry<String, Segment> e : this.segments.entrySet()) {
+      try {
+        e.getValue().data.close();
+        e.getValue().index.close();
+      } catch (IOException ex) {
+        logger.warn("Could not close segment " + e.getKey() + ".", ex);
+      }
+    }
+    this.segments.clear();
+  }
+
+  /** Writes all descriptors contained in segment files in the given
+   * output directory to files in the classic layout in the given target
+   * directory, and returns the number of written files. */
+  static int export(File outputDirectory, File targetDirectory)
+      throws IOException {
+    int exported = 0;
+    Stack<File> files = new Stack<>();
+    files.add(outputDirectory);
+    while (!files.isEmpty()) {
+      File file = files.pop();
+      if (file.isDirectory()) {
+        File[] children = file.listFiles();
+        if (children != null) {
+          for (File child : children) {
+            files.add(child);
+          }
+        }
+      } else if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+        String segmentPath = file.getPath().substring(0,
+            file.getPath().length() - SEGMENT_SUFFIX.length());
+        File targetSegmentDirectory = new File(targetDirectory,
+            outputDirectory.toPath().relativize(new File(segmentPath)
+            .toPath()).toString());
+        exported += exportSegment(file, new File(segmentPath
+            + INDEX_SUFFIX), targetSegmentDirectory);
+      }
+    }
+    return exported;
+  }
+
+  private static int exportSegment(File segmentFile, File indexFile,
+      File targetSegmentDirectory) throws IOException {
+    int exported = 0;
+    try (RandomAccessFile data = new RandomAccessFile(segmentFile, "r");
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+      byte[] digest = new byte[DIGEST_LENGTH];
+      while (index.getFilePointer() + INDEX_RECORD_LENGTH
+          <= index.length()) {
+        index.readFully(digest);
+        long offset = index.readLong();
+        int length = index.readInt();
+        if (offset + length > data.length()) {
+          break;
+        }
+        byte[] content = new byte[length];
+        data.seek(offset);
+        data.readFully(content);
+        String hexDigest = Hex.encodeHexString(digest);
+        File outputFile = new File(targetSegmentDirectory,
+            hexDigest.charAt(0) + "/" + hexDigest.charAt(1) + "/"
+            + hexDigest);
+        outputFile.getParentFile().mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+          fos.write(content);
+        }
+        exported++;
+      }
+    }
+    return exported;
+  }
+}
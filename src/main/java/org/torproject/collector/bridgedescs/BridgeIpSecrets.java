@@ -0,0 +1,301 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Secrets for replacing bridge IP addresses and TCP ports with keyed
+ * hashes, indexed by month and stored in file bridge-ip-secrets.
+ *
+ * <p>Months are identified by integer keys, so that looking up the
+ * secret for a descriptor's publication time does not create any
+ * objects.  Lookups read an immutable snapshot and are safe for
+ * concurrent use without locking.  New secrets are appended to the file,
+ * which is kept open, and synced to disk before they are returned, so
+ * that no descriptor is ever sanitized using a secret that could get lost
+ * in a crash.</p>
+ */
+class BridgeIpSecrets {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      BridgeIpSecrets.class);
+
+  /** Length of a secret, which contains 31 bytes for IPv4 addresses, 19
+   * bytes for IPv6 addresses, and 33 bytes for TCP ports. */
+  static final int SECRET_LENGTH = 83;
+
+  /** Immutable, sorted months and secrets. */
+  private static class Snapshot {
+
+    final int[] months;
+
+    final byte[][] secrets;
+
+    Snapshot(int[] months, byte[][] secrets) {
+      this.months = months;
+      this.secrets = secrets;
+    }
+  }
+
+  private final File file;
+
+  private final SecureRandom secureRandom;
+
+  private volatile Snapshot snapshot =
+      new Snapshot(new int[0], new byte[0][]);
+
+  private FileChannel journal;
+
+  /** Creates an empty set of secrets to be stored in the given file,
+   * using the given random number generator for new secrets, which may
+   * be null if no new secrets will be generated. */
+  BridgeIpSecrets(File file, SecureRandom secureRandom) {
+    this.file = file;
+    this.secureRandom = secureRandom;
+  }
+
+  /** Returns the integer key of the month of the given date or date and
+   * time starting with "yyyy-MM". */
+  static int monthKey(String dateTime) {
+    int year = digit(dateTime, 0) * 1000 + digit(dateTime, 1) * 100
+        + digit(dateTime, 2) * 10 + digit(dateTime, 3);
+    int month = digit(dateTime, 5) * 10 + digit(dateTime, 6);
+    return year * 12 + month - 1;
+  }
+
+  private static int digit(String dateTime, int index) {
+    char ch = index < dateTime.length() ? dateTime.charAt(index) : ' ';
+    if (ch < '0' || ch > '9') {
+      throw new IllegalArgumentException("Invalid month in '" + dateTime
+          + "'.");
+    }
+    return ch - '0';
+  }
+
+  /** Returns the "yyyy-MM" string of the given month key. */
+  static String formatMonth(int month) {
+    return String.format("%04d-%02d", month / 12, month % 12 + 1);
+  }
+
+  /** Reads secrets from the file, if it exists, where a later line for
+   * the same month replaces an earlier one. */
+  synchronized void load() throws IOException {
+    if (!this.file.exists()) {
+      return;
+    }
+    Map<Integer, byte[]> secrets = new HashMap<>();
+    try (BufferedReader br = new BufferedReader(new FileReader(
+        this.file))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split(",");
+        if ((line.length() != ("yyyy-MM,".length() + 31 * 2)
+            && line.length() != ("yyyy-MM,".length() + 50 * 2)
+            && line.length() != ("yyyy-MM,".length() + 83 * 2))
+            || parts.length != 2) {
+          throw new IOException("Invalid line in bridge-ip-secrets file "
+              + "starting with '" + line.substring(0, Math.min(7,
+              line.length())) + "'!");
+        }
+        secrets.put(monthKey(parts[0]),
+            Hex.decodeHex(parts[1].toCharArray()));
+      }
+    } catch (DecoderException | IllegalArgumentException e) {
+      throw new IOException("Failed to decode secret in " + this.file
+          + "!", e);
+    }
+    int[] months = new int[secrets.size()];
+    int index = 0;
+    for (int month : secrets.keySet()) {
+      months[index++] = month;
+    }
+    Arrays.sort(months);
+    byte[][] sortedSecrets = new byte[months.length][];
+    for (int i = 0; i < months.length; i++) {
+      sortedSecrets[i] = secrets.get(months[i]);
+    }
+    this.snapshot = new Snapshot(months, sortedSecrets);
+  }
+
+  /** Returns the secret for the given month, or null if there is no
+   * such secret. */
+  byte[] get(int month) {
+    Snapshot current = this.snapshot;
+    int index = Arrays.binarySearch(current.months, month);
+    return index < 0 ? null : current.secrets[index];
+  }
+
+  /** Returns the full-length secret for the given month, generating it
+   * or extending a shorter secret if necessary, and storing it on disk
+   * before returning it, unless it is not supposed to be persistent. */
+  byte[] getOrCreate(int month, boolean persistent) throws IOException {
+    byte[] secret = this.get(month);
+    if (secret != null && secret.length >= SECRET_LENGTH) {
+      return secret;
+    }
+    synchronized (this) {
+      byte[] previousSecret = this.get(month);
+      if (previousSecret != null
+          && previousSecret.length >= SECRET_LENGTH) {
+        return previousSecret;
+      }
+      secret = new byte[SECRET_LENGTH];
+      this.secureRandom.nextBytes(secret);
+      if (previousSecret != null) {
+        System.arraycopy(previousSecret, 0, secret, 0,
+            previousSecret.length);
+      }
+      if (!persistent) {
+        logger.warn("Generated a secret that we won't make "
+            + "persistent, because it's outside our bridge descriptor "
+            + "sanitizing interval.");
+      } else {
+        this.append(month, secret);
+      }
+      this.put(month, secret);
+      return secret;
+    }
+  }
+
+  /* Appends the given secret to the file and syncs it to disk. */
+  private void append(int month, byte[] secret) throws IOException {
+    if (this.journal == null) {
+      this.file.getParentFile().mkdirs();
+      this.journal = FileChannel.open(this.file.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+    }
+    ByteBuffer line = ByteBuffer.wrap((formatMonth(month) + ","
+        + Hex.encodeHexString(secret) + "\n").getBytes(
+        StandardCharsets.US_ASCII));
+    while (line.hasRemaining()) {
+      this.journal.write(line);
+    }
+    this.journal.force(false);
+  }
+
+  private void put(int month, byte[] secret) {
+    Snapshot current = this.snapshot;
+    int index = Arrays.binarySearch(current.months, month);
+    int[] months;
+    byte[][] secrets;
+    if (index >= 0) {
+      months = current.months;
+      secrets = current.secrets.clone();
+      secrets[index] = secret;
+    } else {
+      index = -index - 1;
+      months = new int[current.months.length + 1];
+      secrets = new byte[months.length][];
+      System.arraycopy(current.months, 0, months, 0, index);
+      System.arraycopy(current.secrets, 0, secrets, 0, index);
+      months[index] = month;
+      secrets[index] = secret;
+      System.arraycopy(current.months, index, months, index + 1,
+          current.months.length - index);
+      System.arraycopy(current.secrets, index, secrets, index + 1,
+          current.secrets.length - index);
+    }
+    this.snapshot = new Snapshot(months, secrets);
+  }
+
+  /** Returns the first month with a secret, or Integer.MAX_VALUE if there
+   * are no secrets. */
+  int firstMonth() {
+    Snapshot current = this.snapshot;
+    return current.months.length == 0 ? Integer.MAX_VALUE
+        : current.months[0];
+  }
+
+  /** Returns the number of months with secrets. */
+  int size() {
+    return this.snapshot.months.length;
+  }
+
+  /** Deletes all secrets of months before the given month, both in
+   * memory, where they are overwritten with zeros, and on disk, where the
+   * file is replaced with a file containing only the remaining secrets,
+   * and returns the number of deleted secrets. */
+  synchronized int deleteBefore(int firstKeptMonth) throws IOException {
+    Snapshot current = this.snapshot;
+    int deleted = 0;
+    while (deleted < current.months.length
+        && current.months[deleted] < firstKeptMonth) {
+      deleted++;
+    }
+    if (deleted == 0) {
+      return 0;
+    }
+    this.close();
+    File tempFile = new File(this.file.getParentFile(),
+        this.file.getName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = deleted; i < current.months.length; i++) {
+        sb.append(formatMonth(current.months[i])).append(',')
+            .append(Hex.encodeHexString(current.secrets[i])).append('\n');
+      }
+      ByteBuffer contents = ByteBuffer.wrap(sb.toString().getBytes(
+          StandardCharsets.US_ASCII));
+      while (contents.hasRemaining()) {
+        channel.write(contents);
+      }
+      channel.force(false);
+    }
+    Files.move(tempFile.toPath(), this.file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    this.snapshot = new Snapshot(Arrays.copyOfRange(current.months,
+        deleted, current.months.length), Arrays.copyOfRange(
+        current.secrets, deleted, current.secrets.length));
+    for (int i = 0; i < deleted; i++) {
+      Arrays.fill(current.secrets[i], (byte) 0);
+    }
+    return deleted;
+  }
+
+  /** Returns all secrets by month. */
+  Map<Integer, byte[]> asMap() {
+    Snapshot current = this.snapshot;
+    Map<Integer, byte[]> secrets = new HashMap<>();
+    for (int i = 0; i < current.months.length; i++) {
+      secrets.put(current.months[i], current.secrets[i]);
+    }
+    return secrets;
+  }
+
+  /** Closes the file that new secrets are appended to, which is opened
+   * again when appending the next secret. */
+  synchronized void close() {
+    if (this.journal != null) {
+      try {
+        this.journal.close();
+      } catch (IOException e) {
+        logger.warn("Could not close " + this.file + ".", e);
+      }
+      this.journal = null;
+    }
+  }
+}
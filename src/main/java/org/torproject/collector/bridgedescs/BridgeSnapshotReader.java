@@ -5,28 +5,22 @@ package org.torproject.collector.bridgedescs;
 
 import org.torproject.collector.conf.ConfigurationException;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class BridgeSnapshotReader {
 
@@ -39,6 +33,22 @@ public class BridgeSnapshotReader {
   public BridgeSnapshotReader(BridgeDescriptorParser bdp,
       File bridgeDirectoriesDir, File statsDirectory)
       throws ConfigurationException {
+    this(bdp, bridgeDirectoriesDir, statsDirectory, 1, 1,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * Reads the half-hourly snapshots of bridge descriptors from Bifroest
+   * and sanitizes them using the given number of threads, or one thread
+   * per available processor if that number is not positive, reads up to
+   * the given number of tarballs at the same time, again using one
+   * thread per processor if that number is not positive, and skips
+   * descriptors imported within the given number of days.
+   */
+  public BridgeSnapshotReader(BridgeDescriptorParser bdp,
+      File bridgeDirectoriesDir, File statsDirectory, int sanitizingThreads,
+      int importThreads, int digestHistoryDays)
+      throws ConfigurationException {
 
     if (bdp == null || bridgeDirectoriesDir == null
         || statsDirectory == null) {
@@ -69,7 +79,9 @@ public class BridgeSnapshotReader {
       }
       logger.debug("Importing files in directory " + bridgeDirectoriesDir
           + "/...");
-      Set<String> descriptorImportHistory = new HashSet<String>();
+      DescriptorDigestHistory descriptorImportHistory =
+          new DescriptorDigestHistory(new File(statsDirectory,
+          "bridge-descriptor-digests"), digestHistoryDays);
       int parsedFiles = 0;
       int skippedFiles = 0;
       int parsedStatuses = 0;
@@ -79,6 +91,9 @@ public class BridgeSnapshotReader {
       int skippedExtraInfoDescriptors = 0;
       Stack<File> filesInInputDir = new Stack<File>();
       filesInInputDir.add(bdDir);
+      /* Find all tarballs first, so that we can read several of them at
+       * the same time. */
+      List<BridgeTarballReader> tarballReaders = new ArrayList<>();
       while (!filesInInputDir.isEmpty()) {
         File pop = filesInInputDir.pop();
         if (pop.isDirectory()) {
@@ -86,152 +101,110 @@ public class BridgeSnapshotReader {
             filesInInputDir.add(f);
           }
         } else if (!parsed.contains(pop.getName())) {
-          try {
-            FileInputStream in = new FileInputStream(pop);
-            if (in.available() > 0) {
-              TarArchiveInputStream tais = null;
-              if (pop.getName().endsWith(".tar.gz")) {
-                GzipCompressorInputStream gcis =
-                    new GzipCompressorInputStream(in);
-                tais = new TarArchiveInputStream(gcis);
-              } else if (pop.getName().endsWith(".tar")) {
-                tais = new TarArchiveInputStream(in);
-              } else {
-                continue;
-              }
-              BufferedInputStream bis = new BufferedInputStream(tais);
-              String fn = pop.getName();
-              String[] fnParts = fn.split("-");
-              if (fnParts.length != 5) {
-                logger.warn("Invalid bridge descriptor tarball file name: "
-                    + fn + ".  Skipping.");
-                continue;
-              }
-              String authorityPart = String.format("%s-%s-", fnParts[0],
-                  fnParts[1]);
-              String datePart = String.format("%s-%s-%s", fnParts[2],
-                  fnParts[3], fnParts[4]);
-              String authorityFingerprint;
-              switch (authorityPart) {
-                case "from-tonga-":
-                  authorityFingerprint =
-                      "4A0CCD2DDC7995083D73F5D667100C8A5831F16D";
-                  break;
-                case "from-bifroest-":
-                  authorityFingerprint =
-                      "1D8F3A91C37C5D1C4C19B1AD1D0CFBE8BF72D8E1";
-                  break;
-                default:
-                  logger.warn("Did not recognize the bridge authority that "
-                      + "generated " + fn + ".  Skipping.");
-                  continue;
-              }
-              String dateTime = datePart.substring(0, 10) + " "
-                  + datePart.substring(11, 13) + ":"
-                  + datePart.substring(13, 15) + ":"
-                  + datePart.substring(15, 17);
-              while ((tais.getNextTarEntry()) != null) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                int len;
-                byte[] data = new byte[1024];
-                while ((len = bis.read(data, 0, 1024)) >= 0) {
-                  baos.write(data, 0, len);
-                }
-                byte[] allData = baos.toByteArray();
-                if (allData.length == 0) {
-                  continue;
-                }
-                String fileDigest = Hex.encodeHexString(DigestUtils.sha(
-                    allData));
-                String ascii = new String(allData, "US-ASCII");
-                BufferedReader br3 = new BufferedReader(new StringReader(
-                    ascii));
-                String firstLine = null;
-                while ((firstLine = br3.readLine()) != null) {
-                  if (firstLine.startsWith("@")) {
-                    continue;
-                  } else {
-                    break;
-                  }
+          if (pop.length() == 0L) {
+            parsed.add(pop.getName());
+            modified = true;
+          } else if ((pop.getName().endsWith(".tar.gz")
+              || pop.getName().endsWith(".tar"))
+              && parseTarballFileName(pop.getName()) != null) {
+            tarballReaders.add(new BridgeTarballReader(pop));
+          }
+        }
+      }
+      if (importThreads <= 0) {
+        importThreads = Runtime.getRuntime().availableProcessors();
+      }
+      importThreads = Math.max(1, Math.min(importThreads,
+          tarballReaders.size()));
+      ExecutorService readers = Executors.newFixedThreadPool(
+          importThreads);
+      for (BridgeTarballReader tarballReader : tarballReaders) {
+        readers.execute(tarballReader);
+      }
+      long started = System.currentTimeMillis();
+      int readTarballs = 0;
+      long readBytes = 0L;
+      SanitizingPipeline pipeline = new SanitizingPipeline(bdp,
+          sanitizingThreads);
+      try {
+        /* Take descriptors from one tarball after the other, regardless
+         * of which tarballs are read first, so that descriptors are
+         * sanitized and written in the same order as before. */
+        for (BridgeTarballReader tarballReader : tarballReaders) {
+          File tarball = tarballReader.getTarball();
+          String[] authorityAndDateTime = parseTarballFileName(
+              tarball.getName());
+          String authorityFingerprint = authorityAndDateTime[0];
+          String dateTime = authorityAndDateTime[1];
+          BridgeTarballReader.Item item;
+          while ((item = tarballReader.take()).kind
+              != BridgeTarballReader.Kind.END) {
+            switch (item.kind) {
+              case STATUS:
+                pipeline.submit(item.data, dateTime, authorityFingerprint);
+                parsedStatuses++;
+                parsedFiles++;
+                break;
+              case SERVER_DESCRIPTOR:
+                /* Descriptors contained in files that we parsed before,
+                 * in this or a previous run, are skipped one by one,
+                 * because we only learn the file digest after reading
+                 * the whole file. */
+                if (descriptorImportHistory.add(item.digest)) {
+                  pipeline.submit(item.data, dateTime,
+                      authorityFingerprint);
+                  parsedServerDescriptors++;
+                } else {
+                  skippedServerDescriptors++;
                 }
-                if (firstLine == null) {
-                  continue;
+                break;
+              case EXTRA_INFO_DESCRIPTOR:
+                if (descriptorImportHistory.add(item.digest)) {
+                  pipeline.submit(item.data, dateTime,
+                      authorityFingerprint);
+                  parsedExtraInfoDescriptors++;
+                } else {
+                  skippedExtraInfoDescriptors++;
                 }
-                if (firstLine.startsWith("published ")
-                    || firstLine.startsWith("flag-thresholds ")
-                    || firstLine.startsWith("r ")) {
-                  bdp.parse(allData, dateTime, authorityFingerprint);
-                  parsedStatuses++;
-                } else if (descriptorImportHistory.contains(fileDigest)) {
-                  /* Skip server descriptors or extra-info descriptors if
-                   * we parsed them before. */
-                  skippedFiles++;
-                  continue;
+                break;
+              case FILE_DIGEST:
+              default:
+                if (descriptorImportHistory.add(item.digest)) {
+                  parsedFiles++;
                 } else {
-                  int start = -1;
-                  int sig = -1;
-                  int end = -1;
-                  String startToken = firstLine.startsWith("router ")
-                      ? "router " : "extra-info ";
-                  String sigToken = "\nrouter-signature\n";
-                  String endToken = "\n-----END SIGNATURE-----\n";
-                  while (end < ascii.length()) {
-                    start = ascii.indexOf(startToken, end);
-                    if (start < 0) {
-                      break;
-                    }
-                    sig = ascii.indexOf(sigToken, start);
-                    if (sig < 0) {
-                      break;
-                    }
-                    sig += sigToken.length();
-                    end = ascii.indexOf(endToken, sig);
-                    if (end < 0) {
-                      break;
-                    }
-                    end += endToken.length();
-                    byte[] descBytes = new byte[end - start];
-                    System.arraycopy(allData, start, descBytes, 0,
-                        end - start);
-                    String descriptorDigest = Hex.encodeHexString(
-                        DigestUtils.sha(descBytes));
-                    if (!descriptorImportHistory.contains(
-                        descriptorDigest)) {
-                      bdp.parse(descBytes, dateTime, authorityFingerprint);
-                      descriptorImportHistory.add(descriptorDigest);
-                      if (firstLine.startsWith("router ")) {
-                        parsedServerDescriptors++;
-                      } else {
-                        parsedExtraInfoDescriptors++;
-                      }
-                    } else {
-                      if (firstLine.startsWith("router ")) {
-                        skippedServerDescriptors++;
-                      } else {
-                        skippedExtraInfoDescriptors++;
-                      }
-                    }
-                  }
+                  skippedFiles++;
                 }
-                descriptorImportHistory.add(fileDigest);
-                parsedFiles++;
-              }
-              bis.close();
+                break;
             }
-            in.close();
-
-            /* Let's give some memory back, or we'll run out of it. */
-            System.gc();
-
-            parsed.add(pop.getName());
-            modified = true;
-          } catch (IOException e) {
+          }
+          readBytes += tarballReader.getBytesRead();
+          if (tarballReader.getException() != null) {
             logger.warn("Could not parse bridge snapshot "
-                + pop.getName() + "!", e);
+                + tarball.getName() + "!", tarballReader.getException());
             continue;
           }
+          readTarballs++;
+          parsed.add(tarball.getName());
+          modified = true;
         }
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while reading bridge snapshots.", e);
+        Thread.currentThread().interrupt();
+      } finally {
+        readers.shutdownNow();
+        /* Only write the list of parsed files after all descriptors
+         * contained in them have been written. */
+        pipeline.finish();
       }
+      if (readTarballs > 0) {
+        long millis = Math.max(1L, System.currentTimeMillis() - started);
+        logger.info("Read {} bridge snapshots with {} MiB of uncompressed "
+            + "data in {} seconds using {} threads ({} MiB/s).",
+            readTarballs, readBytes / (1024L * 1024L), millis / 1000L,
+            importThreads, String.format("%.1f",
+            readBytes * 1000.0 / (1024.0 * 1024.0 * millis)));
+      }
+      descriptorImportHistory.save();
       logger.debug("Finished importing files in directory "
           + bridgeDirectoriesDir + "/.  In total, we parsed "
           + parsedFiles + " files (skipped " + skippedFiles
@@ -256,5 +229,39 @@ public class BridgeSnapshotReader {
       }
     }
   }
-}
 
+  /* Returns the authority fingerprint and the date and time contained in
+   * the given tarball file name, or null if the file name is invalid. */
+  private static String[] parseTarballFileName(String fn) {
+    String[] fnParts = fn.split("-");
+    if (fnParts.length != 5) {
+      logger.warn("Invalid bridge descriptor tarball file name: "
+          + fn + ".  Skipping.");
+      return null;
+    }
+    String authorityPart = String.format("%s-%s-", fnParts[0],
+        fnParts[1]);
+    String datePart = String.format("%s-%s-%s", fnParts[2],
+        fnParts[3], fnParts[4]);
+    String authorityFingerprint;
+    switch (authorityPart) {
+      case "from-tonga-":
+        authorityFingerprint =
+            "4A0CCD2DDC7995083D73F5D667100C8A5831F16D";
+        break;
+      case "from-bifroest-":
+        authorityFingerprint =
+            "1D8F3A91C37C5D1C4C19B1AD1D0CFBE8BF72D8E1";
+        break;
+      default:
+        logger.warn("Did not recognize the bridge authority that "
+            + "generated " + fn + ".  Skipping.");
+        return null;
+    }
+    String dateTime = datePart.substring(0, 10) + " "
+        + datePart.substring(11, 13) + ":"
+        + datePart.substring(13, 15) + ":"
+        + datePart.substring(15, 17);
+    return new String[] { authorityFingerprint, dateTime };
+  }
+}
@@ -0,0 +1,154 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decompresses a single bridge tarball and splits the contained
+ * descriptors in its own thread, and hands them over to the importing
+ * thread through a bounded queue.
+ *
+ * <p>Several tarballs can be read at the same time, while the importing
+ * thread still takes descriptors from one tarball after the other, so
+ * that they are sanitized and written in the same order as when reading
+ * tarballs one by one.</p>
+ */
+class BridgeTarballReader implements Runnable {
+
+  /** Kinds of items read from a tarball. */
+  enum Kind {
+    STATUS, SERVER_DESCRIPTOR, EXTRA_INFO_DESCRIPTOR, FILE_DIGEST, END
+  }
+
+  /** Status, descriptor, or digest of a tarball entry read from a
+   * tarball. */
+  static class Item {
+
+    final Kind kind;
+
+    final byte[] data;
+
+    final byte[] digest;
+
+    private Item(Kind kind, byte[] data, byte[] digest) {
+      this.kind = kind;
+      this.data = data;
+      this.digest = digest;
+    }
+  }
+
+  private static final int QUEUE_CAPACITY = 256;
+
+  private final File tarball;
+
+  private final BlockingQueue<Item> queue =
+      new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+  private volatile Throwable exception;
+
+  private volatile long bytesRead;
+
+  /** Prepares reading the given .tar or .tar.gz file. */
+  BridgeTarballReader(File tarball) {
+    this.tarball = tarball;
+  }
+
+  File getTarball() {
+    return this.tarball;
+  }
+
+  @Override
+  public void run() {
+    boolean interrupted = false;
+    try (InputStream in = new BufferedInputStream(
+        new FileInputStream(this.tarball));
+        TarArchiveInputStream tais = new TarArchiveInputStream(
+        this.tarball.getName().endsWith(".tar.gz")
+        ? new GzipCompressorInputStream(in) : in)) {
+      while ((tais.getNextTarEntry()) != null) {
+        this.readEntry(new DescriptorStreamSplitter(tais));
+      }
+    } catch (InterruptedException e) {
+      /* The importing thread gave up on this tarball. */
+      interrupted = true;
+    } catch (Throwable e) {
+      /* Record any failure, not only I/O errors, as failure of this
+       * tarball, so that the importing thread does not wait forever. */
+      this.exception = e;
+    } finally {
+      Item end = new Item(Kind.END, null, null);
+      if (interrupted) {
+        this.queue.offer(end);
+      } else {
+        try {
+          this.queue.put(end);
+        } catch (InterruptedException e) {
+          /* The importing thread gave up on this tarball. */
+        }
+      }
+    }
+  }
+
+  private void readEntry(DescriptorStreamSplitter splitter)
+      throws IOException, InterruptedException {
+    String firstLine = splitter.firstLine();
+    boolean descriptors = false;
+    if (firstLine == null) {
+      /* Skip entries without contents or with only annotations. */
+    } else if (firstLine.startsWith("published ")
+        || firstLine.startsWith("flag-thresholds ")
+        || firstLine.startsWith("r ")) {
+      this.queue.put(new Item(Kind.STATUS, splitter.readAll(), null));
+    } else {
+      descriptors = true;
+      String startToken;
+      Kind kind;
+      if (firstLine.startsWith("router ")) {
+        startToken = "router ";
+        kind = Kind.SERVER_DESCRIPTOR;
+      } else {
+        startToken = "extra-info ";
+        kind = Kind.EXTRA_INFO_DESCRIPTOR;
+      }
+      byte[] descBytes;
+      while ((descBytes = splitter.nextDescriptor(startToken)) != null) {
+        this.queue.put(new Item(kind, descBytes,
+            DigestUtils.sha(descBytes)));
+      }
+    }
+    byte[] fileDigest = splitter.digest();
+    this.bytesRead += splitter.length();
+    if (descriptors) {
+      this.queue.put(new Item(Kind.FILE_DIGEST, null, fileDigest));
+    }
+  }
+
+  /** Returns the next item read from the tarball, blocking until it is
+   * available, which is an item of kind END after the last item. */
+  Item take() throws InterruptedException {
+    return this.queue.take();
+  }
+
+  /** Returns the exception that stopped reading the tarball, if any,
+   * after taking the END item. */
+  Throwable getException() {
+    return this.exception;
+  }
+
+  /** Returns the number of uncompressed bytes read so far. */
+  long getBytesRead() {
+    return this.bytesRead;
+  }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.torproject.collector.persist.DigestSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Digests of bridge server and extra-info descriptors imported in
+ * previous runs, so that descriptors contained in more than one tarball
+ * are only sanitized once.
+ *
+ * <p>Digests are kept in one binary file per import day and expire after
+ * the configured number of days, together with other bridge descriptor
+ * mapping state.  If that state is kept forever, digests are kept for
+ * {@link #UNLIMITED_HISTORY_DAYS} days, which is long enough to cover
+ * re-delivered descriptors; older duplicates are still caught by checking
+ * whether their sanitized file exists.</p>
+ */
+class DescriptorDigestHistory {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      DescriptorDigestHistory.class);
+
+  /** Number of days to keep digests if mapping state is not limited. */
+  static final int UNLIMITED_HISTORY_DAYS = 30;
+
+  private static final long ONE_DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+  private final File directory;
+
+  private final String today;
+
+  private final SortedMap<String, DigestSet> digestsByDay =
+      new TreeMap<>();
+
+  private DigestSet todaysDigests;
+
+  /** Reads digests stored in the given directory, deleting files of days
+   * before the given number of days in the past, or before
+   * {@link #UNLIMITED_HISTORY_DAYS} if that number is Integer.MAX_VALUE,
+   * and starts a new set of digests for the current day. */
+  DescriptorDigestHistory(File directory, int limitDays) {
+    this(directory, limitDays, System.currentTimeMillis());
+  }
+
+  DescriptorDigestHistory(File directory, int limitDays, long now) {
+    this.directory = directory;
+    SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+    dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    this.today = dayFormat.format(now);
+    int days = limitDays == Integer.MAX_VALUE ? UNLIMITED_HISTORY_DAYS
+        : Math.max(limitDays, 0);
+    String cutOffDay = dayFormat.format(now - days * ONE_DAY_MILLIS);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String day = file.getName();
+        if (!day.matches("\\d{4}-\\d{2}-\\d{2}")) {
+          continue;
+        }
+        if (day.compareTo(cutOffDay) < 0) {
+          if (!file.delete()) {
+            logger.warn("Could not delete expired descriptor digests in "
+                + file.getAbsolutePath() + ".");
+          }
+          continue;
+        }
+        try {
+          this.digestsByDay.put(day, DigestSet.load(file));
+        } catch (IOException | IllegalArgumentException e) {
+          logger.warn("Could not read descriptor digests from "
+              + file.getAbsolutePath() + ". Ignoring them.", e);
+        }
+      }
+    }
+    this.todaysDigests = this.digestsByDay.get(this.today);
+    if (this.todaysDigests == null) {
+      this.todaysDigests = new DigestSet();
+      this.digestsByDay.put(this.today, this.todaysDigests);
+    }
+  }
+
+  /** Returns whether the given SHA-1 digest was added before, either in
+   * this run or in a previous run within the history window. */
+  boolean contains(byte[] digest) {
+    for (DigestSet digests : this.digestsByDay.values()) {
+      if (digests.contains(digest)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Adds the given SHA-1 digest to the current day's digests and returns
+   * whether it was not contained in the history before. */
+  boolean add(byte[] digest) {
+    return !this.contains(digest) && this.todaysDigests.add(digest);
+  }
+
+  /** Returns the number of digests in the history. */
+  int size() {
+    int size = 0;
+    for (DigestSet digests : this.digestsByDay.values()) {
+      size += digests.size();
+    }
+    return size;
+  }
+
+  /** Writes the current day's digests to disk. */
+  void save() {
+    File file = new File(this.directory, this.today);
+    try {
+      this.todaysDigests.save(file);
+    } catch (IOException e) {
+      logger.warn("Could not write descriptor digests to "
+          + file.getAbsolutePath() + ".", e);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer for writing sanitized descriptors, which can be
+ * reset and reused for the next descriptor.
+ *
+ * <p>Lines are copied from the original descriptor bytes.  Descriptors
+ * are supposed to contain only US-ASCII characters, so that any other
+ * byte is replaced by the UTF-8 encoded replacement character, just like
+ * decoding and re-encoding the line would do.</p>
+ */
+class DescriptorOutputBuffer {
+
+  private static final byte[] REPLACEMENT_CHARACTER =
+      new byte[] { (byte) 0xEF, (byte) 0xBF, (byte) 0xBD };
+
+  private byte[] buf = new byte[4096];
+
+  private int count;
+
+  /** Discards all contents, but keeps the allocated buffer. */
+  void reset() {
+    this.count = 0;
+  }
+
+  /** Returns the number of bytes written since the last reset. */
+  int size() {
+    return this.count;
+  }
+
+  /** Appends the given string, which was decoded from US-ASCII bytes
+   * and can therefore only contain replacement characters besides
+   * US-ASCII characters. */
+  DescriptorOutputBuffer append(String ascii) {
+    int length = ascii.length();
+    this.ensureCapacity(3 * length);
+    for (int i = 0; i < length; i++) {
+      char ch = ascii.charAt(i);
+      if (ch < 0x80) {
+        this.buf[this.count++] = (byte) ch;
+      } else {
+        this.appendReplacementCharacter();
+      }
+    }
+    return this;
+  }
+
+  /** Appends the line between the given start and end positions,
+   * followed by a newline. */
+  DescriptorOutputBuffer appendLine(byte[] data, int start, int end) {
+    this.ensureCapacity(3 * (end - start) + 1);
+    for (int i = start; i < end; i++) {
+      if (data[i] >= 0) {
+        this.buf[this.count++] = data[i];
+      } else {
+        this.appendReplacementCharacter();
+      }
+    }
+    this.buf[this.count++] = '\n';
+    return this;
+  }
+
+  private void appendReplacementCharacter() {
+    System.arraycopy(REPLACEMENT_CHARACTER, 0, this.buf, this.count,
+        REPLACEMENT_CHARACTER.length);
+    this.count += REPLACEMENT_CHARACTER.length;
+  }
+
+  /** Appends the contents of the given buffer. */
+  DescriptorOutputBuffer append(DescriptorOutputBuffer other) {
+    this.ensureCapacity(other.count);
+    System.arraycopy(other.buf, 0, this.buf, this.count, other.count);
+    this.count += other.count;
+    return this;
+  }
+
+  /** Returns a copy of the contents. */
+  byte[] toByteArray() {
+    return Arrays.copyOf(this.buf, this.count);
+  }
+
+  private void ensureCapacity(int additional) {
+    if (this.count + additional > this.buf.length) {
+      this.buf = Arrays.copyOf(this.buf, Math.max(2 * this.buf.length,
+          this.count + additional));
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Splits descriptors contained in a single tarball entry while reading
+ * it, so that only the descriptor currently being split is kept in
+ * memory, rather than the whole entry.
+ *
+ * <p>The SHA-1 digest of all bytes in the entry is computed on the fly,
+ * so that files seen before can still be recognized.</p>
+ */
+class DescriptorStreamSplitter {
+
+  private static final int READ_SIZE = 64 * 1024;
+
+  private static final byte[] SIG_TOKEN =
+      "\nrouter-signature\n".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] END_TOKEN =
+      "\n-----END SIGNATURE-----\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final InputStream in;
+
+  private final MessageDigest fileDigest = DigestUtils.getSha1Digest();
+
+  private byte[] buf = new byte[READ_SIZE];
+
+  /** Position of the first byte in the buffer that has not been
+   * consumed. */
+  private int pos = 0;
+
+  /** Position following the last byte read into the buffer. */
+  private int limit = 0;
+
+  private boolean eof = false;
+
+  private long length = 0L;
+
+  /** Prepares splitting descriptors from the given entry stream. */
+  DescriptorStreamSplitter(InputStream in) {
+    this.in = in;
+  }
+
+  /** Returns the first line that is not an annotation, or null if there
+   * is no such line, without consuming any bytes. */
+  String firstLine() throws IOException {
+    int lineStart = this.pos;
+    while (true) {
+      int lineEnd = indexOf(this.buf, (byte) '\n', lineStart, this.limit);
+      if (lineEnd < 0) {
+        if (this.eof) {
+          lineEnd = this.limit;
+        } else {
+          int offset = lineStart - this.pos;
+          this.fill();
+          lineStart = this.pos + offset;
+          continue;
+        }
+      }
+      if (lineStart >= this.limit) {
+        return null;
+      }
+      if (this.buf[lineStart] != '@') {
+        int end = lineEnd;
+        if (end > lineStart && this.buf[end - 1] == '\r') {
+          end--;
+        }
+        return new String(this.buf, lineStart, end - lineStart,
+            StandardCharsets.US_ASCII);
+      }
+      lineStart = lineEnd + 1;
+    }
+  }
+
+  /** Returns all remaining bytes of the entry. */
+  byte[] readAll() throws IOException {
+    while (!this.eof) {
+      this.fill();
+    }
+    byte[] remaining = Arrays.copyOfRange(this.buf, this.pos, this.limit);
+    this.pos = this.limit;
+    return remaining;
+  }
+
+  /** Returns the next descriptor starting with the given token and ending
+   * after its signature, or null if there is no further complete
+   * descriptor in the entry. */
+  byte[] nextDescriptor(String startToken) throws IOException {
+    byte[] token = startToken.getBytes(StandardCharsets.US_ASCII);
+    int start;
+    int searchFrom = this.pos;
+    while ((start = indexOf(this.buf, token, searchFrom, this.limit)) < 0) {
+      if (this.eof) {
+        this.pos = this.limit;
+        return null;
+      }
+      /* Keep only what could be the beginning of the start token. */
+      this.pos = Math.max(this.pos, this.limit - token.length + 1);
+      this.fill();
+      searchFrom = this.pos;
+    }
+    this.pos = start;
+    int sig = this.find(SIG_TOKEN, start);
+    if (sig < 0) {
+      return null;
+    }
+    sig += SIG_TOKEN.length;
+    int end = this.find(END_TOKEN, sig);
+    if (end < 0) {
+      return null;
+    }
+    end += END_TOKEN.length;
+    byte[] descriptor = Arrays.copyOfRange(this.buf, this.pos, end);
+    this.pos = end;
+    return descriptor;
+  }
+
+  /** Reads the remainder of the entry and returns the SHA-1 digest of all
+   * its bytes. */
+  byte[] digest() throws IOException {
+    while (!this.eof) {
+      this.pos = this.limit;
+      this.fill();
+    }
+    return this.fileDigest.digest();
+  }
+
+  /** Returns the number of bytes read from the entry so far. */
+  long length() {
+    return this.length;
+  }
+
+  /* Finds the given token starting at the given position, reading more
+   * bytes as needed, and returns its position or -1 if the entry ends
+   * before.  Positions may change while reading, but the distance
+   * between the given position and the first unconsumed byte stays the
+   * same. */
+  private int find(byte[] token, int from) throws IOException {
+    int offset = from - this.pos;
+    int searched = offset;
+    while (true) {
+      int found = indexOf(this.buf, token, this.pos + searched,
+          this.limit);
+      if (found >= 0) {
+        return found;
+      }
+      if (this.eof) {
+        this.pos = this.limit;
+        return -1;
+      }
+      searched = Math.max(offset, this.limit - this.pos - token.length + 1);
+      this.fill();
+    }
+  }
+
+  /* Reads more bytes into the buffer, after moving unconsumed bytes to
+   * the front and growing the buffer if it is full. */
+  private void fill() throws IOException {
+    if (this.pos > 0) {
+      System.arraycopy(this.buf, this.pos, this.buf, 0,
+          this.limit - this.pos);
+      this.limit -= this.pos;
+      this.pos = 0;
+    }
+    if (this.buf.length - this.limit < READ_SIZE) {
+      this.buf = Arrays.copyOf(this.buf, Math.max(2 * this.buf.length,
+          this.limit + READ_SIZE));
+    }
+    int read = this.in.read(this.buf, this.limit,
+        this.buf.length - this.limit);
+    if (read < 0) {
+      this.eof = true;
+    } else {
+      this.fileDigest.update(this.buf, this.limit, read);
+      this.limit += read;
+      this.length += read;
+    }
+  }
+
+  private static int indexOf(byte[] data, byte value, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (data[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(byte[] data, byte[] token, int from,
+      int to) {
+    outer:
+    for (int i = from; i <= to - token.length; i++) {
+      for (int j = 0; j < token.length; j++) {
+        if (data[i + j] != token[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,124 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of hashed bridge identities in all the forms in which they are
+ * written to sanitized network statuses, server descriptors and
+ * extra-info descriptors, so that each bridge fingerprint is SHA-1-hashed
+ * and encoded only once, rather than once per status entry, descriptor
+ * and family member.
+ *
+ * <p>Hashed identities do not depend on any secret, so that entries are
+ * kept for as long as this cache exists.  The number of entries is
+ * bounded; once the cache is full, the least recently used identity is
+ * evicted for each newly cached one, so that bridges that stopped
+ * publishing descriptors make room for new ones.  The cache is safe for
+ * concurrent use by sanitizing threads, which only hold its lock for
+ * looking up and adding entries, not for hashing.</p>
+ */
+class HashedIdentityCache {
+
+  /** Hashed bridge identity in its different encodings. */
+  static final class HashedIdentity {
+
+    /** Lower-case hex encoding, as used for sorting status entries. */
+    final String hex;
+
+    /** Upper-case hex encoding, as used in extra-info and family lines. */
+    final String upperHex;
+
+    /** Base64 encoding without trailing padding, as used in r lines. */
+    final String base64;
+
+    private HashedIdentity(byte[] hashedIdentity) {
+      this.hex = Hex.encodeHexString(hashedIdentity);
+      this.upperHex = this.hex.toUpperCase();
+      this.base64 = Base64.encodeBase64String(hashedIdentity)
+          .substring(0, 27);
+    }
+  }
+
+  private final int maxEntries;
+
+  /* Cached hashed identities by fingerprint in access order, guarded by
+   * synchronizing on the map itself. */
+  private final Map<String, HashedIdentity> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Creates an empty cache holding at most the given number of
+   * entries. */
+  HashedIdentityCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, HashedIdentity>(16, 0.75f,
+        true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, HashedIdentity> eldest) {
+        return this.size() > HashedIdentityCache.this.maxEntries;
+      }
+    };
+  }
+
+  /** Returns the hashed identity of the given bridge fingerprint. */
+  HashedIdentity get(byte[] fingerprintBytes) {
+    /* Fingerprint bytes are mapped to chars one by one, which is cheaper
+     * than hex-encoding them. */
+    String key = new String(fingerprintBytes, StandardCharsets.ISO_8859_1);
+    HashedIdentity hashedIdentity;
+    synchronized (this.entries) {
+      hashedIdentity = this.entries.get(key);
+    }
+    if (hashedIdentity != null) {
+      this.hits.incrementAndGet();
+      return hashedIdentity;
+    }
+    this.misses.incrementAndGet();
+    hashedIdentity = new HashedIdentity(DigestUtils.sha(fingerprintBytes));
+    synchronized (this.entries) {
+      this.entries.put(key, hashedIdentity);
+    }
+    return hashedIdentity;
+  }
+
+  /** Returns the hashed identity of the given hex-encoded bridge
+   * fingerprint. */
+  HashedIdentity getHex(String fingerprintHex) throws DecoderException {
+    return this.get(Hex.decodeHex(fingerprintHex.toCharArray()));
+  }
+
+  /** Returns the number of cached entries. */
+  int size() {
+    synchronized (this.entries) {
+      return this.entries.size();
+    }
+  }
+
+  long getHits() {
+    return this.hits.get();
+  }
+
+  long getMisses() {
+    return this.misses.get();
+  }
+
+  /** Sets hit and miss counters back to zero. */
+  void resetStatistics() {
+    this.hits.set(0L);
+    this.misses.set(0L);
+  }
+}
@@ -0,0 +1,122 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Precomputed table for dispatching descriptor lines on their leading
+ * keyword, without creating strings for looking up a line.
+ *
+ * <p>Keywords are given the way lines start: a keyword that requires
+ * arguments ends with a space (like {@code "published "}), a keyword
+ * without arguments does not (like {@code "hidden-service-dir"}), and
+ * keywords following {@code "opt "} include that prefix.  Keywords ending
+ * in a dash (like {@code "dirreq-"}) match all keywords starting with
+ * them that are not contained in the table themselves.</p>
+ */
+class KeywordTable<E> {
+
+  private static final byte SPACE = ' ';
+
+  private static final byte DASH = '-';
+
+  private static final byte[] OPT = "opt".getBytes(StandardCharsets.US_ASCII);
+
+  private final byte[][] keys;
+
+  private final Object[] values;
+
+  private final int mask;
+
+  /** Creates a table with the given keywords, which must be given as
+   * pairs of keyword string and value. */
+  KeywordTable(Object... keywordsAndValues) {
+    int size = 16;
+    while (size < keywordsAndValues.length * 2) {
+      size <<= 1;
+    }
+    this.keys = new byte[size][];
+    this.values = new Object[size];
+    this.mask = size - 1;
+    for (int i = 0; i < keywordsAndValues.length; i += 2) {
+      byte[] key = ((String) keywordsAndValues[i]).getBytes(
+          StandardCharsets.US_ASCII);
+      int slot = hash(key, 0, key.length) & this.mask;
+      while (this.keys[slot] != null) {
+        if (equal(this.keys[slot], key, 0, key.length)) {
+          throw new IllegalArgumentException("Duplicate keyword '"
+              + keywordsAndValues[i] + "'.");
+        }
+        slot = (slot + 1) & this.mask;
+      }
+      this.keys[slot] = key;
+      this.values[slot] = keywordsAndValues[i + 1];
+    }
+  }
+
+  /** Returns the value for the keyword that the line between the given
+   * start and end positions starts with, or null if the line does not
+   * start with a known keyword. */
+  E lookup(byte[] data, int start, int end) {
+    int keywordEnd = indexOf(data, SPACE, start, end);
+    if (keywordEnd - start == OPT.length && keywordEnd < end
+        && equal(OPT, data, start, keywordEnd)) {
+      keywordEnd = indexOf(data, SPACE, keywordEnd + 1, end);
+    }
+    /* Include the space after the keyword, if present. */
+    E value = this.get(data, start, keywordEnd < end ? keywordEnd + 1
+        : keywordEnd);
+    if (value == null) {
+      int dash = indexOf(data, DASH, start, keywordEnd);
+      if (dash > start && dash < keywordEnd) {
+        value = this.get(data, start, dash + 1);
+      }
+    }
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  private E get(byte[] data, int start, int end) {
+    int slot = hash(data, start, end) & this.mask;
+    while (this.keys[slot] != null) {
+      if (equal(this.keys[slot], data, start, end)) {
+        return (E) this.values[slot];
+      }
+      slot = (slot + 1) & this.mask;
+    }
+    return null;
+  }
+
+  private static int hash(byte[] data, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + data[i];
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean equal(byte[] key, byte[] data, int start,
+      int end) {
+    if (key.length != end - start) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] != data[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] data, byte value, int start,
+      int end) {
+    for (int i = start; i < end; i++) {
+      if (data[i] == value) {
+        return i;
+      }
+    }
+    return end;
+  }
+}
@@ -0,0 +1,100 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Sanitized bridge descriptor that is ready to be written to the output
+ * directory and to the recent directory.
+ *
+ * <p>Sanitizing a descriptor does not touch the file system, so that
+ * descriptors can be sanitized in any order and stored in the order in
+ * which they were read.</p>
+ */
+class SanitizedBridgeDescriptor {
+
+  private final String type;
+
+  private final byte[] content;
+
+  private final File outputFile;
+
+  private final File recentFile;
+
+  private final boolean appendToRecentFile;
+
+  private SanitizedBridgeDescriptor(String type, byte[] content,
+      File outputFile, File recentFile, boolean appendToRecentFile) {
+    this.type = type;
+    this.content = content;
+    this.outputFile = outputFile;
+    this.recentFile = recentFile;
+    this.appendToRecentFile = appendToRecentFile;
+  }
+
+  /** Creates a sanitized network status that replaces any previously
+   * stored status with the same file names. */
+  static SanitizedBridgeDescriptor networkStatus(byte[] content,
+      File outputFile, File recentFile) {
+    return new SanitizedBridgeDescriptor("bridge network status", content,
+        outputFile, recentFile, false);
+  }
+
+  /** Creates a sanitized server or extra-info descriptor that is stored
+   * only if it has not been stored before and that is then appended to
+   * the given recent file. */
+  static SanitizedBridgeDescriptor descriptor(String type, byte[] content,
+      File outputFile, File recentFile) {
+    return new SanitizedBridgeDescriptor(type, content, outputFile,
+        recentFile, true);
+  }
+
+  /** Returns a human-readable descriptor type for log messages. */
+  String getType() {
+    return this.type;
+  }
+
+  /** Returns the file in the recent directory. */
+  File getRecentFile() {
+    return this.recentFile;
+  }
+
+  /** Writes this descriptor to disk and returns whether it was written to
+   * the recent directory. */
+  boolean store() throws IOException {
+    return this.store(null);
+  }
+
+  /** Writes this descriptor to disk, storing server and extra-info
+   * descriptors in the given segment files rather than in their own
+   * files, unless no segment files are given, and returns whether it was
+   * written to the recent directory. */
+  boolean store(BridgeDescriptorSegments segments) throws IOException {
+    if (this.appendToRecentFile && segments != null) {
+      if (!segments.append(this.outputFile, this.content)) {
+        return false;
+      }
+      this.write(this.recentFile, true);
+      return true;
+    }
+    if (this.appendToRecentFile && this.outputFile.exists()) {
+      /* We already stored this descriptor to disk before, so let's not
+       * store it yet another time. */
+      return false;
+    }
+    this.write(this.outputFile, false);
+    this.write(this.recentFile, this.appendToRecentFile);
+    return true;
+  }
+
+  private void write(File file, boolean append) throws IOException {
+    file.getParentFile().mkdirs();
+    try (FileOutputStream fos = new FileOutputStream(file, append)) {
+      fos.write(this.content);
+    }
+  }
+}
@@ -8,6 +8,7 @@ import org.torproject.collector.conf.Configuration;
 import org.torproject.collector.conf.ConfigurationException;
 import org.torproject.collector.conf.Key;
 import org.torproject.collector.cron.CollecTorMain;
+import org.torproject.collector.persist.RecentFileManifest;
 import org.torproject.descriptor.BridgeExtraInfoDescriptor;
 import org.torproject.descriptor.BridgeNetworkStatus;
 import org.torproject.descriptor.BridgeServerDescriptor;
@@ -20,24 +21,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.SortedMap;
-import java.util.Stack;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
@@ -60,6 +56,100 @@ public class SanitizedBridgesWriter extends CollecTorMain {
       SanitizedBridgesWriter.class);
   private static final String BRIDGE_DESCRIPTORS = "bridge-descriptors";
 
+  private static final byte[] END_SIGNATURE_TOKEN =
+      "\n-----END SIGNATURE-----\n".getBytes(StandardCharsets.US_ASCII);
+
+  /** Types of lines in bridge server descriptors, each of which is
+   * sanitized in its own way. */
+  private enum ServerDescriptorLine {
+    ROUTER, OR_ADDRESS, PUBLISHED, FINGERPRINT, CONTACT, ROUTER_SIGNATURE,
+    EXTRA_INFO_DIGEST, REJECT, IDENTITY_ED25519, MASTER_KEY_ED25519, COPY,
+    FAMILY, CRYPTO_BEGIN, CRYPTO_END, SKIP
+  }
+
+  private static final KeywordTable<ServerDescriptorLine>
+      SERVER_DESCRIPTOR_KEYWORDS = new KeywordTable<>(
+      "router ", ServerDescriptorLine.ROUTER,
+      "or-address ", ServerDescriptorLine.OR_ADDRESS,
+      "published ", ServerDescriptorLine.PUBLISHED,
+      "opt fingerprint ", ServerDescriptorLine.FINGERPRINT,
+      "fingerprint ", ServerDescriptorLine.FINGERPRINT,
+      "contact ", ServerDescriptorLine.CONTACT,
+      "router-signature", ServerDescriptorLine.ROUTER_SIGNATURE,
+      "router-signature ", ServerDescriptorLine.ROUTER_SIGNATURE,
+      "opt extra-info-digest ", ServerDescriptorLine.EXTRA_INFO_DIGEST,
+      "extra-info-digest ", ServerDescriptorLine.EXTRA_INFO_DIGEST,
+      "reject ", ServerDescriptorLine.REJECT,
+      "identity-ed25519", ServerDescriptorLine.IDENTITY_ED25519,
+      "master-key-ed25519 ", ServerDescriptorLine.MASTER_KEY_ED25519,
+      "accept ", ServerDescriptorLine.COPY,
+      "platform ", ServerDescriptorLine.COPY,
+      "opt protocols ", ServerDescriptorLine.COPY,
+      "protocols ", ServerDescriptorLine.COPY,
+      "proto ", ServerDescriptorLine.COPY,
+      "uptime ", ServerDescriptorLine.COPY,
+      "bandwidth ", ServerDescriptorLine.COPY,
+      "opt hibernating ", ServerDescriptorLine.COPY,
+      "hibernating ", ServerDescriptorLine.COPY,
+      "ntor-onion-key ", ServerDescriptorLine.COPY,
+      "opt hidden-service-dir", ServerDescriptorLine.COPY,
+      "hidden-service-dir", ServerDescriptorLine.COPY,
+      "opt caches-extra-info", ServerDescriptorLine.COPY,
+      "caches-extra-info", ServerDescriptorLine.COPY,
+      "opt allow-single-hop-exits", ServerDescriptorLine.COPY,
+      "allow-single-hop-exits", ServerDescriptorLine.COPY,
+      "ipv6-policy ", ServerDescriptorLine.COPY,
+      "tunnelled-dir-server", ServerDescriptorLine.COPY,
+      "family ", ServerDescriptorLine.FAMILY,
+      "@purpose ", ServerDescriptorLine.SKIP,
+      "-----BEGIN ", ServerDescriptorLine.CRYPTO_BEGIN,
+      "onion-key", ServerDescriptorLine.CRYPTO_BEGIN,
+      "signing-key", ServerDescriptorLine.CRYPTO_BEGIN,
+      "onion-key-crosscert", ServerDescriptorLine.CRYPTO_BEGIN,
+      "ntor-onion-key-crosscert ", ServerDescriptorLine.CRYPTO_BEGIN,
+      "-----END ", ServerDescriptorLine.CRYPTO_END,
+      "router-sig-ed25519 ", ServerDescriptorLine.SKIP);
+
+  /** Types of lines in bridge extra-info descriptors, each of which is
+   * sanitized in its own way. */
+  private enum ExtraInfoDescriptorLine {
+    EXTRA_INFO, PUBLISHED, TRANSPORT, IDENTITY_ED25519, MASTER_KEY_ED25519,
+    COPY, ROUTER_SIGNATURE, SKIP
+  }
+
+  private static final KeywordTable<ExtraInfoDescriptorLine>
+      EXTRA_INFO_DESCRIPTOR_KEYWORDS = new KeywordTable<>(
+      "extra-info ", ExtraInfoDescriptorLine.EXTRA_INFO,
+      "published ", ExtraInfoDescriptorLine.PUBLISHED,
+      "transport ", ExtraInfoDescriptorLine.TRANSPORT,
+      "transport-info ", ExtraInfoDescriptorLine.SKIP,
+      "identity-ed25519", ExtraInfoDescriptorLine.IDENTITY_ED25519,
+      "master-key-ed25519 ", ExtraInfoDescriptorLine.MASTER_KEY_ED25519,
+      "write-history ", ExtraInfoDescriptorLine.COPY,
+      "read-history ", ExtraInfoDescriptorLine.COPY,
+      "geoip-start-time ", ExtraInfoDescriptorLine.COPY,
+      "geoip-client-origins ", ExtraInfoDescriptorLine.COPY,
+      "geoip-db-digest ", ExtraInfoDescriptorLine.COPY,
+      "geoip6-db-digest ", ExtraInfoDescriptorLine.COPY,
+      "conn-bi-direct ", ExtraInfoDescriptorLine.COPY,
+      "bridge-", ExtraInfoDescriptorLine.COPY,
+      "dirreq-", ExtraInfoDescriptorLine.COPY,
+      "cell-", ExtraInfoDescriptorLine.COPY,
+      "entry-", ExtraInfoDescriptorLine.COPY,
+      "exit-", ExtraInfoDescriptorLine.COPY,
+      "hidserv-", ExtraInfoDescriptorLine.COPY,
+      "router-signature", ExtraInfoDescriptorLine.ROUTER_SIGNATURE,
+      "router-signature ", ExtraInfoDescriptorLine.ROUTER_SIGNATURE,
+      "router-sig-ed25519 ", ExtraInfoDescriptorLine.SKIP);
+
+  /* Output buffers are reused by each sanitizing thread for all
+   * descriptors it sanitizes. */
+  private static final ThreadLocal<DescriptorOutputBuffer> scrubbedBuffers =
+      ThreadLocal.withInitial(DescriptorOutputBuffer::new);
+
+  private static final ThreadLocal<DescriptorOutputBuffer>
+      sanitizedBuffers = ThreadLocal.withInitial(DescriptorOutputBuffer::new);
+
   /** Initialize configuration. */
   public SanitizedBridgesWriter(Configuration config) {
     super(config);
@@ -71,6 +161,17 @@ public class SanitizedBridgesWriter extends CollecTorMain {
         BridgeExtraInfoDescriptor.class);
   }
 
+  /** Exports server and extra-info descriptors contained in segment
+   * files in the configured output directory to files in the classic
+   * one-file-per-descriptor layout in the given target directory, and
+   * returns the number of exported descriptors. */
+  public static int exportSegments(Configuration config,
+      File targetDirectory) throws ConfigurationException, IOException {
+    return BridgeDescriptorSegments.export(new File(
+        config.getPath(Key.OutputPath).toFile(), BRIDGE_DESCRIPTORS),
+        targetDirectory);
+  }
+
   private String rsyncCatString;
 
   private File bridgeDirectoriesDirectory;
@@ -82,22 +183,48 @@ public class SanitizedBridgesWriter extends CollecTorMain {
 
   private boolean replaceIpAddressesWithHashes;
 
-  private boolean persistenceProblemWithSecrets;
+  /** Monthly segment files for sanitized server and extra-info
+   * descriptors, or null if they are stored in their own files. */
+  private BridgeDescriptorSegments segments;
+
+  private volatile boolean persistenceProblemWithSecrets;
 
-  private SortedMap<String, byte[]> secretsForHashingIpAddresses;
+  private BridgeIpSecrets bridgeIpSecrets;
 
   private String bridgeSanitizingCutOffTimestamp;
 
-  private boolean haveWarnedAboutInterval;
+  /** First month for which secrets are kept, which is the month after the
+   * one containing the cut-off timestamp. */
+  private int firstPersistentMonth;
 
-  private File bridgeIpSecretsFile;
+  private volatile boolean haveWarnedAboutInterval;
 
   private SecureRandom secureRandom;
 
+  /** Maximum number of scrubbed addresses and ports cached per month. */
+  private static final int MAX_SCRUBBED_VALUES_PER_MONTH = 1 << 18;
+
+  /* Scrubbed values are kept between executions, as long as the secrets
+   * that were used to scrub them remain unchanged. */
+  private final ScrubbingCache scrubbingCache =
+      new ScrubbingCache(MAX_SCRUBBED_VALUES_PER_MONTH);
+
+  /** Maximum number of cached hashed bridge identities. */
+  private static final int MAX_HASHED_IDENTITIES = 1 << 16;
+
+  /* Hashed bridge identities are shared by all descriptor types and kept
+   * between executions. */
+  private final HashedIdentityCache hashedIdentityCache =
+      new HashedIdentityCache(MAX_HASHED_IDENTITIES);
+
   private String outputPathName;
 
   private String recentPathName;
 
+  /** Files written to the recent directory and when, so that cleaning up
+   * does not have to look at every file in that directory. */
+  private RecentFileManifest recentFileManifest;
+
   @Override
   public String module() {
     return "bridgedescs";
@@ -126,12 +253,17 @@ public class SanitizedBridgesWriter extends CollecTorMain {
           + "SanitizedBridgesWriteDirectory, StatsPath should be set. "
           + "Please, edit the 'collector.properties' file.");
     }
+    this.recentFileManifest = new RecentFileManifest(
+        Paths.get(recentPathName), new File(statsDirectory,
+        "bridge-descriptors-recent-manifest").toPath());
 
     /* Memorize argument values. */
     this.bridgeDirectoriesDirectory = bridgeDirectoriesDirectory;
     this.sanitizedBridgesDirectory = sanitizedBridgesDirectory;
     this.replaceIpAddressesWithHashes =
         config.getBool(Key.ReplaceIpAddressesWithHashes);
+    this.segments = config.getBool(Key.BridgeDescriptorSegments)
+        ? new BridgeDescriptorSegments(sanitizedBridgesDirectory) : null;
     SimpleDateFormat rsyncCatFormat = new SimpleDateFormat(
         "yyyy-MM-dd-HH-mm-ss");
     rsyncCatFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -152,49 +284,22 @@ public class SanitizedBridgesWriter extends CollecTorMain {
 
     /* Read hex-encoded secrets for replacing IP addresses with hashes
      * from disk. */
-    this.secretsForHashingIpAddresses = new TreeMap<String, byte[]>();
-    this.bridgeIpSecretsFile = new File(statsDirectory,
-        "bridge-ip-secrets");
-    if (this.bridgeIpSecretsFile.exists()) {
-      try {
-        BufferedReader br = new BufferedReader(new FileReader(
-            this.bridgeIpSecretsFile));
-        String line;
-        while ((line = br.readLine()) != null) {
-          String[] parts = line.split(",");
-          if ((line.length() != ("yyyy-MM,".length() + 31 * 2)
-              && line.length() != ("yyyy-MM,".length() + 50 * 2)
-              && line.length() != ("yyyy-MM,".length() + 83 * 2))
-              || parts.length != 2) {
-            logger.warn("Invalid line in bridge-ip-secrets file "
-                + "starting with '" + line.substring(0, 7) + "'! "
-                + "Not calculating any IP address hashes in this "
-                + "execution!");
-            this.persistenceProblemWithSecrets = true;
-            break;
-          }
-          String month = parts[0];
-          byte[] secret = Hex.decodeHex(parts[1].toCharArray());
-          this.secretsForHashingIpAddresses.put(month, secret);
-        }
-        br.close();
-        if (!this.persistenceProblemWithSecrets) {
-          logger.debug("Read "
-              + this.secretsForHashingIpAddresses.size() + " secrets for "
-              + "hashing bridge IP addresses.");
-        }
-      } catch (DecoderException e) {
-        logger.warn("Failed to decode hex string in "
-            + this.bridgeIpSecretsFile + "! Not calculating any IP "
-            + "address hashes in this execution!", e);
-        this.persistenceProblemWithSecrets = true;
-      } catch (IOException e) {
-        logger.warn("Failed to read "
-            + this.bridgeIpSecretsFile + "! Not calculating any IP "
-            + "address hashes in this execution!", e);
-        this.persistenceProblemWithSecrets = true;
-      }
+    if (this.bridgeIpSecrets != null) {
+      this.bridgeIpSecrets.close();
     }
+    this.bridgeIpSecrets = new BridgeIpSecrets(new File(statsDirectory,
+        "bridge-ip-secrets"), this.secureRandom);
+    try {
+      this.bridgeIpSecrets.load();
+      logger.debug("Read " + this.bridgeIpSecrets.size() + " secrets for "
+          + "hashing bridge IP addresses.");
+    } catch (IOException e) {
+      logger.warn("Failed to read secrets for hashing bridge IP addresses! "
+          + "Not calculating any IP address hashes in this execution!", e);
+      this.persistenceProblemWithSecrets = true;
+    }
+
+    this.scrubbingCache.retainSecrets(this.bridgeIpSecrets.asMap());
 
     long limitBridgeSanitizingInterval =
         config.getInt(Key.BridgeDescriptorMappingsLimit);
@@ -211,13 +316,17 @@ public class SanitizedBridgesWriter extends CollecTorMain {
     } else {
       this.bridgeSanitizingCutOffTimestamp = "1999-12-31 23:59:59";
     }
+    this.firstPersistentMonth = BridgeIpSecrets.monthKey(
+        this.bridgeSanitizingCutOffTimestamp) + 1;
 
     // Prepare bridge descriptor parser
     BridgeDescriptorParser bdp = new BridgeDescriptorParser(this);
 
     // Import bridge descriptors
     new BridgeSnapshotReader(bdp, this.bridgeDirectoriesDirectory,
-        statsDirectory);
+        statsDirectory, config.getInt(Key.BridgeSanitizingThreads),
+        config.getInt(Key.BridgeImportThreads),
+        config.getInt(Key.BridgeDescriptorMappingsLimit));
 
     // Finish writing sanitized bridge descriptors to disk
     this.finishWriting();
@@ -258,13 +367,18 @@ public class SanitizedBridgesWriter extends CollecTorMain {
          * addresses in this execution. */
         return null;
       }
+      int month = BridgeIpSecrets.monthKey(published);
+      String cachedAddress = this.scrubbingCache.get(month,
+          fingerprintBytes, ScrubbingCache.Kind.IPV4_ADDRESS, address);
+      if (cachedAddress != null) {
+        return cachedAddress;
+      }
       byte[] hashInput = new byte[4 + 20 + 31];
       String[] ipParts = address.split("\\.");
       for (int i = 0; i < 4; i++) {
         hashInput[i] = (byte) Integer.parseInt(ipParts[i]);
       }
       System.arraycopy(fingerprintBytes, 0, hashInput, 4, 20);
-      String month = published.substring(0, "yyyy-MM".length());
       byte[] secret = this.getSecretForMonth(month);
       System.arraycopy(secret, 0, hashInput, 24, 31);
       byte[] hashOutput = DigestUtils.sha256(hashInput);
@@ -272,6 +386,8 @@ public class SanitizedBridgesWriter extends CollecTorMain {
           + (((int) hashOutput[0] + 256) % 256) + "."
           + (((int) hashOutput[1] + 256) % 256) + "."
           + (((int) hashOutput[2] + 256) % 256);
+      this.scrubbingCache.put(month, fingerprintBytes,
+          ScrubbingCache.Kind.IPV4_ADDRESS, address, hashedAddress);
       return hashedAddress;
     } else {
       return "127.0.0.1";
@@ -280,6 +396,24 @@ public class SanitizedBridgesWriter extends CollecTorMain {
 
   private String scrubIpv6Address(String address, byte[] fingerprintBytes,
       String published) throws IOException {
+    if (!this.replaceIpAddressesWithHashes
+        || this.persistenceProblemWithSecrets) {
+      return this.hashIpv6Address(address, fingerprintBytes, published);
+    }
+    int month = BridgeIpSecrets.monthKey(published);
+    String scrubbedAddress = this.scrubbingCache.get(month,
+        fingerprintBytes, ScrubbingCache.Kind.IPV6_ADDRESS, address);
+    if (scrubbedAddress == null) {
+      scrubbedAddress = this.hashIpv6Address(address, fingerprintBytes,
+          published);
+      this.scrubbingCache.put(month, fingerprintBytes,
+          ScrubbingCache.Kind.IPV6_ADDRESS, address, scrubbedAddress);
+    }
+    return scrubbedAddress;
+  }
+
+  private String hashIpv6Address(String address, byte[] fingerprintBytes,
+      String published) throws IOException {
     StringBuilder sb = new StringBuilder("[fd9f:2e19:3bcf::");
     if (this.replaceIpAddressesWithHashes) {
       if (this.persistenceProblemWithSecrets) {
@@ -349,7 +483,7 @@ public class SanitizedBridgesWriter extends CollecTorMain {
       byte[] hashInput = new byte[16 + 20 + 19];
       System.arraycopy(ipBytes, 0, hashInput, 0, 16);
       System.arraycopy(fingerprintBytes, 0, hashInput, 16, 20);
-      String month = published.substring(0, "yyyy-MM".length());
+      int month = BridgeIpSecrets.monthKey(published);
       byte[] secret = this.getSecretForMonth(month);
       System.arraycopy(secret, 31, hashInput, 36, 19);
       String hashOutput = DigestUtils.sha256Hex(hashInput);
@@ -372,61 +506,44 @@ public class SanitizedBridgesWriter extends CollecTorMain {
          * ports in this execution. */
         return null;
       }
+      int month = BridgeIpSecrets.monthKey(published);
+      String cachedPort = this.scrubbingCache.get(month, fingerprintBytes,
+          ScrubbingCache.Kind.TCP_PORT, portString);
+      if (cachedPort != null) {
+        return cachedPort;
+      }
       byte[] hashInput = new byte[2 + 20 + 33];
       int portNumber = Integer.parseInt(portString);
       hashInput[0] = (byte) (portNumber >> 8);
       hashInput[1] = (byte) portNumber;
       System.arraycopy(fingerprintBytes, 0, hashInput, 2, 20);
-      String month = published.substring(0, "yyyy-MM".length());
       byte[] secret = this.getSecretForMonth(month);
       System.arraycopy(secret, 50, hashInput, 22, 33);
       byte[] hashOutput = DigestUtils.sha256(hashInput);
       int hashedPort = ((((hashOutput[0] & 0b1111_1111) << 8)
           | (hashOutput[1] & 0b1111_1111)) >> 2) | 0b1100_0000_0000_0000;
-      return String.valueOf(hashedPort);
+      String scrubbedPort = String.valueOf(hashedPort);
+      this.scrubbingCache.put(month, fingerprintBytes,
+          ScrubbingCache.Kind.TCP_PORT, portString, scrubbedPort);
+      return scrubbedPort;
     } else {
       return "1";
     }
   }
 
-  private byte[] getSecretForMonth(String month) throws IOException {
-    if (!this.secretsForHashingIpAddresses.containsKey(month)
-        || this.secretsForHashingIpAddresses.get(month).length < 83) {
-      byte[] secret = new byte[83];
-      this.secureRandom.nextBytes(secret);
-      if (this.secretsForHashingIpAddresses.containsKey(month)) {
-        System.arraycopy(this.secretsForHashingIpAddresses.get(month), 0,
-            secret, 0,
-            this.secretsForHashingIpAddresses.get(month).length);
-      }
-      if (month.compareTo(
-          this.bridgeSanitizingCutOffTimestamp) < 0) {
-        logger.warn("Generated a secret that we won't make "
-            + "persistent, because it's outside our bridge descriptor "
-            + "sanitizing interval.");
-      } else {
-        /* Append secret to file on disk immediately before using it, or
-         * we might end with inconsistently sanitized bridges. */
-        try {
-          if (!this.bridgeIpSecretsFile.exists()) {
-            this.bridgeIpSecretsFile.getParentFile().mkdirs();
-          }
-          BufferedWriter bw = new BufferedWriter(new FileWriter(
-              this.bridgeIpSecretsFile,
-              this.bridgeIpSecretsFile.exists()));
-          bw.write(month + "," + Hex.encodeHexString(secret) + "\n");
-          bw.close();
-        } catch (IOException e) {
-          logger.warn("Could not store new secret "
-              + "to disk! Not calculating any IP address or TCP port "
-              + "hashes in this execution!", e);
-          this.persistenceProblemWithSecrets = true;
-          throw new IOException(e);
-        }
-      }
-      this.secretsForHashingIpAddresses.put(month, secret);
+  /* Secrets are looked up from sanitizing threads, and a new secret must
+   * be generated and stored exactly once. */
+  private byte[] getSecretForMonth(int month) throws IOException {
+    try {
+      return this.bridgeIpSecrets.getOrCreate(month,
+          month >= this.firstPersistentMonth);
+    } catch (IOException e) {
+      logger.warn("Could not store new secret "
+          + "to disk! Not calculating any IP address or TCP port "
+          + "hashes in this execution!", e);
+      this.persistenceProblemWithSecrets = true;
+      throw e;
     }
-    return this.secretsForHashingIpAddresses.get(month);
   }
 
   private String maxNetworkStatusPublishedTime = "1970-01-01 00:00:00";
@@ -437,15 +554,44 @@ public class SanitizedBridgesWriter extends CollecTorMain {
   public void sanitizeAndStoreNetworkStatus(byte[] data,
       String publicationTime, String authorityFingerprint)
       throws ConfigurationException {
+    this.store(this.sanitizeNetworkStatus(data, publicationTime,
+        authorityFingerprint));
+  }
+
+  /** Writes the given sanitized descriptor to disk, unless sanitizing
+   * failed and it is null. */
+  void store(SanitizedBridgeDescriptor sanitizedDescriptor) {
+    if (sanitizedDescriptor == null) {
+      return;
+    }
+    try {
+      if (sanitizedDescriptor.store(this.segments)) {
+        this.recentFileManifest.written(
+            sanitizedDescriptor.getRecentFile());
+      }
+    } catch (IOException e) {
+      logger.warn("Could not write sanitized "
+          + sanitizedDescriptor.getType() + " to disk.", e);
+    }
+  }
+
+  /**
+   * Sanitizes a network status without writing it to disk, or returns
+   * null if it cannot be sanitized.
+   */
+  SanitizedBridgeDescriptor sanitizeNetworkStatus(byte[] data,
+      String publicationTime, String authorityFingerprint) {
 
     if (this.persistenceProblemWithSecrets) {
       /* There's a persistence problem, so we shouldn't scrub more IP
        * addresses in this execution. */
-      return;
+      return null;
     }
 
-    if (publicationTime.compareTo(maxNetworkStatusPublishedTime) > 0) {
-      maxNetworkStatusPublishedTime = publicationTime;
+    synchronized (this) {
+      if (publicationTime.compareTo(maxNetworkStatusPublishedTime) > 0) {
+        maxNetworkStatusPublishedTime = publicationTime;
+      }
     }
 
     if (this.bridgeSanitizingCutOffTimestamp
@@ -466,14 +612,11 @@ public class SanitizedBridgesWriter extends CollecTorMain {
     SortedMap<String, String> scrubbedLines =
         new TreeMap<String, String>();
     try {
-      StringBuilder scrubbed = new StringBuilder();
+      StatusEntry entry = null;
       BufferedReader br = new BufferedReader(new StringReader(new String(
           data, "US-ASCII")));
       String line = null;
       String mostRecentDescPublished = null;
-      byte[] fingerprintBytes = null;
-      String descPublicationTime = null;
-      String hashedBridgeIdentityHex = null;
       while ((line = br.readLine()) != null) {
 
         /* Use publication time from "published" line instead of the
@@ -491,10 +634,10 @@ public class SanitizedBridgesWriter extends CollecTorMain {
         } else if (line.startsWith("r ")) {
 
           /* Clear buffer from previously scrubbed lines. */
-          if (scrubbed.length() > 0) {
-            String scrubbedLine = scrubbed.toString();
-            scrubbedLines.put(hashedBridgeIdentityHex, scrubbedLine);
-            scrubbed = new StringBuilder();
+          if (entry != null) {
+            this.scrubStatusEntry(entry);
+            scrubbedLines.put(entry.hashedBridgeIdentityHex,
+                entry.scrubbed.toString());
           }
 
           /* Parse the relevant parts of this r line. */
@@ -502,69 +645,47 @@ public class SanitizedBridgesWriter extends CollecTorMain {
           if (parts.length < 9) {
             logger.warn("Illegal line '" + line + "' in bridge network "
                 + "status.  Skipping descriptor.");
-            return;
+            return null;
           }
           if (!Base64.isBase64(parts[2])) {
             logger.warn("Illegal base64 character in r line '" + parts[2]
                 + "'.  Skipping descriptor.");
-            return;
+            return null;
           }
-          fingerprintBytes = Base64.decodeBase64(parts[2] + "==");
-          descPublicationTime = parts[4] + " " + parts[5];
-          String address = parts[6];
-          String orPort = parts[7];
-          String dirPort = parts[8];
+          entry = new StatusEntry(line, parts);
 
           /* Determine most recent descriptor publication time. */
-          if (descPublicationTime.compareTo(publicationTime) <= 0
+          if (entry.descPublicationTime.compareTo(publicationTime) <= 0
               && (mostRecentDescPublished == null
-              || descPublicationTime.compareTo(
+              || entry.descPublicationTime.compareTo(
               mostRecentDescPublished) > 0)) {
-            mostRecentDescPublished = descPublicationTime;
+            mostRecentDescPublished = entry.descPublicationTime;
           }
 
-          /* Write scrubbed r line to buffer. */
-          byte[] hashedBridgeIdentity = DigestUtils.sha(fingerprintBytes);
-          String hashedBridgeIdentityBase64 = Base64.encodeBase64String(
-              hashedBridgeIdentity).substring(0, 27);
-          hashedBridgeIdentityHex = Hex.encodeHexString(
-              hashedBridgeIdentity);
-          String descriptorIdentifier = parts[3];
-          String hashedDescriptorIdentifier = Base64.encodeBase64String(
-              DigestUtils.sha(Base64.decodeBase64(descriptorIdentifier
-              + "=="))).substring(0, 27);
-          String scrubbedAddress = scrubIpv4Address(address,
-              fingerprintBytes,
-              descPublicationTime);
-          String nickname = parts[1];
-          String scrubbedOrPort = this.scrubTcpPort(orPort,
-              fingerprintBytes, descPublicationTime);
-          String scrubbedDirPort = this.scrubTcpPort(dirPort,
-              fingerprintBytes, descPublicationTime);
-          scrubbed.append("r " + nickname + " "
-              + hashedBridgeIdentityBase64 + " "
-              + hashedDescriptorIdentifier + " " + descPublicationTime
-              + " " + scrubbedAddress + " " + scrubbedOrPort + " "
-              + scrubbedDirPort + "\n");
-
-        /* Sanitize any addresses in a lines using the fingerprint and
-         * descriptor publication time from the previous r line. */
+        /* Sanitize any addresses in a lines together with the previous r
+         * line, or on their own if they follow other lines. */
         } else if (line.startsWith("a ")) {
-          String scrubbedOrAddress = scrubOrAddress(
-              line.substring("a ".length()), fingerprintBytes,
-              descPublicationTime);
-          if (scrubbedOrAddress != null) {
-            scrubbed.append("a " + scrubbedOrAddress + "\n");
+          if (entry == null) {
+            logger.debug("Unknown line '" + line + "' in bridge "
+                + "network status. Not writing to disk!");
+            return null;
+          } else if (entry.scrubbed == null) {
+            entry.rawLines.append(line).append('\n');
           } else {
-            logger.warn("Invalid address in line '" + line
-                + "' in bridge network status.  Skipping line!");
+            this.scrubStatusAddressLine(entry, line, entry.scrubbed);
           }
 
         /* Nothing special about s, w, and p lines; just copy them. */
         } else if (line.startsWith("s ") || line.equals("s")
             || line.startsWith("w ") || line.equals("w")
             || line.startsWith("p ") || line.equals("p")) {
-          scrubbed.append(line + "\n");
+          if (entry == null) {
+            logger.debug("Unknown line '" + line + "' in bridge "
+                + "network status. Not writing to disk!");
+            return null;
+          }
+          this.scrubStatusEntry(entry);
+          entry.scrubbed.append(line + "\n");
 
         /* There should be nothing else but r, a, w, p, and s lines in the
          * network status.  If there is, we should probably learn before
@@ -572,14 +693,14 @@ public class SanitizedBridgesWriter extends CollecTorMain {
         } else {
           logger.debug("Unknown line '" + line + "' in bridge "
               + "network status. Not writing to disk!");
-          return;
+          return null;
         }
       }
       br.close();
-      if (scrubbed.length() > 0) {
-        String scrubbedLine = scrubbed.toString();
-        scrubbedLines.put(hashedBridgeIdentityHex, scrubbedLine);
-        scrubbed = new StringBuilder();
+      if (entry != null) {
+        this.scrubStatusEntry(entry);
+        scrubbedLines.put(entry.hashedBridgeIdentityHex,
+            entry.scrubbed.toString());
       }
 
       /* Check if we can tell from the descriptor publication times
@@ -599,45 +720,155 @@ public class SanitizedBridgesWriter extends CollecTorMain {
     } catch (ParseException e) {
       logger.warn("Could not parse timestamp in "
           + "bridge network status.", e);
-      return;
+      return null;
     } catch (IOException e) {
       logger.warn("Could not parse bridge network "
           + "status.", e);
-      return;
+      return null;
     }
 
-    /* Write the sanitized network status to disk. */
-    try {
-      String syear = publicationTime.substring(0, 4);
-      String smonth = publicationTime.substring(5, 7);
-      String sday = publicationTime.substring(8, 10);
-      String stime = publicationTime.substring(11, 13)
-          + publicationTime.substring(14, 16)
-          + publicationTime.substring(17, 19);
-      File tarballFile = new File(
-          this.sanitizedBridgesDirectory.getAbsolutePath() + "/" + syear
-          + "/" + smonth + "/statuses/" + sday + "/" + syear + smonth
-          + sday + "-" + stime + "-" + authorityFingerprint);
-      File rsyncFile = new File(recentPathName, "statuses/"
-          + tarballFile.getName());
-      File[] outputFiles = new File[] { tarballFile, rsyncFile };
-      for (File outputFile : outputFiles) {
-        outputFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            outputFile));
-        bw.write(Annotation.Status.toString());
-        bw.write("published " + publicationTime + "\n");
-        bw.write(header.toString());
-        for (String scrubbed : scrubbedLines.values()) {
-          bw.write(scrubbed);
-        }
-        bw.close();
+    /* Prepare the sanitized network status for writing it to disk. */
+    String syear = publicationTime.substring(0, 4);
+    String smonth = publicationTime.substring(5, 7);
+    String sday = publicationTime.substring(8, 10);
+    String stime = publicationTime.substring(11, 13)
+        + publicationTime.substring(14, 16)
+        + publicationTime.substring(17, 19);
+    File tarballFile = new File(
+        this.sanitizedBridgesDirectory.getAbsolutePath() + "/" + syear
+        + "/" + smonth + "/statuses/" + sday + "/" + syear + smonth
+        + sday + "-" + stime + "-" + authorityFingerprint);
+    File rsyncFile = new File(recentPathName, "statuses/"
+        + tarballFile.getName());
+    DescriptorOutputBuffer sanitizedStatus = sanitizedBuffers.get();
+    sanitizedStatus.reset();
+    sanitizedStatus.append(Annotation.Status.toString());
+    sanitizedStatus.append("published " + publicationTime + "\n");
+    sanitizedStatus.append(header.toString());
+    for (String scrubbed : scrubbedLines.values()) {
+      sanitizedStatus.append(scrubbed);
+    }
+    return SanitizedBridgeDescriptor.networkStatus(
+        sanitizedStatus.toByteArray(), tarballFile, rsyncFile);
+  }
+
+  /* Entry in a bridge network status, consisting of an r line, any a
+   * lines following it, and the other lines that are copied. */
+  private static class StatusEntry {
+
+    final String[] parts;
+
+    final String descPublicationTime;
+
+    /* Original r line and a lines following it, until they are scrubbed
+     * together. */
+    final StringBuilder rawLines = new StringBuilder();
+
+    String hashedBridgeIdentityHex;
+
+    byte[] fingerprintBytes;
+
+    /* Scrubbed lines, or null if the r and a lines are not yet
+     * scrubbed. */
+    StringBuilder scrubbed;
+
+    StatusEntry(String line, String[] parts) {
+      this.parts = parts;
+      this.descPublicationTime = parts[4] + " " + parts[5];
+      this.rawLines.append(line).append('\n');
+    }
+  }
+
+  /* Sorted, scrubbed r and a lines are prefixed by the hex-encoded hashed
+   * bridge identity in the cache, which is used for sorting entries. */
+  private static final int HASHED_IDENTITY_HEX_LENGTH = 40;
+
+  private static final byte[] NO_FINGERPRINT = new byte[0];
+
+  /* Scrubs the r line and the a lines of the given status entry, unless
+   * they are already scrubbed, and reuses scrubbed lines from previous
+   * statuses if the original lines were exactly the same.  Like scrubbed
+   * addresses and ports, scrubbed lines are only cached while replacing
+   * IP addresses with hashes, so that lines cached with hashed addresses
+   * are never reused after turning that off. */
+  private void scrubStatusEntry(StatusEntry entry) throws IOException {
+    if (entry.scrubbed != null) {
+      return;
+    }
+    entry.scrubbed = new StringBuilder();
+    String rawLines = entry.rawLines.toString();
+    int month = -1;
+    if (this.replaceIpAddressesWithHashes
+        && !this.persistenceProblemWithSecrets) {
+      try {
+        month = BridgeIpSecrets.monthKey(entry.descPublicationTime);
+      } catch (IllegalArgumentException e) {
+        /* Don't cache entries with malformed publication times. */
       }
-    } catch (IOException e) {
-      logger.warn("Could not write sanitized bridge "
-          + "network status to disk.", e);
+    }
+    String cached = month < 0 ? null : this.scrubbingCache.get(month,
+        NO_FINGERPRINT, ScrubbingCache.Kind.STATUS_ENTRY, rawLines);
+    if (cached != null) {
+      entry.hashedBridgeIdentityHex = cached.substring(0,
+          HASHED_IDENTITY_HEX_LENGTH);
+      entry.scrubbed.append(cached, HASHED_IDENTITY_HEX_LENGTH,
+          cached.length());
       return;
     }
+    String[] parts = entry.parts;
+    entry.fingerprintBytes = Base64.decodeBase64(parts[2] + "==");
+    String address = parts[6];
+    String orPort = parts[7];
+    String dirPort = parts[8];
+    HashedIdentityCache.HashedIdentity hashedBridgeIdentity =
+        this.hashedIdentityCache.get(entry.fingerprintBytes);
+    entry.hashedBridgeIdentityHex = hashedBridgeIdentity.hex;
+    String descriptorIdentifier = parts[3];
+    String hashedDescriptorIdentifier = Base64.encodeBase64String(
+        DigestUtils.sha(Base64.decodeBase64(descriptorIdentifier
+        + "=="))).substring(0, 27);
+    String scrubbedAddress = scrubIpv4Address(address,
+        entry.fingerprintBytes, entry.descPublicationTime);
+    String nickname = parts[1];
+    String scrubbedOrPort = this.scrubTcpPort(orPort,
+        entry.fingerprintBytes, entry.descPublicationTime);
+    String scrubbedDirPort = this.scrubTcpPort(dirPort,
+        entry.fingerprintBytes, entry.descPublicationTime);
+    entry.scrubbed.append("r " + nickname + " "
+        + hashedBridgeIdentity.base64 + " "
+        + hashedDescriptorIdentifier + " " + entry.descPublicationTime
+        + " " + scrubbedAddress + " " + scrubbedOrPort + " "
+        + scrubbedDirPort + "\n");
+    int lineStart = rawLines.indexOf('\n') + 1;
+    while (lineStart < rawLines.length()) {
+      int lineEnd = rawLines.indexOf('\n', lineStart);
+      this.scrubStatusAddressLine(entry, rawLines.substring(lineStart,
+          lineEnd), entry.scrubbed);
+      lineStart = lineEnd + 1;
+    }
+    if (month >= 0 && !this.persistenceProblemWithSecrets) {
+      this.scrubbingCache.put(month, NO_FINGERPRINT,
+          ScrubbingCache.Kind.STATUS_ENTRY, rawLines,
+          entry.hashedBridgeIdentityHex + entry.scrubbed);
+    }
+  }
+
+  /* Sanitizes addresses in an a line using the fingerprint and descriptor
+   * publication time from the previous r line. */
+  private void scrubStatusAddressLine(StatusEntry entry, String line,
+      StringBuilder scrubbed) throws IOException {
+    if (entry.fingerprintBytes == null) {
+      entry.fingerprintBytes = Base64.decodeBase64(entry.parts[2] + "==");
+    }
+    String scrubbedOrAddress = scrubOrAddress(
+        line.substring("a ".length()), entry.fingerprintBytes,
+        entry.descPublicationTime);
+    if (scrubbedOrAddress != null) {
+      scrubbed.append("a " + scrubbedOrAddress + "\n");
+    } else {
+      logger.warn("Invalid address in line '" + line
+          + "' in bridge network status.  Skipping line!");
+    }
   }
 
   private String maxServerDescriptorPublishedTime = "1970-01-01 00:00:00";
@@ -646,348 +877,346 @@ public class SanitizedBridgesWriter extends CollecTorMain {
    * Sanitizes a bridge server descriptor and writes it to disk.
    */
   public void sanitizeAndStoreServerDescriptor(byte[] data) {
+    this.store(this.sanitizeServerDescriptor(data));
+  }
+
+  /**
+   * Sanitizes a bridge server descriptor without writing it to disk, or
+   * returns null if it cannot be sanitized.
+   */
+  SanitizedBridgeDescriptor sanitizeServerDescriptor(byte[] data) {
 
     if (this.persistenceProblemWithSecrets) {
       /* There's a persistence problem, so we shouldn't scrub more IP
        * addresses in this execution. */
-      return;
+      return null;
     }
 
     /* Parse descriptor to generate a sanitized version. */
-    String scrubbedDesc = null;
+    DescriptorOutputBuffer scrubbed = scrubbedBuffers.get();
+    scrubbed.reset();
+    String scrubbedRouterLine = null;
+    List<String> scrubbedOrAddresses = null;
     String published = null;
     String masterKeyEd25519FromIdentityEd25519 = null;
+    int digestStart = -1;
+    int signatureEnd = -1;
+    boolean signed = false;
     try {
-      BufferedReader br = new BufferedReader(new StringReader(
-          new String(data, "US-ASCII")));
-      StringBuilder scrubbed = new StringBuilder();
-      String line = null;
       String hashedBridgeIdentity = null;
       String address = null;
       String routerLine = null;
-      String scrubbedRouterLine = null;
       String scrubbedAddress = null;
       String masterKeyEd25519 = null;
       List<String> orAddresses = null;
-      List<String> scrubbedOrAddresses = null;
       boolean skipCrypto = false;
-      while ((line = br.readLine()) != null) {
+      int next = 0;
+      while (!signed && next < data.length) {
+        int start = next;
+        int end = lineEnd(data, start);
+        next = nextLineStart(data, end);
+        ServerDescriptorLine type = SERVER_DESCRIPTOR_KEYWORDS.lookup(data,
+            start, end);
 
         /* Skip all crypto parts that might be used to derive the bridge's
          * identity fingerprint. */
-        if (skipCrypto && !line.startsWith("-----END ")) {
+        if (skipCrypto && type != ServerDescriptorLine.CRYPTO_END) {
           continue;
+        }
 
-        /* Store the router line for later processing, because we may need
-         * the bridge identity fingerprint for replacing the IP address in
-         * the scrubbed version.  */
-        } else if (line.startsWith("router ")) {
-          String[] parts = line.split(" ");
-          if (parts.length != 6) {
-            logger.warn("Invalid router line: '" + line + "'.  Skipping.");
-            return;
-          }
-          address = parts[2];
-          routerLine = line;
-
-        /* Store or-address parts in a list and sanitize them when we have
-         * read the fingerprint. */
-        } else if (line.startsWith("or-address ")) {
-          if (orAddresses == null) {
-            orAddresses = new ArrayList<String>();
-          }
-          orAddresses.add(line.substring("or-address ".length()));
-
-        /* Parse the publication time to see if we're still inside the
-         * sanitizing interval. */
-        } else if (line.startsWith("published ")) {
-          published = line.substring("published ".length());
-          if (published.compareTo(maxServerDescriptorPublishedTime) > 0) {
-            maxServerDescriptorPublishedTime = published;
-          }
-          if (this.bridgeSanitizingCutOffTimestamp
-              .compareTo(published) > 0) {
-            String text = "Sanitizing and storing "
-                + "server descriptor with publication time outside our "
-                + "descriptor sanitizing interval.";
-            if (this.haveWarnedAboutInterval) {
-              logger.debug(text);
-            } else {
-              logger.warn(text);
-              this.haveWarnedAboutInterval = true;
+        /* If we encounter an unrecognized line, stop parsing and print
+         * out a warning. We might have overlooked sensitive information
+         * that we need to remove or replace for the sanitized descriptor
+         * version. */
+        if (type == null) {
+          logger.warn("Unrecognized line '" + line(data, start, end)
+              + "'. Skipping.");
+          return null;
+        }
+        String line;
+        switch (type) {
+
+          /* Store the router line for later processing, because we may
+           * need the bridge identity fingerprint for replacing the IP
+           * address in the scrubbed version.  */
+          case ROUTER:
+            line = line(data, start, end);
+            String[] parts = line.split(" ");
+            if (parts.length != 6) {
+              logger.warn("Invalid router line: '" + line
+                  + "'.  Skipping.");
+              return null;
             }
-          }
-          scrubbed.append(line + "\n");
-
-        /* Parse the fingerprint to determine the hashed bridge
-         * identity. */
-        } else if (line.startsWith("opt fingerprint ")
-            || line.startsWith("fingerprint ")) {
-          String fingerprint = line.substring(line.startsWith("opt ")
-              ? "opt fingerprint".length() : "fingerprint".length())
-              .replaceAll(" ", "").toLowerCase();
-          byte[] fingerprintBytes = Hex.decodeHex(
-              fingerprint.toCharArray());
-          hashedBridgeIdentity = DigestUtils.shaHex(fingerprintBytes)
-              .toLowerCase();
-          try {
-            scrubbedAddress = scrubIpv4Address(address, fingerprintBytes,
-                published);
-            if (orAddresses != null) {
-              scrubbedOrAddresses = new ArrayList<String>();
-              for (String orAddress : orAddresses) {
-                String scrubbedOrAddress = scrubOrAddress(orAddress,
-                    fingerprintBytes, published);
-                if (scrubbedOrAddress != null) {
-                  scrubbedOrAddresses.add(scrubbedOrAddress);
-                } else {
-                  logger.warn("Invalid address in line "
-                      + "'or-address " + orAddress + "' in bridge server "
-                      + "descriptor.  Skipping line!");
+            address = parts[2];
+            routerLine = line;
+            if (digestStart < 0) {
+              digestStart = start;
+            }
+            break;
+
+          /* Store or-address parts in a list and sanitize them when we
+           * have read the fingerprint. */
+          case OR_ADDRESS:
+            if (orAddresses == null) {
+              orAddresses = new ArrayList<String>();
+            }
+            orAddresses.add(line(data, start + "or-address ".length(),
+                end));
+            break;
+
+          /* Parse the publication time to see if we're still inside the
+           * sanitizing interval. */
+          case PUBLISHED:
+            published = line(data, start + "published ".length(), end);
+            synchronized (this) {
+              if (published.compareTo(maxServerDescriptorPublishedTime)
+                  > 0) {
+                maxServerDescriptorPublishedTime = published;
+              }
+            }
+            if (this.bridgeSanitizingCutOffTimestamp
+                .compareTo(published) > 0) {
+              String text = "Sanitizing and storing "
+                  + "server descriptor with publication time outside our "
+                  + "descriptor sanitizing interval.";
+              if (this.haveWarnedAboutInterval) {
+                logger.debug(text);
+              } else {
+                logger.warn(text);
+                this.haveWarnedAboutInterval = true;
+              }
+            }
+            scrubbed.appendLine(data, start, end);
+            break;
+
+          /* Parse the fingerprint to determine the hashed bridge
+           * identity. */
+          case FINGERPRINT:
+            line = line(data, start, end);
+            String fingerprint = line.substring(line.startsWith("opt ")
+                ? "opt fingerprint".length() : "fingerprint".length())
+                .replaceAll(" ", "").toLowerCase();
+            byte[] fingerprintBytes = Hex.decodeHex(
+                fingerprint.toCharArray());
+            hashedBridgeIdentity = this.hashedIdentityCache.get(
+                fingerprintBytes).upperHex;
+            try {
+              scrubbedAddress = scrubIpv4Address(address,
+                  fingerprintBytes, published);
+              if (orAddresses != null) {
+                scrubbedOrAddresses = new ArrayList<String>();
+                for (String orAddress : orAddresses) {
+                  String scrubbedOrAddress = scrubOrAddress(orAddress,
+                      fingerprintBytes, published);
+                  if (scrubbedOrAddress != null) {
+                    scrubbedOrAddresses.add(scrubbedOrAddress);
+                  } else {
+                    logger.warn("Invalid address in line "
+                        + "'or-address " + orAddress + "' in bridge "
+                        + "server descriptor.  Skipping line!");
+                  }
                 }
               }
+              String[] routerLineParts = routerLine.split(" ");
+              String nickname = routerLineParts[1];
+              String scrubbedOrPort = this.scrubTcpPort(
+                  routerLineParts[3], fingerprintBytes, published);
+              String scrubbedDirPort = this.scrubTcpPort(
+                  routerLineParts[4], fingerprintBytes, published);
+              String scrubbedSocksPort = this.scrubTcpPort(
+                  routerLineParts[5], fingerprintBytes, published);
+              scrubbedRouterLine = String.format(
+                  "router %s %s %s %s %s%n", nickname, scrubbedAddress,
+                  scrubbedOrPort, scrubbedDirPort, scrubbedSocksPort);
+            } catch (IOException e) {
+              /* There's a persistence problem, so we shouldn't scrub more
+               * IP addresses in this execution. */
+              this.persistenceProblemWithSecrets = true;
+              return null;
             }
-            String[] routerLineParts = routerLine.split(" ");
-            String nickname = routerLineParts[1];
-            String scrubbedOrPort = this.scrubTcpPort(routerLineParts[3],
-                fingerprintBytes, published);
-            String scrubbedDirPort = this.scrubTcpPort(routerLineParts[4],
-                fingerprintBytes, published);
-            String scrubbedSocksPort = this.scrubTcpPort(
-                routerLineParts[5], fingerprintBytes, published);
-            scrubbedRouterLine = String.format("router %s %s %s %s %s%n",
-                nickname, scrubbedAddress, scrubbedOrPort,
-                scrubbedDirPort, scrubbedSocksPort);
-          } catch (IOException e) {
-            /* There's a persistence problem, so we shouldn't scrub more
-             * IP addresses in this execution. */
-            this.persistenceProblemWithSecrets = true;
-            return;
-          }
-          scrubbed.append((line.startsWith("opt ") ? "opt " : "")
-              + "fingerprint");
-          for (int i = 0; i < hashedBridgeIdentity.length() / 4; i++) {
-            scrubbed.append(" " + hashedBridgeIdentity.substring(4 * i,
-                4 * (i + 1)).toUpperCase());
-          }
-          scrubbed.append("\n");
-
-        /* Replace the contact line (if present) with a generic one. */
-        } else if (line.startsWith("contact ")) {
-          scrubbed.append("contact somebody\n");
-
-        /* When we reach the signature, we're done. Write the sanitized
-         * descriptor to disk below. */
-        } else if (line.startsWith("router-signature")) {
-          scrubbedDesc = scrubbedRouterLine;
-          if (scrubbedOrAddresses != null) {
-            for (String scrubbedOrAddress : scrubbedOrAddresses) {
-              scrubbedDesc += "or-address " + scrubbedOrAddress + "\n";
+            scrubbed.append((line.startsWith("opt ") ? "opt " : "")
+                + "fingerprint");
+            for (int i = 0; i < hashedBridgeIdentity.length() / 4; i++) {
+              scrubbed.append(" " + hashedBridgeIdentity.substring(4 * i,
+                  4 * (i + 1)));
             }
-          }
-          scrubbedDesc += scrubbed.toString();
-          break;
+            scrubbed.append("\n");
+            break;
 
-        /* Replace extra-info digest with the hashed digest of the
-         * non-scrubbed descriptor. */
-        } else if (line.startsWith("opt extra-info-digest ")
-            || line.startsWith("extra-info-digest ")) {
-          String[] parts = line.split(" ");
-          if (line.startsWith("opt ")) {
-            scrubbed.append("opt ");
-            parts = line.substring(4).split(" ");
-          }
-          if (parts.length > 3) {
-            logger.warn("extra-info-digest line contains more arguments than"
-                + "expected: '" + line + "'.  Skipping descriptor.");
-            return;
-          }
-          scrubbed.append("extra-info-digest " + DigestUtils.shaHex(
-              Hex.decodeHex(parts[1].toCharArray())).toUpperCase());
-          if (parts.length > 2) {
-            if (!Base64.isBase64(parts[2])) {
-              logger.warn("Illegal base64 character in extra-info-digest line '"
-                  + line + "'.  Skipping descriptor.");
-              return;
+          /* Replace the contact line (if present) with a generic one. */
+          case CONTACT:
+            scrubbed.append("contact somebody\n");
+            break;
+
+          /* When we reach the signature, we're done. Write the sanitized
+           * descriptor to disk below. */
+          case ROUTER_SIGNATURE:
+            if (end - start == "router-signature".length()
+                && end < data.length) {
+              signatureEnd = next;
             }
-            scrubbed.append(" " + Base64.encodeBase64String(
-                DigestUtils.sha256(Base64.decodeBase64(parts[2])))
-                .replaceAll("=", ""));
-          }
-          scrubbed.append("\n");
-
-        /* Possibly sanitize reject lines if they contain the bridge's own
-         * IP address. */
-        } else if (line.startsWith("reject ")) {
-          if (address != null && line.startsWith("reject " + address)) {
-            scrubbed.append("reject " + scrubbedAddress
-                + line.substring("reject ".length() + address.length())
+            signed = true;
+            break;
+
+          /* Replace extra-info digest with the hashed digest of the
+           * non-scrubbed descriptor. */
+          case EXTRA_INFO_DIGEST:
+            line = line(data, start, end);
+            String[] digestParts = line.split(" ");
+            if (line.startsWith("opt ")) {
+              scrubbed.append("opt ");
+              digestParts = line.substring(4).split(" ");
+            }
+            if (digestParts.length > 3) {
+              logger.warn("extra-info-digest line contains more arguments "
+                  + "than expected: '" + line + "'.  Skipping descriptor.");
+              return null;
+            }
+            scrubbed.append("extra-info-digest " + DigestUtils.shaHex(
+                Hex.decodeHex(digestParts[1].toCharArray())).toUpperCase());
+            if (digestParts.length > 2) {
+              if (!Base64.isBase64(digestParts[2])) {
+                logger.warn("Illegal base64 character in extra-info-digest "
+                    + "line '" + line + "'.  Skipping descriptor.");
+                return null;
+              }
+              scrubbed.append(" " + Base64.encodeBase64String(
+                  DigestUtils.sha256(Base64.decodeBase64(digestParts[2])))
+                  .replaceAll("=", ""));
+            }
+            scrubbed.append("\n");
+            break;
+
+          /* Possibly sanitize reject lines if they contain the bridge's
+           * own IP address. */
+          case REJECT:
+            line = line(data, start, end);
+            if (address != null && line.startsWith("reject " + address)) {
+              scrubbed.append("reject " + scrubbedAddress
+                  + line.substring("reject ".length() + address.length())
+                  + "\n");
+            } else {
+              scrubbed.appendLine(data, start, end);
+            }
+            break;
+
+          /* Extract master-key-ed25519 from identity-ed25519. */
+          case IDENTITY_ED25519:
+            StringBuilder sb = new StringBuilder();
+            while (next < data.length) {
+              int certStart = next;
+              int certEnd = lineEnd(data, certStart);
+              next = nextLineStart(data, certEnd);
+              String certLine = line(data, certStart, certEnd);
+              if (certLine.equals("-----END ED25519 CERT-----")) {
+                break;
+              } else if (!certLine.equals("-----BEGIN ED25519 CERT-----")) {
+                sb.append(certLine);
+              }
+            }
+            masterKeyEd25519FromIdentityEd25519 =
+                this.parseMasterKeyEd25519FromIdentityEd25519(
+                sb.toString());
+            if (masterKeyEd25519FromIdentityEd25519 == null) {
+              logger.warn("Could not parse master-key-ed25519 from "
+                  + "identity-ed25519.  Skipping descriptor.");
+              return null;
+            }
+            String sha256MasterKeyEd25519 = Base64.encodeBase64String(
+                DigestUtils.sha256(Base64.decodeBase64(
+                masterKeyEd25519FromIdentityEd25519 + "=")))
+                .replaceAll("=", "");
+            scrubbed.append("master-key-ed25519 " + sha256MasterKeyEd25519
                 + "\n");
-          } else {
-            scrubbed.append(line + "\n");
-          }
+            if (masterKeyEd25519 != null && !masterKeyEd25519.equals(
+                masterKeyEd25519FromIdentityEd25519)) {
+              logger.warn("Mismatch between identity-ed25519 and "
+                  + "master-key-ed25519.  Skipping.");
+              return null;
+            }
+            break;
 
-        /* Extract master-key-ed25519 from identity-ed25519. */
-        } else if (line.equals("identity-ed25519")) {
-          StringBuilder sb = new StringBuilder();
-          while ((line = br.readLine()) != null
-              && !line.equals("-----END ED25519 CERT-----")) {
-            if (line.equals("-----BEGIN ED25519 CERT-----")) {
-              continue;
+          /* Verify that identity-ed25519 and master-key-ed25519 match. */
+          case MASTER_KEY_ED25519:
+            masterKeyEd25519 = line(data,
+                start + "master-key-ed25519 ".length(), end);
+            if (masterKeyEd25519FromIdentityEd25519 != null
+                && !masterKeyEd25519FromIdentityEd25519.equals(
+                masterKeyEd25519)) {
+              logger.warn("Mismatch between identity-ed25519 and "
+                  + "master-key-ed25519.  Skipping.");
+              return null;
             }
-            sb.append(line);
-          }
-          masterKeyEd25519FromIdentityEd25519 =
-              this.parseMasterKeyEd25519FromIdentityEd25519(
-              sb.toString());
-          if (masterKeyEd25519FromIdentityEd25519 == null) {
-            logger.warn("Could not parse master-key-ed25519 from "
-                + "identity-ed25519.  Skipping descriptor.");
-            return;
-          }
-          String sha256MasterKeyEd25519 = Base64.encodeBase64String(
-              DigestUtils.sha256(Base64.decodeBase64(
-              masterKeyEd25519FromIdentityEd25519 + "=")))
-              .replaceAll("=", "");
-          scrubbed.append("master-key-ed25519 " + sha256MasterKeyEd25519
-              + "\n");
-          if (masterKeyEd25519 != null && !masterKeyEd25519.equals(
-              masterKeyEd25519FromIdentityEd25519)) {
-            logger.warn("Mismatch between identity-ed25519 and "
-                + "master-key-ed25519.  Skipping.");
-            return;
-          }
+            break;
 
-        /* Verify that identity-ed25519 and master-key-ed25519 match. */
-        } else if (line.startsWith("master-key-ed25519 ")) {
-          masterKeyEd25519 = line.substring(line.indexOf(" ") + 1);
-          if (masterKeyEd25519FromIdentityEd25519 != null
-              && !masterKeyEd25519FromIdentityEd25519.equals(
-              masterKeyEd25519)) {
-            logger.warn("Mismatch between identity-ed25519 and "
-                + "master-key-ed25519.  Skipping.");
-            return;
-          }
+          /* Write the following lines unmodified to the sanitized
+           * descriptor. */
+          case COPY:
+            scrubbed.appendLine(data, start, end);
+            break;
 
-        /* Write the following lines unmodified to the sanitized
-         * descriptor. */
-        } else if (line.startsWith("accept ")
-            || line.startsWith("platform ")
-            || line.startsWith("opt protocols ")
-            || line.startsWith("protocols ")
-            || line.startsWith("proto ")
-            || line.startsWith("uptime ")
-            || line.startsWith("bandwidth ")
-            || line.startsWith("opt hibernating ")
-            || line.startsWith("hibernating ")
-            || line.startsWith("ntor-onion-key ")
-            || line.equals("opt hidden-service-dir")
-            || line.equals("hidden-service-dir")
-            || line.equals("opt caches-extra-info")
-            || line.equals("caches-extra-info")
-            || line.equals("opt allow-single-hop-exits")
-            || line.equals("allow-single-hop-exits")
-            || line.startsWith("ipv6-policy ")
-            || line.equals("tunnelled-dir-server")) {
-          scrubbed.append(line + "\n");
-
-        /* Replace node fingerprints in the family line with their hashes
-         * and leave nicknames unchanged. */
-        } else if (line.startsWith("family ")) {
-          StringBuilder familyLine = new StringBuilder("family");
-          for (String s : line.substring(7).split(" ")) {
-            if (s.startsWith("$")) {
-              familyLine.append(" $" + DigestUtils.shaHex(Hex.decodeHex(
-                  s.substring(1).toCharArray())).toUpperCase());
-            } else {
-              familyLine.append(" " + s);
+          /* Replace node fingerprints in the family line with their
+           * hashes and leave nicknames unchanged. */
+          case FAMILY:
+            StringBuilder familyLine = new StringBuilder("family");
+            for (String s : line(data, start + "family ".length(), end)
+                .split(" ")) {
+              if (s.startsWith("$")) {
+                familyLine.append(" $").append(this.hashedIdentityCache
+                    .getHex(s.substring(1)).upperHex);
+              } else {
+                familyLine.append(" " + s);
+              }
             }
-          }
-          scrubbed.append(familyLine.toString() + "\n");
+            scrubbed.append(familyLine.toString() + "\n");
+            break;
 
-        /* Skip the purpose line that the bridge authority adds to its
-         * cached-descriptors file. */
-        } else if (line.startsWith("@purpose ")) {
-          continue;
+          /* Skip all crypto parts that might leak the bridge's identity
+           * fingerprint. */
+          case CRYPTO_BEGIN:
+            skipCrypto = true;
+            break;
 
-        /* Skip all crypto parts that might leak the bridge's identity
-         * fingerprint. */
-        } else if (line.startsWith("-----BEGIN ")
-            || line.equals("onion-key") || line.equals("signing-key")
-            || line.equals("onion-key-crosscert")
-            || line.startsWith("ntor-onion-key-crosscert ")) {
-          skipCrypto = true;
-
-        /* Stop skipping lines when the crypto parts are over. */
-        } else if (line.startsWith("-----END ")) {
-          skipCrypto = false;
-
-        /* Skip the ed25519 signature; we'll include a SHA256 digest of
-         * the SHA256 descriptor digest in router-digest-sha256. */
-        } else if (line.startsWith("router-sig-ed25519 ")) {
-          continue;
+          /* Stop skipping lines when the crypto parts are over. */
+          case CRYPTO_END:
+            skipCrypto = false;
+            break;
 
-        /* If we encounter an unrecognized line, stop parsing and print
-         * out a warning. We might have overlooked sensitive information
-         * that we need to remove or replace for the sanitized descriptor
-         * version. */
-        } else {
-          logger.warn("Unrecognized line '" + line
-              + "'. Skipping.");
-          return;
+          /* Skip the purpose line that the bridge authority adds to its
+           * cached-descriptors file, and skip the ed25519 signature;
+           * we'll include a SHA256 digest of the SHA256 descriptor digest
+           * in router-digest-sha256. */
+          case SKIP:
+          default:
+            break;
         }
       }
-      br.close();
     } catch (Exception e) {
       logger.warn("Could not parse server "
           + "descriptor.", e);
-      return;
+      return null;
+    }
+    if (!signed) {
+      logger.warn("Server descriptor does not contain a router-signature "
+          + "line.  Skipping.");
+      return null;
     }
 
     /* Determine filename of sanitized server descriptor. */
-    String descriptorDigest = null;
-    try {
-      String ascii = new String(data, "US-ASCII");
-      String startToken = "router ";
-      String sigToken = "\nrouter-signature\n";
-      int start = ascii.indexOf(startToken);
-      int sig = ascii.indexOf(sigToken) + sigToken.length();
-      if (start >= 0 && sig >= 0 && sig > start) {
-        byte[] forDigest = new byte[sig - start];
-        System.arraycopy(data, start, forDigest, 0, sig - start);
-        descriptorDigest = DigestUtils.shaHex(DigestUtils.sha(forDigest));
-      }
-    } catch (UnsupportedEncodingException e) {
-      /* Handle below. */
-    }
-    if (descriptorDigest == null) {
+    String[] descriptorDigests = computeDescriptorDigests(data, digestStart,
+        signatureEnd, masterKeyEd25519FromIdentityEd25519 != null);
+    if (descriptorDigests == null) {
       logger.warn("Could not calculate server "
           + "descriptor digest.");
-      return;
+      return null;
     }
-    String descriptorDigestSha256Base64 = null;
-    if (masterKeyEd25519FromIdentityEd25519 != null) {
-      try {
-        String ascii = new String(data, "US-ASCII");
-        String startToken = "router ";
-        String sigToken = "\n-----END SIGNATURE-----\n";
-        int start = ascii.indexOf(startToken);
-        int sig = ascii.indexOf(sigToken) + sigToken.length();
-        if (start >= 0 && sig >= 0 && sig > start) {
-          byte[] forDigest = new byte[sig - start];
-          System.arraycopy(data, start, forDigest, 0, sig - start);
-          descriptorDigestSha256Base64 = Base64.encodeBase64String(
-              DigestUtils.sha256(DigestUtils.sha256(forDigest)))
-              .replaceAll("=", "");
-        }
-      } catch (UnsupportedEncodingException e) {
-        /* Handle below. */
-      }
-      if (descriptorDigestSha256Base64 == null) {
-        logger.warn("Could not calculate server "
-            + "descriptor SHA256 digest.");
-        return;
-      }
+    String descriptorDigest = descriptorDigests[0];
+    String descriptorDigestSha256Base64 = descriptorDigests[1];
+    if (masterKeyEd25519FromIdentityEd25519 != null
+        && descriptorDigestSha256Base64 == null) {
+      logger.warn("Could not calculate server "
+          + "descriptor SHA256 digest.");
+      return null;
     }
     String dyear = published.substring(0, 4);
     String dmonth = published.substring(5, 7);
@@ -997,38 +1226,102 @@ public class SanitizedBridgesWriter extends CollecTorMain {
         + "/" + descriptorDigest.charAt(0) + "/"
         + descriptorDigest.charAt(1) + "/"
         + descriptorDigest);
-    try {
-      File rsyncCatFile = new File(config.getPath(Key.RecentPath).toFile(),
-          "bridge-descriptors/server-descriptors/" + this.rsyncCatString
-          + "-server-descriptors.tmp");
-      File[] outputFiles = new File[] { tarballFile, rsyncCatFile };
-      boolean[] append = new boolean[] { false, true };
-      for (int i = 0; i < outputFiles.length; i++) {
-        File outputFile = outputFiles[i];
-        boolean appendToFile = append[i];
-        if (outputFile.exists() && !appendToFile) {
-          /* We already stored this descriptor to disk before, so let's
-           * not store it yet another time. */
-          break;
-        }
-        outputFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            outputFile, appendToFile));
-        bw.write(Annotation.BridgeServer.toString());
-        bw.write(scrubbedDesc);
-        if (descriptorDigestSha256Base64 != null) {
-          bw.write("router-digest-sha256 " + descriptorDigestSha256Base64
-              + "\n");
-        }
-        bw.write("router-digest " + descriptorDigest.toUpperCase()
+    File rsyncCatFile = new File(recentPathName, "server-descriptors/"
+        + this.rsyncCatString + "-server-descriptors.tmp");
+    DescriptorOutputBuffer sanitizedDescriptor = sanitizedBuffers.get();
+    sanitizedDescriptor.reset();
+    sanitizedDescriptor.append(Annotation.BridgeServer.toString());
+    sanitizedDescriptor.append(scrubbedRouterLine);
+    if (scrubbedOrAddresses != null) {
+      for (String scrubbedOrAddress : scrubbedOrAddresses) {
+        sanitizedDescriptor.append("or-address " + scrubbedOrAddress
             + "\n");
-        bw.close();
       }
-    } catch (ConfigurationException | IOException e) {
-      logger.warn("Could not write sanitized server "
-          + "descriptor to disk.", e);
-      return;
     }
+    sanitizedDescriptor.append(scrubbed);
+    if (descriptorDigestSha256Base64 != null) {
+      sanitizedDescriptor.append("router-digest-sha256 "
+          + descriptorDigestSha256Base64 + "\n");
+    }
+    sanitizedDescriptor.append("router-digest "
+        + descriptorDigest.toUpperCase() + "\n");
+    return SanitizedBridgeDescriptor.descriptor(
+        "server descriptor", sanitizedDescriptor.toByteArray(),
+        tarballFile, rsyncCatFile);
+  }
+
+  /** Computes the SHA-1 digest of the given descriptor from the given
+   * start position to the end of the router-signature line, and, if
+   * requested, the SHA-256 digest from the start position to the end of
+   * the signature, in a single pass over the original bytes without
+   * copying them: the shared prefix is fed to both digests, and only the
+   * signature itself to the SHA-256 digest.  Returns null if the SHA-1
+   * digest cannot be computed, and a null SHA-256 digest if that cannot
+   * be computed. */
+  private static String[] computeDescriptorDigests(byte[] data,
+      int digestStart, int signatureEnd, boolean computeSha256) {
+    if (digestStart < 0 || signatureEnd <= digestStart) {
+      return null;
+    }
+    MessageDigest sha1 = DigestUtils.getSha1Digest();
+    MessageDigest sha256 = computeSha256 ? DigestUtils.getSha256Digest()
+        : null;
+    sha1.update(data, digestStart, signatureEnd - digestStart);
+    if (computeSha256) {
+      sha256.update(data, digestStart, signatureEnd - digestStart);
+    }
+    String[] digests = new String[2];
+    digests[0] = DigestUtils.shaHex(sha1.digest());
+    if (computeSha256) {
+      int end = indexOf(data, END_SIGNATURE_TOKEN, signatureEnd - 1);
+      if (end >= 0) {
+        end += END_SIGNATURE_TOKEN.length;
+        sha256.update(data, signatureEnd, end - signatureEnd);
+        digests[1] = Base64.encodeBase64String(DigestUtils.sha256(
+            sha256.digest())).replaceAll("=", "");
+      }
+    }
+    return digests;
+  }
+
+  /** Returns the position of the first line terminator, '\n' or '\r',
+   * at or after the given start position, or the data length if there is
+   * none, just like {@link BufferedReader#readLine()} ends lines. */
+  static int lineEnd(byte[] data, int start) {
+    for (int i = start; i < data.length; i++) {
+      if (data[i] == '\n' || data[i] == '\r') {
+        return i;
+      }
+    }
+    return data.length;
+  }
+
+  /** Returns the start position of the line following the line that ends
+   * at the given position, skipping "\r\n" as a single line
+   * terminator. */
+  static int nextLineStart(byte[] data, int end) {
+    if (end + 1 < data.length && data[end] == '\r'
+        && data[end + 1] == '\n') {
+      return end + 2;
+    }
+    return end + 1;
+  }
+
+  private static int indexOf(byte[] data, byte[] token, int from) {
+    outer:
+    for (int i = Math.max(from, 0); i <= data.length - token.length; i++) {
+      for (int j = 0; j < token.length; j++) {
+        if (data[i + j] != token[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static String line(byte[] data, int start, int end) {
+    return new String(data, start, end - start, StandardCharsets.US_ASCII);
   }
 
   private String parseMasterKeyEd25519FromIdentityEd25519(
@@ -1092,186 +1385,195 @@ public class SanitizedBridgesWriter extends CollecTorMain {
    * Sanitizes an extra-info descriptor and writes it to disk.
    */
   public void sanitizeAndStoreExtraInfoDescriptor(byte[] data) {
+    this.store(this.sanitizeExtraInfoDescriptor(data));
+  }
+
+  /**
+   * Sanitizes an extra-info descriptor without writing it to disk, or
+   * returns null if it cannot be sanitized.
+   */
+  SanitizedBridgeDescriptor sanitizeExtraInfoDescriptor(byte[] data) {
 
     /* Parse descriptor to generate a sanitized version. */
-    String scrubbedDesc = null;
+    DescriptorOutputBuffer scrubbed = scrubbedBuffers.get();
+    scrubbed.reset();
     String published = null;
     String masterKeyEd25519FromIdentityEd25519 = null;
+    int digestStart = -1;
+    int signatureEnd = -1;
+    boolean signed = false;
     try {
-      BufferedReader br = new BufferedReader(new StringReader(new String(
-          data, "US-ASCII")));
-      String line = null;
-      StringBuilder scrubbed = null;
       String hashedBridgeIdentity = null;
       String masterKeyEd25519 = null;
-      while ((line = br.readLine()) != null) {
+      int next = 0;
+      while (!signed && next < data.length) {
+        int start = next;
+        int end = lineEnd(data, start);
+        next = nextLineStart(data, end);
+        ExtraInfoDescriptorLine type = EXTRA_INFO_DESCRIPTOR_KEYWORDS
+            .lookup(data, start, end);
 
-        /* Parse bridge identity from extra-info line and replace it with
-         * its hash in the sanitized descriptor. */
-        String[] parts = line.split(" ");
-        if (line.startsWith("extra-info ")) {
-          if (parts.length < 3) {
-            logger.debug("Illegal line in extra-info descriptor: '" + line
-                + "'.  Skipping descriptor.");
-            return;
-          }
-          hashedBridgeIdentity = DigestUtils.shaHex(Hex.decodeHex(
-              parts[2].toCharArray())).toLowerCase();
-          scrubbed = new StringBuilder("extra-info " + parts[1] + " "
-              + hashedBridgeIdentity.toUpperCase() + "\n");
-
-        /* Parse the publication time to determine the file name. */
-        } else if (line.startsWith("published ")) {
-          scrubbed.append(line + "\n");
-          published = line.substring("published ".length());
-          if (published.compareTo(maxExtraInfoDescriptorPublishedTime)
-              > 0) {
-            maxExtraInfoDescriptorPublishedTime = published;
-          }
+        /* If we encounter an unrecognized line, stop parsing and print
+         * out a warning. We might have overlooked sensitive information
+         * that we need to remove or replace for the sanitized descriptor
+         * version. */
+        if (type == null) {
+          logger.warn("Unrecognized line '" + line(data, start, end)
+              + "'. Skipping.");
+          return null;
+        }
 
-        /* Remove everything from transport lines except the transport
-         * name. */
-        } else if (line.startsWith("transport ")) {
-          if (parts.length < 3) {
-            logger.debug("Illegal line in extra-info descriptor: '"
-                + line + "'.  Skipping descriptor.");
-            return;
-          }
-          scrubbed.append("transport " + parts[1] + "\n");
-
-        /* Skip transport-info lines entirely. */
-        } else if (line.startsWith("transport-info ")) {
-
-        /* Extract master-key-ed25519 from identity-ed25519. */
-        } else if (line.equals("identity-ed25519")) {
-          StringBuilder sb = new StringBuilder();
-          while ((line = br.readLine()) != null
-              && !line.equals("-----END ED25519 CERT-----")) {
-            if (line.equals("-----BEGIN ED25519 CERT-----")) {
-              continue;
+        /* All lines but the signature need to follow the extra-info
+         * line, because that is where the sanitized descriptor starts. */
+        if (digestStart < 0 && type != ExtraInfoDescriptorLine.EXTRA_INFO
+            && type != ExtraInfoDescriptorLine.SKIP) {
+          logger.warn("Line '" + line(data, start, end) + "' precedes "
+              + "extra-info line.  Skipping.");
+          return null;
+        }
+        String line;
+        String[] parts;
+        switch (type) {
+
+          /* Parse bridge identity from extra-info line and replace it
+           * with its hash in the sanitized descriptor. */
+          case EXTRA_INFO:
+            line = line(data, start, end);
+            parts = line.split(" ");
+            if (parts.length < 3) {
+              logger.debug("Illegal line in extra-info descriptor: '"
+                  + line + "'.  Skipping descriptor.");
+              return null;
             }
-            sb.append(line);
-          }
-          masterKeyEd25519FromIdentityEd25519 =
-              this.parseMasterKeyEd25519FromIdentityEd25519(
-              sb.toString());
-          String sha256MasterKeyEd25519 = Base64.encodeBase64String(
-              DigestUtils.sha256(Base64.decodeBase64(
-              masterKeyEd25519FromIdentityEd25519 + "=")))
-              .replaceAll("=", "");
-          scrubbed.append("master-key-ed25519 " + sha256MasterKeyEd25519
-              + "\n");
-          if (masterKeyEd25519 != null && !masterKeyEd25519.equals(
-              masterKeyEd25519FromIdentityEd25519)) {
-            logger.warn("Mismatch between identity-ed25519 and "
-                + "master-key-ed25519.  Skipping.");
-            return;
-          }
+            hashedBridgeIdentity = this.hashedIdentityCache.getHex(
+                parts[2]).upperHex;
+            scrubbed.reset();
+            scrubbed.append("extra-info " + parts[1] + " "
+                + hashedBridgeIdentity + "\n");
+            if (digestStart < 0) {
+              digestStart = start;
+            }
+            break;
 
-        /* Verify that identity-ed25519 and master-key-ed25519 match. */
-        } else if (line.startsWith("master-key-ed25519 ")) {
-          masterKeyEd25519 = line.substring(line.indexOf(" ") + 1);
-          if (masterKeyEd25519FromIdentityEd25519 != null
-              && !masterKeyEd25519FromIdentityEd25519.equals(
-              masterKeyEd25519)) {
-            logger.warn("Mismatch between identity-ed25519 and "
-                + "master-key-ed25519.  Skipping.");
-            return;
-          }
+          /* Parse the publication time to determine the file name. */
+          case PUBLISHED:
+            scrubbed.appendLine(data, start, end);
+            published = line(data, start + "published ".length(), end);
+            synchronized (this) {
+              if (published.compareTo(maxExtraInfoDescriptorPublishedTime)
+                  > 0) {
+                maxExtraInfoDescriptorPublishedTime = published;
+              }
+            }
+            break;
 
-        /* Write the following lines unmodified to the sanitized
-         * descriptor. */
-        } else if (line.startsWith("write-history ")
-            || line.startsWith("read-history ")
-            || line.startsWith("geoip-start-time ")
-            || line.startsWith("geoip-client-origins ")
-            || line.startsWith("geoip-db-digest ")
-            || line.startsWith("geoip6-db-digest ")
-            || line.startsWith("conn-bi-direct ")
-            || line.startsWith("bridge-")
-            || line.startsWith("dirreq-")
-            || line.startsWith("cell-")
-            || line.startsWith("entry-")
-            || line.startsWith("exit-")
-            || line.startsWith("hidserv-")) {
-          scrubbed.append(line + "\n");
-
-        /* When we reach the signature, we're done. Write the sanitized
-         * descriptor to disk below. */
-        } else if (line.startsWith("router-signature")) {
-          scrubbedDesc = scrubbed.toString();
-          break;
+          /* Remove everything from transport lines except the transport
+           * name. */
+          case TRANSPORT:
+            line = line(data, start, end);
+            parts = line.split(" ");
+            if (parts.length < 3) {
+              logger.debug("Illegal line in extra-info descriptor: '"
+                  + line + "'.  Skipping descriptor.");
+              return null;
+            }
+            scrubbed.append("transport " + parts[1] + "\n");
+            break;
 
-        /* Skip the ed25519 signature; we'll include a SHA256 digest of
-         * the SHA256 descriptor digest in router-digest-sha256. */
-        } else if (line.startsWith("router-sig-ed25519 ")) {
-          continue;
+          /* Extract master-key-ed25519 from identity-ed25519. */
+          case IDENTITY_ED25519:
+            StringBuilder sb = new StringBuilder();
+            while (next < data.length) {
+              int certStart = next;
+              int certEnd = lineEnd(data, certStart);
+              next = nextLineStart(data, certEnd);
+              String certLine = line(data, certStart, certEnd);
+              if (certLine.equals("-----END ED25519 CERT-----")) {
+                break;
+              } else if (!certLine.equals("-----BEGIN ED25519 CERT-----")) {
+                sb.append(certLine);
+              }
+            }
+            masterKeyEd25519FromIdentityEd25519 =
+                this.parseMasterKeyEd25519FromIdentityEd25519(
+                sb.toString());
+            String sha256MasterKeyEd25519 = Base64.encodeBase64String(
+                DigestUtils.sha256(Base64.decodeBase64(
+                masterKeyEd25519FromIdentityEd25519 + "=")))
+                .replaceAll("=", "");
+            scrubbed.append("master-key-ed25519 " + sha256MasterKeyEd25519
+                + "\n");
+            if (masterKeyEd25519 != null && !masterKeyEd25519.equals(
+                masterKeyEd25519FromIdentityEd25519)) {
+              logger.warn("Mismatch between identity-ed25519 and "
+                  + "master-key-ed25519.  Skipping.");
+              return null;
+            }
+            break;
 
-        /* If we encounter an unrecognized line, stop parsing and print
-         * out a warning. We might have overlooked sensitive information
-         * that we need to remove or replace for the sanitized descriptor
-         * version. */
-        } else {
-          logger.warn("Unrecognized line '" + line
-              + "'. Skipping.");
-          return;
+          /* Verify that identity-ed25519 and master-key-ed25519 match. */
+          case MASTER_KEY_ED25519:
+            masterKeyEd25519 = line(data,
+                start + "master-key-ed25519 ".length(), end);
+            if (masterKeyEd25519FromIdentityEd25519 != null
+                && !masterKeyEd25519FromIdentityEd25519.equals(
+                masterKeyEd25519)) {
+              logger.warn("Mismatch between identity-ed25519 and "
+                  + "master-key-ed25519.  Skipping.");
+              return null;
+            }
+            break;
+
+          /* Write the following lines unmodified to the sanitized
+           * descriptor. */
+          case COPY:
+            scrubbed.appendLine(data, start, end);
+            break;
+
+          /* When we reach the signature, we're done. Write the sanitized
+           * descriptor to disk below. */
+          case ROUTER_SIGNATURE:
+            if (end - start == "router-signature".length()
+                && end < data.length) {
+              signatureEnd = next;
+            }
+            signed = true;
+            break;
+
+          /* Skip transport-info lines entirely, and skip the ed25519
+           * signature; we'll include a SHA256 digest of the SHA256
+           * descriptor digest in router-digest-sha256. */
+          case SKIP:
+          default:
+            break;
         }
       }
-      br.close();
-    } catch (IOException e) {
-      logger.warn("Could not parse extra-info "
-          + "descriptor.", e);
-      return;
     } catch (DecoderException e) {
       logger.warn("Could not parse extra-info "
           + "descriptor.", e);
-      return;
+      return null;
+    }
+    if (!signed) {
+      logger.warn("Extra-info descriptor does not contain a "
+          + "router-signature line.  Skipping.");
+      return null;
     }
 
     /* Determine filename of sanitized extra-info descriptor. */
-    String descriptorDigest = null;
-    try {
-      String ascii = new String(data, "US-ASCII");
-      String startToken = "extra-info ";
-      String sigToken = "\nrouter-signature\n";
-      int start = ascii.indexOf(startToken);
-      int sig = ascii.indexOf(sigToken) + sigToken.length();
-      if (start >= 0 && sig >= 0 && sig > start) {
-        byte[] forDigest = new byte[sig - start];
-        System.arraycopy(data, start, forDigest, 0, sig - start);
-        descriptorDigest = DigestUtils.shaHex(DigestUtils.sha(forDigest));
-      }
-    } catch (UnsupportedEncodingException e) {
-      /* Handle below. */
-    }
-    if (descriptorDigest == null) {
+    String[] descriptorDigests = computeDescriptorDigests(data, digestStart,
+        signatureEnd, masterKeyEd25519FromIdentityEd25519 != null);
+    if (descriptorDigests == null) {
       logger.warn("Could not calculate extra-info "
           + "descriptor digest.");
-      return;
+      return null;
     }
-    String descriptorDigestSha256Base64 = null;
-    if (masterKeyEd25519FromIdentityEd25519 != null) {
-      try {
-        String ascii = new String(data, "US-ASCII");
-        String startToken = "extra-info ";
-        String sigToken = "\n-----END SIGNATURE-----\n";
-        int start = ascii.indexOf(startToken);
-        int sig = ascii.indexOf(sigToken) + sigToken.length();
-        if (start >= 0 && sig >= 0 && sig > start) {
-          byte[] forDigest = new byte[sig - start];
-          System.arraycopy(data, start, forDigest, 0, sig - start);
-          descriptorDigestSha256Base64 = Base64.encodeBase64String(
-              DigestUtils.sha256(DigestUtils.sha256(forDigest)))
-              .replaceAll("=", "");
-        }
-      } catch (UnsupportedEncodingException e) {
-        /* Handle below. */
-      }
-      if (descriptorDigestSha256Base64 == null) {
-        logger.warn("Could not calculate extra-info "
-            + "descriptor SHA256 digest.");
-        return;
-      }
+    String descriptorDigest = descriptorDigests[0];
+    String descriptorDigestSha256Base64 = descriptorDigests[1];
+    if (masterKeyEd25519FromIdentityEd25519 != null
+        && descriptorDigestSha256Base64 == null) {
+      logger.warn("Could not calculate extra-info "
+          + "descriptor SHA256 digest.");
+      return null;
     }
     String dyear = published.substring(0, 4);
     String dmonth = published.substring(5, 7);
@@ -1281,37 +1583,21 @@ public class SanitizedBridgesWriter extends CollecTorMain {
         + descriptorDigest.charAt(0) + "/"
         + descriptorDigest.charAt(1) + "/"
         + descriptorDigest);
-    try {
-      File rsyncCatFile = new File(config.getPath(Key.RecentPath).toFile(),
-          "bridge-descriptors/extra-infos/" + this.rsyncCatString
-          + "-extra-infos.tmp");
-      File[] outputFiles = new File[] { tarballFile, rsyncCatFile };
-      boolean[] append = new boolean[] { false, true };
-      for (int i = 0; i < outputFiles.length; i++) {
-        File outputFile = outputFiles[i];
-        boolean appendToFile = append[i];
-        if (outputFile.exists() && !appendToFile) {
-          /* We already stored this descriptor to disk before, so let's
-           * not store it yet another time. */
-          break;
-        }
-        outputFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            outputFile, appendToFile));
-        bw.write(Annotation.BridgeExtraInfo.toString());
-        bw.write(scrubbedDesc);
-        if (descriptorDigestSha256Base64 != null) {
-          bw.write("router-digest-sha256 " + descriptorDigestSha256Base64
-              + "\n");
-        }
-        bw.write("router-digest " + descriptorDigest.toUpperCase()
-            + "\n");
-        bw.close();
-      }
-    } catch (Exception e) {
-      logger.warn("Could not write sanitized "
-          + "extra-info descriptor to disk.", e);
+    File rsyncCatFile = new File(recentPathName, "extra-infos/"
+        + this.rsyncCatString + "-extra-infos.tmp");
+    DescriptorOutputBuffer sanitizedDescriptor = sanitizedBuffers.get();
+    sanitizedDescriptor.reset();
+    sanitizedDescriptor.append(Annotation.BridgeExtraInfo.toString());
+    sanitizedDescriptor.append(scrubbed);
+    if (descriptorDigestSha256Base64 != null) {
+      sanitizedDescriptor.append("router-digest-sha256 "
+          + descriptorDigestSha256Base64 + "\n");
     }
+    sanitizedDescriptor.append("router-digest "
+        + descriptorDigest.toUpperCase() + "\n");
+    return SanitizedBridgeDescriptor.descriptor(
+        "extra-info descriptor", sanitizedDescriptor.toByteArray(),
+        tarballFile, rsyncCatFile);
   }
 
   /**
@@ -1322,35 +1608,42 @@ public class SanitizedBridgesWriter extends CollecTorMain {
    */
   public void finishWriting() {
 
+    logger.info("Scrubbing cache had " + this.scrubbingCache.getHits()
+        + " hits and " + this.scrubbingCache.getMisses() + " misses, and "
+        + "it holds " + this.scrubbingCache.size() + " scrubbed IP "
+        + "addresses and TCP ports.");
+    this.scrubbingCache.resetStatistics();
+    logger.info("Hashed identity cache had "
+        + this.hashedIdentityCache.getHits() + " hits and "
+        + this.hashedIdentityCache.getMisses() + " misses, and it holds "
+        + this.hashedIdentityCache.size() + " hashed bridge identities.");
+    this.hashedIdentityCache.resetStatistics();
+
     /* Delete secrets that we don't need anymore. */
-    if (!this.secretsForHashingIpAddresses.isEmpty()
-        && this.secretsForHashingIpAddresses.firstKey().compareTo(
-        this.bridgeSanitizingCutOffTimestamp) < 0) {
+    if (this.bridgeIpSecrets.firstMonth() < this.firstPersistentMonth) {
       try {
-        int kept = 0;
-        int deleted = 0;
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            this.bridgeIpSecretsFile));
-        for (Map.Entry<String, byte[]> e :
-            this.secretsForHashingIpAddresses.entrySet()) {
-          if (e.getKey().compareTo(
-              this.bridgeSanitizingCutOffTimestamp) < 0) {
-            deleted++;
-          } else {
-            bw.write(e.getKey() + "," + Hex.encodeHexString(e.getValue())
-                + "\n");
-            kept++;
-          }
-        }
-        bw.close();
+        int deleted = this.bridgeIpSecrets.deleteBefore(
+            this.firstPersistentMonth);
         logger.info("Deleted " + deleted + " secrets that we don't "
-            + "need anymore and kept " + kept + ".");
+            + "need anymore and kept " + this.bridgeIpSecrets.size()
+            + ".");
+        /* Don't keep values that were scrubbed using deleted secrets in
+         * memory. */
+        int evicted = this.scrubbingCache.evictBefore(
+            this.firstPersistentMonth);
+        logger.info("Evicted " + evicted + " scrubbed IP addresses and "
+            + "TCP ports that were hashed using deleted secrets.");
       } catch (IOException e) {
         logger.warn("Could not store reduced set of "
             + "secrets to disk! This is a bad sign, better check what's "
             + "going on!", e);
       }
     }
+    this.bridgeIpSecrets.close();
+    if (this.segments != null) {
+      this.segments.close();
+    }
+    this.scrubbingCache.retainSecrets(this.bridgeIpSecrets.asMap());
   }
 
   private void checkStaleDescriptors() {
@@ -1393,25 +1686,12 @@ public class SanitizedBridgesWriter extends CollecTorMain {
 
   /** Delete all files from the rsync directory that have not been modified
    * in the last three days, and remove the .tmp extension from newly
-   * written files. */
+   * written files, using the manifest of written files and only walking
+   * the whole directory once in a while. */
   public void cleanUpRsyncDirectory() throws ConfigurationException {
     long cutOffMillis = System.currentTimeMillis()
         - 3L * 24L * 60L * 60L * 1000L;
-    Stack<File> allFiles = new Stack<File>();
-    allFiles.add(new File(config.getPath(Key.RecentPath).toFile(),
-        BRIDGE_DESCRIPTORS));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        allFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (file.lastModified() < cutOffMillis) {
-        file.delete();
-      } else if (file.getName().endsWith(".tmp")) {
-        file.renameTo(new File(file.getParentFile(),
-            file.getName().substring(0,
-            file.getName().lastIndexOf(".tmp"))));
-      }
-    }
+    this.recentFileManifest.cleanUp(cutOffMillis, ".tmp");
   }
 }
 
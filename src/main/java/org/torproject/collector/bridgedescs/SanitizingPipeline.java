@@ -0,0 +1,90 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sanitizes bridge descriptors in a pool of worker threads and writes
+ * them to disk in a single writer thread.
+ *
+ * <p>Descriptors are written in the order in which they were submitted,
+ * so that the sanitized output is exactly the same as when sanitizing
+ * them one after the other.  The number of descriptors that are submitted
+ * but not yet written is bounded, so that a fast reader blocks rather
+ * than filling up the heap.</p>
+ */
+class SanitizingPipeline {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      SanitizingPipeline.class);
+
+  private static final int PENDING_DESCRIPTORS_PER_THREAD = 16;
+
+  private final BridgeDescriptorParser bdp;
+
+  private final ExecutorService sanitizers;
+
+  private final ExecutorService writer;
+
+  private final Semaphore pending;
+
+  /** Starts the given number of sanitizing threads, or one per available
+   * processor if the given number is not positive. */
+  SanitizingPipeline(BridgeDescriptorParser bdp, int threads) {
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    this.bdp = bdp;
+    this.sanitizers = Executors.newFixedThreadPool(threads);
+    this.writer = Executors.newSingleThreadExecutor();
+    this.pending = new Semaphore(threads * PENDING_DESCRIPTORS_PER_THREAD);
+    logger.debug("Sanitizing bridge descriptors in {} threads.", threads);
+  }
+
+  /** Submits the given descriptor data for sanitizing and writing, and
+   * blocks while too many descriptors are pending. */
+  void submit(final byte[] data, final String dateTime,
+      final String authorityFingerprint) {
+    this.pending.acquireUninterruptibly();
+    final Future<SanitizedBridgeDescriptor> sanitized =
+        this.sanitizers.submit(() -> this.bdp.sanitize(data, dateTime,
+        authorityFingerprint));
+    this.writer.execute(() -> {
+      try {
+        this.bdp.store(sanitized.get());
+      } catch (InterruptedException | ExecutionException e) {
+        logger.warn("Could not sanitize bridge descriptor.", e);
+      } finally {
+        this.pending.release();
+      }
+    });
+  }
+
+  /** Waits until all submitted descriptors are written and stops all
+   * threads. */
+  void finish() {
+    this.sanitizers.shutdown();
+    this.writer.shutdown();
+    try {
+      while (!this.writer.awaitTermination(1L, TimeUnit.MINUTES)) {
+        logger.debug("Still writing sanitized bridge descriptors.");
+      }
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while writing sanitized bridge "
+          + "descriptors.", e);
+      this.sanitizers.shutdownNow();
+      this.writer.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of scrubbed IP addresses and TCP ports, so that the same bridge
+ * address or port is hashed only once per month, rather than once per
+ * status and descriptor it appears in.
+ *
+ * <p>Entries are kept per month, because scrubbed values depend on the
+ * secret of the month in which a descriptor was published, and they are
+ * evicted together with that secret, or when that secret changes between
+ * executions.  The number of entries per month is
+ * bounded; once a month is full, further values are computed without
+ * being cached.  The cache is safe for concurrent use by sanitizing
+ * threads.</p>
+ */
+class ScrubbingCache {
+
+  /** Kind of scrubbed value, which is part of the cache key, because the
+   * same string may be scrubbed differently as address or as port, or as
+   * r line and a lines of a network status entry. */
+  enum Kind {
+    IPV4_ADDRESS, IPV6_ADDRESS, TCP_PORT, STATUS_ENTRY
+  }
+
+  private final int maxEntriesPerMonth;
+
+  private final Map<Integer, Map<String, String>> months =
+      new ConcurrentHashMap<>();
+
+  private final Map<Integer, byte[]> secrets = new HashMap<>();
+
+  /* Months whose entries were created since the last call to
+   * retainSecrets, and thus under the secrets passed to the next call. */
+  private final Set<Integer> newMonths = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Creates an empty cache holding at most the given number of entries
+   * per month. */
+  ScrubbingCache(int maxEntriesPerMonth) {
+    this.maxEntriesPerMonth = maxEntriesPerMonth;
+  }
+
+  /** Returns the previously scrubbed value for the given bridge
+   * fingerprint, kind and value in the given month, or null if it is not
+   * cached. */
+  String get(int month, byte[] fingerprintBytes, Kind kind,
+      String value) {
+    Map<String, String> entries = this.months.get(month);
+    String scrubbed = entries == null ? null
+        : entries.get(key(fingerprintBytes, kind, value));
+    (scrubbed == null ? this.misses : this.hits).incrementAndGet();
+    return scrubbed;
+  }
+
+  /** Caches the given scrubbed value, unless it is null or the month is
+   * full. */
+  void put(int month, byte[] fingerprintBytes, Kind kind, String value,
+      String scrubbed) {
+    if (scrubbed == null) {
+      return;
+    }
+    Map<String, String> entries = this.months.computeIfAbsent(month,
+        m -> {
+          this.newMonths.add(m);
+          return new ConcurrentHashMap<>();
+        });
+    if (entries.size() < this.maxEntriesPerMonth) {
+      entries.put(key(fingerprintBytes, kind, value), scrubbed);
+    }
+  }
+
+  /** Removes all entries of months for which the given secrets are
+   * missing or differ from the secrets given in the previous call, and
+   * remembers the given secrets for the next call.  Months without a
+   * secret in the previous call are kept if their entries were created
+   * since that call, because they were created under the given
+   * secrets. */
+  void retainSecrets(Map<Integer, byte[]> currentSecrets) {
+    Iterator<Integer> it = this.months.keySet().iterator();
+    while (it.hasNext()) {
+      Integer month = it.next();
+      byte[] currentSecret = currentSecrets.get(month);
+      byte[] lastSecret = this.secrets.get(month);
+      if (currentSecret == null || (lastSecret == null
+          ? !this.newMonths.contains(month)
+          : !Arrays.equals(lastSecret, currentSecret))) {
+        it.remove();
+      }
+    }
+    this.newMonths.clear();
+    this.clearSecrets();
+    for (Map.Entry<Integer, byte[]> e : currentSecrets.entrySet()) {
+      this.secrets.put(e.getKey(), e.getValue().clone());
+    }
+  }
+
+  /** Removes all entries and remembered secrets of months before the
+   * given month, and returns the number of removed entries. */
+  int evictBefore(int firstKeptMonth) {
+    Iterator<Map.Entry<Integer, byte[]>> secretsIterator =
+        this.secrets.entrySet().iterator();
+    while (secretsIterator.hasNext()) {
+      Map.Entry<Integer, byte[]> e = secretsIterator.next();
+      if (e.getKey() < firstKeptMonth) {
+        Arrays.fill(e.getValue(), (byte) 0);
+        secretsIterator.remove();
+      }
+    }
+    int evicted = 0;
+    Iterator<Map.Entry<Integer, Map<String, String>>> it =
+        this.months.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Integer, Map<String, String>> e = it.next();
+      if (e.getKey() < firstKeptMonth) {
+        evicted += e.getValue().size();
+        e.getValue().clear();
+        it.remove();
+      }
+    }
+    return evicted;
+  }
+
+  private void clearSecrets() {
+    for (byte[] secret : this.secrets.values()) {
+      Arrays.fill(secret, (byte) 0);
+    }
+    this.secrets.clear();
+  }
+
+  /** Returns the number of cached entries in all months. */
+  int size() {
+    int size = 0;
+    for (Map<String, String> entries : this.months.values()) {
+      size += entries.size();
+    }
+    return size;
+  }
+
+  long getHits() {
+    return this.hits.get();
+  }
+
+  long getMisses() {
+    return this.misses.get();
+  }
+
+  /** Sets hit and miss counters back to zero. */
+  void resetStatistics() {
+    this.hits.set(0L);
+    this.misses.set(0L);
+  }
+
+  /* Fingerprint bytes are mapped to chars one by one, which is cheaper
+   * than hex-encoding them. */
+  private static String key(byte[] fingerprintBytes, Kind kind,
+      String value) {
+    return new String(fingerprintBytes, StandardCharsets.ISO_8859_1)
+        + kind.ordinal() + value;
+  }
+}
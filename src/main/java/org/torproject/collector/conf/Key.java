@@ -28,6 +28,8 @@ public enum Key {
   BridgeSources(SourceType[].class),
   ExitlistSources(SourceType[].class),
   RelayCacheOrigins(String[].class),
+  RelayCacheWatch(Boolean.class),
+  RelayCacheWatchDebounceMillis(Long.class),
   RelayLocalOrigins(Path.class),
   RelaySyncOrigins(URL[].class),
   BridgeSyncOrigins(URL[].class),
@@ -56,8 +58,16 @@ public enum Key {
   KeepDirectoryArchiveImportHistory(Boolean.class),
   ReplaceIpAddressesWithHashes(Boolean.class),
   BridgeDescriptorMappingsLimit(Integer.class),
+  BridgeSanitizingThreads(Integer.class),
+  BridgeImportThreads(Integer.class),
+  BridgeDescriptorSegments(Boolean.class),
   TorperfFilesLines(String[].class),
-  TorperfHosts(String[][].class);
+  TorperfHosts(String[][].class),
+  TorperfDownloadThreads(Integer.class),
+  TorperfDownloadsPerHost(Integer.class),
+  TorperfColumnarArchive(Boolean.class),
+  ExitlistDeltaStorage(Boolean.class),
+  IndexWatchDirectories(Boolean.class);
 
   private Class clazz;
   private static Set<String> keys;
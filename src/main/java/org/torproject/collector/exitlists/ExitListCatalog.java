@@ -0,0 +1,220 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.exitlists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Catalog of downloaded exit lists, so that listing the latest exit
+ * lists, checking whether they are stale, and deleting expired files
+ * from the recent directory do not require walking any directory.
+ *
+ * <p>The catalog is stored as a text file with one tab-separated line
+ * per exit list, containing the download time in milliseconds, the
+ * file name, the path in the output directory, the file name in the
+ * recent directory or an empty string if that file was deleted, the
+ * size in bytes, and the time of the last reported scan in milliseconds
+ * or 0 if unknown.  Exit lists are only kept in the catalog while their
+ * file in the recent directory exists or while they are among the
+ * {@link #KEEP_LATEST} latest exit lists.  If the catalog does not exist
+ * yet, it is initialized once from the files in the recent
+ * directory.</p>
+ */
+class ExitListCatalog {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ExitListCatalog.class);
+
+  /** Number of latest exit lists that are kept in the catalog even after
+   * deleting them from the recent directory. */
+  static final int KEEP_LATEST = 3;
+
+  /** Single exit list contained in the catalog. */
+  static final class Entry {
+
+    final long downloadedMillis;
+
+    final String fileName;
+
+    final String outputPath;
+
+    String recentFileName;
+
+    final long size;
+
+    final long maxScanMillis;
+
+    Entry(long downloadedMillis, String fileName, String outputPath,
+        String recentFileName, long size, long maxScanMillis) {
+      this.downloadedMillis = downloadedMillis;
+      this.fileName = fileName;
+      this.outputPath = outputPath;
+      this.recentFileName = recentFileName;
+      this.size = size;
+      this.maxScanMillis = maxScanMillis;
+    }
+  }
+
+  private final File catalogFile;
+
+  private final File recentDirectory;
+
+  private final SortedMap<String, Entry> entries = new TreeMap<>();
+
+  /** Reads the catalog from the given file, or initializes it from the
+   * files in the given recent directory if the file does not exist or
+   * cannot be read. */
+  ExitListCatalog(File catalogFile, File recentDirectory) {
+    this.catalogFile = catalogFile;
+    this.recentDirectory = recentDirectory;
+    if (catalogFile.exists()) {
+      try (BufferedReader br = Files.newBufferedReader(
+          catalogFile.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = br.readLine()) != null) {
+          String[] parts = line.split("\t", -1);
+          if (parts.length != 6) {
+            throw new IOException("Invalid line '" + line + "'.");
+          }
+          this.entries.put(parts[1], new Entry(Long.parseLong(parts[0]),
+              parts[1], parts[2], parts[3].isEmpty() ? null : parts[3],
+              Long.parseLong(parts[4]), Long.parseLong(parts[5])));
+        }
+        return;
+      } catch (IOException | NumberFormatException e) {
+        logger.warn("Could not read exit list catalog " + catalogFile
+            + ".  Initializing it from the recent directory.", e);
+        this.entries.clear();
+      }
+    }
+    this.initialize();
+  }
+
+  /* Adds all files in the recent directory, which is done only once
+   * when the catalog is first created. */
+  private void initialize() {
+    File[] recentFiles = this.recentDirectory.listFiles();
+    if (recentFiles == null) {
+      return;
+    }
+    SimpleDateFormat fileNameFormat =
+        new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+    fileNameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    for (File recentFile : recentFiles) {
+      String fileName = recentFile.getName();
+      try {
+        long downloadedMillis = fileNameFormat.parse(fileName).getTime();
+        this.entries.put(fileName, new Entry(downloadedMillis, fileName,
+            ExitListDeltaStore.classicPath(fileName), fileName,
+            recentFile.length(), 0L));
+      } catch (ParseException | IllegalArgumentException e) {
+        logger.debug("Ignoring " + recentFile + " which is not an exit "
+            + "list.");
+      }
+    }
+  }
+
+  /** Adds the given exit list, replacing any exit list with the same
+   * file name. */
+  void add(Entry entry) {
+    this.entries.put(entry.fileName, entry);
+  }
+
+  /** Returns up to the given number of latest exit lists, in the order
+   * in which they were downloaded. */
+  List<Entry> getLatest(int count) {
+    List<Entry> latest = new ArrayList<>(this.entries.values());
+    return latest.subList(Math.max(0, latest.size() - count),
+        latest.size());
+  }
+
+  /** Returns the latest known time of a reported scan in milliseconds,
+   * or 0 if unknown. */
+  long getMaxScanMillis() {
+    long maxScanMillis = 0L;
+    for (Entry entry : this.entries.values()) {
+      maxScanMillis = Math.max(maxScanMillis, entry.maxScanMillis);
+    }
+    return maxScanMillis;
+  }
+
+  /** Deletes files in the recent directory of exit lists downloaded
+   * before the given time, removes exit lists without such a file from
+   * the catalog unless they are among the latest, and returns the number
+   * of deleted files. */
+  int expireRecentFiles(long cutOffMillis) {
+    int deleted = 0;
+    int remaining = this.entries.size();
+    for (Iterator<Entry> it = this.entries.values().iterator();
+        it.hasNext(); remaining--) {
+      Entry entry = it.next();
+      if (entry.recentFileName != null
+          && entry.downloadedMillis < cutOffMillis) {
+        File recentFile = new File(this.recentDirectory,
+            entry.recentFileName);
+        if (!recentFile.delete() && recentFile.exists()) {
+          logger.warn("Could not delete " + recentFile + ".");
+          continue;
+        }
+        entry.recentFileName = null;
+        deleted++;
+      }
+      if (entry.recentFileName == null && remaining > KEEP_LATEST) {
+        it.remove();
+      }
+    }
+    return deleted;
+  }
+
+  /** Returns the number of exit lists in the catalog. */
+  int size() {
+    return this.entries.size();
+  }
+
+  /** Writes the catalog to its file. */
+  void write() {
+    File tempFile = new File(this.catalogFile.getPath() + ".tmp");
+    tempFile.getParentFile().mkdirs();
+    try (BufferedWriter bw = Files.newBufferedWriter(tempFile.toPath(),
+        StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+        Entry entry = e.getValue();
+        bw.write(entry.downloadedMillis + "\t" + entry.fileName + "\t"
+            + entry.outputPath + "\t"
+            + (entry.recentFileName == null ? "" : entry.recentFileName)
+            + "\t" + entry.size + "\t" + entry.maxScanMillis + "\n");
+      }
+    } catch (IOException e) {
+      logger.warn("Could not write exit list catalog " + tempFile + ".",
+          e);
+      return;
+    }
+    try {
+      Files.move(tempFile.toPath(), this.catalogFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Could not replace exit list catalog "
+          + this.catalogFile + ".", e);
+    }
+  }
+}
@@ -0,0 +1,599 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.exitlists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.zip.CRC32;
+
+/**
+ * Storage of downloaded exit lists in monthly files containing periodic
+ * full snapshots and deltas between consecutive exit lists, rather than
+ * in one file per exit list.
+ *
+ * <p>An exit list that would be written to
+ * <code>yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss</code> is appended to
+ * <code>yyyy/MM/exit-lists.deltas</code> instead.  Exit lists are split
+ * into a header, which contains all lines before the first ExitNode line,
+ * and entries, each of which starts with an ExitNode line.  Every record
+ * consists of a 4-byte length of the remaining record, a 1-byte type, the
+ * file name, the operations described below, and a 4-byte CRC-32 of
+ * everything after the length.  A snapshot record contains operations
+ * for building the exit list from scratch, and a delta record contains
+ * operations for building the exit list from the previous one in the
+ * same file.  After every {@link #SNAPSHOT_INTERVAL} records, and at the
+ * start of each file, a snapshot is written.</p>
+ *
+ * <p>Numbers in records are variable-length integers with 7 bits per
+ * byte, and byte strings are prefixed with their length.  Operations
+ * are the header, the number of entry operations, and entry operations
+ * that either copy a run of consecutive entries of the previous exit
+ * list, add a new entry, or change an entry of the previous exit list by
+ * reusing some of its lines and adding others.</p>
+ *
+ * <p>Exit lists are reconstructed byte for byte, and the classic
+ * one-file-per-exit-list layout can be exported at any time.  The last
+ * appended exit list is kept in memory, so that appending the next one
+ * to the same file does not require reading that file again, unless it
+ * was modified in the meantime.</p>
+ */
+class ExitListDeltaStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ExitListDeltaStore.class);
+
+  static final String FILE_NAME = "exit-lists.deltas";
+
+  /** Number of exit lists after which a full snapshot is stored again,
+   * so that reconstructing an exit list never requires applying more
+   * than this number of deltas. */
+  static final int SNAPSHOT_INTERVAL = 24;
+
+  private static final byte SNAPSHOT = 0;
+
+  private static final byte DELTA = 1;
+
+  private static final int COPY = 0;
+
+  private static final int ADD = 1;
+
+  private static final int CHANGE = 2;
+
+  private static final byte[] ENTRY_KEYWORD = "ExitNode ".getBytes(
+      StandardCharsets.US_ASCII);
+
+  private final File outputDirectory;
+
+  /* State of the monthly file that was last appended to, which is only
+   * reused as long as that file keeps the length it had after
+   * appending. */
+  private static final class AppendState {
+
+    final File file;
+
+    final Set<String> fileNames;
+
+    long length;
+
+    int records;
+
+    SplitExitList last;
+
+    AppendState(File file, Set<String> fileNames) {
+      this.file = file;
+      this.fileNames = fileNames;
+    }
+  }
+
+  private AppendState appendState;
+
+  /** Prepares storing exit lists in the given output directory. */
+  ExitListDeltaStore(File outputDirectory) {
+    this.outputDirectory = outputDirectory;
+  }
+
+  File getOutputDirectory() {
+    return this.outputDirectory;
+  }
+
+  /** Exit list split into header and entries, where all parts contain
+   * their original line endings. */
+  static final class SplitExitList {
+
+    final byte[] header;
+
+    final List<byte[]> entries;
+
+    private SplitExitList(byte[] header, List<byte[]> entries) {
+      this.header = header;
+      this.entries = entries;
+    }
+
+    /* Splits the given exit list at lines starting with ExitNode. */
+    static SplitExitList split(byte[] content) {
+      List<Integer> starts = new ArrayList<>();
+      for (int i = 0; i < content.length; i++) {
+        if ((i == 0 || content[i - 1] == '\n')
+            && startsWith(content, i, ENTRY_KEYWORD)) {
+          starts.add(i);
+        }
+      }
+      starts.add(content.length);
+      byte[] header = Arrays.copyOfRange(content, 0, starts.get(0));
+      List<byte[]> entries = new ArrayList<>();
+      for (int i = 0; i + 1 < starts.size(); i++) {
+        entries.add(Arrays.copyOfRange(content, starts.get(i),
+            starts.get(i + 1)));
+      }
+      return new SplitExitList(header, entries);
+    }
+
+    byte[] toBytes() {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      baos.write(this.header, 0, this.header.length);
+      for (byte[] entry : this.entries) {
+        baos.write(entry, 0, entry.length);
+      }
+      return baos.toByteArray();
+    }
+
+    /* Returns the first line of the given entry as key, which contains
+     * the relay fingerprint. */
+    private static String key(byte[] entry) {
+      int end = 0;
+      while (end < entry.length && entry[end] != '\n') {
+        end++;
+      }
+      return new String(entry, 0, end, StandardCharsets.US_ASCII);
+    }
+  }
+
+  /** Appends the given exit list, which would otherwise be written to a
+   * file with the given name in the classic layout, to its monthly file,
+   * and returns the number of bytes appended. */
+  synchronized int append(String fileName, byte[] content)
+      throws IOException {
+    File file = this.monthlyFile(fileName);
+    file.getParentFile().mkdirs();
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      AppendState state = this.appendState;
+      this.appendState = null;
+      if (state == null || !state.file.equals(file)
+          || state.length != channel.size()) {
+        state = readAppendState(file, channel);
+      }
+      if (state.fileNames.contains(fileName)) {
+        throw new IOException("Exit list " + fileName + " is already "
+            + "contained in " + file + ".");
+      }
+      SplitExitList current = SplitExitList.split(content);
+      byte[] record;
+      if (state.records % SNAPSHOT_INTERVAL == 0) {
+        record = encode(SNAPSHOT, fileName, null, current);
+      } else {
+        record = encode(DELTA, fileName, state.last, current);
+      }
+      long position = channel.size();
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      state.fileNames.add(fileName);
+      state.length = position;
+      state.records++;
+      state.last = current;
+      this.appendState = state;
+      return record.length;
+    }
+  }
+
+  /* Reads all records of the given file, truncating an incomplete last
+   * record, and reconstructs the last exit list contained in it. */
+  private static AppendState readAppendState(File file,
+      FileChannel channel) throws IOException {
+    List<Record> records = readRecords(file, channel, true);
+    Set<String> fileNames = new HashSet<>();
+    for (Record record : records) {
+      fileNames.add(record.fileName);
+    }
+    AppendState state = new AppendState(file, fileNames);
+    state.length = channel.size();
+    state.records = records.size();
+    state.last = records.isEmpty() ? null
+        : reconstruct(records, records.size() - 1);
+    return state;
+  }
+
+  /** Returns the exit list that was appended with the given file name,
+   * or null if there is no such exit list. */
+  synchronized byte[] read(String fileName) throws IOException {
+    File file = this.monthlyFile(fileName);
+    if (!file.exists()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      List<Record> records = readRecords(file, channel, false);
+      for (int i = 0; i < records.size(); i++) {
+        if (records.get(i).fileName.equals(fileName)) {
+          return reconstruct(records, i).toBytes();
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Writes all exit lists contained in monthly files in the given
+   * output directory to files in the classic layout in the given target
+   * directory, skipping exit lists that have been exported before, and
+   * returns the number of written files. */
+  static int export(File outputDirectory, File targetDirectory)
+      throws IOException {
+    int exported = 0;
+    Stack<File> files = new Stack<>();
+    files.add(outputDirectory);
+    while (!files.isEmpty()) {
+      File file = files.pop();
+      if (file.isDirectory()) {
+        File[] children = file.listFiles();
+        if (children != null) {
+          for (File child : children) {
+            files.add(child);
+          }
+        }
+      } else if (file.getName().equals(FILE_NAME)) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ)) {
+          List<Record> records = readRecords(file, channel, false);
+          SplitExitList exitList = null;
+          for (Record record : records) {
+            exitList = apply(record, exitList);
+            File outputFile = new File(targetDirectory,
+                classicPath(record.fileName));
+            if (outputFile.exists()) {
+              continue;
+            }
+            /* Write to a temporary file first, so that an interrupted
+             * export never leaves an incomplete exit list behind that
+             * would be skipped in the next export. */
+            outputFile.getParentFile().mkdirs();
+            File tempFile = new File(outputFile.getPath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+              fos.write(exitList.toBytes());
+            }
+            Files.move(tempFile.toPath(), outputFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+            exported++;
+          }
+        }
+      }
+    }
+    return exported;
+  }
+
+  /* Returns the path of the exit list with the given file name in the
+   * classic layout, relative to the output directory. */
+  static String classicPath(String fileName) {
+    if (!fileName.matches("\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}-\\d{2}")) {
+      throw new IllegalArgumentException("Cannot store exit list "
+          + fileName + ".");
+    }
+    return fileName.substring(0, 4) + "/" + fileName.substring(5, 7) + "/"
+        + fileName.substring(8, 10) + "/" + fileName;
+  }
+
+  /* Returns the path of the monthly file containing the exit list with
+   * the given file name, relative to the output directory. */
+  static String deltaPath(String fileName) {
+    return classicPath(fileName).substring(0, 8) + FILE_NAME;
+  }
+
+  private File monthlyFile(String fileName) {
+    return new File(this.outputDirectory, deltaPath(fileName));
+  }
+
+  /* Record read from a monthly file, containing the operations for
+   * building an exit list. */
+  private static final class Record {
+
+    final byte type;
+
+    final String fileName;
+
+    final ByteBuffer operations;
+
+    Record(byte type, String fileName, ByteBuffer operations) {
+      this.type = type;
+      this.fileName = fileName;
+      this.operations = operations;
+    }
+  }
+
+  /* Reads all complete records of the given file, and truncates an
+   * incomplete or corrupt last record if requested. */
+  private static List<Record> readRecords(File file, FileChannel channel,
+      boolean truncate) throws IOException {
+    List<Record> records = new ArrayList<>();
+    long size = channel.size();
+    ByteBuffer all = ByteBuffer.allocate((int) size);
+    while (all.hasRemaining() && channel.read(all, all.position()) >= 0) {
+      continue;
+    }
+    all.flip();
+    int position = 0;
+    while (position + 4 <= size) {
+      long length = all.getInt(position) & 0xFFFFFFFFL;
+      if (length < 5L || position + 4L + length > size) {
+        break;
+      }
+      byte[] body = new byte[(int) length];
+      all.position(position + 4);
+      all.get(body);
+      CRC32 crc = new CRC32();
+      crc.update(body, 0, body.length - 4);
+      ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+      if ((int) crc.getValue() != bodyBuffer.getInt(body.length - 4)) {
+        break;
+      }
+      bodyBuffer.limit(body.length - 4);
+      try {
+        byte type = bodyBuffer.get();
+        String fileName = new String(readBytes(bodyBuffer),
+            StandardCharsets.UTF_8);
+        if (records.isEmpty() && type != SNAPSHOT) {
+          throw new IOException("File " + file + " does not start with "
+              + "a snapshot.");
+        }
+        records.add(new Record(type, fileName, bodyBuffer.slice()));
+      } catch (BufferUnderflowException e) {
+        break;
+      }
+      position += 4 + (int) length;
+    }
+    if (position < size) {
+      if (!truncate) {
+        throw new IOException("Invalid record in " + file + ".");
+      }
+      logger.warn("Truncating incomplete record at the end of " + file
+          + ".");
+      channel.truncate(position);
+    }
+    return records;
+  }
+
+  /* Reconstructs the exit list of the record with the given index. */
+  private static SplitExitList reconstruct(List<Record> records,
+      int index) throws IOException {
+    int snapshot = index;
+    while (records.get(snapshot).type != SNAPSHOT) {
+      snapshot--;
+    }
+    SplitExitList exitList = null;
+    for (int i = snapshot; i <= index; i++) {
+      exitList = apply(records.get(i), exitList);
+    }
+    return exitList;
+  }
+
+  /* Applies the operations of the given record to the given previous exit
+   * list, or to an empty exit list if the record is a snapshot. */
+  private static SplitExitList apply(Record record,
+      SplitExitList previous) throws IOException {
+    List<byte[]> previousEntries = record.type == SNAPSHOT || previous
+        == null ? new ArrayList<byte[]>() : previous.entries;
+    ByteBuffer in = record.operations.duplicate();
+    try {
+      byte[] header = readBytes(in);
+      int operations = readVarInt(in);
+      List<byte[]> entries = new ArrayList<>();
+      for (int i = 0; i < operations; i++) {
+        int operation = readVarInt(in);
+        if (operation == COPY) {
+          int start = readVarInt(in);
+          int count = readVarInt(in);
+          entries.addAll(previousEntries.subList(start, start + count));
+        } else if (operation == ADD) {
+          entries.add(readBytes(in));
+        } else if (operation == CHANGE) {
+          List<byte[]> previousLines = splitLines(previousEntries.get(
+              readVarInt(in)));
+          int lines = readVarInt(in);
+          ByteArrayOutputStream entry = new ByteArrayOutputStream();
+          for (int j = 0; j < lines; j++) {
+            int reference = readVarInt(in);
+            byte[] line = reference == 0 ? readBytes(in)
+                : previousLines.get(reference - 1);
+            entry.write(line, 0, line.length);
+          }
+          entries.add(entry.toByteArray());
+        } else {
+          throw new IOException("Unknown operation " + operation + ".");
+        }
+      }
+      return new SplitExitList(header, entries);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IOException("Invalid record for exit list "
+          + record.fileName + ".", e);
+    }
+  }
+
+  /* Encodes a record of the given type that builds the given current exit
+   * list from the given previous exit list, or from scratch if the
+   * previous exit list is null. */
+  private static byte[] encode(byte type, String fileName,
+      SplitExitList previous, SplitExitList current) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(type);
+    writeBytes(out, fileName.getBytes(StandardCharsets.UTF_8));
+    writeBytes(out, current.header);
+    Map<String, Integer> previousPositions = new HashMap<>();
+    List<byte[]> previousEntries = previous == null
+        ? new ArrayList<byte[]>() : previous.entries;
+    for (int i = previousEntries.size() - 1; i >= 0; i--) {
+      previousPositions.put(SplitExitList.key(previousEntries.get(i)), i);
+    }
+    ByteArrayOutputStream operations = new ByteArrayOutputStream();
+    int operationCount = 0;
+    int copyStart = -1;
+    int copyCount = 0;
+    for (byte[] entry : current.entries) {
+      Integer position = previousPositions.get(SplitExitList.key(entry));
+      if (position != null && Arrays.equals(entry,
+          previousEntries.get(position))) {
+        if (copyCount > 0 && copyStart + copyCount == position) {
+          copyCount++;
+          continue;
+        }
+        if (copyCount > 0) {
+          writeCopy(operations, copyStart, copyCount);
+          operationCount++;
+        }
+        copyStart = position;
+        copyCount = 1;
+        continue;
+      }
+      if (copyCount > 0) {
+        writeCopy(operations, copyStart, copyCount);
+        operationCount++;
+        copyCount = 0;
+      }
+      if (position == null) {
+        writeVarInt(operations, ADD);
+        writeBytes(operations, entry);
+      } else {
+        writeChange(operations, position, splitLines(
+            previousEntries.get(position)), splitLines(entry));
+      }
+      operationCount++;
+    }
+    if (copyCount > 0) {
+      writeCopy(operations, copyStart, copyCount);
+      operationCount++;
+    }
+    writeVarInt(out, operationCount);
+    byte[] operationBytes = operations.toByteArray();
+    out.write(operationBytes, 0, operationBytes.length);
+    byte[] body = out.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return ByteBuffer.allocate(4 + body.length + 4)
+        .putInt(body.length + 4).put(body).putInt((int) crc.getValue())
+        .array();
+  }
+
+  private static void writeCopy(ByteArrayOutputStream out, int start,
+      int count) {
+    writeVarInt(out, COPY);
+    writeVarInt(out, start);
+    writeVarInt(out, count);
+  }
+
+  /* Writes an operation that changes the entry at the given position by
+   * reusing lines that are contained in the previous entry. */
+  private static void writeChange(ByteArrayOutputStream out,
+      int position, List<byte[]> previousLines, List<byte[]> lines) {
+    writeVarInt(out, CHANGE);
+    writeVarInt(out, position);
+    writeVarInt(out, lines.size());
+    for (byte[] line : lines) {
+      int reference = 0;
+      for (int i = 0; i < previousLines.size(); i++) {
+        if (Arrays.equals(line, previousLines.get(i))) {
+          reference = i + 1;
+          break;
+        }
+      }
+      writeVarInt(out, reference);
+      if (reference == 0) {
+        writeBytes(out, line);
+      }
+    }
+  }
+
+  /* Splits the given entry into lines including line endings. */
+  private static List<byte[]> splitLines(byte[] entry) {
+    List<byte[]> lines = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < entry.length; i++) {
+      if (entry[i] == '\n') {
+        lines.add(Arrays.copyOfRange(entry, start, i + 1));
+        start = i + 1;
+      }
+    }
+    if (start < entry.length) {
+      lines.add(Arrays.copyOfRange(entry, start, entry.length));
+    }
+    return lines;
+  }
+
+  private static boolean startsWith(byte[] content, int offset,
+      byte[] prefix) {
+    if (offset + prefix.length > content.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (content[offset + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(ByteBuffer in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable-length integer.");
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+    writeVarInt(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static byte[] readBytes(ByteBuffer in) throws IOException {
+    int length = readVarInt(in);
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException("Invalid length " + length + ".");
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return bytes;
+  }
+}
@@ -14,25 +14,27 @@ import org.torproject.descriptor.DescriptorParser;
 import org.torproject.descriptor.DescriptorSourceFactory;
 import org.torproject.descriptor.ExitList;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.Stack;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 public class ExitListDownloader extends CollecTorMain {
 
@@ -45,12 +47,30 @@ public class ExitListDownloader extends CollecTorMain {
 
   private String recentPathName;
 
+  /* Store of monthly snapshots and deltas that exit lists are written to
+   * instead of one file per exit list, or null if that is disabled. */
+  private ExitListDeltaStore deltaStore;
+
+  /* Catalog of downloaded exit lists, used instead of walking the output
+   * and recent directories. */
+  private ExitListCatalog catalog;
+
   /** Instanciate the exit-lists module using the given configuration. */
   public ExitListDownloader(Configuration config) {
     super(config);
     this.mapPathDescriptors.put("recent/exit-lists", ExitList.class);
   }
 
+  /** Exports exit lists stored as snapshots and deltas in the configured
+   * output directory to one file per exit list in the given target
+   * directory, and returns the number of exported exit lists. */
+  public static int exportDeltas(Configuration config,
+      File targetDirectory) throws ConfigurationException, IOException {
+    return ExitListDeltaStore.export(new File(
+        config.getPath(Key.OutputPath).toFile(), EXITLISTS),
+        targetDirectory);
+  }
+
   @Override
   public String module() {
     return "exitlists";
@@ -71,59 +91,63 @@ public class ExitListDownloader extends CollecTorMain {
         EXITLISTS).toString();
     recentPathName = Paths.get(config.getPath(Key.RecentPath).toString(),
         EXITLISTS).toString();
+    /* Keep the delta store between runs, so that it does not have to
+     * read the current monthly file again before appending to it. */
+    if (!config.getBool(Key.ExitlistDeltaStorage)) {
+      this.deltaStore = null;
+    } else if (this.deltaStore == null || !this.deltaStore
+        .getOutputDirectory().equals(new File(outputPathName))) {
+      this.deltaStore = new ExitListDeltaStore(new File(outputPathName));
+    }
+    this.catalog = new ExitListCatalog(new File(
+        config.getPath(Key.StatsPath).toFile(), "exit-list-catalog"),
+        new File(recentPathName));
     Date downloadedDate = new Date();
-    String downloadedExitList = null;
+    SimpleDateFormat tarballFormat =
+        new SimpleDateFormat("yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
+    tarballFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    File tarballFile = Paths.get(outputPathName,
+        tarballFormat.format(downloadedDate)).toFile();
+    File rsyncFile = new File(recentPathName, tarballFile.getName());
+
+    /* Write the annotated exit list to a temporary file next to its
+     * final location while downloading it, so that it is never held in
+     * memory as a whole and never decoded in chunks. */
+    File tempFile = new File((this.deltaStore == null ? tarballFile
+        : rsyncFile).getPath() + ".tmp");
     try {
-      logger.debug("Downloading exit list...");
-      StringBuilder sb = new StringBuilder();
-      sb.append(Annotation.Torperf.toString());
-      sb.append("Downloaded " + dateTimeFormat.format(downloadedDate)
-          + "\n");
-      URL url = config.getUrl(Key.ExitlistUrl);
-      HttpURLConnection huc = (HttpURLConnection) url.openConnection();
-      huc.setRequestMethod("GET");
-      huc.connect();
-      int response = huc.getResponseCode();
-      if (response != 200) {
-        logger.warn("Could not download exit list. Response code "
-            + response);
+      if (!this.downloadExitList(tempFile, "Downloaded "
+          + dateTimeFormat.format(downloadedDate) + "\n")) {
+        Files.deleteIfExists(tempFile.toPath());
         return;
       }
-      BufferedInputStream in = new BufferedInputStream(
-          huc.getInputStream());
-      int len;
-      byte[] data = new byte[1024];
-      while ((len = in.read(data, 0, 1024)) >= 0) {
-        sb.append(new String(data, 0, len));
-      }
-      in.close();
-      downloadedExitList = sb.toString();
-      logger.debug("Finished downloading exit list.");
     } catch (IOException e) {
       logger.warn("Failed downloading exit list", e);
+      tempFile.delete();
       return;
     }
-    if (downloadedExitList == null) {
-      logger.warn("Failed downloading exit list.");
+
+    byte[] exitListBytes;
+    try {
+      exitListBytes = Files.readAllBytes(tempFile.toPath());
+    } catch (IOException e) {
+      logger.warn("Could not read downloaded exit list from "
+          + tempFile.getAbsolutePath(), e);
+      tempFile.delete();
       return;
     }
 
-    SimpleDateFormat tarballFormat =
-        new SimpleDateFormat("yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
-    tarballFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-    File tarballFile = Paths.get(outputPathName,
-        tarballFormat.format(downloadedDate)).toFile();
-
     long maxScanMillis = 0L;
     try {
       DescriptorParser descriptorParser =
           DescriptorSourceFactory.createDescriptorParser();
       List<Descriptor> parsedDescriptors =
-          descriptorParser.parseDescriptors(downloadedExitList.getBytes(),
+          descriptorParser.parseDescriptors(exitListBytes,
           tarballFile.getName());
       if (parsedDescriptors.size() != 1
           || !(parsedDescriptors.get(0) instanceof ExitList)) {
         logger.warn("Could not parse downloaded exit list");
+        tempFile.delete();
         return;
       }
       ExitList parsedExitList = (ExitList) parsedDescriptors.get(0);
@@ -136,78 +160,145 @@ public class ExitListDownloader extends CollecTorMain {
       logger.warn("Could not parse downloaded exit list",
           e);
     }
-    if (maxScanMillis > 0L
-        && maxScanMillis + 330L * 60L * 1000L < System.currentTimeMillis()) {
-      logger.warn("The last reported scan in the downloaded exit list "
-          + "took place at " + dateTimeFormat.format(maxScanMillis)
-          + ", which is more than 5:30 hours in the past.");
+
+    String outputPath;
+    if (this.deltaStore != null) {
+      this.storeDelta(tarballFile.getName(), exitListBytes, tempFile,
+          rsyncFile);
+      outputPath = ExitListDeltaStore.deltaPath(tarballFile.getName());
+    } else {
+      this.storeFiles(tempFile, tarballFile, rsyncFile);
+      outputPath = ExitListDeltaStore.classicPath(tarballFile.getName());
     }
+    this.catalog.add(new ExitListCatalog.Entry(downloadedDate.getTime(),
+        tarballFile.getName(), outputPath,
+        rsyncFile.exists() ? rsyncFile.getName() : null,
+        exitListBytes.length, maxScanMillis));
 
-    /* Write to disk. */
-    File rsyncFile = new File(recentPathName, tarballFile.getName());
-    File[] outputFiles = new File[] { tarballFile, rsyncFile };
-    for (File outputFile : outputFiles) {
-      try {
-        outputFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            outputFile));
-        bw.write(downloadedExitList);
-        bw.close();
-      } catch (IOException e) {
-        logger.warn("Could not write downloaded exit list "
-            + "to " + outputFile.getAbsolutePath(), e);
-      }
+    /* Warn if the last reported scan of any known exit list, including
+     * the one just downloaded, is too old. */
+    long lastScanMillis = this.catalog.getMaxScanMillis();
+    if (lastScanMillis > 0L
+        && lastScanMillis + 330L * 60L * 1000L < System.currentTimeMillis()) {
+      logger.warn("The last reported scan in the downloaded exit lists "
+          + "took place at " + dateTimeFormat.format(lastScanMillis)
+          + ", which is more than 5:30 hours in the past.");
     }
 
     /* Write stats. */
     StringBuilder dumpStats = new StringBuilder("Finished downloading "
         + "exit list.\nLast three exit lists are:");
-    Stack<File> filesInInputDir = new Stack<File>();
-    filesInInputDir.add(new File(outputPathName));
-    SortedSet<File> lastThreeExitLists = new TreeSet<File>();
-    while (!filesInInputDir.isEmpty()) {
-      File pop = filesInInputDir.pop();
-      if (pop.isDirectory()) {
-        SortedSet<File> lastThreeElements = new TreeSet<File>();
-        for (File f : pop.listFiles()) {
-          lastThreeElements.add(f);
-        }
-        while (lastThreeElements.size() > 3) {
-          lastThreeElements.remove(lastThreeElements.first());
-        }
-        for (File f : lastThreeElements) {
-          filesInInputDir.add(f);
-        }
-      } else {
-        lastThreeExitLists.add(pop);
-        while (lastThreeExitLists.size() > 3) {
-          lastThreeExitLists.remove(lastThreeExitLists.first());
-        }
-      }
-    }
-    for (File f : lastThreeExitLists) {
-      dumpStats.append("\n" + f.getName());
+    for (ExitListCatalog.Entry entry : this.catalog.getLatest(3)) {
+      dumpStats.append("\n" + entry.fileName);
     }
     logger.info(dumpStats.toString());
 
     this.cleanUpRsyncDirectory();
+    this.catalog.write();
+  }
+
+  /* Writes the downloaded exit list to disk by renaming the temporary
+   * file, and links that file into the rsync directory rather than
+   * writing it again. */
+  private void storeFiles(File tempFile, File tarballFile,
+      File rsyncFile) {
+    try {
+      Files.move(tempFile.toPath(), tarballFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Could not write downloaded exit list "
+          + "to " + tarballFile.getAbsolutePath(), e);
+      tempFile.delete();
+      return;
+    }
+    try {
+      rsyncFile.getParentFile().mkdirs();
+      Files.deleteIfExists(rsyncFile.toPath());
+      try {
+        Files.createLink(rsyncFile.toPath(), tarballFile.toPath());
+      } catch (IOException | UnsupportedOperationException e) {
+        /* Fall back to copying if the rsync directory is on a different
+         * file system or if hard links are not supported. */
+        Files.copy(tarballFile.toPath(), rsyncFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      logger.warn("Could not write downloaded exit list "
+          + "to " + rsyncFile.getAbsolutePath(), e);
+    }
   }
 
-  /** Delete all files from the rsync directory that have not been modified
-   * in the last three days. */
+  /* Appends the downloaded exit list to the delta store, and renames the
+   * temporary file in the rsync directory to its final name. */
+  private void storeDelta(String fileName, byte[] exitListBytes,
+      File tempFile, File rsyncFile) {
+    try {
+      int appended = this.deltaStore.append(fileName, exitListBytes);
+      logger.debug("Appended " + appended + " bytes to the exit list "
+          + "delta store for " + exitListBytes.length + " bytes of exit "
+          + "list " + fileName + ".");
+    } catch (IOException e) {
+      logger.warn("Could not append downloaded exit list " + fileName
+          + " to the delta store.", e);
+    }
+    try {
+      Files.move(tempFile.toPath(), rsyncFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Could not write downloaded exit list "
+          + "to " + rsyncFile.getAbsolutePath(), e);
+      tempFile.delete();
+    }
+  }
+
+  /* Downloads the exit list to the given file, preceded by its type
+   * annotation and the given download line, computes its digest while
+   * writing it, and returns whether the download was successful. */
+  private boolean downloadExitList(File outputFile, String downloadedLine)
+      throws ConfigurationException, IOException {
+    logger.debug("Downloading exit list...");
+    URL url = config.getUrl(Key.ExitlistUrl);
+    HttpURLConnection huc = (HttpURLConnection) url.openConnection();
+    huc.setRequestMethod("GET");
+    huc.connect();
+    int response = huc.getResponseCode();
+    if (response != 200) {
+      logger.warn("Could not download exit list. Response code "
+          + response);
+      return false;
+    }
+    outputFile.getParentFile().mkdirs();
+    MessageDigest digest = DigestUtils.getSha256Digest();
+    long length = 0L;
+    try (InputStream in = huc.getInputStream();
+        OutputStream out = new FileOutputStream(outputFile)) {
+      out.write((Annotation.ExitList.toString() + downloadedLine)
+          .getBytes(StandardCharsets.US_ASCII));
+      byte[] data = new byte[8192];
+      int len;
+      while ((len = in.read(data)) >= 0) {
+        out.write(data, 0, len);
+        digest.update(data, 0, len);
+        length += len;
+      }
+    }
+    logger.debug("Finished downloading exit list of " + length
+        + " bytes with SHA-256 digest "
+        + Hex.encodeHexString(digest.digest()) + ".");
+    return true;
+  }
+
+  /** Delete all files from the rsync directory that were downloaded more
+   * than three days ago, as recorded in the exit list catalog. */
   public void cleanUpRsyncDirectory() throws ConfigurationException {
     long cutOffMillis = System.currentTimeMillis()
         - 3L * 24L * 60L * 60L * 1000L;
-    Stack<File> allFiles = new Stack<File>();
-    allFiles.add(new File(recentPathName, EXITLISTS));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        allFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (file.lastModified() < cutOffMillis) {
-        file.delete();
-      }
+    int deleted = this.catalog.expireRecentFiles(cutOffMillis);
+    if (deleted > 0) {
+      logger.debug("Deleted " + deleted + " exit lists from "
+          + recentPathName + ".");
     }
   }
 }
-
@@ -11,33 +11,30 @@ import org.torproject.collector.cron.CollecTorMain;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 import java.util.SortedSet;
 import java.util.TimeZone;
 import java.util.TreeSet;
-import java.util.zip.GZIPOutputStream;
 
 /* Create a fresh index.json containing all directories and files in the
  * archive/ and recent/ directories.
  *
- * Note that if this ever takes longer than a few seconds, we'll have to
- * cache index parts of directories or files that haven't changed.
+ * Index parts of directories that haven't changed since the last run are
+ * taken from an index cache, so that only changed directories are listed
+ * and only their files are stat'ed.
  * Example: if we parse include cryptographic hashes or @type information,
- * we'll likely have to do that. */
+ * we'll have to cache those per file, too. */
 public class CreateIndexJson extends CollecTorMain {
 
   private static final Logger logger =
@@ -55,6 +52,14 @@ public class CreateIndexJson extends CollecTorMain {
 
   private static final TimeZone dateTimezone = TimeZone.getTimeZone("UTC");
 
+  /* Cache of indexed directories, kept between runs of this module. */
+  private IndexCache indexCache;
+
+  private File indexCacheFile;
+
+  /* Watcher of indexed directories, or null if that is disabled. */
+  private IndexDirectoryWatcher indexWatcher;
+
   /** Creates indexes of directories containing archived and recent
    * descriptors and write index files to disk. */
   public CreateIndexJson(Configuration conf) {
@@ -80,6 +85,9 @@ public class CreateIndexJson extends CollecTorMain {
       indexedDirectories = new File[] {
           config.getPath(Key.ArchivePath).toFile(),
           config.getPath(Key.RecentPath).toFile() };
+      this.updateIndexCache(new File(config.getPath(Key.StatsPath)
+          .toFile(), "index-cache"),
+          config.getBool(Key.IndexWatchDirectories));
       writeIndex(indexDirectories());
     } catch (Exception e) {
       logger.error("Cannot run index creation: " + e.getMessage(), e);
@@ -87,7 +95,24 @@ public class CreateIndexJson extends CollecTorMain {
     }
   }
 
-  private class DirectoryNode implements Comparable<DirectoryNode> {
+  /* Reads the index cache if this is the first run or if its location
+   * changed, and starts or stops watching indexed directories. */
+  private void updateIndexCache(File cacheFile, boolean watch)
+      throws IOException {
+    if (null == this.indexCache || !cacheFile.equals(this.indexCacheFile)) {
+      this.indexCache = new IndexCache(cacheFile);
+      this.indexCacheFile = cacheFile;
+    }
+    if (!watch && null != this.indexWatcher) {
+      this.indexWatcher.close();
+      this.indexWatcher = null;
+    } else if (watch && null == this.indexWatcher) {
+      this.indexWatcher = new IndexDirectoryWatcher();
+    }
+    this.indexCache.setWatcher(this.indexWatcher);
+  }
+
+  static class DirectoryNode implements Comparable<DirectoryNode> {
     String path;
     SortedSet<FileNode> files;
     SortedSet<DirectoryNode> directories;
@@ -105,7 +130,7 @@ public class CreateIndexJson extends CollecTorMain {
   }
 
   @SuppressWarnings({"checkstyle:membername", "checkstyle:parametername"})
-  private class IndexNode {
+  private static class IndexNode {
     String index_created;
     String path;
     SortedSet<FileNode> files;
@@ -122,7 +147,7 @@ public class CreateIndexJson extends CollecTorMain {
   }
 
   @SuppressWarnings({"checkstyle:membername", "checkstyle:parametername"})
-  private class FileNode implements Comparable<FileNode> {
+  static class FileNode implements Comparable<FileNode> {
     String path;
     long size;
     String last_modified;
@@ -152,72 +177,43 @@ public class CreateIndexJson extends CollecTorMain {
         new TreeSet<DirectoryNode>();
     logger.trace("indexing: " + indexedDirectories[0] + " "
         + indexedDirectories[1]);
+    boolean rescan = this.indexCache.startRun();
     for (File directory : indexedDirectories) {
       if (directory.exists() && directory.isDirectory()) {
-        DirectoryNode dn = indexDirectory(directory);
+        DirectoryNode dn = this.indexCache.indexDirectory(directory);
         if (null != dn) {
           directoryNodes.add(dn);
         }
       }
     }
+    int listed = this.indexCache.finishRun();
+    logger.debug((rescan ? "Listed all " : "Listed ") + listed
+        + " directories while indexing.");
     return new IndexNode(dateTimeFormat.format(
         System.currentTimeMillis()), basePath, null, directoryNodes);
   }
 
-  private DirectoryNode indexDirectory(File directory) {
-    SortedSet<FileNode> fileNodes = new TreeSet<FileNode>();
-    SortedSet<DirectoryNode> directoryNodes =
-        new TreeSet<DirectoryNode>();
-    logger.trace("indexing: " + directory);
-    File[] fileList = directory.listFiles();
-    if (null == fileList) {
-      logger.warn("Indexing dubious directory: " + directory);
-      return null;
-    }
-    for (File fileOrDirectory : fileList) {
-      if (fileOrDirectory.getName().startsWith(".")
-          || fileOrDirectory.getName().endsWith(".tmp")) {
-        continue;
-      }
-      if (fileOrDirectory.isFile()) {
-        fileNodes.add(indexFile(fileOrDirectory));
-      } else {
-        DirectoryNode dn = indexDirectory(fileOrDirectory);
-        if (null != dn) {
-          directoryNodes.add(dn);
-        }
-      }
-    }
-    DirectoryNode directoryNode = new DirectoryNode(
-        directory.getName(), fileNodes.isEmpty() ? null : fileNodes,
-        directoryNodes.isEmpty() ? null : directoryNodes);
-    return directoryNode;
-  }
-
-  private FileNode indexFile(File file) {
+  static FileNode indexFile(File file, long lastModified) {
     FileNode fileNode = new FileNode(file.getName(), file.length(),
-        dateTimeFormat.format(file.lastModified()));
+        dateTimeFormat.format(lastModified));
     return fileNode;
   }
 
+  /* Streams the index to index.json and its compressed versions at
+   * once, without creating the whole index as a string first. */
   private void writeIndex(IndexNode indexNode) throws IOException {
-    indexJsonFile.getParentFile().mkdirs();
     Gson gson = new GsonBuilder().create();
-    String indexNodeString = gson.toJson(indexNode);
-    Writer[] writers = new Writer[] {
-        new FileWriter(indexJsonFile),
-        new OutputStreamWriter(new GZIPOutputStream(
-            new FileOutputStream(indexJsonFile + ".gz"))),
-        new OutputStreamWriter(new XZCompressorOutputStream(
-            new FileOutputStream(indexJsonFile + ".xz"))),
-        new OutputStreamWriter(new BZip2CompressorOutputStream(
-            new FileOutputStream(indexJsonFile + ".bz2")))
-    };
-    for (Writer writer : writers) {
-      BufferedWriter bufferedWriter = new BufferedWriter(writer);
-      bufferedWriter.write(indexNodeString);
-      bufferedWriter.close();
+    IndexOutputStream indexOutputStream =
+        new IndexOutputStream(indexJsonFile);
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(
+          indexOutputStream, StandardCharsets.UTF_8));
+      gson.toJson(indexNode, writer);
+      writer.flush();
+    } catch (IOException | RuntimeException e) {
+      indexOutputStream.abort();
+      throw e;
     }
+    indexOutputStream.close();
   }
 }
-
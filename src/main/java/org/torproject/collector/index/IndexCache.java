@@ -0,0 +1,305 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.index;
+
+import org.torproject.collector.index.CreateIndexJson.DirectoryNode;
+import org.torproject.collector.index.CreateIndexJson.FileNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Cache of indexed directories, so that directories that have not changed
+ * since the last run are not listed again.
+ *
+ * <p>A directory is considered unchanged if its last-modified time is
+ * the same as when it was last listed, which is the case unless files or
+ * subdirectories were added, removed, or renamed, and if all its cached
+ * files still have the same size and formatted last-modified time, which
+ * is not the case if files were modified in place without touching their
+ * directory.  Subdirectories are still checked, because their changes do
+ * not modify the last-modified time of their parent.  If an
+ * {@link IndexDirectoryWatcher} is given, watched directories are only
+ * listed again if they changed, without checking their files.  All
+ * directories are listed again at least once every
+ * {@link #RESCAN_INTERVAL_MILLIS}.  Directories that were modified or
+ * contained files that were modified shortly before they were listed are
+ * listed again in the next run, because they may still be written to.</p>
+ *
+ * <p>The cache is stored as a text file with one tab-separated line per
+ * directory, starting with "D", followed by its last-modified time or -1
+ * if it needs to be listed again, and its path; one line per contained
+ * file, starting with "F", followed by size, formatted last-modified
+ * time, and name; and one line per subdirectory, starting with "S",
+ * followed by its name.  The first line starts with "R" and contains the
+ * time of the last full rescan.</p>
+ */
+class IndexCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      IndexCache.class);
+
+  /** Interval in milliseconds after which all directories are listed
+   * again, regardless of their last-modified times. */
+  static final long RESCAN_INTERVAL_MILLIS = 24L * 60L * 60L * 1000L;
+
+  /** Time in milliseconds before listing a directory in which its own or
+   * any of its files' last-modified times must lie for the result to be
+   * reused. */
+  static final long RACY_MILLIS = 5L * 60L * 1000L;
+
+  /** Directory as last listed. */
+  private static final class CachedDirectory {
+
+    final long lastModified;
+
+    final SortedSet<FileNode> files;
+
+    final List<String> subdirectories;
+
+    CachedDirectory(long lastModified, SortedSet<FileNode> files,
+        List<String> subdirectories) {
+      this.lastModified = lastModified;
+      this.files = files;
+      this.subdirectories = subdirectories;
+    }
+  }
+
+  private final File cacheFile;
+
+  private Map<String, CachedDirectory> directories = new HashMap<>();
+
+  private Map<String, CachedDirectory> indexedDirectories;
+
+  private long lastRescanMillis = 0L;
+
+  private boolean rescan;
+
+  private Set<String> changedDirectories;
+
+  private IndexDirectoryWatcher watcher;
+
+  private boolean changed;
+
+  private int listed;
+
+  /** Reads the cache from the given file, if it exists. */
+  IndexCache(File cacheFile) {
+    this.cacheFile = cacheFile;
+    if (!cacheFile.exists()) {
+      return;
+    }
+    try (BufferedReader br = Files.newBufferedReader(cacheFile.toPath(),
+        StandardCharsets.UTF_8)) {
+      String line;
+      CachedDirectory directory = null;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split("\t", line.startsWith("F") ? 4 : 3);
+        if (line.startsWith("R\t") && parts.length == 2) {
+          this.lastRescanMillis = Long.parseLong(parts[1]);
+        } else if (line.startsWith("D\t") && parts.length == 3) {
+          directory = new CachedDirectory(Long.parseLong(parts[1]),
+              new TreeSet<FileNode>(), new ArrayList<String>());
+          this.directories.put(parts[2], directory);
+        } else if (line.startsWith("F\t") && parts.length == 4
+            && directory != null) {
+          directory.files.add(new FileNode(parts[3],
+              Long.parseLong(parts[1]), parts[2]));
+        } else if (line.startsWith("S\t") && parts.length == 2
+            && directory != null) {
+          directory.subdirectories.add(parts[1]);
+        } else {
+          throw new IOException("Invalid line '" + line + "'.");
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      logger.warn("Could not read index cache " + cacheFile
+          + ".  Listing all directories.", e);
+      this.directories.clear();
+      this.lastRescanMillis = 0L;
+    }
+  }
+
+  /** Uses the given watcher, or none if null, to learn about changed
+   * directories in addition to comparing last-modified times. */
+  void setWatcher(IndexDirectoryWatcher watcher) {
+    this.watcher = watcher;
+  }
+
+  /** Starts a new run of indexing directories, and returns whether all
+   * directories will be listed again. */
+  boolean startRun() {
+    this.indexedDirectories = new HashMap<>();
+    this.listed = 0;
+    this.changed = false;
+    this.changedDirectories = null;
+    this.rescan = this.lastRescanMillis + RESCAN_INTERVAL_MILLIS
+        < System.currentTimeMillis();
+    if (this.watcher != null) {
+      this.changedDirectories = this.watcher.pollChangedDirectories();
+      if (null == this.changedDirectories) {
+        this.rescan = true;
+      }
+    }
+    if (this.rescan) {
+      this.lastRescanMillis = System.currentTimeMillis();
+    }
+    return this.rescan;
+  }
+
+  /** Returns the index of the given directory, reusing cached results
+   * for unchanged directories, or null if the directory cannot be
+   * listed. */
+  DirectoryNode indexDirectory(File directory) {
+    String path = directory.getAbsolutePath();
+    CachedDirectory cached = this.rescan ? null
+        : this.directories.get(path);
+    boolean watched = this.watcher != null
+        && this.watcher.watch(directory);
+    if (null != cached && (cached.lastModified < 0L
+        || (null != this.changedDirectories
+        && this.changedDirectories.contains(path))
+        || (!watched && (cached.lastModified != directory.lastModified()
+        || !filesUnchanged(directory, cached))))) {
+      cached = null;
+    }
+    if (null == cached) {
+      cached = this.listDirectory(directory);
+      if (null == cached) {
+        return null;
+      }
+      this.changed = true;
+      this.listed++;
+    }
+    this.indexedDirectories.put(path, cached);
+    SortedSet<DirectoryNode> directoryNodes =
+        new TreeSet<DirectoryNode>();
+    for (String subdirectory : cached.subdirectories) {
+      DirectoryNode dn = this.indexDirectory(new File(directory,
+          subdirectory));
+      if (null != dn) {
+        directoryNodes.add(dn);
+      }
+    }
+    return new DirectoryNode(directory.getName(),
+        cached.files.isEmpty() ? null : cached.files,
+        directoryNodes.isEmpty() ? null : directoryNodes);
+  }
+
+  /* Returns whether all cached files of the given directory still exist
+   * with the same size and formatted last-modified time, which is all
+   * that the index contains about them. */
+  private static boolean filesUnchanged(File directory,
+      CachedDirectory cached) {
+    for (FileNode file : cached.files) {
+      File current = new File(directory, file.path);
+      long lastModified = current.lastModified();
+      if (lastModified == 0L) {
+        return false;
+      }
+      FileNode currentNode = CreateIndexJson.indexFile(current,
+          lastModified);
+      if (currentNode.size != file.size
+          || !currentNode.last_modified.equals(file.last_modified)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private CachedDirectory listDirectory(File directory) {
+    logger.trace("listing: " + directory);
+    long listedMillis = System.currentTimeMillis();
+    long lastModified = directory.lastModified();
+    File[] fileList = directory.listFiles();
+    if (null == fileList) {
+      logger.warn("Indexing dubious directory: " + directory);
+      return null;
+    }
+    SortedSet<FileNode> fileNodes = new TreeSet<FileNode>();
+    List<String> subdirectories = new ArrayList<>();
+    long newestModified = lastModified;
+    for (File fileOrDirectory : fileList) {
+      if (fileOrDirectory.getName().startsWith(".")
+          || fileOrDirectory.getName().endsWith(".tmp")) {
+        continue;
+      }
+      if (fileOrDirectory.isFile()) {
+        long fileModified = fileOrDirectory.lastModified();
+        newestModified = Math.max(newestModified, fileModified);
+        fileNodes.add(CreateIndexJson.indexFile(fileOrDirectory,
+            fileModified));
+      } else {
+        subdirectories.add(fileOrDirectory.getName());
+      }
+    }
+    if (newestModified > listedMillis - RACY_MILLIS) {
+      lastModified = -1L;
+    }
+    return new CachedDirectory(lastModified, fileNodes, subdirectories);
+  }
+
+  /** Finishes the current run by forgetting directories that were not
+   * indexed in it, writes the cache to its file if anything changed, and
+   * returns the number of directories that had to be listed. */
+  int finishRun() {
+    if (this.indexedDirectories.size() != this.directories.size()) {
+      this.changed = true;
+    }
+    this.directories = this.indexedDirectories;
+    this.indexedDirectories = null;
+    if (this.changed) {
+      this.write();
+    }
+    return this.listed;
+  }
+
+  private void write() {
+    File tempFile = new File(this.cacheFile.getPath() + ".tmp");
+    tempFile.getParentFile().mkdirs();
+    try (BufferedWriter bw = Files.newBufferedWriter(tempFile.toPath(),
+        StandardCharsets.UTF_8)) {
+      bw.write("R\t" + this.lastRescanMillis + "\n");
+      for (Map.Entry<String, CachedDirectory> e
+          : this.directories.entrySet()) {
+        CachedDirectory directory = e.getValue();
+        bw.write("D\t" + directory.lastModified + "\t" + e.getKey()
+            + "\n");
+        for (FileNode file : directory.files) {
+          bw.write("F\t" + file.size + "\t" + file.last_modified + "\t"
+              + file.path + "\n");
+        }
+        for (String subdirectory : directory.subdirectories) {
+          bw.write("S\t" + subdirectory + "\n");
+        }
+      }
+    } catch (IOException e) {
+      logger.warn("Could not write index cache " + tempFile + ".", e);
+      return;
+    }
+    try {
+      Files.move(tempFile.toPath(), this.cacheFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Could not replace index cache " + this.cacheFile + ".",
+          e);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches indexed directories between runs, so that changed directories
+ * are known without comparing last-modified times, and so that files
+ * modified in place are noticed, too.
+ *
+ * <p>Events are only collected when polled at the start of a run, which
+ * means that no thread is needed.  If events were lost, for example
+ * because too many of them happened between runs, all directories need
+ * to be listed again.  Directories that cannot be watched, for example
+ * because the operating system limits the number of watched directories,
+ * are still checked by their last-modified times.</p>
+ */
+class IndexDirectoryWatcher {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      IndexDirectoryWatcher.class);
+
+  private final WatchService watchService;
+
+  private final Map<String, WatchKey> watchedDirectories = new HashMap<>();
+
+  private boolean warnedAboutLimit = false;
+
+  IndexDirectoryWatcher() throws IOException {
+    this.watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  /** Starts watching the given directory, if it is not watched yet, and
+   * returns whether it was already watched before, in which case no
+   * changes could have been missed. */
+  boolean watch(File directory) {
+    String path = directory.getAbsolutePath();
+    WatchKey key = this.watchedDirectories.get(path);
+    if (null != key && key.isValid()) {
+      return true;
+    }
+    try {
+      this.watchedDirectories.put(path, directory.toPath().register(
+          this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY));
+    } catch (IOException e) {
+      if (!this.warnedAboutLimit) {
+        logger.warn("Cannot watch " + path + ".  Checking last-modified "
+            + "times of directories that cannot be watched.", e);
+        this.warnedAboutLimit = true;
+      }
+      this.watchedDirectories.remove(path);
+    }
+    return false;
+  }
+
+  /** Returns the paths of watched directories in which files or
+   * subdirectories were created, deleted, or modified since the last
+   * call, or null if changes may have been missed. */
+  Set<String> pollChangedDirectories() {
+    Set<String> changedDirectories = new HashSet<>();
+    boolean overflow = false;
+    WatchKey key;
+    while ((key = this.watchService.poll()) != null) {
+      Path directory = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          overflow = true;
+        }
+      }
+      changedDirectories.add(directory.toAbsolutePath().toString());
+      if (!key.reset()) {
+        this.watchedDirectories.remove(
+            directory.toAbsolutePath().toString());
+      }
+    }
+    if (overflow) {
+      logger.info("Missed changes in watched directories.  Listing all "
+          + "directories.");
+      return null;
+    }
+    return changedDirectories;
+  }
+
+  /** Stops watching all directories. */
+  void close() {
+    try {
+      this.watchService.close();
+    } catch (IOException e) {
+      logger.warn("Could not close watch service.", e);
+    }
+    this.watchedDirectories.clear();
+  }
+}
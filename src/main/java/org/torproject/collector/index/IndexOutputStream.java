@@ -0,0 +1,288 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.index;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream that writes an index file and its gzip, xz, and bzip2
+ * compressed versions at the same time, with each version being written
+ * and compressed in its own thread.
+ *
+ * <p>Written bytes are passed to those threads in chunks through bounded
+ * queues, so that writing blocks if the slowest compressor falls behind
+ * rather than buffering the whole index.  All versions are written to
+ * temporary files that only replace the previous files after all of them
+ * have been written successfully.</p>
+ */
+class IndexOutputStream extends OutputStream {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      IndexOutputStream.class);
+
+  /** File name suffixes of the written versions, with the empty suffix
+   * being the uncompressed version. */
+  static final String[] SUFFIXES = new String[] { ".gz", ".xz", ".bz2",
+      "" };
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final int QUEUED_CHUNKS = 16;
+
+  private static final byte[] END = new byte[0];
+
+  private final File indexFile;
+
+  private final List<BlockingQueue<byte[]>> queues = new ArrayList<>();
+
+  private final List<Future<Void>> writers = new ArrayList<>();
+
+  private final ExecutorService executor;
+
+  private byte[] chunk = new byte[CHUNK_SIZE];
+
+  private int chunkLength = 0;
+
+  private boolean closed = false;
+
+  /** Opens temporary files for all versions of the given index file and
+   * starts writing them. */
+  IndexOutputStream(File indexFile) throws IOException {
+    this.indexFile = indexFile;
+    indexFile.getParentFile().mkdirs();
+    List<OutputStream> outputStreams = new ArrayList<>();
+    try {
+      for (String suffix : SUFFIXES) {
+        outputStreams.add(openOutputStream(suffix));
+      }
+    } catch (IOException e) {
+      for (OutputStream outputStream : outputStreams) {
+        outputStream.close();
+      }
+      this.deleteTempFiles();
+      throw e;
+    }
+    this.executor = Executors.newFixedThreadPool(SUFFIXES.length);
+    for (final OutputStream outputStream : outputStreams) {
+      final BlockingQueue<byte[]> queue =
+          new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+      this.queues.add(queue);
+      this.writers.add(this.executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          return writeChunks(queue, outputStream);
+        }
+      }));
+    }
+  }
+
+  private OutputStream openOutputStream(String suffix) throws IOException {
+    OutputStream fileOutputStream = new BufferedOutputStream(
+        new FileOutputStream(this.tempFile(suffix)));
+    try {
+      switch (suffix) {
+        case ".gz":
+          return new GZIPOutputStream(fileOutputStream);
+        case ".xz":
+          return new XZCompressorOutputStream(fileOutputStream);
+        case ".bz2":
+          return new BZip2CompressorOutputStream(fileOutputStream);
+        default:
+          return fileOutputStream;
+      }
+    } catch (IOException e) {
+      fileOutputStream.close();
+      throw e;
+    }
+  }
+
+  private File tempFile(String suffix) {
+    return new File(this.indexFile.getPath() + suffix + TEMP_SUFFIX);
+  }
+
+  /* Writes chunks from the given queue until reaching the end, and keeps
+   * taking chunks after a failure, so that writing never blocks. */
+  private static Void writeChunks(BlockingQueue<byte[]> queue,
+      OutputStream outputStream) throws Exception {
+    IOException failure = null;
+    try {
+      byte[] chunk;
+      while ((chunk = queue.take()) != END) {
+        if (null == failure) {
+          try {
+            outputStream.write(chunk);
+          } catch (IOException e) {
+            failure = e;
+          }
+        }
+      }
+    } finally {
+      try {
+        outputStream.close();
+      } catch (IOException e) {
+        if (null == failure) {
+          failure = e;
+        }
+      }
+    }
+    if (null != failure) {
+      throw failure;
+    }
+    return null;
+  }
+
+  @Override
+  public void write(int oneByte) throws IOException {
+    if (this.chunkLength == CHUNK_SIZE) {
+      this.passChunk();
+    }
+    this.chunk[this.chunkLength++] = (byte) oneByte;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length)
+      throws IOException {
+    while (length > 0) {
+      if (this.chunkLength == CHUNK_SIZE) {
+        this.passChunk();
+      }
+      int copy = Math.min(length, CHUNK_SIZE - this.chunkLength);
+      System.arraycopy(bytes, offset, this.chunk, this.chunkLength, copy);
+      this.chunkLength += copy;
+      offset += copy;
+      length -= copy;
+    }
+  }
+
+  /* Passes the current chunk to all writers, which only read it, and
+   * starts a new chunk. */
+  private void passChunk() throws IOException {
+    if (this.closed) {
+      throw new IOException("Stream closed.");
+    }
+    if (this.chunkLength == 0) {
+      return;
+    }
+    byte[] passed = this.chunkLength == CHUNK_SIZE ? this.chunk
+        : Arrays.copyOf(this.chunk, this.chunkLength);
+    this.put(passed);
+    this.chunk = new byte[CHUNK_SIZE];
+    this.chunkLength = 0;
+  }
+
+  private void put(byte[] passed) throws IOException {
+    try {
+      for (BlockingQueue<byte[]> queue : this.queues) {
+        queue.put(passed);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing index.", e);
+    }
+  }
+
+  /** Finishes writing all versions and, if all of them were written
+   * successfully, replaces the previous files; otherwise deletes the
+   * temporary files and throws an exception. */
+  @Override
+  public void close() throws IOException {
+    this.finish(true);
+  }
+
+  /** Stops writing all versions, deletes the temporary files, and keeps
+   * the previous files. */
+  void abort() {
+    try {
+      this.finish(false);
+    } catch (IOException e) {
+      logger.debug("Ignoring failure while aborting to write index.", e);
+    }
+  }
+
+  private void finish(boolean replace) throws IOException {
+    if (this.closed) {
+      return;
+    }
+    IOException failure = null;
+    if (replace) {
+      try {
+        this.passChunk();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    this.closed = true;
+    try {
+      this.put(END);
+    } catch (IOException e) {
+      /* Stop writers that would otherwise wait for the end forever. */
+      this.executor.shutdownNow();
+      if (null == failure) {
+        failure = e;
+      }
+    }
+    for (Future<Void> writer : this.writers) {
+      try {
+        writer.get();
+      } catch (ExecutionException e) {
+        if (null == failure) {
+          failure = new IOException("Could not write index.",
+              e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (null == failure) {
+          failure = new IOException("Interrupted while writing index.", e);
+        }
+      }
+    }
+    this.executor.shutdown();
+    if (!replace || null != failure) {
+      this.deleteTempFiles();
+      if (null != failure) {
+        throw failure;
+      }
+      return;
+    }
+    for (String suffix : SUFFIXES) {
+      Files.move(this.tempFile(suffix).toPath(),
+          new File(this.indexFile.getPath() + suffix).toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  private void deleteTempFiles() {
+    for (String suffix : SUFFIXES) {
+      File tempFile = this.tempFile(suffix);
+      if (tempFile.isFile() && !tempFile.delete()) {
+        logger.warn("Could not delete " + tempFile + ".");
+      }
+    }
+  }
+}
@@ -0,0 +1,329 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.persist;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Compact set of SHA-1 digests, used for remembering which descriptors
+ * have been imported before.
+ *
+ * <p>Digests are kept in a sorted primitive array with three longs per
+ * digest, plus a small unsorted buffer for recently added digests that is
+ * merged into the sorted array when full.  A Bloom filter in front of
+ * both answers most negative lookups without searching.  Lookups are
+ * exact.</p>
+ *
+ * <p>Sets are stored in a binary format that can be loaded without
+ * parsing or sorting.  The former text format with one hex-encoded digest
+ * per line is still accepted when loading.</p>
+ */
+public class DigestSet {
+
+  /** Length of a SHA-1 digest in bytes. */
+  public static final int DIGEST_LENGTH = 20;
+
+  private static final int MAGIC = 0x44475354; /* "DGST" */
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_LENGTH = 12;
+
+  private static final int STRIDE = 3;
+
+  private static final int BUFFER_DIGESTS = 1024;
+
+  private static final int BLOOM_BITS_PER_DIGEST = 10;
+
+  private static final int BLOOM_HASHES = 5;
+
+  private long[] sorted = new long[0];
+
+  private int sortedCount = 0;
+
+  private long[] buffer = new long[BUFFER_DIGESTS * STRIDE];
+
+  private int bufferCount = 0;
+
+  private long[] bloom = new long[1];
+
+  /** Adds the given hex-encoded digest and returns whether it was not
+   * contained before. */
+  public boolean add(String hexDigest) {
+    return this.add(decode(hexDigest));
+  }
+
+  /** Adds the given digest and returns whether it was not contained
+   * before. */
+  public boolean add(byte[] digest) {
+    checkLength(digest);
+    if (this.contains(digest)) {
+      return false;
+    }
+    if (this.bufferCount == BUFFER_DIGESTS) {
+      this.flush();
+    }
+    toLongs(digest, this.buffer, this.bufferCount++ * STRIDE);
+    if (this.size() * BLOOM_BITS_PER_DIGEST > this.bloom.length * 64) {
+      this.rebuildBloomFilter();
+    } else {
+      this.addToBloomFilter(this.buffer, (this.bufferCount - 1) * STRIDE);
+    }
+    return true;
+  }
+
+  /** Adds all digests contained in the given set. */
+  public void addAll(DigestSet other) {
+    DigestSet merged = merge(this, other);
+    this.sorted = merged.sorted;
+    this.sortedCount = merged.sortedCount;
+    this.bufferCount = 0;
+    this.bloom = merged.bloom;
+  }
+
+  /** Returns whether the given hex-encoded digest is contained. */
+  public boolean contains(String hexDigest) {
+    return this.contains(decode(hexDigest));
+  }
+
+  /** Returns whether the given digest is contained. */
+  public boolean contains(byte[] digest) {
+    checkLength(digest);
+    long[] key = new long[STRIDE];
+    toLongs(digest, key, 0);
+    if (!this.mightContain(key, 0)) {
+      return false;
+    }
+    if (this.binarySearch(key) >= 0) {
+      return true;
+    }
+    for (int i = 0; i < this.bufferCount; i++) {
+      if (compare(this.buffer, i * STRIDE, key, 0) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the number of contained digests. */
+  public int size() {
+    return this.sortedCount + this.bufferCount;
+  }
+
+  /** Returns a new set containing all digests of both given sets. */
+  public static DigestSet merge(DigestSet first, DigestSet second) {
+    first.flush();
+    second.flush();
+    DigestSet merged = new DigestSet();
+    merged.sorted = mergeSorted(first.sorted, first.sortedCount,
+        second.sorted, second.sortedCount);
+    merged.sortedCount = merged.sorted.length / STRIDE;
+    merged.rebuildBloomFilter();
+    return merged;
+  }
+
+  /** Writes this set to the given file in binary format, replacing any
+   * previous contents. */
+  public void save(File file) throws IOException {
+    this.flush();
+    file.getParentFile().mkdirs();
+    try (DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeInt(this.sortedCount);
+      for (int i = 0; i < this.sortedCount * STRIDE; i += STRIDE) {
+        dos.writeLong(this.sorted[i]);
+        dos.writeLong(this.sorted[i + 1]);
+        dos.writeInt((int) this.sorted[i + 2]);
+      }
+    }
+  }
+
+  /** Reads a set from the given file, which may either be in binary
+   * format or contain one hex-encoded digest per line. */
+  public static DigestSet load(File file) throws IOException {
+    byte[] contents = Files.readAllBytes(file.toPath());
+    ByteBuffer bb = ByteBuffer.wrap(contents);
+    DigestSet result = new DigestSet();
+    if (contents.length < HEADER_LENGTH || bb.getInt() != MAGIC) {
+      BufferedReader br = new BufferedReader(new StringReader(
+          new String(contents, StandardCharsets.US_ASCII)));
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (!line.isEmpty()) {
+          result.add(line);
+        }
+      }
+      return result;
+    }
+    int version = bb.getInt();
+    int count = bb.getInt();
+    if (version != VERSION || count < 0
+        || bb.remaining() != (long) count * DIGEST_LENGTH) {
+      throw new IOException("Corrupt digest set file " + file + ".");
+    }
+    result.sorted = new long[count * STRIDE];
+    for (int i = 0; i < count * STRIDE; i += STRIDE) {
+      result.sorted[i] = bb.getLong();
+      result.sorted[i + 1] = bb.getLong();
+      result.sorted[i + 2] = bb.getInt() & 0xFFFFFFFFL;
+      if (i > 0 && compare(result.sorted, i - STRIDE, result.sorted, i)
+          >= 0) {
+        throw new IOException("Unsorted digest set file " + file + ".");
+      }
+    }
+    result.sortedCount = count;
+    result.rebuildBloomFilter();
+    return result;
+  }
+
+  /** Sorts buffered digests and merges them into the sorted array. */
+  private void flush() {
+    if (this.bufferCount == 0) {
+      return;
+    }
+    /* Insertion sort is good enough for the small buffer. */
+    for (int i = 1; i < this.bufferCount; i++) {
+      for (int j = i; j > 0 && compare(this.buffer, (j - 1) * STRIDE,
+          this.buffer, j * STRIDE) > 0; j--) {
+        for (int k = 0; k < STRIDE; k++) {
+          long tmp = this.buffer[(j - 1) * STRIDE + k];
+          this.buffer[(j - 1) * STRIDE + k] = this.buffer[j * STRIDE + k];
+          this.buffer[j * STRIDE + k] = tmp;
+        }
+      }
+    }
+    this.sorted = mergeSorted(this.sorted, this.sortedCount, this.buffer,
+        this.bufferCount);
+    this.sortedCount = this.sorted.length / STRIDE;
+    this.bufferCount = 0;
+  }
+
+  private static long[] mergeSorted(long[] first, int firstCount,
+      long[] second, int secondCount) {
+    long[] merged = new long[(firstCount + secondCount) * STRIDE];
+    int i = 0;
+    int j = 0;
+    int m = 0;
+    while (i < firstCount || j < secondCount) {
+      int cmp = i == firstCount ? 1 : j == secondCount ? -1
+          : compare(first, i * STRIDE, second, j * STRIDE);
+      if (cmp <= 0) {
+        System.arraycopy(first, i++ * STRIDE, merged, m, STRIDE);
+        if (cmp == 0) {
+          j++;
+        }
+      } else {
+        System.arraycopy(second, j++ * STRIDE, merged, m, STRIDE);
+      }
+      m += STRIDE;
+    }
+    if (m < merged.length) {
+      long[] trimmed = new long[m];
+      System.arraycopy(merged, 0, trimmed, 0, m);
+      merged = trimmed;
+    }
+    return merged;
+  }
+
+  private int binarySearch(long[] key) {
+    int low = 0;
+    int high = this.sortedCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(this.sorted, mid * STRIDE, key, 0);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private void rebuildBloomFilter() {
+    long bits = 64L;
+    while (bits < (long) this.size() * BLOOM_BITS_PER_DIGEST * 2L) {
+      bits <<= 1;
+    }
+    this.bloom = new long[(int) (bits / 64L)];
+    for (int i = 0; i < this.sortedCount; i++) {
+      this.addToBloomFilter(this.sorted, i * STRIDE);
+    }
+    for (int i = 0; i < this.bufferCount; i++) {
+      this.addToBloomFilter(this.buffer, i * STRIDE);
+    }
+  }
+
+  /* Digests are uniformly distributed already, so that we can derive all
+   * Bloom filter positions from two of their longs by double hashing. */
+  private void addToBloomFilter(long[] array, int offset) {
+    long mask = this.bloom.length * 64L - 1L;
+    for (int i = 0; i < BLOOM_HASHES; i++) {
+      long bit = (array[offset] + i * array[offset + 1]) & mask;
+      this.bloom[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  private boolean mightContain(long[] array, int offset) {
+    long mask = this.bloom.length * 64L - 1L;
+    for (int i = 0; i < BLOOM_HASHES; i++) {
+      long bit = (array[offset] + i * array[offset + 1]) & mask;
+      if ((this.bloom[(int) (bit >>> 6)] & (1L << bit)) == 0L) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int compare(long[] first, int firstOffset,
+      long[] second, int secondOffset) {
+    for (int k = 0; k < STRIDE; k++) {
+      int cmp = Long.compareUnsigned(first[firstOffset + k],
+          second[secondOffset + k]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  private static void toLongs(byte[] digest, long[] array, int offset) {
+    ByteBuffer bb = ByteBuffer.wrap(digest);
+    array[offset] = bb.getLong();
+    array[offset + 1] = bb.getLong();
+    array[offset + 2] = bb.getInt() & 0xFFFFFFFFL;
+  }
+
+  private static byte[] decode(String hexDigest) {
+    try {
+      return Hex.decodeHex(hexDigest.toCharArray());
+    } catch (DecoderException e) {
+      throw new IllegalArgumentException("Invalid digest '" + hexDigest
+          + "'.", e);
+    }
+  }
+
+  private static void checkLength(byte[] digest) {
+    if (digest == null || digest.length != DIGEST_LENGTH) {
+      throw new IllegalArgumentException("Digest must have "
+          + DIGEST_LENGTH + " bytes.");
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.persist;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Stack;
+import java.util.TreeMap;
+
+/**
+ * Manifest of files in a module's recent directory together with the
+ * time they were last written, so that cleaning up that directory only
+ * touches files written in the current execution and files that
+ * expired, rather than every file in the directory.
+ *
+ * <p>The manifest is stored as a text file with a first line
+ * <code>repaired &lt;millis&gt;</code> and one line
+ * <code>&lt;millis&gt; &lt;relative path&gt;</code> per file.  If the
+ * manifest is missing or unreadable, or if the last full walk of the
+ * directory happened more than {@link #REPAIR_INTERVAL_MILLIS} ago,
+ * cleaning up walks the whole directory and rebuilds the manifest from
+ * the files found there, which also picks up files written or deleted
+ * by others.</p>
+ */
+public class RecentFileManifest {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      RecentFileManifest.class);
+
+  /** Interval between full walks of the recent directory. */
+  public static final long REPAIR_INTERVAL_MILLIS = 24L * 60L * 60L * 1000L;
+
+  private final Path recentDirectory;
+
+  private final Path manifestFile;
+
+  private final SortedMap<String, Long> lastWritten = new TreeMap<>();
+
+  private long lastRepairMillis = -1L;
+
+  /** Reads the manifest of the given recent directory from the given
+   * file, if it exists. */
+  public RecentFileManifest(Path recentDirectory, Path manifestFile) {
+    this.recentDirectory = recentDirectory;
+    this.manifestFile = manifestFile;
+    if (!Files.exists(manifestFile)) {
+      return;
+    }
+    try (BufferedReader br = Files.newBufferedReader(manifestFile,
+        StandardCharsets.UTF_8)) {
+      String line = br.readLine();
+      if (line == null || !line.startsWith("repaired ")) {
+        throw new IOException("Missing repaired line.");
+      }
+      long repaired = Long.parseLong(line.substring("repaired ".length()));
+      while ((line = br.readLine()) != null) {
+        int space = line.indexOf(' ');
+        if (space < 0) {
+          throw new IOException("Invalid line '" + line + "'.");
+        }
+        this.lastWritten.put(line.substring(space + 1),
+            Long.parseLong(line.substring(0, space)));
+      }
+      this.lastRepairMillis = repaired;
+    } catch (IOException | NumberFormatException e) {
+      logger.warn("Could not read recent file manifest {}. Walking the "
+          + "whole directory instead.", manifestFile, e);
+      this.lastWritten.clear();
+    }
+  }
+
+  /** Notes that the given file in the recent directory was written
+   * just now. */
+  public synchronized void written(File file) {
+    this.written(file, System.currentTimeMillis());
+  }
+
+  synchronized void written(File file, long millis) {
+    this.lastWritten.put(this.relativize(file.toPath()), millis);
+  }
+
+  private String relativize(Path path) {
+    return this.recentDirectory.relativize(path).toString();
+  }
+
+  /** Returns the number of files in the manifest. */
+  public synchronized int size() {
+    return this.lastWritten.size();
+  }
+
+  /** Deletes files last written before the given time, removes the given
+   * suffix from files written in this execution, and stores the updated
+   * manifest, walking the whole directory if the manifest needs to be
+   * repaired. */
+  public void cleanUp(long cutOffMillis, String temporarySuffix) {
+    this.cleanUp(cutOffMillis, temporarySuffix, System.currentTimeMillis());
+  }
+
+  synchronized void cleanUp(long cutOffMillis, String temporarySuffix,
+      long now) {
+    if (this.lastRepairMillis < 0L
+        || now - this.lastRepairMillis > REPAIR_INTERVAL_MILLIS) {
+      this.repair(cutOffMillis, temporarySuffix);
+      this.lastRepairMillis = now;
+    } else {
+      Map<String, Long> renamed = new TreeMap<>();
+      Iterator<Map.Entry<String, Long>> it =
+          this.lastWritten.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Long> e = it.next();
+        File file = this.recentDirectory.resolve(e.getKey()).toFile();
+        if (e.getValue() < cutOffMillis) {
+          if (file.exists() && !file.delete()) {
+            logger.warn("Could not delete expired file {}.", file);
+            continue;
+          }
+          it.remove();
+        } else if (e.getKey().endsWith(temporarySuffix)) {
+          File target = removeSuffix(file, temporarySuffix);
+          if (file.renameTo(target)) {
+            renamed.put(this.relativize(target.toPath()), e.getValue());
+          } else {
+            logger.warn("Could not rename {}.", file);
+          }
+          it.remove();
+        }
+      }
+      this.lastWritten.putAll(renamed);
+    }
+    this.save();
+  }
+
+  /* Walks the whole recent directory like cleaning up did before there
+   * was a manifest, and rebuilds the manifest from the remaining files. */
+  private void repair(long cutOffMillis, String temporarySuffix) {
+    logger.info("Walking {} to repair the recent file manifest.",
+        this.recentDirectory);
+    this.lastWritten.clear();
+    Stack<File> allFiles = new Stack<File>();
+    allFiles.add(this.recentDirectory.toFile());
+    while (!allFiles.isEmpty()) {
+      File file = allFiles.pop();
+      if (file.isDirectory()) {
+        File[] children = file.listFiles();
+        if (children != null) {
+          for (File child : children) {
+            allFiles.add(child);
+          }
+        }
+      } else if (file.lastModified() < cutOffMillis) {
+        file.delete();
+      } else {
+        if (file.getName().endsWith(temporarySuffix)) {
+          File target = removeSuffix(file, temporarySuffix);
+          if (file.renameTo(target)) {
+            file = target;
+          }
+        }
+        this.lastWritten.put(this.relativize(file.toPath()),
+            file.lastModified());
+      }
+    }
+  }
+
+  private static File removeSuffix(File file, String suffix) {
+    return new File(file.getParentFile(), file.getName().substring(0,
+        file.getName().lastIndexOf(suffix)));
+  }
+
+  /* Writes the manifest to a temporary file and moves it in place. */
+  private void save() {
+    File tempFile = new File(this.manifestFile.toString()
+        + PersistenceUtils.TEMPFIX);
+    try {
+      tempFile.getParentFile().mkdirs();
+      try (BufferedWriter bw = Files.newBufferedWriter(tempFile.toPath(),
+          StandardCharsets.UTF_8)) {
+        bw.write("repaired " + this.lastRepairMillis + "\n");
+        for (Map.Entry<String, Long> e : this.lastWritten.entrySet()) {
+          bw.write(e.getValue() + " " + e.getKey() + "\n");
+        }
+      }
+      Files.move(tempFile.toPath(), this.manifestFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Could not write recent file manifest {}.",
+          this.manifestFile, e);
+    }
+  }
+}
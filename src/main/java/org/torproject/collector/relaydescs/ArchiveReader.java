@@ -4,7 +4,7 @@
 package org.torproject.collector.relaydescs;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,8 +18,8 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -92,7 +92,6 @@ public class ArchiveReader {
         } else {
           if (rdp != null) {
             try {
-              BufferedInputStream bis = null;
               if (keepImportHistory
                   && archivesImportHistory.contains(pop.getName())) {
                 ignoredFiles++;
@@ -101,24 +100,9 @@ public class ArchiveReader {
                 logger.warn("Cannot parse compressed tarball "
                     + pop.getAbsolutePath() + ". Skipping.");
                 continue;
-              } else if (pop.getName().endsWith(".bz2")) {
-                FileInputStream fis = new FileInputStream(pop);
-                BZip2CompressorInputStream bcis =
-                    new BZip2CompressorInputStream(fis);
-                bis = new BufferedInputStream(bcis);
-              } else {
-                FileInputStream fis = new FileInputStream(pop);
-                bis = new BufferedInputStream(fis);
               }
-              ByteArrayOutputStream baos = new ByteArrayOutputStream();
-              int len;
-              byte[] data = new byte[1024];
-              while ((len = bis.read(data, 0, 1024)) >= 0) {
-                baos.write(data, 0, len);
-              }
-              bis.close();
-              byte[] allData = baos.toByteArray();
-              boolean stored = rdp.parse(allData);
+              DescriptorBuffer buffer = readFile(pop);
+              boolean stored = rdp.parse(buffer.bytes(0, buffer.length()));
               if (!stored) {
                 filesToRetry.add(pop);
                 continue;
@@ -144,69 +128,37 @@ public class ArchiveReader {
          * pretty badly. */
         if (rdp != null) {
           try {
-            BufferedInputStream bis = null;
-            if (pop.getName().endsWith(".bz2")) {
-              FileInputStream fis = new FileInputStream(pop);
-              BZip2CompressorInputStream bcis =
-                  new BZip2CompressorInputStream(fis);
-              bis = new BufferedInputStream(bcis);
-            } else {
-              FileInputStream fis = new FileInputStream(pop);
-              bis = new BufferedInputStream(fis);
-            }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int len;
-            byte[] data = new byte[1024];
-            while ((len = bis.read(data, 0, 1024)) >= 0) {
-              baos.write(data, 0, len);
-            }
-            bis.close();
-            byte[] allData = baos.toByteArray();
-            BufferedReader br = new BufferedReader(new StringReader(
-                new String(allData, "US-ASCII")));
-            String line;
-            do {
-              line = br.readLine();
-            } while (line != null && line.startsWith("@"));
-            br.close();
-            if (line == null) {
+            DescriptorBuffer buffer = readFile(pop);
+            int index = buffer.skipAnnotations();
+            if (index >= buffer.length()) {
               logger.debug("We were given an empty descriptor for "
                   + "parsing. Ignoring.");
               continue;
             }
-            if (!line.equals("onion-key")) {
+            if (!buffer.line(index).equals("onion-key")) {
               logger.debug("Skipping non-recognized descriptor.");
               continue;
             }
             SimpleDateFormat parseFormat =
                 new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
             parseFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-            String ascii = null;
-            try {
-              ascii = new String(allData, "US-ASCII");
-            } catch (UnsupportedEncodingException e) {
-              /* No way that US-ASCII is not supported. */
-            }
             int start = -1;
             int end = -1;
             String startToken = "onion-key\n";
-            while (end < ascii.length()) {
-              start = ascii.indexOf(startToken, end);
+            while (end < buffer.length()) {
+              start = buffer.indexOf(startToken, end);
               if (start < 0) {
                 break;
               }
-              end = ascii.indexOf(startToken, start + 1);
+              end = buffer.indexOf(startToken, start + 1);
               if (end < 0) {
-                end = ascii.length();
+                end = buffer.length();
                 if (end <= start) {
                   break;
                 }
               }
-              byte[] descBytes = new byte[end - start];
-              System.arraycopy(allData, start, descBytes, 0, end - start);
-              String digest256Base64 = Base64.encodeBase64String(
-                  DigestUtils.sha256(descBytes)).replaceAll("=", "");
-              String digest256Hex = DigestUtils.sha256Hex(descBytes);
+              byte[] digest256 = buffer.digest("SHA-256", start, end);
+              String digest256Hex = Hex.encodeHexString(digest256);
               if (!this.microdescriptorValidAfterTimes.containsKey(
                   digest256Hex)) {
                 logger.debug("Could not store microdescriptor '"
@@ -214,6 +166,9 @@ public class ArchiveReader {
                     + "microdesc consensus.");
                 continue;
               }
+              String digest256Base64 = Base64.encodeBase64String(
+                  digest256).replaceAll("=", "");
+              byte[] descBytes = buffer.bytes(start, end);
               for (String validAfterTime :
                   this.microdescriptorValidAfterTimes.get(digest256Hex)) {
                 try {
@@ -275,6 +230,24 @@ public class ArchiveReader {
         + ignoredFiles + " files.");
   }
 
+  /** Returns the contents of the given file, which is memory-mapped if
+   * it's uncompressed and decompressed into the heap otherwise. */
+  private static DescriptorBuffer readFile(File file) throws IOException {
+    if (!file.getName().endsWith(".bz2")) {
+      return DescriptorBuffer.map(file);
+    }
+    try (InputStream is = new BZip2CompressorInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      int len;
+      byte[] data = new byte[8192];
+      while ((len = is.read(data, 0, data.length)) >= 0) {
+        baos.write(data, 0, len);
+      }
+      return new DescriptorBuffer(ByteBuffer.wrap(baos.toByteArray()));
+    }
+  }
+
   /** Stores the valid-after time and microdescriptor digests of a given
    * microdesc consensus, so that microdescriptors (which don't contain a
    * publication time) can later be sorted into the correct month
@@ -83,6 +83,8 @@ public class ArchiveWriter extends CollecTorMain {
 
   private StringBuilder intermediateStats = new StringBuilder();
 
+  private CachedRelayDescriptorWatcher cacheWatcher;
+
   private Path recentPath;
   private String recentPathName;
   private static final String RELAY_DESCRIPTORS = "relay-descriptors";
@@ -117,8 +119,24 @@ public class ArchiveWriter extends CollecTorMain {
     return "Relay";
   }
 
+  /* Lock held while processing descriptors, so that imports by the cache
+   * watcher never overlap with a scheduled run.  This is not the monitor
+   * of this instance, which is also used for configuration updates. */
+  private final Object processingLock = new Object();
+
+  /** Returns the lock that must be held while processing descriptors. */
+  Object getProcessingLock() {
+    return this.processingLock;
+  }
+
   @Override
   protected void startProcessing() throws ConfigurationException {
+    synchronized (this.processingLock) {
+      this.processDescriptors();
+    }
+  }
+
+  private void processDescriptors() throws ConfigurationException {
     recentPath = config.getPath(Key.RecentPath);
     CollecTorMain.checkAvailableSpace(recentPath);
     recentPathName = recentPath.toString();
@@ -161,9 +179,11 @@ public class ArchiveWriter extends CollecTorMain {
           config.getBool(Key.CompressRelayDescriptorDownloads));
       rdp.setRelayDescriptorDownloader(rdd);
     }
+    Map<File, Integer> journalOffsets = null;
     if (sources.contains(SourceType.Cache)) {
-      new CachedRelayDescriptorReader(rdp,
-          config.getStringArray(Key.RelayCacheOrigins), statsDirectory);
+      journalOffsets = new CachedRelayDescriptorReader(rdp,
+          config.getStringArray(Key.RelayCacheOrigins), statsDirectory)
+          .getJournalOffsets();
       this.intermediateStats("importing relay descriptors from local "
           + "Tor data directories");
     }
@@ -196,6 +216,43 @@ public class ArchiveWriter extends CollecTorMain {
         new File(statsDir, "references-history")).check();
     CollecTorMain.checkAvailableSpace(recentPath);
     cleanUp();
+
+    this.updateCacheWatcher(sources, statsDirectory, journalOffsets);
+  }
+
+  /** Starts, restarts, or stops watching Tor data directories for changed
+   * cached descriptors, depending on the current configuration. */
+  private void updateCacheWatcher(Set<SourceType> sources,
+      File statsDirectory, Map<File, Integer> journalOffsets)
+      throws ConfigurationException {
+    boolean watch = sources.contains(SourceType.Cache)
+        && config.getBool(Key.RelayCacheWatch);
+    String[] inputDirectories = null;
+    long debounceMillis = 0L;
+    if (watch) {
+      inputDirectories = config.getStringArray(Key.RelayCacheOrigins);
+      debounceMillis = config.getLong(Key.RelayCacheWatchDebounceMillis);
+    }
+    if (this.cacheWatcher != null && (!watch
+        || !this.cacheWatcher.watches(inputDirectories, debounceMillis))) {
+      this.cacheWatcher.stop();
+      this.cacheWatcher = null;
+    }
+    if (this.cacheWatcher != null) {
+      /* Continue from where this run read the journals, rather than from
+       * where the watcher last read them. */
+      this.cacheWatcher.setJournalOffsets(journalOffsets);
+    } else if (watch) {
+      try {
+        this.cacheWatcher = new CachedRelayDescriptorWatcher(this,
+            inputDirectories, statsDirectory, debounceMillis,
+            journalOffsets);
+        this.cacheWatcher.start();
+      } catch (IOException e) {
+        logger.warn("Cannot watch Tor data directories for changed "
+            + "cached descriptors.", e);
+      }
+    }
   }
 
   private void cleanUp() {
@@ -3,26 +3,18 @@
 
 package org.torproject.collector.relaydescs;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.torproject.collector.persist.DigestSet;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TimeZone;
@@ -37,6 +29,18 @@ public class CachedRelayDescriptorReader {
   private static final Logger logger = LoggerFactory.getLogger(
       CachedRelayDescriptorReader.class);
 
+  private RelayDescriptorParser rdp;
+
+  private File importHistoryFile;
+
+  private DigestSet lastImportHistory = new DigestSet();
+
+  private DigestSet currentImportHistory = new DigestSet();
+
+  private StringBuilder dumpStats;
+
+  private final Map<File, Integer> journalOffsets = new HashMap<>();
+
   /** Reads cached-descriptor files from one or more directories and
    * passes them to the given descriptor parser. */
   public CachedRelayDescriptorReader(RelayDescriptorParser rdp,
@@ -47,30 +51,9 @@ public class CachedRelayDescriptorReader {
       throw new IllegalArgumentException();
     }
 
-    StringBuilder dumpStats = new StringBuilder("Finished importing "
+    this.initialize(rdp, statsDirectory, "Finished importing "
         + "relay descriptors from local Tor data directories:");
 
-    /* Read import history containing SHA-1 digests of previously parsed
-     * statuses and descriptors, so that we can skip them in this run. */
-    Set<String> lastImportHistory = new HashSet<String>();
-    Set<String> currentImportHistory = new HashSet<String>();
-    File importHistoryFile = new File(statsDirectory,
-        "cacheddesc-import-history");
-    if (importHistoryFile.exists()) {
-      try {
-        BufferedReader br = new BufferedReader(new FileReader(
-            importHistoryFile));
-        String line;
-        while ((line = br.readLine()) != null) {
-          lastImportHistory.add(line);
-        }
-        br.close();
-      } catch (IOException e) {
-        logger.warn("Could not read import history from "
-            + importHistoryFile.getAbsolutePath() + ".", e);
-      }
-    }
-
     /* Read cached descriptors directories. */
     for (String inputDirectory : inputDirectories) {
       File cachedDescDir = new File(inputDirectory);
@@ -94,137 +77,9 @@ public class CachedRelayDescriptorReader {
       }
       for (File f : cachedDescFiles) {
         try {
-          // descriptors may contain non-ASCII chars; read as bytes to
-          // determine digests
-          BufferedInputStream bis =
-              new BufferedInputStream(new FileInputStream(f));
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          int len;
-          byte[] data = new byte[1024];
-          while ((len = bis.read(data, 0, 1024)) >= 0) {
-            baos.write(data, 0, len);
-          }
-          bis.close();
-          byte[] allData = baos.toByteArray();
-          if (f.getName().equals("cached-consensus")) {
-            /* Check if directory information is stale. */
-            BufferedReader br = new BufferedReader(new StringReader(
-                new String(allData, "US-ASCII")));
-            String line = null;
-            while ((line = br.readLine()) != null) {
-              if (line.startsWith("valid-after ")) {
-                dumpStats.append("\n" + f.getName() + ": " + line.substring(
-                    "valid-after ".length()));
-                SimpleDateFormat dateTimeFormat =
-                    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-                if (dateTimeFormat.parse(line.substring("valid-after "
-                    .length())).getTime() < System.currentTimeMillis()
-                    - 6L * 60L * 60L * 1000L) {
-                  logger.warn("Cached descriptor files in "
-                      + cachedDescDir.getAbsolutePath() + " are stale. "
-                      + "The valid-after line in cached-consensus is '"
-                      + line + "'.");
-                  dumpStats.append(" (stale!)");
-                }
-                break;
-              }
-            }
-            br.close();
-
-            /* Parse the cached consensus if we haven't parsed it before
-             * (but regardless of whether it's stale or not). */
-            if (rdp != null) {
-              String digest = Hex.encodeHexString(DigestUtils.sha(
-                  allData));
-              if (!lastImportHistory.contains(digest)
-                  && !currentImportHistory.contains(digest)) {
-                rdp.parse(allData);
-              } else {
-                dumpStats.append(" (skipped)");
-              }
-              currentImportHistory.add(digest);
-            }
-          } else if (f.getName().equals("v3-status-votes")) {
-            int parsedNum = 0;
-            int skippedNum = 0;
-            String ascii = new String(allData, "US-ASCII");
-            String startToken = "network-status-version ";
-            int end = ascii.length();
-            int start = ascii.indexOf(startToken);
-            while (start >= 0 && start < end) {
-              int next = ascii.indexOf(startToken, start + 1);
-              if (next < 0) {
-                next = end;
-              }
-              if (start < next) {
-                byte[] rawNetworkStatusBytes = new byte[next - start];
-                System.arraycopy(allData, start, rawNetworkStatusBytes, 0,
-                    next - start);
-                if (rdp != null) {
-                  String digest = Hex.encodeHexString(DigestUtils.sha(
-                      rawNetworkStatusBytes));
-                  if (!lastImportHistory.contains(digest)
-                      && !currentImportHistory.contains(digest)) {
-                    rdp.parse(rawNetworkStatusBytes);
-                    parsedNum++;
-                  } else {
-                    skippedNum++;
-                  }
-                  currentImportHistory.add(digest);
-                }
-              }
-              start = next;
-            }
-            dumpStats.append("\n" + f.getName() + ": parsed " + parsedNum
-                + ", skipped " + skippedNum + " votes");
-          } else if (f.getName().startsWith("cached-descriptors")
-              || f.getName().startsWith("cached-extrainfo")) {
-            String ascii = new String(allData, "US-ASCII");
-            int start = -1;
-            int sig = -1;
-            int end = -1;
-            String startToken =
-                f.getName().startsWith("cached-descriptors")
-                ? "router " : "extra-info ";
-            String sigToken = "\nrouter-signature\n";
-            String endToken = "\n-----END SIGNATURE-----\n";
-            int parsedNum = 0;
-            int skippedNum = 0;
-            while (end < ascii.length()) {
-              start = ascii.indexOf(startToken, end);
-              if (start < 0) {
-                break;
-              }
-              sig = ascii.indexOf(sigToken, start);
-              if (sig < 0) {
-                break;
-              }
-              sig += sigToken.length();
-              end = ascii.indexOf(endToken, sig);
-              if (end < 0) {
-                break;
-              }
-              end += endToken.length();
-              byte[] descBytes = new byte[end - start];
-              System.arraycopy(allData, start, descBytes, 0, end - start);
-              if (rdp != null) {
-                String digest = Hex.encodeHexString(DigestUtils.sha(
-                    descBytes));
-                if (!lastImportHistory.contains(digest)
-                    && !currentImportHistory.contains(digest)) {
-                  rdp.parse(descBytes);
-                  parsedNum++;
-                } else {
-                  skippedNum++;
-                }
-                currentImportHistory.add(digest);
-              }
-            }
-            dumpStats.append("\n" + f.getName() + ": parsed " + parsedNum
-                + ", skipped " + skippedNum + " "
-                + (f.getName().startsWith("cached-descriptors")
-                ? "server" : "extra-info") + " descriptors");
+          int parsedUpTo = this.readCachedDescFile(f, 0);
+          if (f.getName().endsWith(".new")) {
+            this.journalOffsets.put(f.getAbsoluteFile(), parsedUpTo);
           }
         } catch (IOException e) {
           logger.warn("Failed reading "
@@ -239,20 +94,185 @@ public class CachedRelayDescriptorReader {
     }
 
     /* Write import history containing SHA-1 digests to disk. */
-    try {
-      importHistoryFile.getParentFile().mkdirs();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          importHistoryFile));
-      for (String digest : currentImportHistory) {
-        bw.write(digest + "\n");
+    this.saveImportHistory(false);
+
+    logger.info(this.dumpStats.toString());
+  }
+
+  /** Prepares reading single cached-descriptor files as they change,
+   * without reading any directory yet. */
+  CachedRelayDescriptorReader(RelayDescriptorParser rdp,
+      File statsDirectory) {
+    if (rdp == null || statsDirectory == null) {
+      throw new IllegalArgumentException();
+    }
+    this.initialize(rdp, statsDirectory, "Finished importing changed "
+        + "relay descriptors from local Tor data directories:");
+  }
+
+  private void initialize(RelayDescriptorParser rdp, File statsDirectory,
+      String statsHeader) {
+    this.rdp = rdp;
+    this.dumpStats = new StringBuilder(statsHeader);
+
+    /* Read import history containing SHA-1 digests of previously parsed
+     * statuses and descriptors, so that we can skip them in this run. */
+    this.importHistoryFile = new File(statsDirectory,
+        "cacheddesc-import-history");
+    if (this.importHistoryFile.exists()) {
+      try {
+        this.lastImportHistory = DigestSet.load(this.importHistoryFile);
+      } catch (IOException | IllegalArgumentException e) {
+        logger.warn("Could not read import history from "
+            + this.importHistoryFile.getAbsolutePath() + ".", e);
       }
-      bw.close();
+    }
+  }
+
+  /** Writes the import history to disk, either containing only digests
+   * seen in this run, or also keeping all digests from previous runs. */
+  void saveImportHistory(boolean keepLastImportHistory) {
+    try {
+      DigestSet history = keepLastImportHistory
+          ? DigestSet.merge(this.lastImportHistory,
+          this.currentImportHistory) : this.currentImportHistory;
+      history.save(this.importHistoryFile);
     } catch (IOException e) {
       logger.warn("Could not write import history to "
-           + importHistoryFile.getAbsolutePath() + ".", e);
+           + this.importHistoryFile.getAbsolutePath() + ".", e);
     }
+  }
 
-    logger.info(dumpStats.toString());
+  /** Returns the offsets following the last complete descriptor in each
+   * journal file read from the input directories. */
+  Map<File, Integer> getJournalOffsets() {
+    return this.journalOffsets;
   }
-}
 
+  /** Returns statistics on files read so far. */
+  String getDumpStats() {
+    return this.dumpStats.toString();
+  }
+
+  /** Reads descriptors contained in the given cached-descriptor file,
+   * starting at the given offset, and returns the offset following the
+   * last complete descriptor. */
+  int readCachedDescFile(File f, int offset)
+      throws IOException, ParseException {
+    // descriptors may contain non-ASCII chars; map the file and
+    // only copy out those descriptors that we haven't parsed before
+    DescriptorBuffer buffer = DescriptorBuffer.map(f);
+    if (offset > buffer.length()) {
+      /* File was truncated and rewritten since we last read it. */
+      offset = 0;
+    }
+    if (f.getName().equals("cached-consensus")
+        || f.getName().equals("cached-microdesc-consensus")) {
+      /* Check if directory information is stale. */
+      int validAfterIndex = buffer.findLine("valid-after ", 0);
+      if (validAfterIndex >= 0) {
+        String line = buffer.line(validAfterIndex);
+        this.dumpStats.append("\n" + f.getName() + ": " + line.substring(
+            "valid-after ".length()));
+        SimpleDateFormat dateTimeFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        if (dateTimeFormat.parse(line.substring("valid-after "
+            .length())).getTime() < System.currentTimeMillis()
+            - 6L * 60L * 60L * 1000L) {
+          logger.warn("Cached descriptor files in "
+              + f.getParentFile().getAbsolutePath() + " are stale. "
+              + "The valid-after line in " + f.getName() + " is '"
+              + line + "'.");
+          this.dumpStats.append(" (stale!)");
+        }
+      }
+
+      /* Parse the cached consensus or microdesc consensus if we haven't
+       * parsed it before
+       * (but regardless of whether it's stale or not). */
+      if (!this.parseIfNew(buffer, 0, buffer.length())) {
+        this.dumpStats.append(" (skipped)");
+      }
+      return buffer.length();
+    } else if (f.getName().equals("v3-status-votes")) {
+      int parsedNum = 0;
+      int skippedNum = 0;
+      String startToken = "network-status-version ";
+      int end = buffer.length();
+      int start = buffer.indexOf(startToken, 0);
+      while (start >= 0 && start < end) {
+        int next = buffer.indexOf(startToken, start + 1);
+        if (next < 0) {
+          next = end;
+        }
+        if (start < next) {
+          if (this.parseIfNew(buffer, start, next)) {
+            parsedNum++;
+          } else {
+            skippedNum++;
+          }
+        }
+        start = next;
+      }
+      this.dumpStats.append("\n" + f.getName() + ": parsed " + parsedNum
+          + ", skipped " + skippedNum + " votes");
+      return buffer.length();
+    } else if (f.getName().startsWith("cached-descriptors")
+        || f.getName().startsWith("cached-extrainfo")) {
+      int start = -1;
+      int sig = -1;
+      int end = offset;
+      int parsedUpTo = offset;
+      String startToken =
+          f.getName().startsWith("cached-descriptors")
+          ? "router " : "extra-info ";
+      String sigToken = "\nrouter-signature\n";
+      String endToken = "\n-----END SIGNATURE-----\n";
+      int parsedNum = 0;
+      int skippedNum = 0;
+      while (end < buffer.length()) {
+        start = buffer.indexOf(startToken, end);
+        if (start < 0) {
+          break;
+        }
+        sig = buffer.indexOf(sigToken, start);
+        if (sig < 0) {
+          break;
+        }
+        sig += sigToken.length();
+        end = buffer.indexOf(endToken, sig);
+        if (end < 0) {
+          break;
+        }
+        end += endToken.length();
+        parsedUpTo = end;
+        if (this.parseIfNew(buffer, start, end)) {
+          parsedNum++;
+        } else {
+          skippedNum++;
+        }
+      }
+      this.dumpStats.append("\n" + f.getName() + ": parsed " + parsedNum
+          + ", skipped " + skippedNum + " "
+          + (f.getName().startsWith("cached-descriptors")
+          ? "server" : "extra-info") + " descriptors");
+      return parsedUpTo;
+    }
+    return buffer.length();
+  }
+
+  /** Passes the given part of the buffer to the descriptor parser unless
+   * we have parsed it before, and returns whether it was parsed. */
+  private boolean parseIfNew(DescriptorBuffer buffer, int start,
+      int end) {
+    byte[] digest = buffer.digest("SHA-1", start, end);
+    boolean parse = !this.lastImportHistory.contains(digest)
+        && !this.currentImportHistory.contains(digest);
+    if (parse) {
+      this.rdp.parse(buffer.bytes(start, end));
+    }
+    this.currentImportHistory.add(digest);
+    return parse;
+  }
+}
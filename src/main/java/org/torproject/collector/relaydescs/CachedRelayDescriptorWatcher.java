@@ -0,0 +1,216 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.relaydescs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches Tor data directories for changes to cached-* files and
+ * immediately imports new descriptors, rather than waiting for the next
+ * scheduled relaydescs run.
+ *
+ * <p>Bursts of changes are debounced, so that a file is read once after
+ * Tor has finished writing it.  Journal files are read incrementally from
+ * the end of the last complete descriptor.  Imports hold the archive
+ * writer's processing lock, so that they never overlap with a scheduled
+ * run.</p>
+ */
+public class CachedRelayDescriptorWatcher implements Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      CachedRelayDescriptorWatcher.class);
+
+  /** File names written by Tor that contain descriptors we archive. */
+  static final List<String> WATCHED_FILE_NAMES = Arrays.asList(
+      "cached-consensus", "cached-microdesc-consensus", "v3-status-votes",
+      "cached-descriptors.new", "cached-extrainfo.new");
+
+  private final ArchiveWriter archiveWriter;
+
+  private final File statsDirectory;
+
+  private final long debounceMillis;
+
+  private final WatchService watchService;
+
+  private final Set<Path> inputDirectories = new HashSet<>();
+
+  private final Map<File, Integer> journalOffsets = new HashMap<>();
+
+  private Thread thread;
+
+  /** Registers the given Tor data directories for watching, and
+   * continues reading journal files at the given offsets following the
+   * last complete descriptors read by the scheduled run, if known. */
+  public CachedRelayDescriptorWatcher(ArchiveWriter archiveWriter,
+      String[] inputDirectories, File statsDirectory, long debounceMillis,
+      Map<File, Integer> journalOffsets) throws IOException {
+    if (archiveWriter == null || inputDirectories == null
+        || inputDirectories.length == 0 || statsDirectory == null
+        || debounceMillis < 0L) {
+      throw new IllegalArgumentException();
+    }
+    this.archiveWriter = archiveWriter;
+    this.statsDirectory = statsDirectory;
+    this.debounceMillis = debounceMillis;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    for (String inputDirectory : inputDirectories) {
+      Path dir = Paths.get(inputDirectory).toAbsolutePath();
+      this.inputDirectories.add(dir);
+      if (!dir.toFile().isDirectory()) {
+        logger.warn("Directory {} does not exist. Not watching it.",
+            dir.toAbsolutePath());
+        continue;
+      }
+      dir.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+      logger.info("Watching {} for changed cached descriptors.",
+          dir.toAbsolutePath());
+    }
+    this.setJournalOffsets(journalOffsets);
+  }
+
+  /** Continues reading journal files at the given offsets following the
+   * last complete descriptors read by a scheduled run, so that
+   * descriptors appended after that run are not skipped.  Must be called
+   * while holding the archive writer's processing lock. */
+  void setJournalOffsets(Map<File, Integer> journalOffsets) {
+    if (journalOffsets != null) {
+      this.journalOffsets.putAll(journalOffsets);
+    }
+  }
+
+  /** Starts watching in a separate daemon thread. */
+  public synchronized void start() {
+    if (this.thread == null) {
+      this.thread = new Thread(this, "CollecTor-Relay-Cache-Watcher");
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+  }
+
+  /** Stops watching and releases the watch service. */
+  public synchronized void stop() {
+    try {
+      this.watchService.close();
+    } catch (IOException e) {
+      logger.warn("Could not close watch service.", e);
+    }
+    if (this.thread != null) {
+      this.thread.interrupt();
+      this.thread = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        SortedSet<File> changedFiles = new TreeSet<>();
+        this.collectChangedFiles(this.watchService.take(), changedFiles);
+        /* Wait until there are no more changes for the debounce period,
+         * but not forever if Tor keeps appending to its journals. */
+        long deadline = System.currentTimeMillis()
+            + 10L * this.debounceMillis;
+        WatchKey key;
+        while (System.currentTimeMillis() < deadline
+            && (key = this.watchService.poll(this.debounceMillis,
+            TimeUnit.MILLISECONDS)) != null) {
+          this.collectChangedFiles(key, changedFiles);
+        }
+        if (!changedFiles.isEmpty()) {
+          this.importChangedFiles(changedFiles);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      logger.info("Stopped watching Tor data directories.");
+    } catch (Throwable th) { // Catch all to log why we stopped.
+      logger.error("Watching Tor data directories failed: {}",
+          th.getMessage(), th);
+    }
+  }
+
+  private void collectChangedFiles(WatchKey key, SortedSet<File> files) {
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        for (String fileName : WATCHED_FILE_NAMES) {
+          files.add(dir.resolve(fileName).toFile());
+        }
+        continue;
+      }
+      String fileName = event.context().toString();
+      if (WATCHED_FILE_NAMES.contains(fileName)) {
+        files.add(dir.resolve(fileName).toFile());
+      }
+    }
+    key.reset();
+  }
+
+  /** Imports descriptors from the given changed files. */
+  void importChangedFiles(SortedSet<File> changedFiles) {
+    long started = System.currentTimeMillis();
+    synchronized (this.archiveWriter.getProcessingLock()) {
+      CachedRelayDescriptorReader reader = new CachedRelayDescriptorReader(
+          new RelayDescriptorParser(this.archiveWriter),
+          this.statsDirectory);
+      for (File file : changedFiles) {
+        if (!file.exists()) {
+          continue;
+        }
+        int offset = this.journalOffsets.containsKey(file)
+            ? this.journalOffsets.get(file) : 0;
+        try {
+          int parsedUpTo = reader.readCachedDescFile(file, offset);
+          if (file.getName().endsWith(".new")) {
+            this.journalOffsets.put(file, parsedUpTo);
+          }
+        } catch (IOException | ParseException e) {
+          logger.warn("Failed reading changed file {}.",
+              file.getAbsolutePath(), e);
+        }
+      }
+      reader.saveImportHistory(true);
+      this.archiveWriter.intermediateStats("importing changed relay "
+          + "descriptors from local Tor data directories");
+      logger.info(reader.getDumpStats() + "\nTook "
+          + (System.currentTimeMillis() - started) + " ms.");
+    }
+  }
+
+  /** Returns whether this watcher watches exactly the given
+   * directories with the given debounce period. */
+  boolean watches(String[] inputDirectories, long debounceMillis) {
+    if (this.debounceMillis != debounceMillis) {
+      return false;
+    }
+    Set<Path> dirs = new HashSet<>();
+    for (String inputDirectory : inputDirectories) {
+      dirs.add(Paths.get(inputDirectory).toAbsolutePath());
+    }
+    return dirs.equals(this.inputDirectories);
+  }
+}
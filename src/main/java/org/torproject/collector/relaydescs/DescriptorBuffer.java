@@ -0,0 +1,163 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.relaydescs;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Read-only view on the bytes of a descriptor file that is used to locate
+ * descriptor boundaries and compute digests without copying the file
+ * contents to the heap.
+ *
+ * <p>Files are memory-mapped, so that only those descriptors that are
+ * actually handed to the parser are copied into byte arrays.</p>
+ */
+public class DescriptorBuffer {
+
+  private final ByteBuffer buffer;
+
+  private final int length;
+
+  /** Wraps the given buffer, from its position up to its limit. */
+  public DescriptorBuffer(ByteBuffer buffer) {
+    this.buffer = buffer.slice();
+    this.length = this.buffer.remaining();
+  }
+
+  /** Memory-maps the given file read-only and returns a buffer for it;
+   * the mapping stays valid after the underlying channel is closed. */
+  public static DescriptorBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      return new DescriptorBuffer(channel.map(FileChannel.MapMode.READ_ONLY,
+          0L, channel.size()));
+    }
+  }
+
+  /** Returns the number of bytes in this buffer. */
+  public int length() {
+    return this.length;
+  }
+
+  /** Returns the index of the first occurrence of the given ASCII token
+   * at or after the given index, or -1 if there is no such occurrence. */
+  public int indexOf(String token, int fromIndex) {
+    byte[] pattern = token.getBytes(StandardCharsets.US_ASCII);
+    int last = this.length - pattern.length;
+    for (int i = Math.max(fromIndex, 0); i <= last; i++) {
+      if (this.buffer.get(i) != pattern[0]) {
+        continue;
+      }
+      int j = 1;
+      while (j < pattern.length && this.buffer.get(i + j) == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns whether the bytes at the given index equal the given ASCII
+   * token. */
+  public boolean startsWith(String token, int index) {
+    byte[] pattern = token.getBytes(StandardCharsets.US_ASCII);
+    if (index < 0 || index + pattern.length > this.length) {
+      return false;
+    }
+    for (int j = 0; j < pattern.length; j++) {
+      if (this.buffer.get(index + j) != pattern[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the index right after the line starting at the given index,
+   * which is either the start of the next line or the buffer length. */
+  public int nextLine(int index) {
+    for (int i = index; i < this.length; i++) {
+      if (this.buffer.get(i) == '\n') {
+        return i + 1;
+      }
+    }
+    return this.length;
+  }
+
+  /** Returns the index of the first line at or after the given line start
+   * index that starts with the given ASCII token, or -1 if there is no
+   * such line. */
+  public int findLine(String token, int fromIndex) {
+    for (int i = fromIndex; i < this.length; i = this.nextLine(i)) {
+      if (this.startsWith(token, i)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the line starting at the given index, without line
+   * terminator, decoded as US-ASCII. */
+  public String line(int index) {
+    int end = this.nextLine(index);
+    if (end > index && this.buffer.get(end - 1) == '\n') {
+      end--;
+    }
+    return new String(this.bytes(index, end), StandardCharsets.US_ASCII);
+  }
+
+  /** Returns the index of the first line that is not an annotation line
+   * starting with '@'. */
+  public int skipAnnotations() {
+    int index = 0;
+    while (index < this.length && this.buffer.get(index) == '@') {
+      index = this.nextLine(index);
+    }
+    return index;
+  }
+
+  /** Copies the bytes from start (inclusive) to end (exclusive) into a new
+   * array. */
+  public byte[] bytes(int start, int end) {
+    byte[] result = new byte[end - start];
+    ByteBuffer slice = this.slice(start, end);
+    slice.get(result);
+    return result;
+  }
+
+  /** Returns the hex-encoded SHA-1 digest of the bytes from start
+   * (inclusive) to end (exclusive). */
+  public String sha1Hex(int start, int end) {
+    return Hex.encodeHexString(this.digest("SHA-1", start, end));
+  }
+
+  /** Returns the given digest of the bytes from start (inclusive) to end
+   * (exclusive), computed directly on the buffer. */
+  public byte[] digest(String algorithm, int start, int end) {
+    try {
+      MessageDigest md = MessageDigest.getInstance(algorithm);
+      md.update(this.slice(start, end));
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private ByteBuffer slice(int start, int end) {
+    ByteBuffer duplicate = this.buffer.duplicate();
+    duplicate.limit(end);
+    duplicate.position(start);
+    return duplicate;
+  }
+}
@@ -0,0 +1,605 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.torperf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Monthly archive of merged Torperf measurements in a columnar binary
+ * format, which is written alongside the .tpf files and which can be
+ * scanned much faster than parsing .tpf lines.
+ *
+ * <p>Measurements with a START time in a given month are appended to
+ * <code>yyyy/MM/torperf-yyyy-MM.tpc</code> in the columnar archive
+ * directory, which is kept outside of the torperf output directory, so
+ * that archive files are not included in published tarballs.  Each merge appends one block per month with all
+ * measurements that were added to or replaced in .tpf files, so that a
+ * measurement can be contained in more than one block, in which case the
+ * last one replaces all earlier ones with the same SOURCE, FILESIZE, and
+ * START.</p>
+ *
+ * <p>All numbers are big-endian.  A file starts with the 4-byte magic
+ * <code>TPC1</code>, followed by blocks.  A block starts with a header
+ * that serves as index for skipping blocks and columns without reading
+ * them:</p>
+ * <ul>
+ * <li>4-byte length of the remaining block including its checksum,</li>
+ * <li>4-byte number of rows,</li>
+ * <li>8-byte smallest and 8-byte largest START time in
+ * microseconds,</li>
+ * <li>2-byte number of columns, followed by the key as modified UTF-8
+ * string, the 1-byte column type, and the 4-byte data length of each
+ * column.</li>
+ * </ul>
+ * <p>The header is followed by column data in the same order, and by the
+ * 4-byte CRC-32 of everything after the block length.  Column data starts
+ * with a bitmap of rows with values, with bit <code>i % 8</code> of byte
+ * <code>i / 8</code> set for row <code>i</code>, followed by values of
+ * those rows only:</p>
+ * <ul>
+ * <li>{@link #LONG} and {@link #MICROS} columns contain integers and
+ * decimal numbers in microseconds, respectively, as 8-byte base value,
+ * 1-byte width, and unsigned offsets from the base value using that
+ * number of bytes,</li>
+ * <li>{@link #DICTIONARY} columns contain a 4-byte number of distinct
+ * values, those values as modified UTF-8 strings, a 1-byte width, and
+ * dictionary positions using that number of bytes.</li>
+ * </ul>
+ * <p>SOURCE and FILESIZE are always dictionary-encoded, other columns
+ * use the most specific type that all of their values in a block fit
+ * into.</p>
+ */
+class TorperfColumnarArchive {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      TorperfColumnarArchive.class);
+
+  static final String SUFFIX = ".tpc";
+
+  private static final byte[] MAGIC = "TPC1".getBytes(
+      StandardCharsets.US_ASCII);
+
+  /** Column type of integers. */
+  static final byte LONG = 1;
+
+  /** Column type of decimal numbers in microseconds. */
+  static final byte MICROS = 2;
+
+  /** Column type of dictionary-encoded strings. */
+  static final byte DICTIONARY = 3;
+
+  private static final long MICROS_PER_DAY = 86400L * 1000000L;
+
+  private final File outputDirectory;
+
+  /** Prepares appending to archive files in the given columnar archive
+   * directory. */
+  TorperfColumnarArchive(File outputDirectory) {
+    this.outputDirectory = outputDirectory;
+  }
+
+  /** Returns the archive file of the given month in the given columnar
+   * archive directory. */
+  static File archiveFile(File outputDirectory, int year, int month) {
+    String yearMonth = String.format("%04d-%02d", year, month);
+    return new File(outputDirectory, yearMonth.replace('-', '/')
+        + "/torperf-" + yearMonth + SUFFIX);
+  }
+
+  /** Measurements of a single merge that are collected per month before
+   * being appended to archive files. */
+  static final class Batch {
+
+    private final SortedMap<Integer, BlockBuilder> blocks = new TreeMap<>();
+
+    private long lastDay = Long.MIN_VALUE;
+
+    private BlockBuilder lastBlock;
+
+    /** Adds a measurement with the given START time in microseconds and
+     * the given fields. */
+    void addRow(long startMicros, TorperfFields fields) {
+      long day = Math.floorDiv(startMicros, MICROS_PER_DAY);
+      if (day != this.lastDay) {
+        LocalDate date = LocalDate.ofEpochDay(day);
+        int yearMonth = date.getYear() * 100 + date.getMonthValue();
+        this.lastBlock = this.blocks.get(yearMonth);
+        if (this.lastBlock == null) {
+          this.lastBlock = new BlockBuilder();
+          this.blocks.put(yearMonth, this.lastBlock);
+        }
+        this.lastDay = day;
+      }
+      this.lastBlock.addRow(startMicros, fields);
+    }
+
+    /** Returns the number of added measurements. */
+    int size() {
+      int size = 0;
+      for (BlockBuilder block : this.blocks.values()) {
+        size += block.rows;
+      }
+      return size;
+    }
+  }
+
+  /** Appends all measurements in the given batch to the archive files of
+   * their months. */
+  synchronized void append(Batch batch) throws IOException {
+    for (Map.Entry<Integer, BlockBuilder> e : batch.blocks.entrySet()) {
+      File file = archiveFile(this.outputDirectory, e.getKey() / 100,
+          e.getKey() % 100);
+      byte[] block = e.getValue().toBytes();
+      file.getParentFile().mkdirs();
+      try (FileChannel channel = FileChannel.open(file.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        long position = validLength(file, channel);
+        if (position == 0L) {
+          writeFully(channel, ByteBuffer.wrap(MAGIC), position);
+          position = MAGIC.length;
+        }
+        writeFully(channel, ByteBuffer.wrap(block), position);
+      }
+    }
+  }
+
+  /* Returns the length of the given file up to the end of its last
+   * complete block, after truncating any incomplete block following
+   * it. */
+  private static long validLength(File file, FileChannel channel)
+      throws IOException {
+    long size = channel.size();
+    if (size == 0L) {
+      return 0L;
+    }
+    ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+    channel.read(magic, 0L);
+    if (!Arrays.equals(magic.array(), MAGIC)) {
+      throw new IOException("File " + file + " is not a Torperf archive "
+          + "file.");
+    }
+    long position = MAGIC.length;
+    ByteBuffer length = ByteBuffer.allocate(4);
+    while (position + 4L <= size) {
+      length.clear();
+      channel.read(length, position);
+      long next = position + 4L + (length.getInt(0) & 0xFFFFFFFFL);
+      if (next > size) {
+        break;
+      }
+      position = next;
+    }
+    if (position < size) {
+      logger.warn("Truncating incomplete block at the end of " + file
+          + ".");
+      channel.truncate(position);
+    }
+    return position;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  /* Rows of a single block that are kept as dictionary codes per column
+   * until the block is written. */
+  private static final class BlockBuilder {
+
+    private final SortedMap<String, ColumnBuilder> columns =
+        new TreeMap<>();
+
+    private int rows = 0;
+
+    private long minStartMicros = Long.MAX_VALUE;
+
+    private long maxStartMicros = Long.MIN_VALUE;
+
+    private void addRow(long startMicros, TorperfFields fields) {
+      int sortedSize = fields.sortUnique();
+      for (int i = 0; i < sortedSize; i++) {
+        String key = fields.getSortedKey(i);
+        ColumnBuilder column = this.columns.get(key);
+        if (column == null) {
+          column = new ColumnBuilder();
+          this.columns.put(key, column);
+        }
+        column.add(this.rows, fields.getSortedValue(i));
+      }
+      this.rows++;
+      this.minStartMicros = Math.min(this.minStartMicros, startMicros);
+      this.maxStartMicros = Math.max(this.maxStartMicros, startMicros);
+    }
+
+    private byte[] toBytes() throws IOException {
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      DataOutputStream headerOut = new DataOutputStream(header);
+      DataOutputStream dataOut = new DataOutputStream(data);
+      headerOut.writeInt(this.rows);
+      headerOut.writeLong(this.minStartMicros);
+      headerOut.writeLong(this.maxStartMicros);
+      headerOut.writeShort(this.columns.size());
+      for (Map.Entry<String, ColumnBuilder> e : this.columns.entrySet()) {
+        String key = e.getKey();
+        int before = dataOut.size();
+        byte type = e.getValue().write(dataOut, this.rows,
+            "SOURCE".equals(key) || "FILESIZE".equals(key));
+        headerOut.writeUTF(key);
+        headerOut.writeByte(type);
+        headerOut.writeInt(dataOut.size() - before);
+      }
+      headerOut.write(data.toByteArray());
+      CRC32 crc = new CRC32();
+      crc.update(header.toByteArray());
+      headerOut.writeInt((int) crc.getValue());
+      byte[] body = header.toByteArray();
+      return ByteBuffer.allocate(4 + body.length).putInt(body.length)
+          .put(body).array();
+    }
+  }
+
+  /* Values of a single column as dictionary codes per row, with 0 for
+   * rows without value. */
+  private static final class ColumnBuilder {
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    private final List<String> values = new ArrayList<>();
+
+    private int[] codes = new int[64];
+
+    private void add(int row, String value) {
+      Integer code = this.dictionary.get(value);
+      if (code == null) {
+        this.values.add(value);
+        code = this.values.size();
+        this.dictionary.put(value, code);
+      }
+      if (row >= this.codes.length) {
+        this.codes = Arrays.copyOf(this.codes, Math.max(row + 1,
+            2 * this.codes.length));
+      }
+      this.codes[row] = code;
+    }
+
+    /* Writes column data for the given number of rows and returns the
+     * column type. */
+    private byte write(DataOutputStream out, int rows,
+        boolean forceDictionary) throws IOException {
+      byte[] bitmap = new byte[(rows + 7) / 8];
+      int present = 0;
+      for (int row = 0; row < rows && row < this.codes.length; row++) {
+        if (this.codes[row] > 0) {
+          bitmap[row / 8] |= 1 << (row % 8);
+          present++;
+        }
+      }
+      out.write(bitmap);
+      long[] numbers = null;
+      byte type = DICTIONARY;
+      if (!forceDictionary) {
+        numbers = this.parseNumbers(false);
+        type = LONG;
+        if (numbers == null) {
+          numbers = this.parseNumbers(true);
+          type = MICROS;
+        }
+        if (numbers == null) {
+          type = DICTIONARY;
+        }
+      }
+      if (type == DICTIONARY) {
+        out.writeInt(this.values.size());
+        for (String value : this.values) {
+          out.writeUTF(value);
+        }
+        int width = width(this.values.size() - 1L);
+        out.writeByte(width);
+        for (int row = 0; row < rows && row < this.codes.length; row++) {
+          if (this.codes[row] > 0) {
+            writeUnsigned(out, this.codes[row] - 1L, width);
+          }
+        }
+      } else {
+        long base = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long number : numbers) {
+          base = Math.min(base, number);
+          max = Math.max(max, number);
+        }
+        int width = present == 0 ? 1 : (max - base < 0L ? 8
+            : width(max - base));
+        out.writeLong(present == 0 ? 0L : base);
+        out.writeByte(width);
+        for (int row = 0; row < rows && row < this.codes.length; row++) {
+          if (this.codes[row] > 0) {
+            writeUnsigned(out, numbers[this.codes[row] - 1] - base, width);
+          }
+        }
+      }
+      return type;
+    }
+
+    /* Parses all distinct values as integers or decimal numbers in
+     * microseconds, or returns null if any of them cannot be parsed. */
+    private long[] parseNumbers(boolean decimal) {
+      long[] numbers = new long[this.values.size()];
+      for (int i = 0; i < numbers.length; i++) {
+        String value = this.values.get(i);
+        numbers[i] = decimal
+            ? TorperfFields.parseMicros(value, 0, value.length())
+            : TorperfFields.parseLong(value, 0, value.length());
+        if (numbers[i] == Long.MIN_VALUE) {
+          return null;
+        }
+      }
+      return numbers;
+    }
+  }
+
+  private static int width(long maxValue) {
+    if (maxValue < 0x100L) {
+      return 1;
+    } else if (maxValue < 0x10000L) {
+      return 2;
+    } else if (maxValue < 0x100000000L) {
+      return 4;
+    } else {
+      return 8;
+    }
+  }
+
+  private static void writeUnsigned(DataOutputStream out, long value,
+      int width) throws IOException {
+    switch (width) {
+      case 1:
+        out.writeByte((int) value);
+        break;
+      case 2:
+        out.writeShort((int) value);
+        break;
+      case 4:
+        out.writeInt((int) value);
+        break;
+      default:
+        out.writeLong(value);
+        break;
+    }
+  }
+
+  private static long readUnsigned(ByteBuffer in, int width) {
+    switch (width) {
+      case 1:
+        return in.get() & 0xFFL;
+      case 2:
+        return in.getShort() & 0xFFFFL;
+      case 4:
+        return in.getInt() & 0xFFFFFFFFL;
+      default:
+        return in.getLong();
+    }
+  }
+
+  /** Block of measurements read from an archive file. */
+  static final class Block {
+
+    private final int rows;
+
+    private final long minStartMicros;
+
+    private final long maxStartMicros;
+
+    private final SortedMap<String, Column> columns = new TreeMap<>();
+
+    private Block(int rows, long minStartMicros, long maxStartMicros) {
+      this.rows = rows;
+      this.minStartMicros = minStartMicros;
+      this.maxStartMicros = maxStartMicros;
+    }
+
+    int getRows() {
+      return this.rows;
+    }
+
+    long getMinStartMicros() {
+      return this.minStartMicros;
+    }
+
+    long getMaxStartMicros() {
+      return this.maxStartMicros;
+    }
+
+    /** Returns the keys of all columns that were read. */
+    Set<String> getKeys() {
+      return Collections.unmodifiableSet(this.columns.keySet());
+    }
+
+    /** Returns the column with the given key, or null if the block does
+     * not contain it or it was not read. */
+    Column getColumn(String key) {
+      return this.columns.get(key);
+    }
+  }
+
+  /** Values of a single column of a block read from an archive file. */
+  static final class Column {
+
+    private final byte type;
+
+    private final BitSet present;
+
+    private final long[] numbers;
+
+    private final String[] dictionary;
+
+    private Column(byte type, BitSet present, long[] numbers,
+        String[] dictionary) {
+      this.type = type;
+      this.present = present;
+      this.numbers = numbers;
+      this.dictionary = dictionary;
+    }
+
+    byte getType() {
+      return this.type;
+    }
+
+    /** Returns whether the given row has a value. */
+    boolean hasValue(int row) {
+      return this.present.get(row);
+    }
+
+    /** Returns the integer, the decimal number in microseconds, or the
+     * dictionary position of the given row, depending on the column
+     * type. */
+    long getNumber(int row) {
+      return this.numbers[row];
+    }
+
+    /** Returns the value of the given row as string, or null if the row
+     * has no value. */
+    String getString(int row) {
+      if (!this.present.get(row)) {
+        return null;
+      } else if (this.type == DICTIONARY) {
+        return this.dictionary[(int) this.numbers[row]];
+      } else if (this.type == LONG) {
+        return String.valueOf(this.numbers[row]);
+      } else {
+        return String.format("%d.%06d",
+            Math.floorDiv(this.numbers[row], 1000000L),
+            Math.floorMod(this.numbers[row], 1000000L));
+      }
+    }
+  }
+
+  /** Reads all blocks of the given archive file containing measurements
+   * with START times in the given range in microseconds, including only
+   * columns with the given keys, or all columns if keys is null. */
+  static List<Block> read(File file, long fromMicros, long toMicros,
+      Set<String> keys) throws IOException {
+    List<Block> blocks = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+      channel.read(magic, 0L);
+      if (!Arrays.equals(magic.array(), MAGIC)) {
+        throw new IOException("File " + file + " is not a Torperf "
+            + "archive file.");
+      }
+      long position = MAGIC.length;
+      long size = channel.size();
+      ByteBuffer summary = ByteBuffer.allocate(24);
+      while (position + summary.capacity() <= size) {
+        summary.clear();
+        channel.read(summary, position);
+        long length = summary.getInt(0) & 0xFFFFFFFFL;
+        if (position + 4L + length > size) {
+          break;
+        }
+        if (summary.getLong(8) <= toMicros
+            && summary.getLong(16) >= fromMicros) {
+          ByteBuffer body = ByteBuffer.allocate((int) length);
+          channel.read(body, position + 4L);
+          body.flip();
+          blocks.add(readBlock(file, body, keys));
+        }
+        position += 4L + length;
+      }
+    }
+    return blocks;
+  }
+
+  private static Block readBlock(File file, ByteBuffer body,
+      Set<String> keys) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(body.array(), 0, body.limit() - 4);
+    if ((int) crc.getValue() != body.getInt(body.limit() - 4)) {
+      throw new IOException("Checksum mismatch in " + file + ".");
+    }
+    try {
+      Block block = new Block(body.getInt(), body.getLong(),
+          body.getLong());
+      int columnCount = body.getShort() & 0xFFFF;
+      String[] columnKeys = new String[columnCount];
+      byte[] types = new byte[columnCount];
+      int[] lengths = new int[columnCount];
+      for (int i = 0; i < columnCount; i++) {
+        columnKeys[i] = readUtf(body);
+        types[i] = body.get();
+        lengths[i] = body.getInt();
+      }
+      for (int i = 0; i < columnCount; i++) {
+        int end = body.position() + lengths[i];
+        if (keys == null || keys.contains(columnKeys[i])) {
+          block.columns.put(columnKeys[i], readColumn(body, types[i],
+              block.rows));
+        }
+        body.position(end);
+      }
+      return block;
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Invalid block in " + file + ".", e);
+    }
+  }
+
+  private static Column readColumn(ByteBuffer in, byte type, int rows) {
+    byte[] bitmap = new byte[(rows + 7) / 8];
+    in.get(bitmap);
+    BitSet present = BitSet.valueOf(bitmap);
+    long[] numbers = new long[rows];
+    String[] dictionary = null;
+    long base = 0L;
+    if (type == DICTIONARY) {
+      dictionary = new String[in.getInt()];
+      for (int i = 0; i < dictionary.length; i++) {
+        dictionary[i] = readUtf(in);
+      }
+    } else {
+      base = in.getLong();
+    }
+    int width = in.get();
+    for (int row = present.nextSetBit(0); row >= 0 && row < rows;
+        row = present.nextSetBit(row + 1)) {
+      numbers[row] = base + readUnsigned(in, width);
+    }
+    return new Column(type, present, numbers, dictionary);
+  }
+
+  private static String readUtf(ByteBuffer in) {
+    int length = in.getShort() & 0xFFFF;
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    /* Modified UTF-8 only differs from UTF-8 for characters that do not
+     * occur in Torperf files. */
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,161 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.torperf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Per-file state of downloading Torperf .data and .extradata files, so
+ * that only the part of a remote file that was added since the last
+ * download needs to be requested.
+ *
+ * <p>The state is stored as a text file with one tab-separated line per
+ * local output file, containing the output file name, the number of
+ * bytes of the remote file that were processed, the ETag and
+ * Last-Modified values of the last response, the last line processed
+ * from the remote file, the last timestamp line appended to the output
+ * file, the length of the last line in the remote file including its
+ * line terminator, and the length of the output file after appending to
+ * it.  Lines written before the last two fields were added are still
+ * accepted.</p>
+ */
+class TorperfDownloadState {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      TorperfDownloadState.class);
+
+  /** Download state of a single remote file. */
+  static final class Entry {
+
+    /** Number of bytes of the remote file that were processed, which is
+     * the offset of the first byte following the last complete line. */
+    final long remoteOffset;
+
+    /** ETag of the last response, or null if there was none. */
+    final String etag;
+
+    /** Last-Modified time of the last response in milliseconds, or 0 if
+     * there was none. */
+    final long lastModified;
+
+    /** Last complete line processed from the remote file, which is used
+     * to verify that the remote file was only appended to. */
+    final String lastLine;
+
+    /** Last timestamp line appended to the output file, or null if there
+     * was none. */
+    final String lastTimestampLine;
+
+    /** Number of bytes of the last line in the remote file, including
+     * its "\n" or "\r\n" line terminator. */
+    final int lastLineLength;
+
+    /** Length of the output file after appending to it, or -1 if
+     * unknown, which is used to undo lines that were appended without
+     * saving the state afterwards. */
+    final long localLength;
+
+    Entry(long remoteOffset, String etag, long lastModified,
+        String lastLine, String lastTimestampLine, int lastLineLength,
+        long localLength) {
+      this.remoteOffset = remoteOffset;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.lastLine = lastLine;
+      this.lastTimestampLine = lastTimestampLine;
+      this.lastLineLength = lastLineLength;
+      this.localLength = localLength;
+    }
+  }
+
+  private final File stateFile;
+
+  private final SortedMap<String, Entry> entries = new TreeMap<>();
+
+  TorperfDownloadState(File stateFile) {
+    this.stateFile = stateFile;
+  }
+
+  /** Reads the state file, or ignores previous state if the file is
+   * missing or cannot be read, which leads to downloading remote files
+   * in full. */
+  void read() {
+    this.entries.clear();
+    if (!this.stateFile.exists()) {
+      return;
+    }
+    try (BufferedReader br = Files.newBufferedReader(
+        this.stateFile.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split("\t", -1);
+        if ((parts.length != 6 && parts.length != 8) || parts[4].isEmpty()) {
+          throw new IOException("Invalid line '" + line + "'.");
+        }
+        int lastLineLength = parts.length == 8 ? Integer.parseInt(parts[6])
+            : parts[4].getBytes(StandardCharsets.UTF_8).length + 1;
+        long localLength = parts.length == 8 ? Long.parseLong(parts[7])
+            : -1L;
+        this.entries.put(parts[0], new Entry(Long.parseLong(parts[1]),
+            parts[2].isEmpty() ? null : parts[2], Long.parseLong(parts[3]),
+            parts[4], parts[5].isEmpty() ? null : parts[5], lastLineLength,
+            localLength));
+      }
+    } catch (IOException | NumberFormatException e) {
+      logger.warn("Error while reading '"
+          + this.stateFile.getAbsolutePath() + "'.  Downloading "
+          + ".data and .extradata files in full.", e);
+      this.entries.clear();
+    }
+  }
+
+  /** Writes the state file. */
+  void write() {
+    this.stateFile.getParentFile().mkdirs();
+    try (BufferedWriter bw = Files.newBufferedWriter(
+        this.stateFile.toPath(), StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+        Entry entry = e.getValue();
+        bw.write(e.getKey() + "\t" + entry.remoteOffset + "\t"
+            + (entry.etag == null ? "" : entry.etag) + "\t"
+            + entry.lastModified + "\t" + entry.lastLine + "\t"
+            + (entry.lastTimestampLine == null ? ""
+            : entry.lastTimestampLine) + "\t" + entry.lastLineLength + "\t"
+            + entry.localLength + "\n");
+      }
+    } catch (IOException e) {
+      logger.warn("Error while writing '"
+          + this.stateFile.getAbsolutePath() + "'.  This may result in "
+          + "downloading .data and .extradata files in full in the next "
+          + "execution.", e);
+    }
+  }
+
+  /** Returns the state of the remote file appended to the given output
+   * file, or null if there is none. */
+  synchronized Entry get(String outputFileName) {
+    return this.entries.get(outputFileName);
+  }
+
+  /** Sets the state of the remote file appended to the given output
+   * file, or removes it if the given state is null. */
+  synchronized void put(String outputFileName, Entry entry) {
+    if (entry == null || entry.lastLine == null) {
+      this.entries.remove(outputFileName);
+    } else {
+      this.entries.put(outputFileName, entry);
+    }
+  }
+}
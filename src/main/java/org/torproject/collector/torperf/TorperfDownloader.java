@@ -12,23 +12,40 @@ import org.torproject.collector.cron.CollecTorMain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.Stack;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 /* Download possibly truncated Torperf .data and .extradata files from
  * configured sources, append them to the files we already have, and merge
@@ -40,15 +57,35 @@ public class TorperfDownloader extends CollecTorMain {
 
   private static final String TORPERF = "torperf";
 
+  /* Output directory name of the columnar archive, which must not be
+   * contained in the torperf output directory that monthly tarballs are
+   * created from. */
+  private static final String TORPERF_COLUMNAR = "torperf-columnar";
+
   public TorperfDownloader(Configuration config) {
     super(config);
   }
 
   private File torperfOutputDirectory = null;
+  private File torperfRecentDirectory = null;
   private Map<String, String> torperfSources = new HashMap<>();
   private String[] torperfFilesLines = null;
-  private SimpleDateFormat dateFormat;
   private File torperfLastMergedFile;
+  private TorperfDownloadState downloadState;
+
+  /* Semaphores limiting concurrent downloads from the same host. */
+  private final Map<String, Semaphore> hostPermits =
+      new ConcurrentHashMap<>();
+
+  private int downloadsPerHost;
+
+  /* Locks held while merging into the .tpf files of a given source and
+   * file size, so that those files are only written by one thread. */
+  private final Map<String, Object> mergeLocks = new ConcurrentHashMap<>();
+
+  /* Columnar archive that merged measurements are appended to, or null
+   * if measurements are only written to .tpf files. */
+  private TorperfColumnarArchive columnarArchive;
 
   @Override
   public String module() {
@@ -65,27 +102,54 @@ public class TorperfDownloader extends CollecTorMain {
     this.torperfFilesLines = config.getStringArray(Key.TorperfFilesLines);
     this.torperfOutputDirectory
         = new File(config.getPath(Key.OutputPath).toString(), TORPERF);
+    this.torperfRecentDirectory
+        = new File(config.getPath(Key.RecentPath).toFile(), TORPERF);
     this.torperfLastMergedFile =
         new File(config.getPath(Key.StatsPath).toFile(), "torperf-last-merged");
     if (!this.torperfOutputDirectory.exists()) {
       this.torperfOutputDirectory.mkdirs();
     }
-    this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-    this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    this.columnarArchive = config.getBool(Key.TorperfColumnarArchive)
+        ? new TorperfColumnarArchive(new File(
+        config.getPath(Key.OutputPath).toFile(), TORPERF_COLUMNAR))
+        : null;
     this.readLastMergedTimestamps();
+    this.downloadState = new TorperfDownloadState(
+        new File(config.getPath(Key.StatsPath).toFile(),
+        "torperf-download-state"));
+    this.downloadState.read();
     for (String[] source : config.getStringArrayArray(Key.TorperfHosts)) {
       torperfSources.put(source[0], source[1]);
     }
+    this.downloadsPerHost = Math.max(1,
+        config.getInt(Key.TorperfDownloadsPerHost));
+    ExecutorService downloaders = Executors.newFixedThreadPool(
+        Math.max(1, config.getInt(Key.TorperfDownloadThreads)));
+    List<CompletableFuture<Void>> merges = new ArrayList<>();
     for (String torperfFilesLine : this.torperfFilesLines) {
-      this.downloadAndMergeFiles(torperfFilesLine);
+      CompletableFuture<Void> merge = this.downloadAndMergeFiles(
+          torperfFilesLine, downloaders);
+      if (merge != null) {
+        merges.add(merge);
+      }
+    }
+    try {
+      CompletableFuture.allOf(merges.toArray(
+          new CompletableFuture<?>[merges.size()])).join();
+    } catch (CompletionException e) {
+      logger.warn("Failed downloading and/or merging Torperf files.",
+          e.getCause());
+    } finally {
+      downloaders.shutdown();
     }
     this.writeLastMergedTimestamps();
+    this.downloadState.write();
 
     this.cleanUpRsyncDirectory();
   }
 
   SortedMap<String, String> lastMergedTimestamps =
-      new TreeMap<String, String>();
+      Collections.synchronizedSortedMap(new TreeMap<String, String>());
 
   private void readLastMergedTimestamps() {
     if (!this.torperfLastMergedFile.exists()) {
@@ -147,8 +211,11 @@ public class TorperfDownloader extends CollecTorMain {
     }
   }
 
-  private void downloadAndMergeFiles(String torperfFilesLine)
-      throws ConfigurationException {
+  /* Starts downloading the .data and .extradata files configured in the
+   * given line using the given executor, and returns a future that
+   * completes after merging them, or null if the line is invalid. */
+  private CompletableFuture<Void> downloadAndMergeFiles(
+      String torperfFilesLine, ExecutorService downloaders) {
     String[] parts = torperfFilesLine.split(" ");
     String sourceName = parts[0];
     int fileSize = -1;
@@ -158,7 +225,7 @@ public class TorperfDownloader extends CollecTorMain {
       logger.warn("Could not parse file size in "
           + "TorperfFiles configuration line '" + torperfFilesLine
           + "'.", e);
-      return;
+      return null;
     }
 
     /* Download and append the .data file. */
@@ -168,8 +235,9 @@ public class TorperfDownloader extends CollecTorMain {
     String dataOutputFileName = sourceName + "-" + dataFileName;
     File dataOutputFile = new File(torperfOutputDirectory,
         dataOutputFileName);
-    boolean downloadedDataFile = this.downloadAndAppendFile(dataUrl,
-        dataOutputFile, true);
+    CompletableFuture<Boolean> downloadedDataFile =
+        CompletableFuture.supplyAsync(() -> this.downloadFromHost(dataUrl,
+        dataOutputFile, true), downloaders);
 
     /* Download and append the .extradata file. */
     String extradataFileName = parts[3];
@@ -177,32 +245,94 @@ public class TorperfDownloader extends CollecTorMain {
     String extradataOutputFileName = sourceName + "-" + extradataFileName;
     File extradataOutputFile = new File(torperfOutputDirectory,
         extradataOutputFileName);
-    boolean downloadedExtradataFile = this.downloadAndAppendFile(
-        extradataUrl, extradataOutputFile, false);
+    CompletableFuture<Boolean> downloadedExtradataFile =
+        CompletableFuture.supplyAsync(() -> this.downloadFromHost(
+        extradataUrl, extradataOutputFile, false), downloaders);
+
+    /* Merge both files into .tpf format as soon as both are
+     * downloaded. */
+    final int mergedFileSize = fileSize;
+    return downloadedDataFile.thenAcceptBothAsync(downloadedExtradataFile,
+        (downloadedData, downloadedExtradata) -> {
+          if (!downloadedData && !downloadedExtradata) {
+            return;
+          }
+          this.mergeDownloadedFiles(dataOutputFile, extradataOutputFile,
+              sourceName, mergedFileSize, dataOutputFileName);
+        }, downloaders);
+  }
 
-    /* Merge both files into .tpf format. */
-    if (!downloadedDataFile && !downloadedExtradataFile) {
-      return;
-    }
-    String skipUntil = null;
-    if (this.lastMergedTimestamps.containsKey(dataOutputFileName)) {
-      skipUntil = this.lastMergedTimestamps.get(dataOutputFileName);
+  /* Downloads and appends the given file while holding a permit for
+   * downloading from the host in the given URL. */
+  private boolean downloadFromHost(String urlString, File outputFile,
+      boolean isDataFile) {
+    String host;
+    try {
+      host = new URL(urlString).getHost();
+    } catch (MalformedURLException e) {
+      logger.warn("Invalid URL '" + urlString + "'.", e);
+      return false;
     }
+    Semaphore permits = this.hostPermits.computeIfAbsent(host,
+        h -> new Semaphore(this.downloadsPerHost));
+    permits.acquireUninterruptibly();
     try {
-      skipUntil = this.mergeFiles(dataOutputFile, extradataOutputFile,
-          sourceName, fileSize, skipUntil);
-    } catch (IOException e) {
-      logger.warn("Failed merging " + dataOutputFile
-          + " and " + extradataOutputFile + ".", e);
+      return this.downloadAndAppendFile(urlString, outputFile, isDataFile);
+    } finally {
+      permits.release();
     }
-    if (skipUntil != null) {
-      this.lastMergedTimestamps.put(dataOutputFileName, skipUntil);
+  }
+
+  /* Merges the given .data and .extradata files, unless another thread
+   * is currently merging files with the same source and file size. */
+  private void mergeDownloadedFiles(File dataOutputFile,
+      File extradataOutputFile, String sourceName, int fileSize,
+      String dataOutputFileName) {
+    Object mergeLock = this.mergeLocks.computeIfAbsent(sourceName + "-"
+        + fileSize, k -> new Object());
+    synchronized (mergeLock) {
+      String skipUntil = null;
+      if (this.lastMergedTimestamps.containsKey(dataOutputFileName)) {
+        skipUntil = this.lastMergedTimestamps.get(dataOutputFileName);
+      }
+      try {
+        skipUntil = this.mergeFiles(dataOutputFile, extradataOutputFile,
+            sourceName, fileSize, skipUntil);
+      } catch (IOException e) {
+        logger.warn("Failed merging " + dataOutputFile
+            + " and " + extradataOutputFile + ".", e);
+      }
+      if (skipUntil != null) {
+        this.lastMergedTimestamps.put(dataOutputFileName, skipUntil);
+      }
     }
   }
 
   private boolean downloadAndAppendFile(String urlString, File outputFile,
       boolean isDataFile) {
 
+    /* Try to download only the part of the remote file that was added
+     * since the last download, and fall back to downloading the whole
+     * file if that part doesn't continue where we stopped last time. */
+    TorperfDownloadState.Entry state = this.downloadState.get(
+        outputFile.getName());
+    if (state != null && outputFile.exists()) {
+      try {
+        TorperfDownloadState.Entry newState = this.downloadAndAppendTail(
+            urlString, outputFile, isDataFile, state);
+        if (newState != null) {
+          this.downloadState.put(outputFile.getName(), newState);
+          this.checkLastTimestampLine(outputFile, isDataFile,
+              newState.lastTimestampLine);
+          return true;
+        }
+      } catch (IOException e) {
+        logger.warn("Failed downloading and/or merging the new part of '"
+            + urlString + "'.  Downloading the whole file instead.", e);
+      }
+    }
+    this.downloadState.put(outputFile.getName(), null);
+
     /* Read an existing output file to determine which line will be the
      * first to append to it. */
     String lastTimestampLine = null;
@@ -236,13 +366,14 @@ public class TorperfDownloader extends CollecTorMain {
       HttpURLConnection huc = (HttpURLConnection) url.openConnection();
       huc.setRequestMethod("GET");
       huc.connect();
-      BufferedReader br = new BufferedReader(new InputStreamReader(
-          huc.getInputStream()));
+      RemoteLineReader rlr = new RemoteLineReader(huc.getInputStream());
       String line;
+      String lastLine = null;
       BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile,
           true));
       boolean copyLines = lastTimestampLine == null;
-      while ((line = br.readLine()) != null) {
+      while ((line = rlr.readLine()) != null) {
+        lastLine = line;
         if (copyLines && linesAfterLastTimestampLine == 0) {
           if (isDataFile || line.contains(" LAUNCH")) {
             lastTimestampLine = line;
@@ -255,7 +386,7 @@ public class TorperfDownloader extends CollecTorMain {
         }
       }
       bw.close();
-      br.close();
+      rlr.close();
       if (!copyLines) {
         logger.warn("The last timestamp line in '"
             + outputFile.getAbsolutePath() + "' is not contained in the "
@@ -263,11 +394,102 @@ public class TorperfDownloader extends CollecTorMain {
             + "new lines without possibly leaving a gap.  Skipping.");
         return false;
       }
+      this.downloadState.put(outputFile.getName(),
+          new TorperfDownloadState.Entry(rlr.offset,
+          huc.getHeaderField("ETag"), huc.getLastModified(), lastLine,
+          lastTimestampLine, rlr.lastLineLength, outputFile.length()));
     } catch (IOException e) {
       logger.warn("Failed downloading and/or merging '"
           + urlString + "'.", e);
       return false;
     }
+    this.checkLastTimestampLine(outputFile, isDataFile, lastTimestampLine);
+    return true;
+  }
+
+  /* Requests the part of the remote file following the given state,
+   * starting with the last line processed before, appends new lines to
+   * the output file, and returns the new state, or returns null if the
+   * remote file was not only appended to since the last download or if
+   * the output file was modified otherwise.  Lines appended after the
+   * given state was saved, for example by an execution that did not
+   * finish, are removed first, so that they are not appended twice. */
+  private TorperfDownloadState.Entry downloadAndAppendTail(
+      String urlString, File outputFile, boolean isDataFile,
+      TorperfDownloadState.Entry state) throws IOException {
+    long rangeStart = state.remoteOffset - state.lastLineLength;
+    if (rangeStart < 0L) {
+      return null;
+    }
+    if (state.localLength >= 0L) {
+      long localLength = outputFile.length();
+      if (localLength < state.localLength) {
+        return null;
+      } else if (localLength > state.localLength) {
+        logger.info("Removing " + (localLength - state.localLength)
+            + " bytes from '" + outputFile.getAbsolutePath() + "' that "
+            + "were appended after saving the download state.");
+        try (FileChannel fc = FileChannel.open(outputFile.toPath(),
+            StandardOpenOption.WRITE)) {
+          fc.truncate(state.localLength);
+        }
+      }
+    }
+    logger.debug("Downloading " + (isDataFile ? ".data" : ".extradata")
+        + " file from '" + urlString + "' starting at byte " + rangeStart
+        + " and merging it into '" + outputFile.getAbsolutePath() + "'.");
+    HttpURLConnection huc = (HttpURLConnection) new URL(urlString)
+        .openConnection();
+    huc.setRequestMethod("GET");
+    huc.setRequestProperty("Range", "bytes=" + rangeStart + "-");
+    if (state.etag != null) {
+      huc.setRequestProperty("If-None-Match", state.etag);
+    } else if (state.lastModified > 0L) {
+      huc.setIfModifiedSince(state.lastModified);
+    }
+    huc.connect();
+    int responseCode = huc.getResponseCode();
+    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      huc.disconnect();
+      return state;
+    } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+      /* The server either ignored the range and is sending the whole
+       * file, or the file became shorter, or there was an error.  Either
+       * way, let the full download handle it. */
+      huc.disconnect();
+      return null;
+    }
+    String lastLine = state.lastLine;
+    String lastTimestampLine = state.lastTimestampLine;
+    try (RemoteLineReader rlr = new RemoteLineReader(
+        huc.getInputStream())) {
+      rlr.offset = rangeStart;
+      if (!state.lastLine.equals(rlr.readLine())) {
+        logger.debug("The remote file '" + urlString + "' does not "
+            + "continue where we stopped downloading it last time.");
+        return null;
+      }
+      String line;
+      try (BufferedWriter bw = new BufferedWriter(new FileWriter(
+          outputFile, true))) {
+        while ((line = rlr.readLine()) != null) {
+          lastLine = line;
+          if (isDataFile || line.contains(" LAUNCH")) {
+            lastTimestampLine = line;
+          }
+          bw.write(line + "\n");
+        }
+      }
+      return new TorperfDownloadState.Entry(rlr.offset,
+          huc.getHeaderField("ETag"), huc.getLastModified(), lastLine,
+          lastTimestampLine, rlr.lastLineLength, outputFile.length());
+    }
+  }
+
+  /* Warns if the given last timestamp line of the given output file is
+   * missing or more than 5:30 hours old. */
+  private void checkLastTimestampLine(File outputFile, boolean isDataFile,
+      String lastTimestampLine) {
     if (lastTimestampLine == null) {
       logger.warn("'" + outputFile.getAbsolutePath()
           + "' doesn't contain any timestamp lines.  Unable to check "
@@ -290,12 +512,54 @@ public class TorperfDownloader extends CollecTorMain {
             + "old: " + lastTimestampMillis);
       }
     }
-    return true;
+  }
+
+  /* Reads complete lines from a remote file and counts the bytes read,
+   * so that the next download can start where this one stopped.  A last
+   * line that is not terminated by a newline is left for the next
+   * download, because it might still be written to. */
+  private static class RemoteLineReader implements AutoCloseable {
+
+    private final InputStream in;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /** Offset in the remote file following the last complete line. */
+    long offset = 0L;
+
+    /** Number of bytes of the last complete line, including its line
+     * terminator. */
+    int lastLineLength = 0;
+
+    RemoteLineReader(InputStream in) {
+      this.in = new BufferedInputStream(in);
+    }
+
+    String readLine() throws IOException {
+      this.line.reset();
+      int read;
+      while ((read = this.in.read()) >= 0) {
+        if (read == '\n') {
+          this.lastLineLength = this.line.size() + 1;
+          this.offset += this.lastLineLength;
+          String result = new String(this.line.toByteArray(),
+              StandardCharsets.UTF_8);
+          return result.endsWith("\r")
+              ? result.substring(0, result.length() - 1) : result;
+        }
+        this.line.write(read);
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.in.close();
+    }
   }
 
   private String mergeFiles(File dataFile, File extradataFile,
-      String source, int fileSize, String skipUntil) throws IOException,
-      ConfigurationException {
+      String source, int fileSize, String skipUntil) throws IOException {
     if (!dataFile.exists() || !extradataFile.exists()) {
       logger.warn("File " + dataFile.getAbsolutePath() + " or "
           + extradataFile.getAbsolutePath() + " is missing.");
@@ -303,14 +567,39 @@ public class TorperfDownloader extends CollecTorMain {
     }
     logger.debug("Merging " + dataFile.getAbsolutePath() + " and "
         + extradataFile.getAbsolutePath() + " into .tpf format.");
+    long skipUntilMicros = Long.MIN_VALUE;
+    if (skipUntil != null) {
+      skipUntilMicros = TorperfFields.parseMicros(skipUntil, 0,
+          skipUntil.length());
+      if (skipUntilMicros == Long.MIN_VALUE) {
+        logger.warn("Illegal last merged timestamp '" + skipUntil
+            + "'.  Merging " + dataFile.getName() + " and "
+            + extradataFile.getName() + " in full.");
+      }
+    }
+    TpfLineCache tpfLineCache = new TpfLineCache();
+    TorperfColumnarArchive.Batch columnarBatch =
+        this.columnarArchive == null ? null
+        : new TorperfColumnarArchive.Batch();
+    String fileSizeString = String.valueOf(fileSize);
+
+    /* Fields and buffers are reused for all lines, so that merging does
+     * not create more than the line strings themselves. */
+    TorperfFields data = new TorperfFields();
+    TorperfFields extradata = new TorperfFields();
+    TorperfFields merged = new TorperfFields();
+    StringBuilder tpfLine = new StringBuilder(1024);
+    StringBuilder startString = new StringBuilder(16);
+    StringBuilder maxDataComplete = new StringBuilder(16);
+    StringBuilder maxUsedAt = new StringBuilder(16);
+    long maxDataCompleteMicros = Long.MIN_VALUE;
+    long maxUsedAtMicros = Long.MIN_VALUE;
     BufferedReader brD = new BufferedReader(new FileReader(dataFile));
     BufferedReader brE = new BufferedReader(new FileReader(extradataFile));
     String lineD = brD.readLine();
     String lineE = brE.readLine();
     int skippedLineCount = 1;
     int skippedExtraDataCount = 1;
-    String maxDataComplete = null;
-    String maxUsedAt = null;
     while (lineD != null) {
 
       /* Parse .data line.  Every valid .data line will go into the .tpf
@@ -322,26 +611,27 @@ public class TorperfDownloader extends CollecTorMain {
         lineD = brD.readLine();
         continue;
       }
-      SortedMap<String, String> data = this.parseDataLine(lineD);
-      if (data == null) {
+      if (!data.parseDataLine(lineD)) {
         logger.trace("Skipping illegal line " + dataFile.getName()
             + ":" + skippedLineCount++ + " '" + lineD + "'.");
         lineD = brD.readLine();
         continue;
       }
-      String dataComplete = data.get("DATACOMPLETE");
-      double dataCompleteSeconds = Double.parseDouble(dataComplete);
-      if (skipUntil != null && dataComplete.compareTo(skipUntil) < 0) {
+      long dataCompleteMicros = data.getDataCompleteMicros();
+      if (dataCompleteMicros < skipUntilMicros) {
         logger.trace("Skipping " + dataFile.getName() + ":"
             + skippedLineCount++ + " which we already processed before.");
         lineD = brD.readLine();
         continue;
       }
-      maxDataComplete = dataComplete;
+      maxDataCompleteMicros = dataCompleteMicros;
+      maxDataComplete.setLength(0);
+      data.appendValue("DATACOMPLETE", maxDataComplete);
 
       /* Parse .extradata line if available and try to find the one that
-       * matches the .data line. */
-      SortedMap<String, String> extradata = null;
+       * matches the .data line.  An .extradata line that was parsed but
+       * skipped is still merged if it is the last line of its file. */
+      boolean haveExtradata = false;
       while (lineE != null) {
         if (lineE.isEmpty()) {
           logger.trace("Skipping " + extradataFile.getName() + ":"
@@ -362,40 +652,41 @@ public class TorperfDownloader extends CollecTorMain {
           lineE = brE.readLine();
           continue;
         }
-        extradata = this.parseExtradataLine(lineE);
-        if (extradata == null) {
+        haveExtradata = extradata.parseExtradataLine(lineE);
+        if (!haveExtradata) {
           logger.trace("Skipping Illegal line "
               + extradataFile.getName() + ":" + skippedExtraDataCount++
               + " '" + lineE + "'.");
           lineE = brE.readLine();
           continue;
         }
-        if (!extradata.containsKey("USED_AT")) {
+        long usedAtMicros = extradata.getUsedAtMicros();
+        if (usedAtMicros == Long.MIN_VALUE) {
           logger.trace("Skipping " + extradataFile.getName() + ":"
               + skippedExtraDataCount++ + " which doesn't contain a "
-              + "USED_AT element.");
+              + "valid USED_AT element.");
           lineE = brE.readLine();
           continue;
         }
-        String usedAt = extradata.get("USED_AT");
-        double usedAtSeconds = Double.parseDouble(usedAt);
-        if (skipUntil != null && usedAt.compareTo(skipUntil) < 0) {
+        if (usedAtMicros < skipUntilMicros) {
           logger.trace("Skipping " + extradataFile.getName() + ":"
               + skippedExtraDataCount++ + " which we already processed "
               + "before.");
           lineE = brE.readLine();
           continue;
         }
-        maxUsedAt = usedAt;
-        if (Math.abs(usedAtSeconds - dataCompleteSeconds) <= 1.0) {
+        maxUsedAtMicros = usedAtMicros;
+        maxUsedAt.setLength(0);
+        extradata.appendValue("USED_AT", maxUsedAt);
+        if (Math.abs(usedAtMicros - dataCompleteMicros) <= 1000000L) {
           logger.debug("Merging " + extradataFile.getName() + ":"
               + skippedExtraDataCount++ + " into the current .data line.");
           lineE = brE.readLine();
           break;
-        } else if (usedAtSeconds > dataCompleteSeconds) {
+        } else if (usedAtMicros > dataCompleteMicros) {
           logger.trace("Comparing " + extradataFile.getName()
               + " to the next .data line.");
-          extradata = null;
+          haveExtradata = false;
           break;
         } else {
           logger.trace("Skipping " + extradataFile.getName() + ":"
@@ -407,216 +698,223 @@ public class TorperfDownloader extends CollecTorMain {
         }
       }
 
-      /* Write output line to .tpf file. */
-      SortedMap<String, String> keysAndValues =
-          new TreeMap<String, String>();
-      keysAndValues.put("SOURCE", source);
-      keysAndValues.put("FILESIZE", String.valueOf(fileSize));
-      if (extradata != null) {
-        keysAndValues.putAll(extradata);
+      /* Write output line to .tpf file, where .data values take
+       * precedence over .extradata values with the same key. */
+      merged.clear();
+      merged.add("SOURCE", source);
+      merged.add("FILESIZE", fileSizeString);
+      if (haveExtradata) {
+        merged.addAll(extradata);
       }
-      keysAndValues.putAll(data);
+      merged.addAll(data);
+      tpfLine.setLength(0);
+      merged.appendSorted(tpfLine);
+      startString.setLength(0);
+      data.appendValue("START", startString);
       logger.debug("Writing " + dataFile.getName() + ":"
           + skippedLineCount++ + ".");
       lineD = brD.readLine();
       try {
-        this.writeTpfLine(source, fileSize, keysAndValues);
+        if (tpfLineCache.writeTpfLine(source, fileSize,
+            data.getStartSeconds(), startString.toString(),
+            tpfLine.toString()) && columnarBatch != null) {
+          columnarBatch.addRow(data.getStartMicros(), merged);
+        }
       } catch (IOException ex) {
         logger.warn("Error writing output line.  "
             + "Aborting to merge " + dataFile.getName() + " and "
-            + extradataFile.getName() + ".", skippedExtraDataCount);
+            + extradataFile.getName() + ".", ex);
         break;
       }
     }
     brD.close();
     brE.close();
-    this.writeCachedTpfLines();
-    if (maxDataComplete == null) {
-      return maxUsedAt;
-    } else if (maxUsedAt == null) {
-      return maxDataComplete;
-    } else if (maxDataComplete.compareTo(maxUsedAt) > 0) {
-      return maxUsedAt;
+    tpfLineCache.writeCachedTpfLines();
+    if (columnarBatch != null && columnarBatch.size() > 0) {
+      try {
+        this.columnarArchive.append(columnarBatch);
+      } catch (IOException e) {
+        logger.warn("Could not append " + columnarBatch.size()
+            + " measurements from " + dataFile.getName() + " and "
+            + extradataFile.getName() + " to the columnar archive.", e);
+      }
+    }
+    if (maxDataCompleteMicros == Long.MIN_VALUE) {
+      return maxUsedAtMicros == Long.MIN_VALUE ? null
+          : maxUsedAt.toString();
+    } else if (maxUsedAtMicros == Long.MIN_VALUE) {
+      return maxDataComplete.toString();
+    } else if (maxDataCompleteMicros > maxUsedAtMicros) {
+      return maxUsedAt.toString();
     } else {
-      return maxDataComplete;
+      return maxDataComplete.toString();
     }
   }
 
-  private SortedMap<Integer, String> dataTimestamps;
+  /** Maximum number of .tpf day files that are kept in memory per merge
+   * before the least recently used one is written to disk. */
+  private static final int MAX_CACHED_TPF_FILES = 32;
 
-  private SortedMap<String, String> parseDataLine(String line) {
-    String[] parts = line.trim().split(" ");
-    if (line.length() == 0 || parts.length < 20) {
-      return null;
+  /* Lines of .tpf files of single sources, file sizes, and days that are
+   * cached while merging, with one instance per merge, so that merges can
+   * run in parallel.  Up to MAX_CACHED_TPF_FILES files are kept in least
+   * recently used order, and only files with new or changed lines are
+   * written, either when evicted or at the end of the merge, so that
+   * interleaved or late lines do not cause the same file to be read and
+   * written more than once. */
+  private class TpfLineCache {
+
+    private final SimpleDateFormat dateFormat;
+
+    /* Cached .tpf files by file name in access order. */
+    private final LinkedHashMap<String, TpfFile> cachedTpfFiles =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /* Most recently used file, which is looked up without building its
+     * file name as long as lines belong to the same file. */
+    private TpfFile lastTpfFile;
+
+    /* Day of the last START timestamp and its formatted date, so that
+     * dates are only formatted once per day rather than once per line. */
+    private long cachedStartDay = Long.MIN_VALUE;
+
+    private String cachedStartDayString;
+
+    private int readFiles = 0;
+
+    private int writtenFiles = 0;
+
+    TpfLineCache() {
+      this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+      this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
-    if (this.dataTimestamps == null) {
-      this.dataTimestamps = new TreeMap<Integer, String>();
-      this.dataTimestamps.put(0, "START");
-      this.dataTimestamps.put(2, "SOCKET");
-      this.dataTimestamps.put(4, "CONNECT");
-      this.dataTimestamps.put(6, "NEGOTIATE");
-      this.dataTimestamps.put(8, "REQUEST");
-      this.dataTimestamps.put(10, "RESPONSE");
-      this.dataTimestamps.put(12, "DATAREQUEST");
-      this.dataTimestamps.put(14, "DATARESPONSE");
-      this.dataTimestamps.put(16, "DATACOMPLETE");
-      this.dataTimestamps.put(21, "DATAPERC10");
-      this.dataTimestamps.put(23, "DATAPERC20");
-      this.dataTimestamps.put(25, "DATAPERC30");
-      this.dataTimestamps.put(27, "DATAPERC40");
-      this.dataTimestamps.put(29, "DATAPERC50");
-      this.dataTimestamps.put(31, "DATAPERC60");
-      this.dataTimestamps.put(33, "DATAPERC70");
-      this.dataTimestamps.put(35, "DATAPERC80");
-      this.dataTimestamps.put(37, "DATAPERC90");
-    }
-    SortedMap<String, String> data = new TreeMap<String, String>();
-    try {
-      for (Map.Entry<Integer, String> e : this.dataTimestamps.entrySet()) {
-        int intKey = e.getKey();
-        if (parts.length > intKey + 1) {
-          String key = e.getValue();
-          String value = String.format("%s.%02d", parts[intKey],
-              Integer.parseInt(parts[intKey + 1]) / 10000);
-          data.put(key, value);
-        }
+
+    /* Adds the given line unless the cached file already contains a line
+     * with the same START timestamp that is at least as long, and returns
+     * whether the line was added. */
+    private boolean writeTpfLine(String source, int fileSize,
+        long startSeconds, String startString, String line)
+        throws IOException {
+      long startDay = Math.floorDiv(startSeconds, 86400L);
+      if (startDay != this.cachedStartDay) {
+        this.cachedStartDay = startDay;
+        this.cachedStartDayString = this.dateFormat.format(
+            startSeconds * 1000L);
       }
-    } catch (NumberFormatException e) {
-      return null;
+      String startDate = this.cachedStartDayString;
+      TpfFile tpfFile = this.lastTpfFile;
+      if (tpfFile == null || !source.equals(tpfFile.source)
+          || fileSize != tpfFile.fileSize
+          || !startDate.equals(tpfFile.startDate)) {
+        tpfFile = this.getTpfFile(source, fileSize, startDate);
+        this.lastTpfFile = tpfFile;
+      }
+      String cachedLine = tpfFile.lines.get(startString);
+      if (cachedLine == null || line.length() > cachedLine.length()) {
+        tpfFile.lines.put(startString, line);
+        tpfFile.dirty = true;
+        return true;
+      }
+      return false;
     }
-    data.put("WRITEBYTES", parts[18]);
-    data.put("READBYTES", parts[19]);
-    if (parts.length >= 21) {
-      data.put("DIDTIMEOUT", parts[20]);
+
+    private TpfFile getTpfFile(String source, int fileSize,
+        String startDate) throws IOException {
+      String fileName = source + "-" + String.valueOf(fileSize) + "-"
+          + startDate + ".tpf";
+      TpfFile tpfFile = this.cachedTpfFiles.get(fileName);
+      if (tpfFile == null) {
+        tpfFile = new TpfFile(source, fileSize, startDate, fileName);
+        this.readTpfLines(tpfFile);
+        this.cachedTpfFiles.put(fileName, tpfFile);
+        if (this.cachedTpfFiles.size() > MAX_CACHED_TPF_FILES) {
+          Iterator<TpfFile> eldest =
+              this.cachedTpfFiles.values().iterator();
+          TpfFile evicted = eldest.next();
+          eldest.remove();
+          this.writeTpfLines(evicted);
+        }
+      }
+      return tpfFile;
     }
-    return data;
-  }
 
-  private SortedMap<String, String> parseExtradataLine(String line) {
-    String[] parts = line.split(" ");
-    SortedMap<String, String> extradata = new TreeMap<String, String>();
-    String previousKey = null;
-    for (String part : parts) {
-      String[] keyAndValue = part.split("=", -1);
-      if (keyAndValue.length == 2) {
-        String key = keyAndValue[0];
-        previousKey = key;
-        String value = keyAndValue[1];
-        if (value.contains(".") && value.lastIndexOf(".")
-            == value.length() - 2) {
-          /* Make sure that all floats have two trailing digits. */
-          value += "0";
+    private void readTpfLines(TpfFile tpfFile) throws IOException {
+      File file = new File(torperfOutputDirectory,
+          tpfFile.startDate.replaceAll("-", "/") + "/" + tpfFile.fileName);
+      if (!file.exists()) {
+        return;
+      }
+      this.readFiles++;
+      BufferedReader br = new BufferedReader(new FileReader(file));
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (line.startsWith("@type ")) {
+          continue;
         }
-        extradata.put(key, value);
-      } else if (keyAndValue.length == 1 && previousKey != null) {
-        String value = keyAndValue[0];
-        if (previousKey.equals("STREAM_FAIL_REASONS")
-            && (value.equals("MISC") || value.equals("EXITPOLICY")
-            || value.equals("RESOURCELIMIT")
-            || value.equals("RESOLVEFAILED"))) {
-          extradata.put(previousKey, extradata.get(previousKey) + ":"
-              + value);
-        } else {
-          return null;
+        if (line.contains("START=")) {
+          String startString = line.substring(line.indexOf("START=")
+              + "START=".length()).split(" ")[0];
+          tpfFile.lines.put(startString, line);
         }
-      } else {
-        return null;
       }
+      br.close();
+    }
+
+    private void writeTpfLines(TpfFile tpfFile) throws IOException {
+      if (!tpfFile.dirty) {
+        return;
+      }
+      this.writtenFiles++;
+      File tarballFile = new File(torperfOutputDirectory,
+          tpfFile.startDate.replaceAll("-", "/") + "/" + tpfFile.fileName);
+      File rsyncFile = new File(torperfRecentDirectory, tpfFile.fileName);
+      File[] outputFiles = new File[] { tarballFile, rsyncFile };
+      for (File outputFile : outputFiles) {
+        outputFile.getParentFile().mkdirs();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
+        for (String line : tpfFile.lines.values()) {
+          bw.write(Annotation.Torperf.toString());
+          bw.write(line + "\n");
+        }
+        bw.close();
+      }
+      tpfFile.dirty = false;
+    }
+
+    /* Writes all cached files with new or changed lines. */
+    private void writeCachedTpfLines() throws IOException {
+      for (TpfFile tpfFile : this.cachedTpfFiles.values()) {
+        this.writeTpfLines(tpfFile);
+      }
+      logger.debug("Read " + this.readFiles + " and wrote "
+          + this.writtenFiles + " .tpf files.");
+      this.cachedTpfFiles.clear();
+      this.lastTpfFile = null;
     }
-    return extradata;
   }
 
-  private String cachedSource;
+  /* Lines of a single .tpf file by START timestamp. */
+  private static class TpfFile {
 
-  private int cachedFileSize;
+    private final String source;
 
-  private String cachedStartDate;
+    private final int fileSize;
 
-  private SortedMap<String, String> cachedTpfLines;
+    private final String startDate;
 
-  private void writeTpfLine(String source, int fileSize,
-      SortedMap<String, String> keysAndValues) throws ConfigurationException,
-      IOException {
-    StringBuilder sb = new StringBuilder();
-    int written = 0;
-    for (Map.Entry<String, String> keyAndValue :
-        keysAndValues.entrySet()) {
-      String key = keyAndValue.getKey();
-      String value = keyAndValue.getValue();
-      sb.append((written++ > 0 ? " " : "") + key + "=" + value);
-    }
-    String line = sb.toString();
-    String startString = keysAndValues.get("START");
-    long startMillis = Long.parseLong(startString.substring(0,
-        startString.indexOf("."))) * 1000L;
-    String startDate = dateFormat.format(startMillis);
-    if (this.cachedTpfLines == null || !source.equals(this.cachedSource)
-        || fileSize != this.cachedFileSize
-        || !startDate.equals(this.cachedStartDate)) {
-      this.writeCachedTpfLines();
-      this.readTpfLinesToCache(source, fileSize, startDate);
-    }
-    if (!this.cachedTpfLines.containsKey(startString)
-        || line.length() > this.cachedTpfLines.get(startString).length()) {
-      this.cachedTpfLines.put(startString, line);
-    }
-  }
+    private final String fileName;
 
-  private void readTpfLinesToCache(String source, int fileSize,
-      String startDate) throws IOException {
-    this.cachedTpfLines = new TreeMap<String, String>();
-    this.cachedSource = source;
-    this.cachedFileSize = fileSize;
-    this.cachedStartDate = startDate;
-    File tpfFile = new File(torperfOutputDirectory,
-        startDate.replaceAll("-", "/") + "/"
-        + source + "-" + String.valueOf(fileSize) + "-" + startDate
-        + ".tpf");
-    if (!tpfFile.exists()) {
-      return;
-    }
-    BufferedReader br = new BufferedReader(new FileReader(tpfFile));
-    String line;
-    while ((line = br.readLine()) != null) {
-      if (line.startsWith("@type ")) {
-        continue;
-      }
-      if (line.contains("START=")) {
-        String startString = line.substring(line.indexOf("START=")
-            + "START=".length()).split(" ")[0];
-        this.cachedTpfLines.put(startString, line);
-      }
-    }
-    br.close();
-  }
+    private final SortedMap<String, String> lines = new TreeMap<>();
 
-  private void writeCachedTpfLines() throws ConfigurationException,
-      IOException {
-    if (this.cachedSource == null || this.cachedFileSize == 0
-        || this.cachedStartDate == null || this.cachedTpfLines == null) {
-      return;
-    }
-    File tarballFile = new File(torperfOutputDirectory,
-        this.cachedStartDate.replaceAll("-", "/")
-        + "/" + this.cachedSource + "-"
-        + String.valueOf(this.cachedFileSize) + "-"
-        + this.cachedStartDate + ".tpf");
-    File rsyncFile = new File(config.getPath(Key.RecentPath).toFile(),
-        "torperf/" + tarballFile.getName());
-    File[] outputFiles = new File[] { tarballFile, rsyncFile };
-    for (File outputFile : outputFiles) {
-      outputFile.getParentFile().mkdirs();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
-      for (String line : this.cachedTpfLines.values()) {
-        bw.write(Annotation.Torperf.toString());
-        bw.write(line + "\n");
-      }
-      bw.close();
+    private boolean dirty = false;
+
+    TpfFile(String source, int fileSize, String startDate,
+        String fileName) {
+      this.source = source;
+      this.fileSize = fileSize;
+      this.startDate = startDate;
+      this.fileName = fileName;
     }
-    this.cachedSource = null;
-    this.cachedFileSize = 0;
-    this.cachedStartDate = null;
-    this.cachedTpfLines = null;
   }
 
   /** Delete all files from the rsync directory that have not been modified
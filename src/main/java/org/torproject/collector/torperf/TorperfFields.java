@@ -0,0 +1,437 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.torperf;
+
+import java.util.Arrays;
+
+/**
+ * Reusable list of key-value pairs parsed from a single Torperf .data or
+ * .extradata line, or combined into a single .tpf line.
+ *
+ * <p>Keys are kept as shared strings, and values are kept as ranges in a
+ * single character buffer, so that parsing and merging lines does not
+ * create any objects per line once the arrays have grown to the number
+ * of fields in a line.  Instances are not thread-safe and are meant to
+ * be reused for all lines of a merge.</p>
+ */
+final class TorperfFields {
+
+  /** Indexes of .data line fields that contain timestamp seconds, which
+   * are followed by a field containing microseconds. */
+  private static final int[] DATA_TIMESTAMP_INDEXES = new int[] { 0, 2, 4,
+      6, 8, 10, 12, 14, 16, 21, 23, 25, 27, 29, 31, 33, 35, 37 };
+
+  /** Keys of timestamps in .data lines, in the same order as
+   * {@link #DATA_TIMESTAMP_INDEXES}. */
+  private static final String[] DATA_TIMESTAMP_KEYS = new String[] {
+      "START", "SOCKET", "CONNECT", "NEGOTIATE", "REQUEST", "RESPONSE",
+      "DATAREQUEST", "DATARESPONSE", "DATACOMPLETE", "DATAPERC10",
+      "DATAPERC20", "DATAPERC30", "DATAPERC40", "DATAPERC50", "DATAPERC60",
+      "DATAPERC70", "DATAPERC80", "DATAPERC90" };
+
+  /** Microseconds per second, which is the unit of parsed timestamps. */
+  private static final long MICROS = 1000000L;
+
+  /** Maximum number of distinct .extradata keys to remember. */
+  private static final int MAX_EXTRADATA_KEYS = 256;
+
+  /** Keys seen in .extradata lines so far, so that the same string
+   * instance can be reused for every line containing that key. */
+  private String[] extradataKeys = new String[16];
+
+  private int extradataKeysCount = 0;
+
+  private String[] keys = new String[32];
+
+  private int[] valueStarts = new int[32];
+
+  private int[] valueEnds = new int[32];
+
+  private int size = 0;
+
+  private final StringBuilder values = new StringBuilder(512);
+
+  private int[] sortedIndexes = new int[32];
+
+  private int[] fieldStarts = new int[64];
+
+  private int[] fieldEnds = new int[64];
+
+  private long startSeconds;
+
+  private long startMicros;
+
+  private long dataCompleteMicros;
+
+  private long usedAtMicros;
+
+  /** Removes all fields. */
+  void clear() {
+    this.size = 0;
+    this.values.setLength(0);
+    this.usedAtMicros = Long.MIN_VALUE;
+  }
+
+  /** Returns the number of fields including duplicate keys. */
+  int size() {
+    return this.size;
+  }
+
+  /** Returns the START timestamp of the last parsed .data line in whole
+   * seconds. */
+  long getStartSeconds() {
+    return this.startSeconds;
+  }
+
+  /** Returns the START timestamp of the last parsed .data line in
+   * microseconds. */
+  long getStartMicros() {
+    return this.startMicros;
+  }
+
+  /** Returns the DATACOMPLETE timestamp of the last parsed .data line in
+   * microseconds. */
+  long getDataCompleteMicros() {
+    return this.dataCompleteMicros;
+  }
+
+  /** Returns the USED_AT timestamp of the last parsed .extradata line in
+   * microseconds, or {@link Long#MIN_VALUE} if that line did not
+   * contain a valid USED_AT value. */
+  long getUsedAtMicros() {
+    return this.usedAtMicros;
+  }
+
+  /** Appends the value of the last field with the given key to the given
+   * buffer and returns true, or returns false if there is no such
+   * field. */
+  boolean appendValue(String key, StringBuilder sb) {
+    for (int i = this.size - 1; i >= 0; i--) {
+      if (this.keys[i].equals(key)) {
+        sb.append(this.values, this.valueStarts[i], this.valueEnds[i]);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Adds a field with the given key and value. */
+  void add(String key, CharSequence value) {
+    int start = this.values.length();
+    this.values.append(value);
+    this.addField(key, start);
+  }
+
+  /** Adds all fields of the given instance after the fields that are
+   * already contained. */
+  void addAll(TorperfFields other) {
+    int offset = this.values.length();
+    this.values.append(other.values);
+    for (int i = 0; i < other.size; i++) {
+      this.ensureCapacity(this.size + 1);
+      this.keys[this.size] = other.keys[i];
+      this.valueStarts[this.size] = offset + other.valueStarts[i];
+      this.valueEnds[this.size] = offset + other.valueEnds[i];
+      this.size++;
+    }
+  }
+
+  /** Parses the given .data line, replacing all contained fields, and
+   * returns whether the line is valid. */
+  boolean parseDataLine(String line) {
+    this.clear();
+    int begin = 0;
+    int end = line.length();
+    while (begin < end && line.charAt(begin) <= ' ') {
+      begin++;
+    }
+    while (end > begin && line.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    int parts = this.splitFields(line, begin, end);
+    if (end == begin || parts < 20) {
+      return false;
+    }
+    for (int i = 0; i < DATA_TIMESTAMP_INDEXES.length; i++) {
+      int index = DATA_TIMESTAMP_INDEXES[i];
+      if (parts <= index + 1) {
+        break;
+      }
+      long micros = parseLong(line, this.fieldStarts[index + 1],
+          this.fieldEnds[index + 1]);
+      if (micros < Integer.MIN_VALUE || micros > Integer.MAX_VALUE) {
+        return false;
+      }
+      int hundredths = (int) micros / 10000;
+      int valueStart = this.values.length();
+      this.values.append(line, this.fieldStarts[index],
+          this.fieldEnds[index]).append('.');
+      if (hundredths >= 0 && hundredths < 10) {
+        this.values.append('0').append(hundredths);
+      } else if (hundredths >= 10 && hundredths < 100) {
+        this.values.append(hundredths);
+      } else {
+        this.values.append(String.format("%02d", hundredths));
+      }
+      this.addField(DATA_TIMESTAMP_KEYS[i], valueStart);
+      if (index == 0 || index == 16) {
+        long seconds = parseLong(line, this.fieldStarts[index],
+            this.fieldEnds[index]);
+        if (seconds == Long.MIN_VALUE) {
+          return false;
+        } else if (index == 0) {
+          this.startSeconds = seconds;
+          this.startMicros = seconds * MICROS + hundredths * 10000L;
+        } else {
+          this.dataCompleteMicros = seconds * MICROS + hundredths * 10000L;
+        }
+      }
+    }
+    this.addRange("WRITEBYTES", line, 18);
+    this.addRange("READBYTES", line, 19);
+    if (parts >= 21) {
+      this.addRange("DIDTIMEOUT", line, 20);
+    }
+    return true;
+  }
+
+  /** Parses the given .extradata line, replacing all contained fields,
+   * and returns whether the line is valid. */
+  boolean parseExtradataLine(String line) {
+    this.clear();
+    int parts = this.splitFields(line, 0, line.length());
+    /* Like String#split, ignore trailing empty fields. */
+    while (parts > 0 && this.fieldStarts[parts - 1]
+        == this.fieldEnds[parts - 1]) {
+      parts--;
+    }
+    String previousKey = null;
+    for (int i = 0; i < parts; i++) {
+      int fieldStart = this.fieldStarts[i];
+      int fieldEnd = this.fieldEnds[i];
+      int equals = indexOf(line, '=', fieldStart, fieldEnd);
+      if (equals >= 0) {
+        if (indexOf(line, '=', equals + 1, fieldEnd) >= 0) {
+          return false;
+        }
+        String key = this.internExtradataKey(line, fieldStart, equals);
+        previousKey = key;
+        int valueStart = this.values.length();
+        this.values.append(line, equals + 1, fieldEnd);
+        int dot = line.lastIndexOf('.', fieldEnd - 1);
+        if (dot > equals && dot == fieldEnd - 2) {
+          /* Make sure that all floats have two trailing digits. */
+          this.values.append('0');
+        }
+        this.addField(key, valueStart);
+      } else if ("STREAM_FAIL_REASONS".equals(previousKey)
+          && (regionEquals(line, fieldStart, fieldEnd, "MISC")
+          || regionEquals(line, fieldStart, fieldEnd, "EXITPOLICY")
+          || regionEquals(line, fieldStart, fieldEnd, "RESOURCELIMIT")
+          || regionEquals(line, fieldStart, fieldEnd, "RESOLVEFAILED"))) {
+        /* The value of the previous key is always the last value in the
+         * buffer, so that it can simply be extended. */
+        this.values.append(':').append(line, fieldStart, fieldEnd);
+        this.valueEnds[this.size - 1] = this.values.length();
+      } else {
+        return false;
+      }
+    }
+    for (int i = this.size - 1; i >= 0; i--) {
+      if ("USED_AT".equals(this.keys[i])) {
+        this.usedAtMicros = parseMicros(this.values, this.valueStarts[i],
+            this.valueEnds[i]);
+        break;
+      }
+    }
+    return true;
+  }
+
+  /** Appends all fields sorted by key to the given buffer, separated by
+   * spaces, where only the last field of each key is included. */
+  void appendSorted(StringBuilder sb) {
+    int sortedSize = this.sortUnique();
+    for (int i = 0; i < sortedSize; i++) {
+      int index = this.sortedIndexes[i];
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(this.keys[index]).append('=').append(this.values,
+          this.valueStarts[index], this.valueEnds[index]);
+    }
+  }
+
+  /** Sorts fields by key, keeping only the last field of each key, and
+   * returns the number of sorted fields, which can then be accessed via
+   * {@link #getSortedKey(int)} and {@link #getSortedValue(int)} until
+   * fields are changed. */
+  int sortUnique() {
+    if (this.sortedIndexes.length < this.size) {
+      this.sortedIndexes = new int[this.keys.length];
+    }
+    /* Insertion sort is stable and fast enough for a few dozen fields,
+     * and it does not need to create any objects. */
+    for (int i = 0; i < this.size; i++) {
+      int j = i;
+      while (j > 0 && this.keys[this.sortedIndexes[j - 1]].compareTo(
+          this.keys[i]) > 0) {
+        this.sortedIndexes[j] = this.sortedIndexes[j - 1];
+        j--;
+      }
+      this.sortedIndexes[j] = i;
+    }
+    int sortedSize = 0;
+    for (int i = 0; i < this.size; i++) {
+      int index = this.sortedIndexes[i];
+      if (i + 1 < this.size && this.keys[this.sortedIndexes[i + 1]]
+          .equals(this.keys[index])) {
+        continue;
+      }
+      this.sortedIndexes[sortedSize++] = index;
+    }
+    return sortedSize;
+  }
+
+  /** Returns the key of the given sorted field. */
+  String getSortedKey(int sortedIndex) {
+    return this.keys[this.sortedIndexes[sortedIndex]];
+  }
+
+  /** Returns the value of the given sorted field. */
+  String getSortedValue(int sortedIndex) {
+    int index = this.sortedIndexes[sortedIndex];
+    return this.values.substring(this.valueStarts[index],
+        this.valueEnds[index]);
+  }
+
+  /** Parses a decimal timestamp with optional fraction into microseconds,
+   * ignoring fraction digits beyond microseconds, or returns
+   * {@link Long#MIN_VALUE} if the timestamp is invalid. */
+  static long parseMicros(CharSequence cs, int start, int end) {
+    int dot = start;
+    while (dot < end && cs.charAt(dot) != '.') {
+      dot++;
+    }
+    long seconds = dot == start && dot + 1 < end ? 0L
+        : parseLong(cs, start, dot);
+    if (seconds == Long.MIN_VALUE
+        || seconds > Long.MAX_VALUE / MICROS
+        || seconds < -Long.MAX_VALUE / MICROS) {
+      return Long.MIN_VALUE;
+    }
+    long fraction = 0L;
+    long unit = MICROS;
+    for (int i = dot + 1; i < end; i++) {
+      char c = cs.charAt(i);
+      if (c < '0' || c > '9') {
+        return Long.MIN_VALUE;
+      }
+      unit /= 10L;
+      fraction += (c - '0') * unit;
+    }
+    return cs.charAt(start) == '-' ? seconds * MICROS - fraction
+        : seconds * MICROS + fraction;
+  }
+
+  private void addField(String key, int valueStart) {
+    this.ensureCapacity(this.size + 1);
+    this.keys[this.size] = key;
+    this.valueStarts[this.size] = valueStart;
+    this.valueEnds[this.size] = this.values.length();
+    this.size++;
+  }
+
+  private void addRange(String key, String line, int part) {
+    int valueStart = this.values.length();
+    this.values.append(line, this.fieldStarts[part], this.fieldEnds[part]);
+    this.addField(key, valueStart);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (this.keys.length < capacity) {
+      int newLength = Math.max(capacity, 2 * this.keys.length);
+      this.keys = Arrays.copyOf(this.keys, newLength);
+      this.valueStarts = Arrays.copyOf(this.valueStarts, newLength);
+      this.valueEnds = Arrays.copyOf(this.valueEnds, newLength);
+    }
+  }
+
+  /** Splits the given range of the given line at single spaces, stores
+   * field ranges, and returns the number of fields. */
+  private int splitFields(String line, int begin, int end) {
+    int parts = 0;
+    int fieldStart = begin;
+    for (int i = begin; i <= end; i++) {
+      if (i == end || line.charAt(i) == ' ') {
+        if (parts == this.fieldStarts.length) {
+          this.fieldStarts = Arrays.copyOf(this.fieldStarts, 2 * parts);
+          this.fieldEnds = Arrays.copyOf(this.fieldEnds, 2 * parts);
+        }
+        this.fieldStarts[parts] = fieldStart;
+        this.fieldEnds[parts] = i;
+        parts++;
+        fieldStart = i + 1;
+      }
+    }
+    return parts;
+  }
+
+  private String internExtradataKey(String line, int start, int end) {
+    for (int i = 0; i < this.extradataKeysCount; i++) {
+      String key = this.extradataKeys[i];
+      if (regionEquals(line, start, end, key)) {
+        return key;
+      }
+    }
+    String key = line.substring(start, end);
+    if (this.extradataKeysCount < MAX_EXTRADATA_KEYS) {
+      if (this.extradataKeysCount == this.extradataKeys.length) {
+        this.extradataKeys = Arrays.copyOf(this.extradataKeys,
+            2 * this.extradataKeysCount);
+      }
+      this.extradataKeys[this.extradataKeysCount++] = key;
+    }
+    return key;
+  }
+
+  private static boolean regionEquals(String line, int start, int end,
+      String other) {
+    return end - start == other.length()
+        && line.regionMatches(start, other, 0, other.length());
+  }
+
+  private static int indexOf(String line, char ch, int start, int end) {
+    int index = line.indexOf(ch, start);
+    return index >= 0 && index < end ? index : -1;
+  }
+
+  /** Parses a decimal integer like {@link Long#parseLong(String)} does,
+   * or returns {@link Long#MIN_VALUE} if the number is invalid. */
+  static long parseLong(CharSequence cs, int start, int end) {
+    if (start >= end) {
+      return Long.MIN_VALUE;
+    }
+    boolean negative = false;
+    int i = start;
+    char first = cs.charAt(i);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      if (++i == end) {
+        return Long.MIN_VALUE;
+      }
+    }
+    if (end - i > 18) {
+      return Long.MIN_VALUE;
+    }
+    long result = 0L;
+    for (; i < end; i++) {
+      char c = cs.charAt(i);
+      if (c < '0' || c > '9') {
+        return Long.MIN_VALUE;
+      }
+      result = 10L * result + (c - '0');
+    }
+    return negative ? -result : result;
+  }
+}
@@ -14,6 +14,12 @@ ARCHIVEDIR="/srv/collector.torproject.org/collector/archive"
 WORKDIR="/srv/collector.torproject.org/collector/tarballs"
 OUTDIR="/srv/collector.torproject.org/collector/out"
 TARBALLTARGETDIR="/srv/collector.torproject.org/collector/data"
+# Set EXITLISTDELTAS to 1 if ExitlistDeltaStorage is enabled, so that
+# exit lists are exported to EXITLISTEXPORTDIR before creating tarballs.
+EXITLISTDELTAS=0
+COLLECTORJAR="/srv/collector.torproject.org/collector/bin/collector.jar"
+COLLECTORCONFIG="/srv/collector.torproject.org/collector/collector.properties"
+EXITLISTEXPORTDIR="$WORKDIR/exit-lists-export"
 ### end of configuration section.
 #
 ### script start
@@ -35,6 +41,17 @@ fi
 
 mkdir -p $TARBALLTARGETDIR
 
+EXITLISTDIR=$OUTDIR/exit-lists
+if [ "$EXITLISTDELTAS" = "1" ]; then
+  echo `date` "Exporting exit lists to" $EXITLISTEXPORTDIR
+  if ! java -jar $COLLECTORJAR export exitlists $COLLECTORCONFIG \
+      $EXITLISTEXPORTDIR; then
+    echo "Exporting exit lists failed.  Exiting."
+    exit 1
+  fi
+  EXITLISTDIR=$EXITLISTEXPORTDIR
+fi
+
 TARBALLS=(
   exit-list-$YEARONE-$MONTHONE
   exit-list-$YEARTWO-$MONTHTWO
@@ -61,8 +78,8 @@ TARBALLS=(
 TARBALLS=($(printf "%s\n" "${TARBALLS[@]}" | uniq))
 
 DIRECTORIES=(
-  $OUTDIR/exit-lists/$YEARONE/$MONTHONE/
-  $OUTDIR/exit-lists/$YEARTWO/$MONTHTWO/
+  $EXITLISTDIR/$YEARONE/$MONTHONE/
+  $EXITLISTDIR/$YEARTWO/$MONTHTWO/
   $OUTDIR/torperf/$YEARONE/$MONTHONE/
   $OUTDIR/torperf/$YEARTWO/$MONTHTWO/
   $OUTDIR/relay-descriptors/certs/
@@ -86,9 +103,10 @@ DIRECTORIES=(
 DIRECTORIES=($(printf "%s\n" "${DIRECTORIES[@]}" | uniq))
 
 for (( i = 0 ; i < ${#TARBALLS[@]} ; i++ )); do
-  if [ ! -d ${TARBALLS[$i]} ]; then
+  if [ ! -d ${TARBALLS[$i]} ] \
+      || [ "`readlink ${TARBALLS[$i]}`" != "${DIRECTORIES[$i]}" ]; then
     echo `date` "Creating symlink for" ${TARBALLS[$i]} 
-    ln -s ${DIRECTORIES[$i]} ${TARBALLS[$i]}
+    ln -s -f -n ${DIRECTORIES[$i]} ${TARBALLS[$i]}
   else
     # This is a workaround for the "tar u" bug in GNU tar 1.20
     echo `date` "Touching symlink and directories for" ${TARBALLS[$i]} 
@@ -0,0 +1,126 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class BridgeDescriptorSegmentsTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static File outputFile(File outputDirectory, String type,
+      String content) {
+    String digest = DigestUtils.shaHex(content);
+    return new File(outputDirectory, "2016/06/" + type + "/"
+        + digest.charAt(0) + "/" + digest.charAt(1) + "/" + digest);
+  }
+
+  private static byte[] bytes(String content) {
+    return content.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Test()
+  public void testAppendExport() throws Exception {
+    File out = tmpf.newFolder();
+    BridgeDescriptorSegments segments = new BridgeDescriptorSegments(out);
+    assertTrue(segments.append(outputFile(out, "server-descriptors",
+        "first"), bytes("first")));
+    assertTrue(segments.append(outputFile(out, "server-descriptors",
+        "second"), bytes("second")));
+    assertFalse(segments.append(outputFile(out, "server-descriptors",
+        "first"), bytes("first")));
+    assertTrue(segments.append(outputFile(out, "extra-infos", "first"),
+        bytes("first")));
+    segments.close();
+    assertEquals(11L, new File(out, "2016/06/server-descriptors"
+        + BridgeDescriptorSegments.SEGMENT_SUFFIX).length());
+    assertFalse(outputFile(out, "server-descriptors", "first").exists());
+
+    segments = new BridgeDescriptorSegments(out);
+    assertFalse(segments.append(outputFile(out, "server-descriptors",
+        "second"), bytes("second")));
+    segments.close();
+
+    File target = tmpf.newFolder();
+    assertEquals(3, BridgeDescriptorSegments.export(out, target));
+    assertArrayEquals(bytes("second"), Files.readAllBytes(outputFile(
+        target, "server-descriptors", "second").toPath()));
+    assertArrayEquals(bytes("first"), Files.readAllBytes(outputFile(
+        target, "extra-infos", "first").toPath()));
+  }
+
+  @Test()
+  public void testIncompleteIndex() throws Exception {
+    File out = tmpf.newFolder();
+    BridgeDescriptorSegments segments = new BridgeDescriptorSegments(out);
+    segments.append(outputFile(out, "extra-infos", "first"),
+        bytes("first"));
+    segments.append(outputFile(out, "extra-infos", "second"),
+        bytes("second"));
+    segments.close();
+    /* Pretend that writing the second descriptor was interrupted. */
+    try (RandomAccessFile segment = new RandomAccessFile(new File(out,
+        "2016/06/extra-infos" + BridgeDescriptorSegments.SEGMENT_SUFFIX),
+        "rw")) {
+      segment.setLength(7L);
+    }
+    segments = new BridgeDescriptorSegments(out);
+    assertFalse(segments.append(outputFile(out, "extra-infos", "first"),
+        bytes("first")));
+    assertTrue(segments.append(outputFile(out, "extra-infos", "second"),
+        bytes("second")));
+    segments.close();
+    assertEquals(11L, new File(out, "2016/06/extra-infos"
+        + BridgeDescriptorSegments.SEGMENT_SUFFIX).length());
+    File target = tmpf.newFolder();
+    assertEquals(2, BridgeDescriptorSegments.export(out, target));
+    assertArrayEquals(bytes("second"), Files.readAllBytes(outputFile(
+        target, "extra-infos", "second").toPath()));
+  }
+
+  @Test()
+  public void testUnindexedData() throws Exception {
+    File out = tmpf.newFolder();
+    BridgeDescriptorSegments segments = new BridgeDescriptorSegments(out);
+    segments.append(outputFile(out, "extra-infos", "first"),
+        bytes("first"));
+    segments.append(outputFile(out, "extra-infos", "second"),
+        bytes("second"));
+    segments.close();
+    /* Pretend that writing the index record of the second descriptor was
+     * interrupted. */
+    try (RandomAccessFile index = new RandomAccessFile(new File(out,
+        "2016/06/extra-infos" + BridgeDescriptorSegments.INDEX_SUFFIX),
+        "rw")) {
+      index.setLength(index.length() - 1L);
+    }
+    segments = new BridgeDescriptorSegments(out);
+    assertTrue(segments.append(outputFile(out, "extra-infos", "second"),
+        bytes("second")));
+    segments.close();
+    assertEquals(11L, new File(out, "2016/06/extra-infos"
+        + BridgeDescriptorSegments.SEGMENT_SUFFIX).length());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoDigestFileName() throws Exception {
+    File out = tmpf.newFolder();
+    new BridgeDescriptorSegments(out).append(new File(out,
+        "2016/06/server-descriptors/x/y/xyz"), bytes("first"));
+  }
+}
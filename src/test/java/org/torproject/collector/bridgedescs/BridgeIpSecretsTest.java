@@ -0,0 +1,110 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BridgeIpSecretsTest {
+
+  private static final int JUNE = BridgeIpSecrets.monthKey("2016-06");
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testMonthKey() {
+    assertEquals(2016 * 12 + 5, JUNE);
+    assertEquals(JUNE, BridgeIpSecrets.monthKey("2016-06-30 21:43:52"));
+    assertEquals(JUNE + 7, BridgeIpSecrets.monthKey("2017-01-01"));
+    assertEquals("2016-06", BridgeIpSecrets.formatMonth(JUNE));
+    assertEquals("2016-12", BridgeIpSecrets.formatMonth(JUNE + 6));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMonthKey() {
+    BridgeIpSecrets.monthKey("2016-0x");
+  }
+
+  @Test()
+  public void testCreateLoad() throws IOException {
+    File file = new File(tmpf.getRoot(), "stats/bridge-ip-secrets");
+    BridgeIpSecrets secrets = new BridgeIpSecrets(file, new SecureRandom());
+    assertNull(secrets.get(JUNE));
+    byte[] secret = secrets.getOrCreate(JUNE, true);
+    assertEquals(BridgeIpSecrets.SECRET_LENGTH, secret.length);
+    assertSame(secret, secrets.getOrCreate(JUNE, true));
+    secrets.getOrCreate(JUNE - 1, false);
+    secrets.close();
+    List<String> lines = Files.readAllLines(file.toPath(),
+        StandardCharsets.US_ASCII);
+    assertEquals(1, lines.size());
+    assertEquals(174, lines.get(0).length());
+    BridgeIpSecrets loaded = new BridgeIpSecrets(file, null);
+    loaded.load();
+    assertEquals(1, loaded.size());
+    assertArrayEquals(secret, loaded.get(JUNE));
+  }
+
+  @Test()
+  public void testExtendShortSecret() throws IOException {
+    File file = tmpf.newFile();
+    char[] shortSecret = new char[31 * 2];
+    Arrays.fill(shortSecret, 'a');
+    Files.write(file.toPath(), Collections.singletonList("2016-06,"
+        + new String(shortSecret)), StandardCharsets.US_ASCII);
+    BridgeIpSecrets secrets = new BridgeIpSecrets(file, new SecureRandom());
+    secrets.load();
+    assertEquals(31, secrets.get(JUNE).length);
+    byte[] secret = secrets.getOrCreate(JUNE, true);
+    assertEquals(BridgeIpSecrets.SECRET_LENGTH, secret.length);
+    assertEquals((byte) 0xaa, secret[30]);
+    secrets.close();
+    BridgeIpSecrets loaded = new BridgeIpSecrets(file, null);
+    loaded.load();
+    assertArrayEquals(secret, loaded.get(JUNE));
+  }
+
+  @Test()
+  public void testDeleteBefore() throws IOException {
+    File file = tmpf.newFile();
+    BridgeIpSecrets secrets = new BridgeIpSecrets(file, new SecureRandom());
+    byte[] may = secrets.getOrCreate(JUNE - 1, true);
+    byte[] june = secrets.getOrCreate(JUNE, true).clone();
+    assertEquals(JUNE - 1, secrets.firstMonth());
+    assertEquals(1, secrets.deleteBefore(JUNE));
+    assertArrayEquals(new byte[BridgeIpSecrets.SECRET_LENGTH], may);
+    assertEquals(JUNE, secrets.firstMonth());
+    secrets.getOrCreate(JUNE + 1, true);
+    secrets.close();
+    BridgeIpSecrets loaded = new BridgeIpSecrets(file, null);
+    loaded.load();
+    assertEquals(2, loaded.size());
+    assertNull(loaded.get(JUNE - 1));
+    assertArrayEquals(june, loaded.get(JUNE));
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidLine() throws IOException {
+    File file = tmpf.newFile();
+    Files.write(file.toPath(), Collections.singletonList("2016-06,x"),
+        StandardCharsets.US_ASCII);
+    new BridgeIpSecrets(file, null).load();
+  }
+}
@@ -0,0 +1,74 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class DescriptorDigestHistoryTest {
+
+  private static final long ONE_DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+  /* 2016-07-01 12:00:00 UTC */
+  private static final long NOW = 1467374400000L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testAddSaveLoad() throws Exception {
+    File dir = tmpf.newFolder();
+    DescriptorDigestHistory history = new DescriptorDigestHistory(dir, 3,
+        NOW);
+    assertTrue(history.add(DigestUtils.sha("first")));
+    assertFalse(history.add(DigestUtils.sha("first")));
+    history.save();
+    assertTrue(new File(dir, "2016-07-01").exists());
+    history = new DescriptorDigestHistory(dir, 3, NOW + ONE_DAY_MILLIS);
+    assertTrue(history.contains(DigestUtils.sha("first")));
+    assertFalse(history.add(DigestUtils.sha("first")));
+    assertTrue(history.add(DigestUtils.sha("second")));
+    history.save();
+    assertTrue(new File(dir, "2016-07-02").exists());
+    assertEquals(2, history.size());
+  }
+
+  @Test()
+  public void testExpiry() throws Exception {
+    File dir = tmpf.newFolder();
+    DescriptorDigestHistory history = new DescriptorDigestHistory(dir, 3,
+        NOW);
+    history.add(DigestUtils.sha("first"));
+    history.save();
+    history = new DescriptorDigestHistory(dir, 3, NOW + 3 * ONE_DAY_MILLIS);
+    assertTrue(history.contains(DigestUtils.sha("first")));
+    history = new DescriptorDigestHistory(dir, 3, NOW + 4 * ONE_DAY_MILLIS);
+    assertFalse(history.contains(DigestUtils.sha("first")));
+    assertFalse(new File(dir, "2016-07-01").exists());
+  }
+
+  @Test()
+  public void testUnlimited() throws Exception {
+    File dir = tmpf.newFolder();
+    DescriptorDigestHistory history = new DescriptorDigestHistory(dir,
+        Integer.MAX_VALUE, NOW);
+    history.add(DigestUtils.sha("first"));
+    history.save();
+    history = new DescriptorDigestHistory(dir, Integer.MAX_VALUE,
+        NOW + DescriptorDigestHistory.UNLIMITED_HISTORY_DAYS * ONE_DAY_MILLIS);
+    assertTrue(history.contains(DigestUtils.sha("first")));
+    history = new DescriptorDigestHistory(dir, Integer.MAX_VALUE, NOW
+        + (DescriptorDigestHistory.UNLIMITED_HISTORY_DAYS + 1)
+        * ONE_DAY_MILLIS);
+    assertFalse(history.contains(DigestUtils.sha("first")));
+  }
+}
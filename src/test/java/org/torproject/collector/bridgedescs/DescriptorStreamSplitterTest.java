@@ -0,0 +1,70 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class DescriptorStreamSplitterTest {
+
+  private static final String DESCRIPTOR = "router %s\nplatform Tor\n"
+      + "router-signature\n-----BEGIN SIGNATURE-----\nsig\n"
+      + "-----END SIGNATURE-----\n";
+
+  /** Returns at most one byte per read, to split tokens across reads. */
+  private static InputStream trickle(byte[] data) {
+    return new ByteArrayInputStream(data) {
+      @Override
+      public synchronized int read(byte[] buf, int off, int len) {
+        return super.read(buf, off, Math.min(len, 1));
+      }
+    };
+  }
+
+  @Test()
+  public void testSplitDescriptors() throws IOException {
+    String first = String.format(DESCRIPTOR, "first");
+    String second = String.format(DESCRIPTOR, "second");
+    byte[] data = ("@purpose bridge\n" + first + "@purpose bridge\n"
+        + second + "router incomplete\n").getBytes(StandardCharsets.US_ASCII);
+    DescriptorStreamSplitter splitter =
+        new DescriptorStreamSplitter(trickle(data));
+    assertEquals("router first", splitter.firstLine());
+    assertEquals(first, new String(splitter.nextDescriptor("router "),
+        StandardCharsets.US_ASCII));
+    assertEquals(second, new String(splitter.nextDescriptor("router "),
+        StandardCharsets.US_ASCII));
+    assertNull(splitter.nextDescriptor("router "));
+    assertArrayEquals(DigestUtils.sha(data), splitter.digest());
+    assertEquals(data.length, splitter.length());
+  }
+
+  @Test()
+  public void testReadAll() throws IOException {
+    byte[] data = "@type bridge-network-status 1.1\npublished 2016-06-30\n"
+        .getBytes(StandardCharsets.US_ASCII);
+    DescriptorStreamSplitter splitter =
+        new DescriptorStreamSplitter(trickle(data));
+    assertEquals("published 2016-06-30", splitter.firstLine());
+    assertArrayEquals(data, splitter.readAll());
+    assertArrayEquals(DigestUtils.sha(data), splitter.digest());
+  }
+
+  @Test()
+  public void testOnlyAnnotations() throws IOException {
+    DescriptorStreamSplitter splitter = new DescriptorStreamSplitter(
+        new ByteArrayInputStream("@purpose bridge\n".getBytes(
+        StandardCharsets.US_ASCII)));
+    assertNull(splitter.firstLine());
+  }
+}
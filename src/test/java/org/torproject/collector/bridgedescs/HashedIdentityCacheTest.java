@@ -0,0 +1,62 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class HashedIdentityCacheTest {
+
+  private static final String FINGERPRINT_HEX =
+      "46D4A71197B8FA515A826C6B017C522FE264655B";
+
+  @Test()
+  public void testEncodings() throws Exception {
+    HashedIdentityCache cache = new HashedIdentityCache(10);
+    HashedIdentityCache.HashedIdentity hashedIdentity =
+        cache.getHex(FINGERPRINT_HEX);
+    byte[] expected = DigestUtils.sha(Hex.decodeHex(
+        FINGERPRINT_HEX.toCharArray()));
+    assertEquals(Hex.encodeHexString(expected), hashedIdentity.hex);
+    assertEquals(hashedIdentity.hex.toUpperCase(), hashedIdentity.upperHex);
+    assertEquals(Base64.encodeBase64String(expected).substring(0, 27),
+        hashedIdentity.base64);
+  }
+
+  @Test()
+  public void testHitsAndMisses() throws Exception {
+    HashedIdentityCache cache = new HashedIdentityCache(10);
+    HashedIdentityCache.HashedIdentity first = cache.getHex(
+        FINGERPRINT_HEX);
+    assertSame(first, cache.getHex(FINGERPRINT_HEX.toLowerCase()));
+    assertEquals(1L, cache.getHits());
+    assertEquals(1L, cache.getMisses());
+    cache.resetStatistics();
+    assertEquals(0L, cache.getHits());
+    assertEquals(1, cache.size());
+  }
+
+  @Test()
+  public void testEvictLeastRecentlyUsed() throws Exception {
+    HashedIdentityCache cache = new HashedIdentityCache(2);
+    HashedIdentityCache.HashedIdentity first = cache.get(new byte[20]);
+    HashedIdentityCache.HashedIdentity second = cache.getHex(
+        FINGERPRINT_HEX);
+    assertSame(first, cache.get(new byte[20]));
+    byte[] third = new byte[20];
+    third[0] = 1;
+    cache.get(third);
+    assertEquals(2, cache.size());
+    assertSame(first, cache.get(new byte[20]));
+    assertNotSame(second, cache.getHex(FINGERPRINT_HEX));
+    assertEquals(2, cache.size());
+    assertEquals(4L, cache.getMisses());
+  }
+}
@@ -0,0 +1,59 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class KeywordTableTest {
+
+  private static final KeywordTable<String> TABLE = new KeywordTable<>(
+      "published ", "published", "hidden-service-dir", "hsdir",
+      "opt fingerprint ", "opt fingerprint", "dirreq-", "dirreq",
+      "-----END ", "end");
+
+  private static String lookup(String line) {
+    byte[] bytes = ("@ignored\n" + line + "\n").getBytes(
+        StandardCharsets.US_ASCII);
+    return TABLE.lookup(bytes, "@ignored\n".length(), bytes.length - 1);
+  }
+
+  @Test()
+  public void testKeywordWithArguments() {
+    assertEquals("published", lookup("published 2016-06-30 21:43:52"));
+    assertEquals("published", lookup("published "));
+    assertNull(lookup("published"));
+  }
+
+  @Test()
+  public void testKeywordWithoutArguments() {
+    assertEquals("hsdir", lookup("hidden-service-dir"));
+    assertNull(lookup("hidden-service-dir 1"));
+  }
+
+  @Test()
+  public void testOptKeyword() {
+    assertEquals("opt fingerprint", lookup("opt fingerprint 46D4 A711"));
+    assertNull(lookup("opt published 2016-06-30 21:43:52"));
+    assertNull(lookup("opt"));
+  }
+
+  @Test()
+  public void testDashPrefix() {
+    assertEquals("dirreq", lookup("dirreq-v3-ips "));
+    assertEquals("dirreq", lookup("dirreq-stats-end"));
+    assertEquals("end", lookup("-----END SIGNATURE-----"));
+    assertNull(lookup("-----BEGIN SIGNATURE-----"));
+    assertNull(lookup("cell-stats-end 2016-06-30"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateKeyword() {
+    new KeywordTable<>("published ", 1, "published ", 2);
+  }
+}
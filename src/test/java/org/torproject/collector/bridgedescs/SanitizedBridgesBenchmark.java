@@ -0,0 +1,484 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import org.torproject.collector.Main;
+import org.torproject.collector.conf.Configuration;
+import org.torproject.collector.conf.ConfigurationException;
+import org.torproject.collector.conf.Key;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Measures how fast bridge descriptors are sanitized and how many bytes
+ * are allocated per sanitized descriptor, using synthetic descriptors of
+ * a configurable number of bridges built with the same descriptor
+ * builders as {@link SanitizedBridgesWriterTest}.
+ *
+ * <p>Network status entries, server descriptors, and extra-info
+ * descriptors are sanitized directly on the calling thread, without
+ * writing them to disk, so that allocated bytes can be attributed to
+ * sanitizing.  A whole tarball containing all descriptors is then
+ * imported the same way as in a regular run, which only yields a
+ * throughput.</p>
+ *
+ * <p>Results are compared to the baseline in
+ * <code>src/test/resources/bridgedescs-benchmark-baseline.properties</code>,
+ * and the benchmark exits with a non-zero status if throughput dropped
+ * or allocations grew by more than the configured tolerance.  Run with
+ * <code>-Dbenchmark.update=true</code> to write new results to the
+ * baseline file, so that changes show up in review:</p>
+ *
+ * <pre>
+ * ant benchmark
+ * java -cp ... org.torproject.collector.bridgedescs.SanitizedBridgesBenchmark
+ *     [bridges [iterations]]
+ * </pre>
+ */
+public class SanitizedBridgesBenchmark {
+
+  /** Default number of synthetic bridges. */
+  static final int DEFAULT_BRIDGES = 3000;
+
+  /** Default number of measured iterations over all bridges, which
+   * follow the same number of warm-up iterations. */
+  static final int DEFAULT_ITERATIONS = 10;
+
+  /** Default path of the baseline file. */
+  static final String DEFAULT_BASELINE =
+      "src/test/resources/bridgedescs-benchmark-baseline.properties";
+
+  /** Relative decrease in throughput that is still accepted. */
+  static final double THROUGHPUT_TOLERANCE = 0.3;
+
+  /** Relative increase in allocated bytes that is still accepted. */
+  static final double ALLOCATION_TOLERANCE = 0.1;
+
+  /* Descriptors are published less than an hour before the status, so
+   * that the status is not considered stale. */
+  private static final String PUBLISHED = "2016-06-30 23:10:00";
+
+  private static final String STATUS_PUBLISHED = "2016-06-30 23:40:28";
+
+  private static final String AUTHORITY_FINGERPRINT =
+      "4A0CCD2DDC7995083D73F5D667100C8A5831F16D";
+
+  /** Result of measuring one kind of descriptor. */
+  static final class Result {
+
+    final String name;
+
+    final long descriptors;
+
+    final long nanos;
+
+    /** Allocated bytes, or -1 if they could not be measured. */
+    final long allocatedBytes;
+
+    Result(String name, long descriptors, long nanos,
+        long allocatedBytes) {
+      this.name = name;
+      this.descriptors = descriptors;
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    double descriptorsPerSecond() {
+      return this.nanos <= 0L ? 0.0
+          : this.descriptors * 1.0e9 / this.nanos;
+    }
+
+    double bytesPerDescriptor() {
+      return this.allocatedBytes < 0L || this.descriptors == 0L ? -1.0
+          : (double) this.allocatedBytes / this.descriptors;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-12s %10d descriptors %12.0f descriptors/s "
+          + "%10.0f bytes/descriptor", this.name, this.descriptors,
+          this.descriptorsPerSecond(), this.bytesPerDescriptor());
+    }
+  }
+
+  private final File workDirectory;
+
+  private final int bridges;
+
+  private final List<byte[]> serverDescriptors = new ArrayList<>();
+
+  private final List<byte[]> extraInfoDescriptors = new ArrayList<>();
+
+  private final ServerDescriptorBuilder[] serverDescriptorBuilders;
+
+  private final ExtraInfoDescriptorBuilder[] extraInfoDescriptorBuilders;
+
+  private final NetworkStatusBuilder networkStatusBuilder;
+
+  private final byte[] networkStatus;
+
+  private SanitizedBridgesWriter writer;
+
+  /** Synthesizes descriptors of the given number of bridges, and uses
+   * the given directory for all files written while sanitizing them. */
+  SanitizedBridgesBenchmark(File workDirectory, int bridges)
+      throws IOException {
+    this.workDirectory = workDirectory;
+    this.bridges = bridges;
+    this.serverDescriptorBuilders = new ServerDescriptorBuilder[bridges];
+    this.extraInfoDescriptorBuilders =
+        new ExtraInfoDescriptorBuilder[bridges];
+    this.networkStatusBuilder = new NetworkStatusBuilder();
+    List<String> entries = new ArrayList<>();
+    for (int i = 0; i < bridges; i++) {
+      byte[] fingerprint = DigestUtils.sha("bridge" + i);
+      String fingerprintHex = Hex.encodeHexString(fingerprint)
+          .toUpperCase();
+      String nickname = "Bridge" + i;
+      String address = String.format("10.%d.%d.%d", (i >> 16) & 0xff,
+          (i >> 8) & 0xff, i & 0xff);
+      int orPort = 1024 + (i % 60000);
+      String ipv6OrAddress = i % 2 == 0 ? null
+          : String.format("[2001:db8::%x]:%d", i, orPort);
+
+      ServerDescriptorBuilder server = new ServerDescriptorBuilder();
+      server.removeLine("@purpose bridge");
+      server.replaceLineStartingWith("router ", Arrays.asList(
+          "router " + nickname + " " + address + " " + orPort + " 0 0"));
+      server.replaceLineStartingWith("published ", Arrays.asList(
+          "published " + PUBLISHED));
+      StringBuilder fingerprintLine = new StringBuilder("fingerprint");
+      for (int j = 0; j < fingerprintHex.length(); j += 4) {
+        fingerprintLine.append(' ').append(fingerprintHex, j, j + 4);
+      }
+      server.replaceLineStartingWith("fingerprint ", Arrays.asList(
+          fingerprintLine.toString()));
+      if (ipv6OrAddress != null) {
+        server.insertBeforeLineStartingWith("platform ", Arrays.asList(
+            "or-address " + ipv6OrAddress));
+      }
+      this.serverDescriptorBuilders[i] = server;
+      this.serverDescriptors.add(build(server));
+
+      ExtraInfoDescriptorBuilder extraInfo =
+          new ExtraInfoDescriptorBuilder();
+      extraInfo.replaceLineStartingWith("extra-info ", Arrays.asList(
+          "extra-info " + nickname + " " + fingerprintHex));
+      extraInfo.replaceLineStartingWith("transport ", Arrays.asList(
+          "transport obfs4 " + address + ":" + (orPort + 1),
+          "transport meek " + address + ":" + (orPort + 2)));
+      this.extraInfoDescriptorBuilders[i] = extraInfo;
+      this.extraInfoDescriptors.add(build(extraInfo));
+
+      entries.add("r " + nickname + " "
+          + Base64.encodeBase64String(fingerprint).substring(0, 27) + " "
+          + Base64.encodeBase64String(DigestUtils.sha("descriptor" + i))
+          .substring(0, 27) + " " + PUBLISHED + " " + address + " "
+          + orPort + " 0");
+      if (ipv6OrAddress != null) {
+        entries.add("a " + ipv6OrAddress);
+      }
+      entries.add("s Fast Running Stable Valid");
+      entries.add("w Bandwidth=" + (i % 1000 + 1));
+      entries.add("p reject 1-65535");
+    }
+    this.networkStatusBuilder.replaceLineStartingWith("published ",
+        Arrays.asList("published " + STATUS_PUBLISHED));
+    this.networkStatusBuilder.subList(2, this.networkStatusBuilder.size())
+        .clear();
+    this.networkStatusBuilder.addAll(entries);
+    this.networkStatus = build(this.networkStatusBuilder);
+  }
+
+  private static byte[] build(DescriptorBuilder builder)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    builder.build(baos);
+    return baos.toByteArray();
+  }
+
+  /* Creates a configuration like the one used by the bridge descriptor
+   * tests, with IP addresses being replaced by hashes. */
+  private Configuration createConfiguration(File directory)
+      throws IOException {
+    Configuration configuration = new Configuration();
+    try (InputStream is = getClass().getClassLoader().getResourceAsStream(
+        Main.CONF_FILE)) {
+      configuration.load(is);
+    }
+    File in = new File(directory, "in");
+    in.mkdirs();
+    configuration.setProperty(Key.BridgedescsActivated.name(), "true");
+    configuration.setProperty(Key.RecentPath.name(),
+        new File(directory, "recent").getAbsolutePath());
+    configuration.setProperty(Key.StatsPath.name(),
+        new File(directory, "stats").getAbsolutePath());
+    configuration.setProperty(Key.BridgeLocalOrigins.name(),
+        in.getAbsolutePath());
+    configuration.setProperty(Key.OutputPath.name(),
+        new File(directory, "out").getAbsolutePath());
+    configuration.setProperty(Key.ReplaceIpAddressesWithHashes.name(),
+        "true");
+    configuration.setProperty(Key.BridgeDescriptorMappingsLimit.name(),
+        "30000");
+    return configuration;
+  }
+
+  /** Prepares a sanitized bridges writer for sanitizing descriptors
+   * directly, by having it process an empty input directory. */
+  void prepare() throws IOException, ConfigurationException {
+    this.writer = new SanitizedBridgesWriter(this.createConfiguration(
+        new File(this.workDirectory, "direct")));
+    this.writer.startProcessing();
+  }
+
+  /** Returns the number of synthesized network status entries,
+   * server descriptors, and extra-info descriptors that could not be
+   * sanitized, which is 0 unless the synthetic input is broken. */
+  int countFailures() {
+    int failures = 0;
+    if (this.writer.sanitizeNetworkStatus(this.networkStatus,
+        STATUS_PUBLISHED, AUTHORITY_FINGERPRINT) == null) {
+      failures += this.bridges;
+    }
+    for (byte[] data : this.serverDescriptors) {
+      if (this.writer.sanitizeServerDescriptor(data) == null) {
+        failures++;
+      }
+    }
+    for (byte[] data : this.extraInfoDescriptors) {
+      if (this.writer.sanitizeExtraInfoDescriptor(data) == null) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  /** Sanitizes the network status containing all bridges the given
+   * number of times, counting each entry as one descriptor. */
+  Result measureNetworkStatuses(int iterations) {
+    return this.measure("status", this.bridges, iterations,
+        () -> this.writer.sanitizeNetworkStatus(this.networkStatus,
+        STATUS_PUBLISHED, AUTHORITY_FINGERPRINT));
+  }
+
+  /** Sanitizes all server descriptors the given number of times. */
+  Result measureServerDescriptors(int iterations) {
+    return this.measure("server", this.bridges, iterations, () -> {
+      for (byte[] data : this.serverDescriptors) {
+        this.writer.sanitizeServerDescriptor(data);
+      }
+    });
+  }
+
+  /** Sanitizes all extra-info descriptors the given number of times. */
+  Result measureExtraInfoDescriptors(int iterations) {
+    return this.measure("extra-info", this.bridges, iterations, () -> {
+      for (byte[] data : this.extraInfoDescriptors) {
+        this.writer.sanitizeExtraInfoDescriptor(data);
+      }
+    });
+  }
+
+  /* Runs the given iteration as often for warming up as for measuring,
+   * and measures time and bytes allocated by the current thread. */
+  private Result measure(String name, long descriptorsPerIteration,
+      int iterations, Runnable iteration) {
+    for (int i = 0; i < iterations; i++) {
+      iteration.run();
+    }
+    long allocatedBefore = allocatedBytes();
+    long started = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      iteration.run();
+    }
+    long nanos = System.nanoTime() - started;
+    long allocatedAfter = allocatedBytes();
+    return new Result(name, descriptorsPerIteration * iterations, nanos,
+        allocatedBefore < 0L ? -1L : allocatedAfter - allocatedBefore);
+  }
+
+  /* Returns the bytes allocated by the current thread so far, or -1 if
+   * the JVM doesn't support measuring them. */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1L;
+    }
+    com.sun.management.ThreadMXBean sunBean =
+        (com.sun.management.ThreadMXBean) bean;
+    if (!sunBean.isThreadAllocatedMemorySupported()
+        || !sunBean.isThreadAllocatedMemoryEnabled()) {
+      return -1L;
+    }
+    return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** Imports a tarball containing all synthesized descriptors the same
+   * way as in a regular run, including decompressing, splitting, and
+   * writing sanitized descriptors to disk. */
+  Result measureTarball() throws IOException, ConfigurationException {
+    File directory = new File(this.workDirectory, "tarball");
+    Configuration configuration = this.createConfiguration(directory);
+    TarballBuilder tarballBuilder = new TarballBuilder(
+        "from-tonga-2016-07-01T000702Z.tar.gz", 1467331624000L);
+    tarballBuilder.add("bridge-descriptors", 1467331622000L,
+        Arrays.asList((DescriptorBuilder[]) this.serverDescriptorBuilders));
+    tarballBuilder.add("cached-extrainfo", 1467327972000L,
+        Arrays.asList(
+        (DescriptorBuilder[]) this.extraInfoDescriptorBuilders));
+    tarballBuilder.add("cached-extrainfo.new", 1467331623000L,
+        Arrays.asList(new DescriptorBuilder[] { }));
+    tarballBuilder.add("networkstatus-bridges", 1467330028000L,
+        Arrays.asList(new DescriptorBuilder[] {
+            this.networkStatusBuilder }));
+    tarballBuilder.build(configuration.getPath(Key.BridgeLocalOrigins)
+        .toFile());
+    SanitizedBridgesWriter tarballWriter =
+        new SanitizedBridgesWriter(configuration);
+    long started = System.nanoTime();
+    tarballWriter.startProcessing();
+    long nanos = System.nanoTime() - started;
+    return new Result("tarball", 3L * this.bridges, nanos, -1L);
+  }
+
+  /** Returns regressions of the given results compared to the given
+   * baseline, ignoring values that are missing in the baseline. */
+  static List<String> compare(List<Result> results, Properties baseline) {
+    List<String> regressions = new ArrayList<>();
+    for (Result result : results) {
+      String throughput = baseline.getProperty(result.name
+          + ".descriptorsPerSecond");
+      if (throughput != null && result.descriptorsPerSecond()
+          < Double.parseDouble(throughput) * (1.0 - THROUGHPUT_TOLERANCE)) {
+        regressions.add(String.format("%s: %.0f descriptors/s, baseline "
+            + "%s", result.name, result.descriptorsPerSecond(),
+            throughput));
+      }
+      String allocation = baseline.getProperty(result.name
+          + ".bytesPerDescriptor");
+      if (allocation != null && result.bytesPerDescriptor() >= 0.0
+          && result.bytesPerDescriptor()
+          > Double.parseDouble(allocation) * (1.0 + ALLOCATION_TOLERANCE)) {
+        regressions.add(String.format("%s: %.0f bytes/descriptor, "
+            + "baseline %s", result.name, result.bytesPerDescriptor(),
+            allocation));
+      }
+    }
+    return regressions;
+  }
+
+  /* Writes the given results as new baseline. */
+  private static void writeBaseline(List<Result> results, int bridges,
+      File baselineFile) throws IOException {
+    Properties baseline = new Properties();
+    for (Result result : results) {
+      baseline.setProperty(result.name + ".descriptorsPerSecond",
+          String.format("%.0f", result.descriptorsPerSecond()));
+      if (result.bytesPerDescriptor() >= 0.0) {
+        baseline.setProperty(result.name + ".bytesPerDescriptor",
+            String.format("%.0f", result.bytesPerDescriptor()));
+      }
+    }
+    try (OutputStream os = new FileOutputStream(baselineFile)) {
+      baseline.store(os, "Bridge sanitization benchmark baseline with "
+          + bridges + " bridges, written by SanitizedBridgesBenchmark\n"
+          + "Measured on " + System.getProperty("os.name") + " "
+          + System.getProperty("os.arch") + " with "
+          + Runtime.getRuntime().availableProcessors() + " processors and "
+          + System.getProperty("java.vm.name") + " "
+          + System.getProperty("java.version"));
+    }
+  }
+
+  private static void delete(Path directory) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /** Runs the benchmark with the given number of bridges and iterations,
+   * and compares results to the baseline or updates the baseline. */
+  public static void main(String[] args) throws Exception {
+    int bridges = args.length > 0 ? Integer.parseInt(args[0])
+        : DEFAULT_BRIDGES;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1])
+        : DEFAULT_ITERATIONS;
+    File baselineFile = new File(System.getProperty("benchmark.baseline",
+        DEFAULT_BASELINE));
+    Path workDirectory = Files.createTempDirectory("bridgedescs-benchmark");
+    List<Result> results = new ArrayList<>();
+    try {
+      SanitizedBridgesBenchmark benchmark = new SanitizedBridgesBenchmark(
+          workDirectory.toFile(), bridges);
+      benchmark.prepare();
+      int failures = benchmark.countFailures();
+      if (failures > 0) {
+        System.err.println("Could not sanitize " + failures
+            + " synthetic descriptors.");
+        System.exit(1);
+      }
+      results.add(benchmark.measureNetworkStatuses(iterations));
+      results.add(benchmark.measureServerDescriptors(iterations));
+      results.add(benchmark.measureExtraInfoDescriptors(iterations));
+      results.add(benchmark.measureTarball());
+    } finally {
+      delete(workDirectory);
+    }
+    for (Result result : results) {
+      System.out.println(result);
+    }
+    if (Boolean.getBoolean("benchmark.update")) {
+      writeBaseline(results, bridges, baselineFile);
+      System.out.println("Wrote new baseline to " + baselineFile + ".");
+      return;
+    }
+    Properties baseline = new Properties();
+    if (baselineFile.exists()) {
+      try (InputStream is = new FileInputStream(baselineFile)) {
+        baseline.load(is);
+      }
+    }
+    List<String> regressions = compare(results, baseline);
+    for (String regression : regressions) {
+      System.err.println("Regression: " + regression);
+    }
+    if (!regressions.isEmpty()) {
+      System.exit(1);
+    }
+  }
+}
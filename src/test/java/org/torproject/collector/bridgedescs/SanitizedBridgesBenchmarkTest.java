@@ -0,0 +1,56 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/** Makes sure that the synthetic descriptors used by the benchmark can be
+ * sanitized, so that the benchmark measures what it claims to measure. */
+public class SanitizedBridgesBenchmarkTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testSyntheticDescriptorsSanitized() throws Exception {
+    SanitizedBridgesBenchmark benchmark = new SanitizedBridgesBenchmark(
+        tmpf.getRoot(), 20);
+    benchmark.prepare();
+    assertEquals(0, benchmark.countFailures());
+    SanitizedBridgesBenchmark.Result result =
+        benchmark.measureServerDescriptors(1);
+    assertEquals(20L, result.descriptors);
+    assertTrue(result.descriptorsPerSecond() > 0.0);
+  }
+
+  @Test()
+  public void testCompare() {
+    List<SanitizedBridgesBenchmark.Result> results = Arrays.asList(
+        new SanitizedBridgesBenchmark.Result("server", 1000L,
+        1000000000L, 2000000L),
+        new SanitizedBridgesBenchmark.Result("status", 1000L,
+        1000000000L, -1L));
+    Properties baseline = new Properties();
+    assertTrue(SanitizedBridgesBenchmark.compare(results, baseline)
+        .isEmpty());
+    baseline.setProperty("server.descriptorsPerSecond", "1200");
+    baseline.setProperty("server.bytesPerDescriptor", "1900");
+    baseline.setProperty("status.bytesPerDescriptor", "1");
+    assertTrue(SanitizedBridgesBenchmark.compare(results, baseline)
+        .isEmpty());
+    baseline.setProperty("server.descriptorsPerSecond", "2000");
+    baseline.setProperty("server.bytesPerDescriptor", "1000");
+    assertEquals(2, SanitizedBridgesBenchmark.compare(results, baseline)
+        .size());
+  }
+}
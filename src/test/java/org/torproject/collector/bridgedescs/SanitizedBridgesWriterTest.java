@@ -21,7 +21,9 @@ import org.junit.rules.TemporaryFolder;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -147,11 +149,18 @@ public class SanitizedBridgesWriterTest {
     }
     SanitizedBridgesWriter sbw = new SanitizedBridgesWriter(configuration);
     sbw.startProcessing();
+    this.parseSanitizedFiles(this.sanitizedBridgesDirectory);
+  }
+
+  /** Parses sanitized bridge descriptors in the given directory for
+   * inspection. */
+  private void parseSanitizedFiles(final Path directory)
+      throws IOException {
     this.parsedFiles = new LinkedHashMap<>();
     this.parsedServerDescriptors = new ArrayList<>();
     this.parsedExtraInfoDescriptors = new ArrayList<>();
     this.parsedNetworkStatuses = new ArrayList<>();
-    Files.walkFileTree(sanitizedBridgesDirectory,
+    Files.walkFileTree(directory,
         new SimpleFileVisitor<Path>() {
           @Override
           public FileVisitResult visitFile(Path path, BasicFileAttributes bfa)
@@ -168,8 +177,8 @@ public class SanitizedBridgesWriterTest {
                 "@type bridge-network-status ")) {
               parsedNetworkStatuses.add(parsedLines);
             }
-            parsedFiles.put(sanitizedBridgesDirectory.relativize(path)
-                .toString(), parsedLines);
+            parsedFiles.put(directory.relativize(path).toString(),
+                parsedLines);
             return FileVisitResult.CONTINUE;
           }
         });
@@ -263,6 +272,59 @@ public class SanitizedBridgesWriterTest {
         this.parsedServerDescriptors.isEmpty());
   }
 
+  @Test
+  public void testServerDescriptorCarriageReturns() throws Exception {
+    this.defaultServerDescriptorBuilder.replaceLineStartingWith("router ",
+        Arrays.asList("router MeekGoogle 198.50.200.131 8008 0 0\r"));
+    this.defaultServerDescriptorBuilder.replaceLineStartingWith(
+        "-----END ED25519 CERT-----",
+        Arrays.asList("-----END ED25519 CERT-----\r"));
+    this.defaultServerDescriptorBuilder.removeLine(
+        "protocols Link 1 2 Circuit 1");
+    this.defaultServerDescriptorBuilder.replaceLineStartingWith("platform ",
+        Arrays.asList("platform Tor 0.2.7.6 on Linux\r"
+        + "protocols Link 1 2 Circuit 1"));
+    this.runTest();
+    List<String> expectedLines = Arrays.asList(
+        "@type bridge-server-descriptor 1.2",
+        "router MeekGoogle 127.0.0.1 1 0 0",
+        "master-key-ed25519 3HC9xnykNIfNdFDuJWwxaJSM5GCaIJKUtAYgMixbsOM",
+        "platform Tor 0.2.7.6 on Linux",
+        "protocols Link 1 2 Circuit 1",
+        "published 2016-06-30 21:43:52");
+    assertFalse("Sanitized server descriptor with carriage returns is "
+        + "missing.", this.parsedServerDescriptors.isEmpty());
+    assertEquals("Carriage returns were not treated as line ends.",
+        expectedLines, this.parsedServerDescriptors.get(0).subList(0, 6));
+  }
+
+  @Test
+  public void testSegmentsExport() throws Exception {
+    this.configuration.setProperty(Key.BridgeDescriptorSegments.name(),
+        "true");
+    this.defaultTarballBuilder.build(new File(this.bridgeDirectoriesDir));
+    new SanitizedBridgesWriter(configuration).startProcessing();
+    assertFalse("Server descriptor not stored in segment file.",
+        this.sanitizedBridgesDirectory.resolve("2016/06/server-descriptors/"
+        + "b/6/b6922ff5c045814df4bcb72a0d6c9417cffbd80a").toFile()
+        .exists());
+    File confFile = this.temporaryFolder.newFile("collector.properties");
+    try (OutputStream os = new FileOutputStream(confFile)) {
+      this.configuration.getPropertiesCopy().store(os, null);
+    }
+    Path exportDirectory = this.temporaryFolder.newFolder("export").toPath();
+    Main.main(new String[] { "export", "bridgedescs", confFile.toString(),
+        exportDirectory.toString() });
+    this.parseSanitizedFiles(exportDirectory);
+    assertEquals("Expected exported server and extra-info descriptor.",
+        2, this.parsedFiles.size());
+    assertTrue("Exported server descriptor file name differs.",
+        this.parsedFiles.containsKey("2016/06/server-descriptors/b/6/"
+        + "b6922ff5c045814df4bcb72a0d6c9417cffbd80a"));
+    assertEquals("Exported extra-info descriptor differs.", 1,
+        this.parsedExtraInfoDescriptors.size());
+  }
+
   @Test
   public void testServerDescriptorProtoLine() throws Exception {
     this.defaultServerDescriptorBuilder.replaceLineStartingWith("protocols ",
@@ -625,6 +687,60 @@ public class SanitizedBridgesWriterTest {
     }
   }
 
+  @Test
+  public void testNetworkStatusEntryReused() throws Exception {
+    this.configuration.setProperty(Key.ReplaceIpAddressesWithHashes.name(),
+        "true");
+    this.configuration.setProperty(Key.BridgeDescriptorMappingsLimit.name(),
+        "30000");
+    this.defaultNetworkStatusBuilder.insertBeforeLineStartingWith("s ",
+        Arrays.asList("a [2:5:2:5:2:5:2:5]:25"));
+    TarballBuilder bifroestTarballBuilder = new TarballBuilder(
+        "from-bifroest-2016-07-01T000702Z.tar.gz", 1467331624000L);
+    bifroestTarballBuilder.add("networkstatus-bridges", 1467330028000L,
+        Arrays.asList(new DescriptorBuilder[] {
+            this.defaultNetworkStatusBuilder }));
+    this.tarballBuilders.add(bifroestTarballBuilder);
+    this.runTest();
+    assertEquals("Expected two sanitized statuses.", 2,
+        this.parsedNetworkStatuses.size());
+    assertEquals("Expected both statuses to contain the same sanitized "
+        + "entries.", this.parsedNetworkStatuses.get(0),
+        this.parsedNetworkStatuses.get(1));
+    assertTrue("Expected sanitized a line to follow r line.",
+        this.parsedNetworkStatuses.get(0).get(4).startsWith(
+        "a [fd9f:2e19:3bcf::"));
+  }
+
+  @Test
+  public void testNetworkStatusEntryNotReusedWithoutHashes()
+      throws Exception {
+    this.configuration.setProperty(Key.ReplaceIpAddressesWithHashes.name(),
+        "true");
+    this.configuration.setProperty(Key.BridgeDescriptorMappingsLimit.name(),
+        "30000");
+    this.defaultTarballBuilder.build(new File(this.bridgeDirectoriesDir));
+    SanitizedBridgesWriter sbw = new SanitizedBridgesWriter(configuration);
+    sbw.startProcessing();
+    this.configuration.setProperty(Key.ReplaceIpAddressesWithHashes.name(),
+        "false");
+    TarballBuilder bifroestTarballBuilder = new TarballBuilder(
+        "from-bifroest-2016-07-01T000702Z.tar.gz", 1467331624000L);
+    bifroestTarballBuilder.add("networkstatus-bridges", 1467330028000L,
+        Arrays.asList(new DescriptorBuilder[] {
+            this.defaultNetworkStatusBuilder }));
+    bifroestTarballBuilder.build(new File(this.bridgeDirectoriesDir));
+    sbw.update(this.configuration, null);
+    sbw.run();
+    this.parseSanitizedFiles(this.sanitizedBridgesDirectory);
+    List<String> bifroestStatus = this.parsedFiles.get("2016/06/statuses/"
+        + "30/20160630-234028-1D8F3A91C37C5D1C4C19B1AD1D0CFBE8BF72D8E1");
+    assertEquals("Expected two sanitized statuses.", 2,
+        this.parsedNetworkStatuses.size());
+    assertTrue("Expected status entry without hashed address.",
+        bifroestStatus.get(3).endsWith(" 127.0.0.1 1 0"));
+  }
+
   @Test
   public void testNetworkStatusVLineUnknown() throws Exception {
     this.defaultNetworkStatusBuilder.insertBeforeLineStartingWith("w ",
@@ -655,6 +771,52 @@ public class SanitizedBridgesWriterTest {
         this.parsedNetworkStatuses.isEmpty());
   }
 
+  @Test
+  public void testSanitizingThreads() throws Exception {
+    this.configuration.setProperty(Key.BridgeSanitizingThreads.name(), "4");
+    this.configuration.setProperty(Key.ReplaceIpAddressesWithHashes.name(),
+        "true");
+    this.configuration.setProperty(Key.BridgeDescriptorMappingsLimit.name(),
+        "30000");
+    TarballBuilder bifroestTarballBuilder = new TarballBuilder(
+        "from-bifroest-2016-07-01T000702Z.tar.gz", 1467331624000L);
+    bifroestTarballBuilder.add("networkstatus-bridges", 1467330028000L,
+        Arrays.asList(new DescriptorBuilder[] {
+            this.defaultNetworkStatusBuilder }));
+    this.tarballBuilders.add(bifroestTarballBuilder);
+    this.runTest();
+    assertEquals("Expected 4 sanitized descriptors.", 4,
+        this.parsedFiles.size());
+    assertEquals("Expected both statuses to contain the same sanitized "
+        + "entries.", this.parsedNetworkStatuses.get(0),
+        this.parsedNetworkStatuses.get(1));
+    assertEquals("Expected a single secret to be generated and stored.", 1,
+        Files.readAllLines(Paths.get(statsDirectory, "bridge-ip-secrets"),
+        StandardCharsets.UTF_8).size());
+  }
+
+  @Test
+  public void testImportThreads() throws Exception {
+    this.configuration.setProperty(Key.BridgeImportThreads.name(), "2");
+    TarballBuilder bifroestTarballBuilder = new TarballBuilder(
+        "from-bifroest-2016-07-01T000702Z.tar.gz", 1467331624000L);
+    bifroestTarballBuilder.add("networkstatus-bridges", 1467330028000L,
+        Arrays.asList(new DescriptorBuilder[] {
+            this.defaultNetworkStatusBuilder }));
+    bifroestTarballBuilder.add("bridge-descriptors", 1467331622000L,
+        Arrays.asList(new DescriptorBuilder[] {
+            this.defaultServerDescriptorBuilder }));
+    this.tarballBuilders.add(bifroestTarballBuilder);
+    this.runTest();
+    assertEquals("Expected 4 sanitized descriptors.", 4,
+        this.parsedFiles.size());
+    assertEquals("Expected a single server descriptor.", 1,
+        this.parsedServerDescriptors.size());
+    assertEquals("Expected both statuses to contain the same sanitized "
+        + "entries.", this.parsedNetworkStatuses.get(0),
+        this.parsedNetworkStatuses.get(1));
+  }
+
   @Test
   public void testTarballContainsSameFileTwice() throws Exception {
     this.defaultTarballBuilder.add("cached-extrainfo.new", 1467331623000L,
@@ -0,0 +1,108 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.bridgedescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ScrubbingCacheTest {
+
+  private static final byte[] FINGERPRINT = new byte[20];
+
+  private static final int MAY = BridgeIpSecrets.monthKey("2016-05");
+
+  private static final int JUNE = MAY + 1;
+
+  private static final int JULY = JUNE + 1;
+
+  @Test()
+  public void testGetPut() {
+    ScrubbingCache cache = new ScrubbingCache(2);
+    assertNull(cache.get(JUNE, FINGERPRINT,
+        ScrubbingCache.Kind.TCP_PORT, "443"));
+    cache.put(JUNE, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "443",
+        "52187");
+    assertEquals("52187", cache.get(JUNE, FINGERPRINT,
+        ScrubbingCache.Kind.TCP_PORT, "443"));
+    assertNull(cache.get(JULY, FINGERPRINT,
+        ScrubbingCache.Kind.TCP_PORT, "443"));
+    assertNull(cache.get(JUNE, FINGERPRINT,
+        ScrubbingCache.Kind.IPV4_ADDRESS, "443"));
+    assertEquals(1L, cache.getHits());
+    assertEquals(3L, cache.getMisses());
+    cache.resetStatistics();
+    assertEquals(0L, cache.getHits());
+  }
+
+  @Test()
+  public void testBounded() {
+    ScrubbingCache cache = new ScrubbingCache(2);
+    for (int port = 1; port <= 3; port++) {
+      cache.put(JUNE, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT,
+          String.valueOf(port), "1");
+    }
+    cache.put(JUNE, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "4",
+        null);
+    assertEquals(2, cache.size());
+  }
+
+  @Test()
+  public void testEvictBefore() {
+    ScrubbingCache cache = new ScrubbingCache(10);
+    cache.put(MAY, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "443",
+        "52187");
+    cache.put(JUNE, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "443",
+        "49321");
+    assertEquals(1, cache.evictBefore(JUNE));
+    assertNull(cache.get(MAY, FINGERPRINT,
+        ScrubbingCache.Kind.TCP_PORT, "443"));
+    assertEquals("49321", cache.get(JUNE, FINGERPRINT,
+        ScrubbingCache.Kind.TCP_PORT, "443"));
+  }
+
+  @Test()
+  public void testRetainSecrets() {
+    ScrubbingCache cache = new ScrubbingCache(10);
+    Map<Integer, byte[]> secrets = new HashMap<>();
+    secrets.put(MAY, new byte[] { 1 });
+    secrets.put(JUNE, new byte[] { 2 });
+    cache.retainSecrets(secrets);
+    cache.put(MAY, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "443",
+        "52187");
+    cache.put(JUNE, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "443",
+        "49321");
+    cache.put(JULY, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "443",
+        "50000");
+    secrets.put(JUNE, new byte[] { 3 });
+    cache.retainSecrets(secrets);
+    assertEquals(1, cache.size());
+    assertEquals("52187", cache.get(MAY, FINGERPRINT,
+        ScrubbingCache.Kind.TCP_PORT, "443"));
+  }
+
+  @Test()
+  public void testKeepMonthCreatedDuringRun() {
+    ScrubbingCache cache = new ScrubbingCache(10);
+    Map<Integer, byte[]> secrets = new HashMap<>();
+    cache.retainSecrets(secrets);
+    /* The secret of a new month is generated during the run, after the
+     * cache was told about the secrets at the start of the run. */
+    cache.put(JULY, FINGERPRINT, ScrubbingCache.Kind.TCP_PORT, "443",
+        "50000");
+    secrets.put(JULY, new byte[] { 4 });
+    cache.retainSecrets(secrets);
+    assertEquals(1, cache.size());
+    cache.retainSecrets(secrets);
+    assertEquals("50000", cache.get(JULY, FINGERPRINT,
+        ScrubbingCache.Kind.TCP_PORT, "443"));
+    secrets.put(JULY, new byte[] { 5 });
+    cache.retainSecrets(secrets);
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,100 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.exitlists;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+public class ExitListCatalogTest {
+
+  /* 2016-09-20 00:00:00 UTC */
+  private static final long START = 1474329600000L;
+
+  private static final long HOUR = 60L * 60L * 1000L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static String fileName(int hour) {
+    return String.format("2016-09-20-%02d-00-00", hour);
+  }
+
+  private static ExitListCatalog.Entry entry(int hour, long maxScanMillis) {
+    return new ExitListCatalog.Entry(START + hour * HOUR, fileName(hour),
+        ExitListDeltaStore.classicPath(fileName(hour)), fileName(hour),
+        100L + hour, maxScanMillis);
+  }
+
+  @Test()
+  public void testAddWriteAndRead() throws Exception {
+    File catalogFile = new File(tmpf.getRoot(), "stats/exit-list-catalog");
+    File recentDirectory = tmpf.newFolder("recent");
+    ExitListCatalog catalog = new ExitListCatalog(catalogFile,
+        recentDirectory);
+    assertEquals(0, catalog.size());
+    assertEquals(0L, catalog.getMaxScanMillis());
+    for (int hour = 0; hour < 5; hour++) {
+      catalog.add(entry(hour, hour == 4 ? 0L : START + hour * HOUR));
+    }
+    catalog.write();
+    assertTrue(catalogFile.exists());
+
+    catalog = new ExitListCatalog(catalogFile, recentDirectory);
+    assertEquals(5, catalog.size());
+    assertEquals(START + 3L * HOUR, catalog.getMaxScanMillis());
+    List<ExitListCatalog.Entry> latest = catalog.getLatest(3);
+    assertEquals(3, latest.size());
+    assertEquals(fileName(2), latest.get(0).fileName);
+    ExitListCatalog.Entry last = latest.get(2);
+    assertEquals(fileName(4), last.fileName);
+    assertEquals("2016/09/20/" + fileName(4), last.outputPath);
+    assertEquals(fileName(4), last.recentFileName);
+    assertEquals(104L, last.size);
+    assertEquals(START + 4L * HOUR, last.downloadedMillis);
+  }
+
+  @Test()
+  public void testExpireRecentFiles() throws Exception {
+    File catalogFile = new File(tmpf.getRoot(), "exit-list-catalog");
+    File recentDirectory = tmpf.newFolder("recent");
+    ExitListCatalog catalog = new ExitListCatalog(catalogFile,
+        recentDirectory);
+    for (int hour = 0; hour < 6; hour++) {
+      assertTrue(new File(recentDirectory, fileName(hour)).createNewFile());
+      catalog.add(entry(hour, 0L));
+    }
+    assertEquals(5, catalog.expireRecentFiles(START + 5L * HOUR));
+    assertEquals(ExitListCatalog.KEEP_LATEST, catalog.size());
+    assertFalse(new File(recentDirectory, fileName(4)).exists());
+    assertTrue(new File(recentDirectory, fileName(5)).exists());
+    List<ExitListCatalog.Entry> latest = catalog.getLatest(3);
+    assertNull(latest.get(1).recentFileName);
+    assertEquals(fileName(5), latest.get(2).recentFileName);
+    assertEquals(0, catalog.expireRecentFiles(START + 5L * HOUR));
+  }
+
+  @Test()
+  public void testInitializeFromRecentDirectory() throws Exception {
+    File catalogFile = new File(tmpf.getRoot(), "exit-list-catalog");
+    File recentDirectory = tmpf.newFolder("recent");
+    assertTrue(new File(recentDirectory, fileName(1)).createNewFile());
+    assertTrue(new File(recentDirectory, fileName(2) + ".tmp")
+        .createNewFile());
+    ExitListCatalog catalog = new ExitListCatalog(catalogFile,
+        recentDirectory);
+    assertEquals(1, catalog.size());
+    ExitListCatalog.Entry entry = catalog.getLatest(1).get(0);
+    assertEquals(START + HOUR, entry.downloadedMillis);
+    assertEquals(fileName(1), entry.recentFileName);
+  }
+}
@@ -0,0 +1,169 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.exitlists;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.torproject.collector.Main;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExitListDeltaStoreTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static byte[] exitList(int hour, int entries, int changed) {
+    StringBuilder sb = new StringBuilder("@type tordnsel 1.0\n"
+        + String.format("Downloaded 2016-09-20 %02d:00:00\n", hour));
+    for (int i = 0; i < entries; i++) {
+      int published = i < changed ? hour : 0;
+      sb.append(String.format("ExitNode %040X\n"
+          + "Published 2016-09-20 %02d:%02d:00\n"
+          + "LastStatus 2016-09-20 %02d:%02d:00\n"
+          + "ExitAddress 10.0.%d.%d 2016-09-20 %02d:%02d:00\n", i,
+          published, i % 60, published, i % 60, i / 256, i % 256,
+          published, i % 60));
+    }
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String fileName(int hour) {
+    return String.format("2016-09-20-%02d-00-00", hour);
+  }
+
+  @Test()
+  public void testAppendReadAndExport() throws Exception {
+    File outputDirectory = tmpf.newFolder("out");
+    ExitListDeltaStore store = new ExitListDeltaStore(outputDirectory);
+    List<byte[]> exitLists = new ArrayList<>();
+    int totalLength = 0;
+    int appendedLength = 0;
+    for (int hour = 0; hour < ExitListDeltaStore.SNAPSHOT_INTERVAL + 2;
+        hour++) {
+      byte[] exitList = exitList(hour % 24, 100 + hour, 5);
+      exitLists.add(exitList);
+      totalLength += exitList.length;
+      appendedLength += store.append(fileName(hour), exitList);
+    }
+    assertTrue(appendedLength < totalLength / 5);
+    assertTrue(new File(outputDirectory, "2016/09/"
+        + ExitListDeltaStore.FILE_NAME).exists());
+    for (int hour = 0; hour < exitLists.size(); hour++) {
+      assertArrayEquals(exitLists.get(hour), store.read(fileName(hour)));
+    }
+    assertNull(store.read("2016-09-20-23-59-59"));
+
+    File targetDirectory = tmpf.newFolder("export");
+    assertEquals(exitLists.size(), ExitListDeltaStore.export(
+        outputDirectory, targetDirectory));
+    assertArrayEquals(exitLists.get(3), Files.readAllBytes(new File(
+        targetDirectory, "2016/09/20/" + fileName(3)).toPath()));
+
+    /* Only export exit lists that were added since the last export. */
+    byte[] added = exitList(23, 100, 5);
+    store.append("2016-09-21-23-00-00", added);
+    assertEquals(1, ExitListDeltaStore.export(outputDirectory,
+        targetDirectory));
+    assertArrayEquals(added, Files.readAllBytes(new File(targetDirectory,
+        "2016/09/21/2016-09-21-23-00-00").toPath()));
+  }
+
+  @Test()
+  public void testReorderedAndRemovedEntries() throws Exception {
+    ExitListDeltaStore store = new ExitListDeltaStore(
+        tmpf.newFolder("out"));
+    byte[] first = exitList(1, 10, 0);
+    String firstString = new String(first, StandardCharsets.US_ASCII);
+    int entriesStart = firstString.indexOf("ExitNode ");
+    int middle = firstString.indexOf("ExitNode ", entriesStart
+        + firstString.length() / 2);
+    int last = firstString.lastIndexOf("ExitNode ");
+    byte[] second = (firstString.substring(0, entriesStart)
+        + firstString.substring(middle, last)
+        + firstString.substring(entriesStart, middle)
+        + "trailing line without newline").getBytes(
+        StandardCharsets.US_ASCII);
+    store.append(fileName(1), first);
+    store.append(fileName(2), second);
+    assertArrayEquals(first, store.read(fileName(1)));
+    assertArrayEquals(second, store.read(fileName(2)));
+  }
+
+  @Test()
+  public void testTruncateIncompleteRecord() throws Exception {
+    File outputDirectory = tmpf.newFolder("out");
+    ExitListDeltaStore store = new ExitListDeltaStore(outputDirectory);
+    store.append(fileName(1), exitList(1, 10, 0));
+    File file = new File(outputDirectory, "2016/09/"
+        + ExitListDeltaStore.FILE_NAME);
+    long length = file.length();
+    store.append(fileName(2), exitList(2, 10, 2));
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(file.length() - 1L);
+    }
+    store.append(fileName(3), exitList(3, 10, 3));
+    assertNull(store.read(fileName(2)));
+    assertArrayEquals(exitList(3, 10, 3), store.read(fileName(3)));
+    assertTrue(file.length() > length);
+  }
+
+  @Test()
+  public void testAppendFromTwoStores() throws Exception {
+    File outputDirectory = tmpf.newFolder("out");
+    ExitListDeltaStore first = new ExitListDeltaStore(outputDirectory);
+    ExitListDeltaStore second = new ExitListDeltaStore(outputDirectory);
+    for (int hour = 0; hour < 6; hour++) {
+      (hour % 3 == 0 ? second : first).append(fileName(hour),
+          exitList(hour, 20, hour));
+    }
+    try {
+      first.append(fileName(3), exitList(3, 20, 3));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      /* Expected, because the other store appended that exit list. */
+    }
+    ExitListDeltaStore reader = new ExitListDeltaStore(outputDirectory);
+    for (int hour = 0; hour < 6; hour++) {
+      assertArrayEquals(exitList(hour, 20, hour),
+          reader.read(fileName(hour)));
+    }
+  }
+
+  @Test()
+  public void testExportCommand() throws Exception {
+    File outputDirectory = tmpf.newFolder("out");
+    ExitListDeltaStore store = new ExitListDeltaStore(new File(
+        outputDirectory, "exit-lists"));
+    for (int hour = 0; hour < 3; hour++) {
+      store.append(fileName(hour), exitList(hour, 10, hour));
+    }
+    File confFile = tmpf.newFile("collector.properties");
+    Files.write(confFile.toPath(), ("OutputPath = "
+        + outputDirectory.getAbsolutePath() + "\n").getBytes(
+        StandardCharsets.UTF_8));
+    File targetDirectory = tmpf.newFolder("export");
+    Main.main(new String[] { "export", "exitlists", confFile.toString(),
+        targetDirectory.toString() });
+    for (int hour = 0; hour < 3; hour++) {
+      assertArrayEquals(exitList(hour, 10, hour), Files.readAllBytes(
+          new File(targetDirectory, "2016/09/20/" + fileName(hour))
+          .toPath()));
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.collector.index.CreateIndexJson.DirectoryNode;
+import org.torproject.collector.index.CreateIndexJson.FileNode;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class IndexCacheTest {
+
+  /* 2017-05-01 00:00:00 UTC */
+  private static final long OLD = 1493596800000L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static void createFile(File file, int size, long lastModified)
+      throws Exception {
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), new byte[size]);
+    assertTrue(file.setLastModified(lastModified));
+  }
+
+  private File createTree() throws Exception {
+    File root = tmpf.newFolder("archive");
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 4; j++) {
+        createFile(new File(root, "d" + i + "/f" + j), i * 10 + j, OLD);
+      }
+      assertTrue(new File(root, "d" + i).setLastModified(OLD));
+    }
+    assertTrue(root.setLastModified(OLD));
+    return root;
+  }
+
+  private static int index(IndexCache cache, File root,
+      boolean expectRescan, String expectedFiles) {
+    assertEquals(expectRescan, cache.startRun());
+    DirectoryNode node = cache.indexDirectory(root);
+    int listed = cache.finishRun();
+    StringBuilder sb = new StringBuilder();
+    for (DirectoryNode directory : node.directories) {
+      sb.append(directory.path).append(':');
+      if (null != directory.files) {
+        for (FileNode file : directory.files) {
+          sb.append(' ').append(file.path).append('=').append(file.size);
+        }
+      }
+      sb.append(';');
+    }
+    assertEquals(expectedFiles, sb.toString());
+    return listed;
+  }
+
+  @Test()
+  public void testReuseUnchangedDirectories() throws Exception {
+    File root = createTree();
+    File cacheFile = new File(tmpf.getRoot(), "stats/index-cache");
+    IndexCache cache = new IndexCache(cacheFile);
+    String files = "d0: f0=0 f1=1 f2=2 f3=3;d1: f0=10 f1=11 f2=12 f3=13;"
+        + "d2: f0=20 f1=21 f2=22 f3=23;";
+    assertEquals(4, index(cache, root, true, files));
+    assertTrue(cacheFile.exists());
+    assertEquals(0, index(cache, root, false, files));
+
+    createFile(new File(root, "d1/f4"), 14, OLD);
+    assertTrue(new File(root, "d1").setLastModified(OLD + 1000L));
+    assertTrue(new File(root, "d2/f0").delete());
+    assertTrue(new File(root, "d2/f1").delete());
+    assertTrue(new File(root, "d2").setLastModified(OLD + 1000L));
+    files = "d0: f0=0 f1=1 f2=2 f3=3;d1: f0=10 f1=11 f2=12 f3=13 f4=14;"
+        + "d2: f2=22 f3=23;";
+    assertEquals(2, index(cache, root, false, files));
+
+    cache = new IndexCache(cacheFile);
+    assertEquals(0, index(cache, root, false, files));
+  }
+
+  @Test()
+  public void testRelistFilesModifiedInPlace() throws Exception {
+    File root = createTree();
+    IndexCache cache = new IndexCache(new File(tmpf.getRoot(),
+        "index-cache"));
+    String files = "d0: f0=0 f1=1 f2=2 f3=3;d1: f0=10 f1=11 f2=12 f3=13;"
+        + "d2: f0=20 f1=21 f2=22 f3=23;";
+    assertEquals(4, index(cache, root, true, files));
+    /* Rewrite a file in place, like recent/torperf/*.tpf files, without
+     * changing the last-modified time of its directory. */
+    createFile(new File(root, "d1/f2"), 99, OLD + 60L * 60L * 1000L);
+    assertTrue(new File(root, "d1").setLastModified(OLD));
+    files = files.replace("f2=12", "f2=99");
+    assertEquals(1, index(cache, root, false, files));
+    assertEquals(0, index(cache, root, false, files));
+  }
+
+  @Test()
+  public void testRelistRecentlyModifiedDirectories() throws Exception {
+    File root = createTree();
+    IndexCache cache = new IndexCache(new File(tmpf.getRoot(),
+        "index-cache"));
+    index(cache, root, true, "d0: f0=0 f1=1 f2=2 f3=3;"
+        + "d1: f0=10 f1=11 f2=12 f3=13;d2: f0=20 f1=21 f2=22 f3=23;");
+    createFile(new File(root, "d0/f4"), 4, System.currentTimeMillis());
+    assertTrue(new File(root, "d0").setLastModified(OLD + 1000L));
+    String files = "d0: f0=0 f1=1 f2=2 f3=3 f4=4;"
+        + "d1: f0=10 f1=11 f2=12 f3=13;d2: f0=20 f1=21 f2=22 f3=23;";
+    assertEquals(1, index(cache, root, false, files));
+    /* Still being written to, so that its size might change without
+     * changing the directory's last-modified time. */
+    createFile(new File(root, "d0/f4"), 5, System.currentTimeMillis());
+    files = files.replace("f4=4", "f4=5");
+    assertEquals(1, index(cache, root, false, files));
+  }
+
+  @Test()
+  public void testRemovedDirectory() throws Exception {
+    File root = createTree();
+    File cacheFile = new File(tmpf.getRoot(), "index-cache");
+    IndexCache cache = new IndexCache(cacheFile);
+    index(cache, root, true, "d0: f0=0 f1=1 f2=2 f3=3;"
+        + "d1: f0=10 f1=11 f2=12 f3=13;d2: f0=20 f1=21 f2=22 f3=23;");
+    for (File file : new File(root, "d1").listFiles()) {
+      assertTrue(file.delete());
+    }
+    assertTrue(new File(root, "d1").delete());
+    assertTrue(new File(root, "d2/f0").delete());
+    assertTrue(new File(root, "d2").setLastModified(OLD));
+    assertTrue(root.setLastModified(OLD + 1000L));
+    /* The removed file in d2 is noticed even though only the root
+     * directory appears to be modified. */
+    assertEquals(2, index(cache, root, false, "d0: f0=0 f1=1 f2=2 f3=3;"
+        + "d2: f1=21 f2=22 f3=23;"));
+    assertFalse(Files.readAllLines(cacheFile.toPath()).toString()
+        .contains(new File(root, "d1").getAbsolutePath()));
+  }
+
+  @Test()
+  public void testWatcher() throws Exception {
+    File root = createTree();
+    IndexCache cache = new IndexCache(new File(tmpf.getRoot(),
+        "index-cache"));
+    IndexDirectoryWatcher watcher = new IndexDirectoryWatcher();
+    try {
+      cache.setWatcher(watcher);
+      String files = "d0: f0=0 f1=1 f2=2 f3=3;"
+          + "d1: f0=10 f1=11 f2=12 f3=13;d2: f0=20 f1=21 f2=22 f3=23;";
+      assertEquals(4, index(cache, root, true, files));
+      /* Modify a file in place without changing any last-modified
+       * time. */
+      createFile(new File(root, "d1/f1"), 99, OLD);
+      int listed = 0;
+      for (int i = 0; i < 100 && listed == 0; i++) {
+        Thread.sleep(100L);
+        assertFalse(cache.startRun());
+        cache.indexDirectory(root);
+        listed = cache.finishRun();
+      }
+      assertEquals(1, listed);
+      files = files.replace("f1=11", "f1=99");
+      assertEquals(0, index(cache, root, false, files));
+    } finally {
+      watcher.close();
+    }
+  }
+}
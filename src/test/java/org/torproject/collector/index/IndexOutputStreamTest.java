@@ -0,0 +1,103 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+public class IndexOutputStreamTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static byte[] readVersion(File indexFile, String suffix)
+      throws IOException {
+    File file = new File(indexFile.getPath() + suffix);
+    try (InputStream fis = new FileInputStream(file);
+        InputStream is = suffix.equals(".gz") ? new GZIPInputStream(fis)
+            : suffix.equals(".xz") ? new XZCompressorInputStream(fis)
+            : suffix.equals(".bz2") ? new BZip2CompressorInputStream(fis)
+            : fis) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = is.read(buffer)) >= 0) {
+        baos.write(buffer, 0, len);
+      }
+      return baos.toByteArray();
+    }
+  }
+
+  @Test()
+  public void testWriteAllVersions() throws Exception {
+    File indexFile = new File(tmpf.getRoot(), "index/index.json");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < 300000; i++) {
+      sb.append("{\"path\":\"file-").append(i).append("\",\"size\":")
+          .append(i * 7).append("},");
+    }
+    byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+    IndexOutputStream ios = new IndexOutputStream(indexFile);
+    ios.write(content, 0, 10);
+    ios.write(content[10]);
+    ios.write(content, 11, content.length - 11);
+    ios.close();
+    for (String suffix : IndexOutputStream.SUFFIXES) {
+      assertArrayEquals(content, readVersion(indexFile, suffix));
+    }
+    assertEquals(IndexOutputStream.SUFFIXES.length,
+        indexFile.getParentFile().list().length);
+  }
+
+  @Test()
+  public void testAbortKeepsPreviousVersions() throws Exception {
+    File indexFile = new File(tmpf.getRoot(), "index.json");
+    byte[] previous = "{}".getBytes(StandardCharsets.UTF_8);
+    IndexOutputStream ios = new IndexOutputStream(indexFile);
+    ios.write(previous);
+    ios.close();
+    ios = new IndexOutputStream(indexFile);
+    ios.write(new byte[100000]);
+    ios.abort();
+    for (String suffix : IndexOutputStream.SUFFIXES) {
+      assertArrayEquals(previous, readVersion(indexFile, suffix));
+    }
+    assertEquals(Arrays.asList(tmpf.getRoot().list()).toString(),
+        IndexOutputStream.SUFFIXES.length, tmpf.getRoot().list().length);
+  }
+
+  @Test()
+  public void testCannotOpenVersion() throws Exception {
+    File indexFile = new File(tmpf.getRoot(), "index.json");
+    File blocked = new File(tmpf.getRoot(), "index.json.xz.tmp");
+    assertTrue(blocked.mkdir());
+    try {
+      new IndexOutputStream(indexFile);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      /* Expected, because the temporary file is a directory. */
+    }
+    assertTrue(blocked.isDirectory());
+    assertEquals(1, tmpf.getRoot().list().length);
+    assertTrue(Files.notExists(indexFile.toPath()));
+  }
+}
@@ -0,0 +1,92 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class DigestSetTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static byte[] digest(int number) {
+    return DigestUtils.sha(String.valueOf(number));
+  }
+
+  @Test()
+  public void testAddContains() {
+    DigestSet set = new DigestSet();
+    for (int i = 0; i < 5000; i += 2) {
+      assertTrue(set.add(digest(i)));
+    }
+    assertFalse(set.add(digest(42)));
+    assertEquals(2500, set.size());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals("Digest " + i, i % 2 == 0, set.contains(digest(i)));
+    }
+    assertTrue(set.contains(DigestUtils.shaHex("42")));
+  }
+
+  @Test()
+  public void testSaveLoad() throws Exception {
+    DigestSet set = new DigestSet();
+    for (int i = 0; i < 3000; i++) {
+      set.add(digest(i));
+    }
+    File file = tmpf.newFile();
+    set.save(file);
+    assertEquals(12 + 3000 * DigestSet.DIGEST_LENGTH, file.length());
+    DigestSet loaded = DigestSet.load(file);
+    assertEquals(3000, loaded.size());
+    for (int i = 0; i < 3000; i++) {
+      assertTrue(loaded.contains(digest(i)));
+    }
+    assertFalse(loaded.contains(digest(3000)));
+  }
+
+  @Test()
+  public void testLoadTextFormat() throws Exception {
+    File file = tmpf.newFile();
+    Files.write(file.toPath(), Arrays.asList(DigestUtils.shaHex("1"),
+        DigestUtils.shaHex("2")), StandardCharsets.US_ASCII);
+    DigestSet loaded = DigestSet.load(file);
+    assertEquals(2, loaded.size());
+    assertTrue(loaded.contains(digest(1)));
+    assertTrue(loaded.contains(digest(2)));
+  }
+
+  @Test()
+  public void testMerge() {
+    DigestSet first = new DigestSet();
+    DigestSet second = new DigestSet();
+    for (int i = 0; i < 2000; i++) {
+      first.add(digest(i));
+      second.add(digest(i + 1000));
+    }
+    DigestSet merged = DigestSet.merge(first, second);
+    assertEquals(3000, merged.size());
+    assertTrue(merged.contains(digest(0)));
+    assertTrue(merged.contains(digest(2999)));
+    first.addAll(second);
+    assertEquals(3000, first.size());
+    assertTrue(first.contains(digest(2999)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidDigest() {
+    new DigestSet().add(new byte[] { 1, 2, 3 });
+  }
+}
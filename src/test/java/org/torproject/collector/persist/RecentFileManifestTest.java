@@ -0,0 +1,88 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class RecentFileManifestTest {
+
+  private static final long ONE_DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+  /* 2016-07-01 12:00:00 UTC */
+  private static final long NOW = 1467374400000L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testRepairThenIncremental() throws Exception {
+    File recent = tmpf.newFolder("recent");
+    File manifestFile = new File(tmpf.getRoot(), "manifest");
+    File old = new File(recent, "statuses/old");
+    old.getParentFile().mkdirs();
+    old.createNewFile();
+    old.setLastModified(NOW - 4L * ONE_DAY_MILLIS);
+    File kept = new File(recent, "statuses/kept");
+    kept.createNewFile();
+    kept.setLastModified(NOW - ONE_DAY_MILLIS);
+    File temp = new File(recent, "server-descriptors/first.tmp");
+    temp.getParentFile().mkdirs();
+    temp.createNewFile();
+    temp.setLastModified(NOW);
+    long cutOffMillis = NOW - 3L * ONE_DAY_MILLIS;
+
+    RecentFileManifest manifest = new RecentFileManifest(recent.toPath(),
+        manifestFile.toPath());
+    manifest.cleanUp(cutOffMillis, ".tmp", NOW);
+    assertFalse(old.exists());
+    assertTrue(kept.exists());
+    assertFalse(temp.exists());
+    assertTrue(new File(recent, "server-descriptors/first").exists());
+    assertEquals(2, manifest.size());
+    assertTrue(manifestFile.exists());
+
+    /* A file written by someone else is not seen until the next repair,
+     * but a file noted as written is renamed and later deleted. */
+    File foreign = new File(recent, "statuses/foreign.tmp");
+    foreign.createNewFile();
+    File second = new File(recent, "server-descriptors/second.tmp");
+    second.createNewFile();
+    manifest = new RecentFileManifest(recent.toPath(),
+        manifestFile.toPath());
+    manifest.written(second, NOW + 1000L);
+    manifest.cleanUp(cutOffMillis, ".tmp", NOW + 1000L);
+    assertTrue(foreign.exists());
+    assertFalse(second.exists());
+    assertTrue(new File(recent, "server-descriptors/second").exists());
+    assertEquals(3, manifest.size());
+
+    manifest.cleanUp(NOW - ONE_DAY_MILLIS / 2L, ".tmp", NOW + 2000L);
+    assertFalse(kept.exists());
+    assertTrue(new File(recent, "server-descriptors/second").exists());
+    assertEquals(2, manifest.size());
+  }
+
+  @Test()
+  public void testUnreadableManifestTriggersRepair() throws Exception {
+    File recent = tmpf.newFolder("recent");
+    File manifestFile = tmpf.newFile("manifest");
+    File temp = new File(recent, "extra-infos/first.tmp");
+    temp.getParentFile().mkdirs();
+    temp.createNewFile();
+    RecentFileManifest manifest = new RecentFileManifest(recent.toPath(),
+        manifestFile.toPath());
+    assertEquals(0, manifest.size());
+    manifest.cleanUp(0L, ".tmp", NOW);
+    assertTrue(new File(recent, "extra-infos/first").exists());
+    assertEquals(1, manifest.size());
+  }
+}
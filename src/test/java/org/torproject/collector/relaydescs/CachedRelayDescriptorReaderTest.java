@@ -0,0 +1,100 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.relaydescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CachedRelayDescriptorReaderTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private final List<String> parsed = new ArrayList<>();
+
+  private final RelayDescriptorParser rdp = new RelayDescriptorParser(null) {
+    @Override
+    public boolean parse(byte[] data) {
+      parsed.add(new String(data, StandardCharsets.US_ASCII));
+      return true;
+    }
+  };
+
+  private static String descriptor(String nickname) {
+    return "router " + nickname + " 1.2.3.4 9001 0 0\nrouter-signature\n"
+        + "-----BEGIN SIGNATURE-----\n" + nickname
+        + "\n-----END SIGNATURE-----\n";
+  }
+
+  private static void append(File file, String content) throws Exception {
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII),
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  @Test()
+  public void testReadJournalIncrementally() throws Exception {
+    File inputDirectory = tmpf.newFolder("tor");
+    File journal = new File(inputDirectory, "cached-descriptors.new");
+    String third = descriptor("c");
+    append(journal, descriptor("a") + descriptor("b")
+        + third.substring(0, 20));
+    CachedRelayDescriptorReader reader = new CachedRelayDescriptorReader(
+        this.rdp, new String[] { inputDirectory.getPath() },
+        tmpf.newFolder("stats"));
+    assertEquals(Arrays.asList(descriptor("a"), descriptor("b")),
+        this.parsed);
+    int offset = reader.getJournalOffsets().get(journal.getAbsoluteFile());
+    assertEquals((descriptor("a") + descriptor("b")).length(), offset);
+
+    /* Use a fresh import history, so that only the offset keeps the
+     * first two descriptors from being parsed again. */
+    this.parsed.clear();
+    append(journal, third.substring(20) + descriptor("d"));
+    reader = new CachedRelayDescriptorReader(this.rdp,
+        tmpf.newFolder("stats2"));
+    assertEquals(journal.length(),
+        reader.readCachedDescFile(journal, offset));
+    assertEquals(Arrays.asList(third, descriptor("d")), this.parsed);
+  }
+
+  @Test()
+  public void testReadMicrodescConsensus() throws Exception {
+    File inputDirectory = tmpf.newFolder("tor");
+    String consensus = "network-status-version 3 microdesc\n"
+        + "valid-after 2017-05-01 00:00:00\n";
+    append(new File(inputDirectory, "cached-microdesc-consensus"),
+        consensus);
+    CachedRelayDescriptorReader reader = new CachedRelayDescriptorReader(
+        this.rdp, new String[] { inputDirectory.getPath() },
+        tmpf.newFolder("stats"));
+    assertEquals(Arrays.asList(consensus), this.parsed);
+    assertTrue(reader.getDumpStats().contains(
+        "cached-microdesc-consensus: 2017-05-01 00:00:00 (stale!)"));
+  }
+
+  @Test()
+  public void testReadTruncatedJournalFromStart() throws Exception {
+    File inputDirectory = tmpf.newFolder("tor");
+    File journal = new File(inputDirectory, "cached-extrainfo.new");
+    String extraInfo = descriptor("a").replace("router a", "extra-info a");
+    append(journal, extraInfo);
+    CachedRelayDescriptorReader reader = new CachedRelayDescriptorReader(
+        this.rdp, tmpf.newFolder("stats"));
+    assertEquals(extraInfo.length(), reader.readCachedDescFile(journal,
+        extraInfo.length() + 100));
+    assertEquals(Arrays.asList(extraInfo), this.parsed);
+  }
+}
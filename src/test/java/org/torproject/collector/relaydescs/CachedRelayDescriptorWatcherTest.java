@@ -0,0 +1,120 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.relaydescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.torproject.collector.conf.Configuration;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class CachedRelayDescriptorWatcherTest {
+
+  private static final long DEBOUNCE_MILLIS = 300L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private final BlockingQueue<SortedSet<File>> imports =
+      new LinkedBlockingQueue<>();
+
+  private CachedRelayDescriptorWatcher watcher;
+
+  private File startWatcher() throws Exception {
+    File inputDirectory = tmpf.newFolder("tor").getAbsoluteFile();
+    this.watcher = new CachedRelayDescriptorWatcher(
+        new ArchiveWriter(new Configuration()),
+        new String[] { inputDirectory.getPath() }, tmpf.newFolder("stats"),
+        DEBOUNCE_MILLIS, null) {
+      @Override
+      void importChangedFiles(SortedSet<File> changedFiles) {
+        imports.add(changedFiles);
+      }
+    };
+    this.watcher.start();
+    return inputDirectory;
+  }
+
+  @After
+  public void stopWatcher() {
+    if (null != this.watcher) {
+      this.watcher.stop();
+    }
+  }
+
+  private static void append(File file) throws Exception {
+    Files.write(file.toPath(), "x\n".getBytes(StandardCharsets.US_ASCII),
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  @Test()
+  public void testDebounceBurstOfChanges() throws Exception {
+    File inputDirectory = startWatcher();
+    File journal = new File(inputDirectory, "cached-descriptors.new");
+    File votes = new File(inputDirectory, "v3-status-votes");
+    for (int i = 0; i < 5; i++) {
+      append(journal);
+      Thread.sleep(DEBOUNCE_MILLIS / 5);
+    }
+    append(votes);
+    SortedSet<File> changedFiles = this.imports.poll(10L, TimeUnit.SECONDS);
+    assertNotNull(changedFiles);
+    assertEquals(new TreeSet<>(Arrays.asList(journal, votes)),
+        changedFiles);
+    assertNull(this.imports.poll(3L * DEBOUNCE_MILLIS,
+        TimeUnit.MILLISECONDS));
+  }
+
+  @Test()
+  public void testIgnoreOtherFiles() throws Exception {
+    File inputDirectory = startWatcher();
+    append(new File(inputDirectory, "cached-microdescs.new"));
+    append(new File(inputDirectory, "state"));
+    assertNull(this.imports.poll(3L * DEBOUNCE_MILLIS,
+        TimeUnit.MILLISECONDS));
+    File consensus = new File(inputDirectory, "cached-consensus");
+    append(consensus);
+    assertEquals(new TreeSet<>(Arrays.asList(consensus)),
+        this.imports.poll(10L, TimeUnit.SECONDS));
+  }
+
+  @Test()
+  public void testImportMicrodescConsensus() throws Exception {
+    final BlockingQueue<Long> stored = new LinkedBlockingQueue<>();
+    File inputDirectory = tmpf.newFolder("tor").getAbsoluteFile();
+    this.watcher = new CachedRelayDescriptorWatcher(
+        new ArchiveWriter(new Configuration()) {
+          @Override
+          public void storeMicrodescConsensus(byte[] data, long validAfter,
+              SortedSet<String> microdescriptorDigests) {
+            stored.add(validAfter);
+          }
+        }, new String[] { inputDirectory.getPath() },
+        tmpf.newFolder("stats"), DEBOUNCE_MILLIS, null);
+    this.watcher.start();
+    Files.write(new File(inputDirectory, "cached-microdesc-consensus")
+        .toPath(), ("network-status-version 3 microdesc\n"
+        + "valid-after 2017-05-01 00:00:00\n").getBytes(
+        StandardCharsets.US_ASCII));
+    /* 2017-05-01 00:00:00 UTC */
+    assertEquals(Long.valueOf(1493596800000L),
+        stored.poll(10L, TimeUnit.SECONDS));
+  }
+}
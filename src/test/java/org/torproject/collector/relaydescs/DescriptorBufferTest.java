@@ -0,0 +1,56 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.relaydescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class DescriptorBufferTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static final String CACHED_DESCRIPTORS
+      = "@downloaded-at 2016-10-02 16:05:00\n"
+      + "router a 1.2.3.4 9001 0 0\nrouter-signature\n"
+      + "-----BEGIN SIGNATURE-----\nabc\n-----END SIGNATURE-----\n"
+      + "router b 5.6.7.8 9001 0 0\nrouter-signature\n"
+      + "-----BEGIN SIGNATURE-----\ndef\n-----END SIGNATURE-----\n";
+
+  @Test()
+  public void testMappedFile() throws Exception {
+    File file = tmpf.newFile();
+    byte[] bytes = CACHED_DESCRIPTORS.getBytes(StandardCharsets.US_ASCII);
+    Files.write(file.toPath(), bytes);
+    DescriptorBuffer buffer = DescriptorBuffer.map(file);
+    assertEquals(bytes.length, buffer.length());
+    int start = buffer.skipAnnotations();
+    assertEquals("router a 1.2.3.4 9001 0 0", buffer.line(start));
+    int next = buffer.indexOf("router ", start + 1);
+    assertEquals(start, buffer.findLine("router ", 0));
+    assertEquals(next, buffer.findLine("router b", start));
+    assertArrayEquals(DigestUtils.sha(buffer.bytes(start, next)),
+        buffer.digest("SHA-1", start, next));
+    assertEquals(DigestUtils.shaHex(buffer.bytes(start, next)),
+        buffer.sha1Hex(start, next));
+    assertEquals(-1, buffer.indexOf("extra-info ", 0));
+  }
+
+  @Test()
+  public void testEmptyFile() throws Exception {
+    DescriptorBuffer buffer = DescriptorBuffer.map(tmpf.newFile());
+    assertEquals(0, buffer.length());
+    assertEquals(0, buffer.skipAnnotations());
+    assertEquals(-1, buffer.findLine("valid-after ", 0));
+  }
+}
@@ -0,0 +1,148 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.torperf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+public class TorperfColumnarArchiveTest {
+
+  /* 2017-04-30 23:10:00 UTC */
+  private static final long START = 1493593800L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static String dataLine(long start) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 9; i++) {
+      sb.append(start + i / 5).append(" 260000 ");
+    }
+    return sb.append("75 51200 0").toString();
+  }
+
+  private static TorperfFields merged(String source, long start,
+      String extradataLine) {
+    TorperfFields data = new TorperfFields();
+    assertTrue(data.parseDataLine(dataLine(start)));
+    TorperfFields merged = new TorperfFields();
+    merged.add("SOURCE", source);
+    merged.add("FILESIZE", "51200");
+    if (extradataLine != null) {
+      TorperfFields extradata = new TorperfFields();
+      assertTrue(extradata.parseExtradataLine(extradataLine));
+      merged.addAll(extradata);
+    }
+    merged.addAll(data);
+    return merged;
+  }
+
+  @Test()
+  public void testAppendAndRead() throws Exception {
+    File outputDirectory = tmpf.newFolder("torperf-columnar");
+    TorperfColumnarArchive archive = new TorperfColumnarArchive(
+        outputDirectory);
+    TorperfColumnarArchive.Batch batch = new TorperfColumnarArchive.Batch();
+    for (int i = 0; i < 3; i++) {
+      long start = START + i * 3600L;
+      batch.addRow(start * 1000000L + 260000L, merged("torperf", start,
+          i == 1 ? "CIRC_ID=7 USED_AT=" + (start + 1) + ".26 PATH=a,b,c"
+          : null));
+    }
+    assertEquals(3, batch.size());
+    archive.append(batch);
+    batch = new TorperfColumnarArchive.Batch();
+    batch.addRow(START * 1000000L + 260000L, merged("other", START, null));
+    archive.append(batch);
+
+    File april = TorperfColumnarArchive.archiveFile(outputDirectory, 2017,
+        4);
+    File may = TorperfColumnarArchive.archiveFile(outputDirectory, 2017,
+        5);
+    assertTrue(april.getPath().endsWith("2017/04/torperf-2017-04.tpc"));
+    List<TorperfColumnarArchive.Block> blocks = TorperfColumnarArchive.read(
+        april, Long.MIN_VALUE, Long.MAX_VALUE, null);
+    assertEquals(2, blocks.size());
+    TorperfColumnarArchive.Block block = blocks.get(0);
+    assertEquals(1, block.getRows());
+    assertEquals(START * 1000000L + 260000L, block.getMinStartMicros());
+    TorperfColumnarArchive.Column start = block.getColumn("START");
+    assertEquals(TorperfColumnarArchive.MICROS, start.getType());
+    assertEquals(START * 1000000L + 260000L, start.getNumber(0));
+    assertEquals(TorperfColumnarArchive.DICTIONARY,
+        block.getColumn("FILESIZE").getType());
+    assertEquals("torperf", block.getColumn("SOURCE").getString(0));
+    assertEquals("other", blocks.get(1).getColumn("SOURCE").getString(0));
+
+    blocks = TorperfColumnarArchive.read(may, Long.MIN_VALUE,
+        Long.MAX_VALUE, new HashSet<>(Arrays.asList("CIRC_ID", "PATH")));
+    assertEquals(1, blocks.size());
+    block = blocks.get(0);
+    assertEquals(2, block.getRows());
+    assertEquals(new HashSet<>(Arrays.asList("CIRC_ID", "PATH")),
+        block.getKeys());
+    TorperfColumnarArchive.Column circId = block.getColumn("CIRC_ID");
+    assertEquals(TorperfColumnarArchive.LONG, circId.getType());
+    assertTrue(circId.hasValue(0));
+    assertFalse(circId.hasValue(1));
+    assertEquals(7L, circId.getNumber(0));
+    assertEquals("a,b,c", block.getColumn("PATH").getString(0));
+    assertNull(block.getColumn("PATH").getString(1));
+    assertNull(block.getColumn("START"));
+  }
+
+  @Test()
+  public void testSkipBlocksOutsideRange() throws Exception {
+    File outputDirectory = tmpf.newFolder("torperf-columnar");
+    TorperfColumnarArchive archive = new TorperfColumnarArchive(
+        outputDirectory);
+    for (int i = 0; i < 3; i++) {
+      TorperfColumnarArchive.Batch batch =
+          new TorperfColumnarArchive.Batch();
+      long start = START - 86400L * (3 - i);
+      batch.addRow(start * 1000000L, merged("torperf", start, null));
+      archive.append(batch);
+    }
+    File april = TorperfColumnarArchive.archiveFile(outputDirectory, 2017,
+        4);
+    long from = (START - 86400L * 2L) * 1000000L;
+    List<TorperfColumnarArchive.Block> blocks = TorperfColumnarArchive.read(
+        april, from, Long.MAX_VALUE, null);
+    assertEquals(2, blocks.size());
+    assertEquals(from, blocks.get(0).getMinStartMicros());
+  }
+
+  @Test()
+  public void testTruncateIncompleteBlock() throws Exception {
+    File outputDirectory = tmpf.newFolder("torperf-columnar");
+    TorperfColumnarArchive archive = new TorperfColumnarArchive(
+        outputDirectory);
+    TorperfColumnarArchive.Batch batch = new TorperfColumnarArchive.Batch();
+    batch.addRow(START * 1000000L, merged("torperf", START, null));
+    archive.append(batch);
+    File april = TorperfColumnarArchive.archiveFile(outputDirectory, 2017,
+        4);
+    long length = april.length();
+    archive.append(batch);
+    try (RandomAccessFile raf = new RandomAccessFile(april, "rw")) {
+      raf.setLength(length + 10L);
+    }
+    archive.append(batch);
+    assertEquals(2 * length - 4L, april.length());
+    assertEquals(2, TorperfColumnarArchive.read(april, Long.MIN_VALUE,
+        Long.MAX_VALUE, null).size());
+  }
+}
@@ -0,0 +1,78 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.torperf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class TorperfDownloadStateTest {
+
+  private static final String DATA_LINE = "1493596800 00 1493596800 00 "
+      + "1493596800 01 1493596800 01 1493596800 02 1493596800 40 "
+      + "1493596800 51 1493596801 21 1493596801 69 75 51200 0";
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testWriteRead() throws Exception {
+    File stateFile = new File(tmpf.getRoot(), "torperf-download-state");
+    TorperfDownloadState state = new TorperfDownloadState(stateFile);
+    state.put("torperf-50kb.data", new TorperfDownloadState.Entry(4096L,
+        "\"5907a3c0-1000\"", 1493607360000L, DATA_LINE, DATA_LINE,
+        DATA_LINE.length() + 2, 8192L));
+    state.put("torperf-50kb.extradata", new TorperfDownloadState.Entry(
+        10L, null, 0L, "BUILDTIMEOUT_SET x", null, 19, 10L));
+    state.write();
+    state = new TorperfDownloadState(stateFile);
+    state.read();
+    TorperfDownloadState.Entry entry = state.get("torperf-50kb.data");
+    assertEquals(4096L, entry.remoteOffset);
+    assertEquals("\"5907a3c0-1000\"", entry.etag);
+    assertEquals(1493607360000L, entry.lastModified);
+    assertEquals(DATA_LINE, entry.lastLine);
+    assertEquals(DATA_LINE, entry.lastTimestampLine);
+    assertEquals(DATA_LINE.length() + 2, entry.lastLineLength);
+    assertEquals(8192L, entry.localLength);
+    entry = state.get("torperf-50kb.extradata");
+    assertNull(entry.etag);
+    assertNull(entry.lastTimestampLine);
+    state.put("torperf-50kb.extradata", null);
+    assertNull(state.get("torperf-50kb.extradata"));
+  }
+
+  @Test()
+  public void testReadWithoutLengths() throws Exception {
+    File stateFile = new File(tmpf.getRoot(), "torperf-download-state");
+    Files.write(stateFile.toPath(), Arrays.asList(
+        "torperf-50kb.data\t4096\t\t0\t" + DATA_LINE + "\t" + DATA_LINE),
+        StandardCharsets.UTF_8);
+    TorperfDownloadState state = new TorperfDownloadState(stateFile);
+    state.read();
+    TorperfDownloadState.Entry entry = state.get("torperf-50kb.data");
+    assertEquals(4096L, entry.remoteOffset);
+    assertEquals(DATA_LINE.length() + 1, entry.lastLineLength);
+    assertEquals(-1L, entry.localLength);
+  }
+
+  @Test()
+  public void testReadInvalid() throws Exception {
+    File stateFile = new File(tmpf.getRoot(), "torperf-download-state");
+    Files.write(stateFile.toPath(), Arrays.asList(
+        "torperf-50kb.data\tnot-a-number\t\t0\tline\t"),
+        StandardCharsets.UTF_8);
+    TorperfDownloadState state = new TorperfDownloadState(stateFile);
+    state.read();
+    assertNull(state.get("torperf-50kb.data"));
+  }
+}
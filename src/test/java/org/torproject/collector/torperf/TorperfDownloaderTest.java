@@ -0,0 +1,221 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.torperf;
+
+import static org.junit.Assert.assertEquals;
+
+import org.torproject.collector.Main;
+import org.torproject.collector.conf.Configuration;
+import org.torproject.collector.conf.Key;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TorperfDownloaderTest {
+
+  /* 2017-05-01 00:00:00 UTC */
+  private static final long START = 1493596800L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private final Map<String, byte[]> remoteFiles = new ConcurrentHashMap<>();
+
+  private final List<String> dataRequests = Collections.synchronizedList(
+      new ArrayList<String>());
+
+  private HttpServer server;
+
+  private Configuration configuration;
+
+  private File dataFile;
+
+  private File stateFile;
+
+  /** Starts a local web server serving remote .data and .extradata files
+   * with ETags, If-None-Match, and single open-ended byte ranges, and
+   * logs the range and response code of each .data file request. */
+  @Before
+  public void startServer() throws Exception {
+    this.server = HttpServer.create(new InetSocketAddress("localhost", 0),
+        0);
+    this.server.createContext("/", (HttpExchange exchange) -> {
+      String fileName = exchange.getRequestURI().getPath().substring(1);
+      byte[] body = this.remoteFiles.get(fileName);
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      String etag = "\"" + Arrays.hashCode(body) + "\"";
+      exchange.getResponseHeaders().add("ETag", etag);
+      int responseCode = 200;
+      if (etag.equals(exchange.getRequestHeaders().getFirst(
+          "If-None-Match"))) {
+        responseCode = 304;
+        body = null;
+      } else if (range != null) {
+        int rangeStart = Integer.parseInt(range.substring(
+            "bytes=".length(), range.length() - 1));
+        if (rangeStart >= body.length) {
+          responseCode = 416;
+          body = null;
+        } else {
+          responseCode = 206;
+          body = Arrays.copyOfRange(body, rangeStart, body.length);
+        }
+      }
+      if (fileName.endsWith(".data")) {
+        this.dataRequests.add(range + " " + responseCode);
+      }
+      exchange.sendResponseHeaders(responseCode,
+          body == null ? -1 : body.length);
+      if (body != null) {
+        exchange.getResponseBody().write(body);
+      }
+      exchange.close();
+    });
+    this.server.start();
+    this.configuration = new Configuration();
+    this.configuration.load(getClass().getClassLoader().getResourceAsStream(
+        Main.CONF_FILE));
+    File root = tmpf.getRoot();
+    this.configuration.setProperty(Key.OutputPath.name(),
+        new File(root, "out").getAbsolutePath());
+    this.configuration.setProperty(Key.RecentPath.name(),
+        new File(root, "recent").getAbsolutePath());
+    this.configuration.setProperty(Key.StatsPath.name(),
+        new File(root, "stats").getAbsolutePath());
+    this.configuration.setProperty(Key.TorperfHosts.name(),
+        "t, http://localhost:" + this.server.getAddress().getPort() + "/");
+    this.configuration.setProperty(Key.TorperfFilesLines.name(),
+        "t 51200 50kb.data 50kb.extradata");
+    this.dataFile = new File(root, "out/torperf/t-50kb.data");
+    this.stateFile = new File(root, "stats/torperf-download-state");
+    StringBuilder extradata = new StringBuilder();
+    for (int i = 0; i < 5; i++) {
+      long seconds = START + i * 300L;
+      extradata.append("CIRC_ID=1 LAUNCH=" + seconds + ".00 USED_AT="
+          + (seconds + 1) + ".50 PATH=a,b,c\n");
+    }
+    this.remoteFiles.put("50kb.extradata",
+        extradata.toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @After
+  public void stopServer() {
+    this.server.stop(0);
+  }
+
+  private static String dataLine(int index) {
+    long seconds = START + index * 300L;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 9; i++) {
+      sb.append(seconds + i / 5).append(" ").append(i * 10).append(" ");
+    }
+    return sb.append("75 51200 0\n").toString();
+  }
+
+  private static String dataLines(int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(dataLine(i));
+    }
+    return sb.toString();
+  }
+
+  private void serveData(String data) {
+    this.remoteFiles.put("50kb.data",
+        data.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private String download() throws Exception {
+    this.dataRequests.clear();
+    new TorperfDownloader(this.configuration).startProcessing();
+    return new String(Files.readAllBytes(this.dataFile.toPath()),
+        StandardCharsets.US_ASCII);
+  }
+
+  /* Returns the range requested after downloading the given lines,
+   * which starts with the last of them. */
+  private static String rangeAfter(int count) {
+    return "bytes=" + (dataLines(count).length()
+        - dataLine(count - 1).length()) + "-";
+  }
+
+  @Test()
+  public void testAppendTail() throws Exception {
+    this.serveData(dataLines(10));
+    assertEquals(dataLines(10), this.download());
+    assertEquals(Arrays.asList("null 200"), this.dataRequests);
+    this.serveData(dataLines(15));
+    assertEquals(dataLines(15), this.download());
+    assertEquals(Arrays.asList(rangeAfter(10) + " 206"),
+        this.dataRequests);
+  }
+
+  @Test()
+  public void testNotModified() throws Exception {
+    this.serveData(dataLines(10));
+    this.download();
+    byte[] state = Files.readAllBytes(this.stateFile.toPath());
+    assertEquals(dataLines(10), this.download());
+    assertEquals(Arrays.asList(rangeAfter(10) + " 304"),
+        this.dataRequests);
+    assertEquals(new String(state, StandardCharsets.UTF_8),
+        new String(Files.readAllBytes(this.stateFile.toPath()),
+        StandardCharsets.UTF_8));
+  }
+
+  @Test()
+  public void testRewrittenRemoteFile() throws Exception {
+    this.serveData(dataLines(10));
+    this.download();
+    /* Insert a line before the lines downloaded before, so that the
+     * requested range does not start with the last downloaded line. */
+    this.serveData(dataLine(100) + dataLines(15));
+    assertEquals(dataLines(15), this.download());
+    assertEquals(Arrays.asList(rangeAfter(10) + " 206", "null 200"),
+        this.dataRequests);
+  }
+
+  @Test()
+  public void testPartialLastLine() throws Exception {
+    this.serveData(dataLines(10) + dataLine(10).substring(0, 20));
+    assertEquals(dataLines(10), this.download());
+    this.serveData(dataLines(12));
+    assertEquals(dataLines(12), this.download());
+    assertEquals(Arrays.asList(rangeAfter(10) + " 206"),
+        this.dataRequests);
+  }
+
+  @Test()
+  public void testAppendedAfterSavingState() throws Exception {
+    this.serveData(dataLines(10));
+    this.download();
+    byte[] state = Files.readAllBytes(this.stateFile.toPath());
+    this.serveData(dataLines(15));
+    assertEquals(dataLines(15), this.download());
+    /* Pretend that the last execution appended lines but did not get to
+     * save its download state. */
+    Files.write(this.stateFile.toPath(), state);
+    this.serveData(dataLines(20));
+    assertEquals(dataLines(20), this.download());
+    assertEquals(Arrays.asList(rangeAfter(10) + " 206"),
+        this.dataRequests);
+  }
+}
@@ -0,0 +1,99 @@
+/* Copyright 2017 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.collector.torperf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TorperfFieldsTest {
+
+  private static final String DATA_LINE = "1493593800 260000 1493593800 "
+      + "520000 1493593800 780000 1493593800 50000 1493593800 310000 "
+      + "1493593801 570000 1493593801 840000 1493593801 100000 "
+      + "1493593801 360000 75 51200 0";
+
+  @Test()
+  public void testParseDataLine() {
+    TorperfFields data = new TorperfFields();
+    assertTrue(data.parseDataLine(" " + DATA_LINE + "\t"));
+    assertEquals(1493593800L, data.getStartSeconds());
+    assertEquals(1493593801360000L, data.getDataCompleteMicros());
+    StringBuilder sb = new StringBuilder();
+    data.appendSorted(sb);
+    assertEquals("CONNECT=1493593800.78 DATACOMPLETE=1493593801.36 "
+        + "DATAREQUEST=1493593801.84 DATARESPONSE=1493593801.10 "
+        + "DIDTIMEOUT=0 NEGOTIATE=1493593800.05 READBYTES=51200 "
+        + "REQUEST=1493593800.31 RESPONSE=1493593801.57 "
+        + "SOCKET=1493593800.52 START=1493593800.26 WRITEBYTES=75",
+        sb.toString());
+  }
+
+  @Test()
+  public void testParseIllegalDataLines() {
+    TorperfFields data = new TorperfFields();
+    assertFalse(data.parseDataLine(""));
+    assertFalse(data.parseDataLine("1493593800 260000 75 51200"));
+    assertFalse(data.parseDataLine(DATA_LINE.replace("520000", "x")));
+    assertFalse(data.parseDataLine(DATA_LINE.replace("1493593801 360000",
+        "1493593801.5 360000")));
+  }
+
+  @Test()
+  public void testParseExtradataLine() {
+    TorperfFields extradata = new TorperfFields();
+    assertTrue(extradata.parseExtradataLine("CIRC_ID=1 "
+        + "USED_AT=1493593801.5 STREAM_FAIL_REASONS=MISC EXITPOLICY "
+        + "QUANTILE=1.25 "));
+    assertEquals(1493593801500000L, extradata.getUsedAtMicros());
+    StringBuilder sb = new StringBuilder();
+    extradata.appendSorted(sb);
+    assertEquals("CIRC_ID=1 QUANTILE=1.25 "
+        + "STREAM_FAIL_REASONS=MISC:EXITPOLICY USED_AT=1493593801.50",
+        sb.toString());
+    assertTrue(extradata.parseExtradataLine("CIRC_ID=2 LAUNCH=1"));
+    assertEquals(Long.MIN_VALUE, extradata.getUsedAtMicros());
+  }
+
+  @Test()
+  public void testParseIllegalExtradataLines() {
+    TorperfFields extradata = new TorperfFields();
+    assertFalse(extradata.parseExtradataLine(" CIRC_ID=1"));
+    assertFalse(extradata.parseExtradataLine("CIRC_ID=1  PATH=a"));
+    assertFalse(extradata.parseExtradataLine("BAD=a=b"));
+    assertFalse(extradata.parseExtradataLine("PATH=a MISC"));
+  }
+
+  @Test()
+  public void testMergeKeepsLastValue() {
+    TorperfFields data = new TorperfFields();
+    data.parseDataLine(DATA_LINE);
+    TorperfFields extradata = new TorperfFields();
+    extradata.parseExtradataLine("START=1 USED_AT=1493593801.36 "
+        + "SOURCE=other");
+    TorperfFields merged = new TorperfFields();
+    merged.add("SOURCE", "torperf");
+    merged.add("FILESIZE", "51200");
+    merged.addAll(extradata);
+    merged.addAll(data);
+    StringBuilder sb = new StringBuilder();
+    merged.appendSorted(sb);
+    assertTrue(sb.toString().contains(" SOURCE=other "));
+    assertTrue(sb.toString().contains(" START=1493593800.26 "));
+    assertTrue(sb.toString().contains(" FILESIZE=51200 "));
+    assertTrue(sb.toString().contains(" USED_AT=1493593801.36 "));
+  }
+
+  @Test()
+  public void testParseMicros() {
+    assertEquals(1500000L, TorperfFields.parseMicros("1.5", 0, 3));
+    assertEquals(1000000L, TorperfFields.parseMicros("1.", 0, 2));
+    assertEquals(500000L, TorperfFields.parseMicros(".5", 0, 2));
+    assertEquals(1123456L, TorperfFields.parseMicros("1.1234567", 0, 9));
+    assertEquals(Long.MIN_VALUE, TorperfFields.parseMicros("x", 0, 1));
+    assertEquals(Long.MIN_VALUE, TorperfFields.parseMicros(".", 0, 1));
+  }
+}